@@ -0,0 +1,91 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import nzilbb.elpis.*;
+import nzilbb.elpis.util.ElpisStub;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures decoding of the two largest responses - the word list returned by
+ * {@link Elpis#datasetPrepareCompact()}, and the lexicon returned by
+ * {@link Elpis#pronDictGenerateLexiconCompact()} - with <tt>words</tt> words.
+ * <dl>
+ *  <dt>wordlist</dt><dd>{@link WordFrequencies#parse(JsonParser)} on the word list.</dd>
+ *  <dt>lexicon</dt><dd>{@link Lexicon#parse(String)} on the lexicon lines.</dd>
+ *  <dt>datasetPrepareCompact, pronDictGenerateLexiconCompact</dt><dd>the whole call, including the
+ *   request and response parsing, against an in-process {@link ElpisStub}.</dd>
+ * </dl>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class DecodingBenchmark {
+
+   /** The number of words in the word list and lexicon */
+   @Param({ "1000", "100000" })
+   public int words;
+
+   String wordlist;
+   String lexicon;
+   ElpisStub stub;
+   Elpis elpis;
+
+   @Setup public void setup() throws Exception {
+      stub = new ElpisStub().setVocabularySize(words).start();
+      elpis = new Elpis(stub.getUrl());
+      elpis.datasetNew("ds");
+      elpis.pronDictNew("pd", "ds");
+      // use the stub's own content for the decoding-only benchmarks
+      Lexicon generated = elpis.pronDictGenerateLexiconCompact();
+      StringBuilder lines = new StringBuilder();
+      generated.forEach((word, pronunciation) ->
+                        lines.append(word).append(" ").append(pronunciation).append("\n"));
+      lexicon = lines.toString();
+      WordFrequencies frequencies = elpis.datasetPrepareCompact();
+      StringBuilder json = new StringBuilder("{");
+      frequencies.forEach((word, count) -> {
+            if (json.length() > 1) json.append(",");
+            json.append("\"").append(word).append("\":").append(count);
+         });
+      wordlist = json.append("}").toString();
+   }
+
+   @TearDown public void tearDown() {
+      stub.stop();
+   }
+
+   @Benchmark public WordFrequencies wordlist() {
+      JsonParser parser = Json.createParser(new StringReader(wordlist));
+      try {
+         parser.next(); // START_OBJECT
+         return WordFrequencies.parse(parser);
+      } finally {
+         parser.close();
+      }
+   }
+
+   @Benchmark public Lexicon lexicon() {
+      return Lexicon.parse(lexicon);
+   }
+
+   @Benchmark public WordFrequencies datasetPrepareCompact() throws IOException, ElpisException {
+      return elpis.datasetPrepareCompact();
+   }
+
+   @Benchmark public Lexicon pronDictGenerateLexiconCompact() throws IOException, ElpisException {
+      return elpis.pronDictGenerateLexiconCompact();
+   }
+}
@@ -0,0 +1,100 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import nzilbb.elpis.http.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures multipart request bodies without any network I/O.
+ * <dl>
+ *  <dt>framing</dt><dd>building the {@link MultipartBody} for <tt>files</tt> files, i.e.
+ *   generating part headers and computing the Content-Length.</dd>
+ *  <dt>writeTo</dt><dd>writing the whole body to a channel that discards it, which is
+ *   how transports send it.</dd>
+ *  <dt>openStream</dt><dd>reading the whole body through
+ *   {@link RequestBody#openStream()}, for transports that can't use channels.</dd>
+ * </dl>
+ * <p> The <tt>megabytes</tt> secondary result is the body throughput in MB/s.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MultipartBenchmark {
+
+   /** The number of files in the request */
+   @Param({ "2", "100" })
+   public int files;
+
+   /** The total size of the files, in MB */
+   @Param({ "16" })
+   public int sizeMb;
+
+   URL url;
+   Vector<File> content = new Vector<File>();
+
+   @Setup public void setup() throws IOException {
+      url = new URL("http://127.0.0.1:5000/api/dataset/files");
+      long size = sizeMb * 1024L * 1024L / files;
+      for (int f = 0; f < files; f++) {
+         File file = File.createTempFile("MultipartBenchmark-", f % 2 == 0? ".eaf" : ".wav");
+         file.deleteOnExit();
+         try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+            data.setLength(size);
+         }
+         content.add(file);
+      }
+   }
+
+   @TearDown public void tearDown() {
+      for (File file : content) file.delete();
+   }
+
+   /** Body throughput counter */
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   public static class Rate {
+      /** MB written */
+      public double megabytes;
+   }
+
+   RequestBody body() throws IOException {
+      HttpRequestPostMultipart request = new HttpRequestPostMultipart(url);
+      for (File file : content) request.setParameter("file", file);
+      return request.getBody();
+   }
+
+   @Benchmark public long framing() throws IOException {
+      return body().getContentLength();
+   }
+
+   @Benchmark public long writeTo(Rate rate) throws IOException {
+      long written = body().writeTo(RequestBenchmark.DISCARD);
+      rate.megabytes += written / 1048576.0;
+      return written;
+   }
+
+   @Benchmark public long openStream(Rate rate) throws IOException {
+      long read = 0;
+      byte[] buffer = new byte[65536];
+      try (InputStream in = body().openStream()) {
+         for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) read += n;
+      }
+      rate.megabytes += read / 1048576.0;
+      return read;
+   }
+}
@@ -0,0 +1,70 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import nzilbb.elpis.*;
+import nzilbb.elpis.http.*;
+import nzilbb.elpis.util.ElpisStub;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures requests/second for small status polls - {@link Elpis#transcriptionStatus()},
+ * a GET with a tiny JSON response - against an in-process {@link ElpisStub}, where the
+ * cost is dominated by connection handling rather than content.
+ * <p> The <tt>transport</tt> parameter compares {@link HttpClientTransport} with
+ * {@link UrlConnectionTransport}:
+ * <dl>
+ *  <dt>transcriptionStatus</dt><dd>polls from a single thread.</dd>
+ *  <dt>transcriptionStatusConcurrent</dt><dd>polls from 8 threads sharing one client,
+ *   as {@link BulkExecutor} or {@link StatusPoller} would.</dd>
+ * </dl>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class PollBenchmark {
+
+   /** Transport to send requests with */
+   @Param({ "HttpClient", "HttpURLConnection" })
+   public String transport;
+
+   ElpisStub stub;
+   Elpis elpis;
+
+   @Setup public void setup() throws Exception {
+      stub = new ElpisStub().start();
+      elpis = new Elpis(stub.getUrl()).setTransport(
+         transport.equals("HttpClient")?
+         new HttpClientTransport() : new UrlConnectionTransport());
+      // there's only a transcription status once a recording has been uploaded
+      File wav = File.createTempFile("PollBenchmark-", ".wav");
+      try {
+         elpis.transcriptionNew(wav);
+      } finally {
+         wav.delete();
+      }
+   }
+
+   @TearDown public void tearDown() {
+      stub.stop();
+   }
+
+   @Benchmark public String transcriptionStatus() throws IOException, ElpisException {
+      return elpis.transcriptionStatus();
+   }
+
+   @Benchmark @Threads(8)
+   public String transcriptionStatusConcurrent() throws IOException, ElpisException {
+      return elpis.transcriptionStatus();
+   }
+}
@@ -0,0 +1,92 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.bench;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import nzilbb.elpis.http.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how long it takes to encode request parameters.
+ * <dl>
+ *  <dt>queryString</dt><dd>{@link HttpRequestGet#getQueryString()} with
+ *   <tt>parameters</tt> parameters, some of them multi-valued and needing escaping.</dd>
+ *  <dt>generateJson</dt><dd>{@link HttpRequestPost#generateJson()} with a lexicon of
+ *   <tt>words</tt> entries, formatted as a single string parameter, as lexicons were
+ *   saved previously.</dd>
+ *  <dt>streamJson</dt><dd>the same lexicon written by {@link JsonStringBody}, as it's
+ *   now sent by {@link nzilbb.elpis.Elpis#pronDictSaveLexicon(Map)}.</dd>
+ * </dl>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+
+   /** The number of query string parameters */
+   @Param({ "10" })
+   public int parameters;
+
+   /** The number of lexicon entries */
+   @Param({ "1000", "100000" })
+   public int words;
+
+   HttpRequestGet get;
+   URL url;
+   LinkedHashMap<String,String> lexicon = new LinkedHashMap<String,String>();
+
+   /** Discards whatever is written to it */
+   static final WritableByteChannel DISCARD = new WritableByteChannel() {
+         public int write(ByteBuffer buffer) {
+            int n = buffer.remaining();
+            buffer.position(buffer.limit());
+            return n;
+         }
+         public boolean isOpen() { return true; }
+         public void close() {}
+      };
+
+   @Setup public void setup() throws IOException {
+      get = new HttpRequestGet("http://127.0.0.1:5000/api/transcription/text");
+      for (int p = 0; p < parameters; p++) {
+         if (p % 3 == 0) {
+            get.setParameter("list" + p, new String[] { "a b", "c&d", "ā" });
+         } else {
+            get.setParameter("p" + p, "value " + p + " = ŋ?");
+         }
+      }
+      url = new URL("http://127.0.0.1:5000/api/pron-dict/save-lexicon");
+      for (int w = 0; w < words; w++) lexicon.put("w" + w, "w " + (w % 40) + " ə");
+   }
+
+   @Benchmark public String queryString() throws IOException {
+      return get.getQueryString();
+   }
+
+   @Benchmark public String generateJson() throws IOException {
+      StringBuilder content = new StringBuilder();
+      for (Map.Entry<String,String> entry : lexicon.entrySet()) {
+         content.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+      }
+      return new HttpRequestPost(url)
+         .setJsonParameter("lexicon", content.toString())
+         .generateJson();
+   }
+
+   @Benchmark public long streamJson() throws IOException {
+      return JsonStringBody.entries("lexicon", lexicon.entrySet()).writeTo(DISCARD);
+   }
+}
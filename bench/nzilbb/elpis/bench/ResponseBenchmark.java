@@ -0,0 +1,59 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import nzilbb.elpis.Response;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how long it takes to load a JSON response, for a small response (a status)
+ * and a large one (a lexicon of <tt>words</tt> entries, which is several MB for the
+ * larger setting).
+ * <p> <tt>load</tt> is {@link Response#load(String)}, which materialises the whole
+ * response, and <tt>parse</tt> is {@link Response#parse(java.io.InputStream)}, which
+ * streams it.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseBenchmark {
+
+   /** The number of lexicon entries in the response, or 0 for a small status response */
+   @Param({ "0", "200000" })
+   public int words;
+
+   String json;
+   byte[] bytes;
+
+   @Setup public void setup() {
+      if (words == 0) {
+         json = "{\"status\":200,\"data\":{\"status\":\"trained\"}}";
+      } else {
+         StringBuilder lexicon = new StringBuilder();
+         for (int w = 0; w < words; w++) {
+            lexicon.append("w").append(w).append(" w ").append(w % 40).append(" ə\\n");
+         }
+         json = "{\"status\":200,\"data\":{\"lexicon\":\"" + lexicon + "\"}}";
+      }
+      bytes = json.getBytes(StandardCharsets.UTF_8);
+   }
+
+   @Benchmark public Response load() {
+      return new Response().load(json);
+   }
+
+   @Benchmark public Response parse() throws IOException {
+      return new Response().parse(new ByteArrayInputStream(bytes));
+   }
+}
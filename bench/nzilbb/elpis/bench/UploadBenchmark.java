@@ -0,0 +1,133 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.bench;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import nzilbb.elpis.http.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures multipart upload throughput in MB/s, against a loopback server that discards
+ * whatever it receives.
+ * <p> The <tt>engine</tt> parameter compares:
+ * <dl>
+ *  <dt>channel</dt><dd>the {@link MultipartBody} upload path - fixed Content-Length,
+ *   with file content transferred from its FileChannel or memory-mapped.</dd>
+ *  <dt>stream</dt><dd>the body read through {@link RequestBody#openStream()} and
+ *   sent with chunked encoding, as uploads were sent previously.</dd>
+ * </dl>
+ * <p> The <tt>megabytes</tt> secondary result is the upload rate in MB/s.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UploadBenchmark {
+
+   /** Size of the uploaded file, in MB */
+   @Param({ "64" })
+   public int sizeMb;
+
+   /** Transport to send requests with */
+   @Param({ "HttpClient", "HttpURLConnection" })
+   public String transport;
+
+   /** Upload path */
+   @Param({ "channel", "stream" })
+   public String engine;
+
+   HttpServer server;
+   URL url;
+   File file;
+   Transport sender;
+
+   @Setup public void setup() throws IOException {
+      // without this, small responses are delayed ~40ms by Nagle's algorithm
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/api/dataset/files", exchange -> {
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[65536];
+            while (in.read(buffer) >= 0); // discard
+            byte[] response = "{\"status\":200,\"data\":{\"files\":[]}}"
+               .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+         });
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+      url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/api/dataset/files");
+
+      file = File.createTempFile("UploadBenchmark-", ".wav");
+      file.deleteOnExit();
+      try (RandomAccessFile content = new RandomAccessFile(file, "rw")) {
+         content.setLength(sizeMb * 1024L * 1024L);
+      }
+      sender = transport.equals("HttpClient")?
+         new HttpClientTransport() : new UrlConnectionTransport();
+   }
+
+   @TearDown public void tearDown() {
+      server.stop(0);
+      file.delete();
+   }
+
+   /** Upload rate counter */
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   public static class Rate {
+      /** MB uploaded */
+      public long megabytes;
+   }
+
+   @Benchmark public int upload(Rate rate) throws IOException {
+      HttpRequestPostMultipart request = new HttpRequestPostMultipart(url)
+         .setParameter("file", file);
+      TransportRequest toSend = engine.equals("channel")? request : streamOnly(request);
+      try (TransportResponse response = sender.send(toSend)) {
+         InputStream body = response.getBody();
+         while (body.read() >= 0);
+         rate.megabytes += sizeMb;
+         return response.getHttpStatus();
+      }
+   }
+
+   /**
+    * Wraps the given request so that its body can only be read as a stream of unknown
+    * length.
+    */
+   static TransportRequest streamOnly(TransportRequest request) {
+      return new TransportRequest() {
+         public String getMethod() { return request.getMethod(); }
+         public URL getUrl() throws IOException { return request.getUrl(); }
+         public Map<String,String> getRequestHeaders() { return request.getRequestHeaders(); }
+         public RequestBody getBody() throws IOException {
+            RequestBody body = request.getBody();
+            return new RequestBody() {
+               public String getContentType() { return body.getContentType(); }
+               public long getContentLength() { return -1; }
+               public InputStream openStream() throws IOException { return body.openStream(); }
+            };
+         }
+      };
+   }
+}
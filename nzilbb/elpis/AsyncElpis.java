@@ -0,0 +1,534 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import nzilbb.elpis.http.*;
+
+/**
+ * Asynchronous client for accessing Elpis server functions programmatically.
+ * <p> This has the same functions as {@link Elpis}, but each returns immediately with a
+ * CompletableFuture, which completes when the server's response has been received and
+ * parsed. When the {@link Elpis#getTransport()} is a {@link HttpClientTransport} (the
+ * default), requests are sent using non-blocking I/O, so no thread is tied up waiting for
+ * the server, and a handful of threads can drive many concurrent sessions. Once the
+ * server starts responding, the body is read and parsed as it arrives, using
+ * {@link Transport#blockingExecutor()}, rather than being held in memory first.
+ * <p> If a request fails, the future completes exceptionally with a CompletionException
+ * whose cause is an IOException if a communication error occurred, or an ElpisException
+ * if the server returned an error.
+ * <p> Instances are created with {@link Elpis#async()}, e.g.
+ * <pre>
+ * AsyncElpis elpis = new Elpis(elpisUrl).async();
+ * elpis.transcriptionNew(recording)
+ *   .thenCompose(v -&gt; elpis.transcriptionTranscribe())
+ *   .thenAccept(status -&gt; System.out.println(status));
+ * </pre>
+ * <p> Calls made through this object do not update {@link Elpis#getResponse()}.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class AsyncElpis {
+
+   // Attributes:
+
+   /**
+    * The synchronous client this is a view of.
+    * @see #getElpis()
+    */
+   protected Elpis elpis;
+   /**
+    * Getter for {@link #elpis}: The synchronous client this is a view of.
+    * @return The synchronous client this is a view of.
+    */
+   public Elpis getElpis() { return elpis; }
+
+   // Methods:
+
+   /**
+    * Constructor.
+    * @param elpis The synchronous client whose settings should be used.
+    */
+   public AsyncElpis(Elpis elpis) {
+      this.elpis = elpis;
+   } // end of constructor
+
+   /**
+    * Creates a request, which may fail if its URL is malformed.
+    */
+   interface RequestFactory {
+      TransportRequest create() throws IOException;
+   }
+
+   /**
+    * Reads the response from the transport, which may fail if the content can't be read.
+    */
+   interface ResponseReader {
+      Response read(TransportResponse response, Log log) throws IOException;
+   }
+
+   /**
+    * Sends a request to the server and checks the response for errors.
+    * @param function The name of the API function, for logging.
+    * @param factory Creates the request to send.
+    * @param expectJson Whether the response content should be parsed as a JSON object.
+    * @return A future that completes with the response.
+    */
+   protected CompletableFuture<Response> send(
+      String function, RequestFactory factory, boolean expectJson) {
+      boolean keepRaw = elpis.getKeepRaw();
+      return send(function, factory,
+                  (response, log) -> new Response(response, log, expectJson, keepRaw));
+   } // end of send()
+
+   /**
+    * Sends a request to the server, and copies the content of the response directly to
+    * the given destination, without loading it into memory.
+    * @param function The name of the API function, for logging.
+    * @param factory Creates the request to send.
+    * @param destination Where to copy the response content, which is not closed.
+    * @return A future that completes with the response.
+    */
+   protected CompletableFuture<Response> download(
+      String function, RequestFactory factory, WritableByteChannel destination) {
+      return send(function, factory, (response, log) -> new Response(response, log, destination));
+   } // end of download()
+
+   /**
+    * Sends a request to the server and checks the response for errors.
+    * @param function The name of the API function, for logging.
+    * @param factory Creates the request to send.
+    * @param reader Reads the response content.
+    * @return A future that completes with the response.
+    */
+   private CompletableFuture<Response> send(
+      String function, RequestFactory factory, ResponseReader reader) {
+      CallEvent event = new CallEvent();
+      event.begin();
+      TransportRequest request;
+      RequestTiming timing;
+      try {
+         request = factory.create();
+         timing = elpis.startTiming(function, request, event);
+      } catch(IOException exception) {
+         return CompletableFuture.failedFuture(exception);
+      }
+      Log log = elpis.getLog();
+      log.debug(() -> function + " -> " + request);
+      CompletableFuture<Response> future = elpis.getTransport()
+         .sendAsync(timing == null? request : timing.wrap(request))
+         // reading the body may block until it arrives
+         .thenApplyAsync(transportResponse -> {
+               try {
+                  if (timing != null) transportResponse = timing.responded(transportResponse);
+                  Response response = reader.read(transportResponse, log);
+                  if (timing != null) timing.received();
+                  response.checkForErrors(); // throws a ElpisException on error
+                  return response;
+               } catch(IOException | ElpisException exception) {
+                  throw new CompletionException(exception);
+               }
+            }, Transport.blockingExecutor());
+      return future.whenComplete((response, failure) -> {
+            if (failure instanceof CompletionException && failure.getCause() != null) {
+               failure = failure.getCause();
+            }
+            if (timing != null) timing.finish(failure);
+            elpis.commit(event, function, request, timing, response, failure);
+         });
+   } // end of send()
+
+   // dataset functions
+
+   /**
+    * Create a new dataset.
+    * @param name The name of the new dataset.
+    * @return A future that completes when the dataset has been created.
+    */
+   public CompletableFuture<Void> datasetNew(String name) {
+      return send("datasetNew", () -> elpis.post("dataset/new", "name", name), true)
+         .thenApply(response -> null);
+   } // end of datasetNew()
+
+   /**
+    * List current dataset names.
+    * @return A future list of dataset names.
+    */
+   public CompletableFuture<List<String>> datasetList() {
+      return send("datasetList", () -> elpis.get("dataset/list"), true)
+         .thenApply(response -> Elpis.parseStrings(response, "list"));
+   } // end of datasetList()
+
+   /**
+    * Start using an existing dataset.
+    * @param name The name of the existing dataset.
+    * @return A future that completes when the dataset has been loaded.
+    */
+   public CompletableFuture<Void> datasetLoad(String name) {
+      return send("datasetLoad", () -> elpis.post("dataset/load", "name", name), true)
+         .thenApply(response -> null);
+   } // end of datasetLoad()
+
+   /**
+    * Define dataset settings.
+    * @param tier The name of the ELAN tier that contains the transcript.
+    * @return A future that completes when the settings have been saved.
+    */
+   public CompletableFuture<Void> datasetSettings(String tier) {
+      return send("datasetSettings", () -> elpis.post("dataset/settings", "tier", tier), true)
+         .thenApply(response -> null);
+   } // end of datasetSettings()
+
+   /**
+    * Upload transcript/audio files into the dataset.
+    * <p> As with {@link Elpis#datasetFiles(List)}, if the client has a
+    * {@link Elpis#setBulkExecutor(BulkExecutor) bulk executor} the files are uploaded in
+    * concurrent shards; in that case the upload runs as a blocking call on
+    * {@link Transport#blockingExecutor()}.
+    * @param file Files to upload, which may be wav audio files and/or an ELAN .eaf transcripts.
+    * @return A future list of all dataset files uploaded so far.
+    */
+   public CompletableFuture<List<String>> datasetFiles(List<File> file) {
+      return datasetFiles(file, null);
+   } // end of datasetFiles()
+
+   /**
+    * Upload transcript/audio files into the dataset, skipping those that the given
+    * manifest records as already uploaded, as {@link Elpis#datasetFiles(List,UploadManifest)}
+    * does.
+    * <p> Without a manifest or {@link Elpis#setBulkExecutor(BulkExecutor) bulk executor},
+    * the files are sent using non-blocking I/O. Otherwise - as checking the manifest
+    * involves hashing files, and sharded uploads run on the bulk executor - the upload
+    * runs as a blocking call on {@link Transport#blockingExecutor()}.
+    * @param file Files to upload, which may be wav audio files and/or an ELAN .eaf transcripts.
+    * @param manifest The record of files previously uploaded to this dataset, or null
+    * to upload all the files.
+    * @return A future list of all dataset files uploaded so far.
+    */
+   public CompletableFuture<List<String>> datasetFiles(
+      List<File> file, UploadManifest manifest) {
+      if (manifest == null && elpis.getBulkExecutor() == null) {
+         return send("datasetFiles", () -> elpis.postFiles("dataset/files", file), true)
+            .thenApply(response -> Elpis.parseStrings(response, "files"));
+      }
+      return CompletableFuture.supplyAsync(() -> {
+            try {
+               return elpis.datasetFilesResult(file, manifest).getData();
+            } catch(IOException | ElpisException exception) {
+               throw new CompletionException(exception);
+            }
+         }, Transport.blockingExecutor());
+   } // end of datasetFiles()
+
+   /**
+    * Process the transcripts to create word/frequency lists.
+    * @return A future map of word types to frequencies in the uploaded transcripts.
+    */
+   public CompletableFuture<Map<String,Integer>> datasetPrepare() {
+      return send("datasetPrepare", () -> elpis.post("dataset/prepare"), true)
+         .thenApply(response -> Elpis.parseWordlist(response));
+   } // end of datasetPrepare()
+
+   /**
+    * Process the transcripts to create word/frequency lists, in a compact table.
+    * @return The future word types and their frequencies in the uploaded transcripts.
+    * @see Elpis#datasetPrepareCompact()
+    */
+   public CompletableFuture<WordFrequencies> datasetPrepareCompact() {
+      return send("datasetPrepare", () -> elpis.post("dataset/prepare"), true)
+         .thenApply(response -> Elpis.parseWordFrequencies(response));
+   } // end of datasetPrepareCompact()
+
+   // pron-dict functions
+
+   /**
+    * Create a new pronunciation dictionary.
+    * @param name The name of the new pronunciation dictionary.
+    * @param datasetName The name of the dataset.
+    * @return A future that completes when the pronunciation dictionary has been created.
+    */
+   public CompletableFuture<Void> pronDictNew(String name, String datasetName) {
+      return send("pronDictNew", () -> elpis.post(
+                     "pron-dict/new", "name", name, "dataset_name", datasetName), true)
+         .thenApply(response -> null);
+   } // end of pronDictNew()
+
+   /**
+    * Start using an existing pronunciation dictionary.
+    * @param name The name of the existing pronunciation dictionary.
+    * @return A future that completes when the pronunciation dictionary has been loaded.
+    */
+   public CompletableFuture<Void> pronDictLoad(String name) {
+      return send("pronDictLoad", () -> elpis.post("pron-dict/load", "name", name), true)
+         .thenApply(response -> null);
+   } // end of pronDictLoad()
+
+   /**
+    * List the current pronunciation dictionaries.
+    * @return A future list of existing pronunciation dictionaries.
+    */
+   public CompletableFuture<List<String>> pronDictList() {
+      return send("pronDictList", () -> elpis.get("pron-dict/list"), true)
+         .thenApply(response -> Elpis.parseNames(response));
+   } // end of pronDictList()
+
+   /**
+    * Specify the letter-to-sound mapping for creating a pronunciation dictionary.
+    * @param file The plain-text file to upload.
+    * @return A future that completes when the file has been uploaded.
+    * @see Elpis#pronDictL2S(File)
+    */
+   public CompletableFuture<Void> pronDictL2S(File file) {
+      return send("pronDictL2S", () -> elpis.postFiles("pron-dict/l2s", Arrays.asList(file)), true)
+         .thenApply(response -> null);
+   } // end of pronDictL2S()
+
+   /**
+    * Generate the pronunciation dictionary.
+    * @return A future map of word types to pronunciations.
+    * @see Elpis#pronDictGenerateLexicon()
+    */
+   public CompletableFuture<Map<String,String>> pronDictGenerateLexicon() {
+      return send("pronDictGenerateLexicon", () -> elpis.get("pron-dict/generate-lexicon"), true)
+         .thenApply(response -> Elpis.parseLexicon(response));
+   } // end of pronDictGenerateLexicon()
+
+   /**
+    * Generate the pronunciation dictionary, in a compact structure.
+    * @return The future word types and their pronunciations.
+    * @see Elpis#pronDictGenerateLexiconCompact()
+    */
+   public CompletableFuture<Lexicon> pronDictGenerateLexiconCompact() {
+      return send("pronDictGenerateLexicon", () -> elpis.get("pron-dict/generate-lexicon"), true)
+         .thenApply(response -> Elpis.parseCompactLexicon(response));
+   } // end of pronDictGenerateLexiconCompact()
+
+   /**
+    * Update the pronunciation dictionary.
+    * @param lexicon A file containing a map of word types to pronunciations.
+    * @return A future that completes when the lexicon has been saved.
+    * @see Elpis#pronDictSaveLexicon(File)
+    */
+   public CompletableFuture<Void> pronDictSaveLexicon(File lexicon) {
+      return send("pronDictSaveLexicon", () -> elpis.post(
+                     "pron-dict/save-lexicon").setBody(Elpis.lexiconBody(lexicon)), true)
+         .thenApply(response -> null);
+   } // end of pronDictSaveLexicon()
+
+   /**
+    * Update the pronunciation dictionary.
+    * @param lexicon A map of word types to pronunciations.
+    * @return A future that completes when the lexicon has been saved.
+    * @see Elpis#pronDictSaveLexicon(Map)
+    */
+   public CompletableFuture<Void> pronDictSaveLexicon(Map<String,String> lexicon) {
+      return send("pronDictSaveLexicon", () -> elpis.post(
+                     "pron-dict/save-lexicon").setBody(Elpis.lexiconBody(lexicon)), true)
+         .thenApply(response -> null);
+   } // end of pronDictSaveLexicon()
+
+   // model functions
+
+   /**
+    * List the current models.
+    * @return A future list of existing models.
+    */
+   public CompletableFuture<List<String>> modelList() {
+      return send("modelList", () -> elpis.get("model/list"), true)
+         .thenApply(response -> Elpis.parseNames(response));
+   } // end of modelList()
+
+   /**
+    * Create a new model for training.
+    * @param name The name of the new model to create.
+    * @param pronDictName The pronunciation dictionary to use.
+    * @return A future that completes when the model has been created.
+    */
+   public CompletableFuture<Void> modelNew(String name, String pronDictName) {
+      return send("modelNew", () -> elpis.post(
+                     "model/new", "name", name, "pron_dict_name", pronDictName), true)
+         .thenApply(response -> null);
+   } // end of modelNew()
+
+   /**
+    * Start using an existing model.
+    * @param name The name of the existing model to use.
+    * @return A future that completes when the model has been loaded.
+    */
+   public CompletableFuture<Void> modelLoad(String name) {
+      return send("modelLoad", () -> elpis.post("model/load", "name", name), true)
+         .thenApply(response -> null);
+   } // end of modelLoad()
+
+   /**
+    * Specify model configuration.
+    * @param ngram The n-gram setting (number of consecutive words to use) for the
+    * language model.
+    * @return A future that completes when the settings have been saved.
+    */
+   public CompletableFuture<Void> modelSettings(int ngram) {
+      return send("modelSettings", () -> elpis.post("model/settings", "ngram", ""+ngram), true)
+         .thenApply(response -> null);
+   } // end of modelSettings()
+
+   /**
+    * Start the process of training models on the dataset.
+    * @return The future status of the training.
+    */
+   public CompletableFuture<String> modelTrain() {
+      return send("modelTrain", () -> elpis.get("model/train"), true)
+         .thenApply(response -> Elpis.parseStatus(response));
+   } // end of modelTrain()
+
+   /**
+    * Get the current status of model training.
+    * @return The future status of the training.
+    */
+   public CompletableFuture<String> modelStatus() {
+      return send("modelStatus", () -> elpis.get("model/status"), true)
+         .thenApply(response -> Elpis.parseStatus(response));
+   } // end of modelStatus()
+
+   /**
+    * Get the training results - i.e. metrics for the final model performance after
+    * training.
+    * @return A future map of metric names to their values.
+    */
+   public CompletableFuture<Map<String,String>> modelResults() {
+      return send("modelResults", () -> elpis.get("model/results"), true)
+         .thenApply(response -> Elpis.parseResults(response));
+   } // end of modelResults()
+
+   /**
+    * Get the training results, with the word error rate and word counts as numbers.
+    * @return The future word error rate, word counts, and any other metrics.
+    * @see Elpis#modelResultsCompact()
+    */
+   public CompletableFuture<ModelResults> modelResultsCompact() {
+      return send("modelResults", () -> elpis.get("model/results"), true)
+         .thenApply(response -> ModelResults.parse(response));
+   } // end of modelResultsCompact()
+
+   // transcription functions
+
+   /**
+    * Upload an audio file to transcribe.
+    * @param file The wav audio file to upload.
+    * @return A future that completes when the file has been uploaded.
+    */
+   public CompletableFuture<Void> transcriptionNew(File file) {
+      return send("transcriptionNew",
+                  () -> elpis.postFiles("transcription/new", Arrays.asList(file)), true)
+         .thenApply(response -> null);
+   } // end of transcriptionNew()
+
+   /**
+    * Begin the transcription process, with the last recording uploaded using
+    * {@link #transcriptionNew(File)}.
+    * @return The future status of the transcription.
+    */
+   public CompletableFuture<String> transcriptionTranscribe() {
+      return send("transcriptionTranscribe", () -> elpis.get("transcription/transcribe"), true)
+         .thenApply(response -> Elpis.parseStatus(response));
+   } // end of transcriptionTranscribe()
+
+   /**
+    * Get the current status of the transcription process started using
+    * {@link #transcriptionTranscribe()}.
+    * @return The future status of the transcription.
+    */
+   public CompletableFuture<String> transcriptionStatus() {
+      return send("transcriptionStatus", () -> elpis.get("transcription/status"), true)
+         .thenApply(response -> Elpis.parseStatus(response));
+   } // end of transcriptionStatus()
+
+   /**
+    * Wait for model training, started using {@link #modelTrain()}, to finish.
+    * <p> The status is checked using the {@link Elpis#getStatusPoller()}, which doesn't
+    * tie up a thread while waiting.
+    * @param timeout How long to wait before giving up, or null to wait indefinitely.
+    * @return A future that completes with the status "trained", or completes exceptionally
+    * with an ElpisException if training fails or times out.
+    */
+   public CompletableFuture<String> awaitModelTrained(Duration timeout) {
+      return elpis.getStatusPoller().await("Training", () -> modelStatus(), "trained", timeout);
+   } // end of awaitModelTrained()
+
+   /**
+    * Wait for transcription, started using {@link #transcriptionTranscribe()}, to finish.
+    * <p> The status is checked using the {@link Elpis#getStatusPoller()}, which doesn't
+    * tie up a thread while waiting.
+    * @param timeout How long to wait before giving up, or null to wait indefinitely.
+    * @return A future that completes with the status "transcribed", or completes
+    * exceptionally with an ElpisException if transcription fails or times out.
+    */
+   public CompletableFuture<String> awaitTranscribed(Duration timeout) {
+      return elpis.getStatusPoller().await(
+         "Transcription", () -> transcriptionStatus(), "transcribed", timeout);
+   } // end of awaitTranscribed()
+
+   /**
+    * Get the plain-text version of the last transcript created by
+    * {@link #transcriptionTranscribe()}.
+    * @return The future transcript of the recording.
+    */
+   public CompletableFuture<String> transcriptionText() {
+      return send("transcriptionText", () -> elpis.get("transcription/text", "text/plain"), false)
+         .thenApply(response -> response.getRaw());
+   } // end of transcriptionText()
+
+   /**
+    * Get the ELAN (.eaf) version of the last transcript created by
+    * {@link #transcriptionTranscribe()}.
+    * @return A future file containing the ELAN (.eaf) transcription of the recording,
+    * which should be deleted by the caller when no longer needed.
+    */
+   public CompletableFuture<File> transcriptionElan() {
+      File file;
+      FileChannel channel;
+      try {
+         file = File.createTempFile("transcriptionElan-", ".eaf");
+         channel = Elpis.openChannel(file.toPath());
+      } catch(IOException exception) {
+         return CompletableFuture.failedFuture(exception);
+      }
+      return download("transcriptionElan",
+                      () -> elpis.get("transcription/elan", "text/x-eaf+xml"), channel)
+         .handle((response, failure) -> {
+               try {
+                  channel.close();
+               } catch(IOException exception) {
+                  if (failure == null) failure = exception;
+               }
+               if (failure != null) {
+                  file.delete();
+                  throw failure instanceof CompletionException? (CompletionException)failure
+                     : new CompletionException(failure);
+               }
+               return file;
+            });
+   } // end of transcriptionElan()
+
+   // config functions
+
+   /**
+    * Reset the server - delete all uploads, datasets, pronunciation maps, etc.
+    * @return A future that completes when the server has been reset.
+    */
+   public CompletableFuture<Void> configReset() {
+      return send("configReset", () -> elpis.post("config/reset"), true)
+         .thenApply(response -> null);
+   } // end of configReset()
+
+} // end of class AsyncElpis
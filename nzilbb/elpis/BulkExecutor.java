@@ -0,0 +1,214 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many blocking {@link Elpis} calls concurrently, with a limit on how many may be in
+ * progress at once, so that the server isn't overwhelmed.
+ * <p> On Java 21 or later, {@link #virtualThreads(int)} runs each task on its own virtual
+ * thread, so thousands of calls can wait on the network without tying up a platform
+ * thread each. On earlier versions it falls back to a pool of platform threads.
+ * <p> e.g.
+ * <pre>
+ * try (BulkExecutor bulk = BulkExecutor.virtualThreads(16)) {
+ *   List&lt;String&gt; statuses = bulk.map(servers, elpis -&gt; elpis.transcriptionStatus());
+ * }
+ * </pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class BulkExecutor implements AutoCloseable {
+
+   /**
+    * A task to run for each item.
+    */
+   @FunctionalInterface
+   public interface Task<T,R> {
+      /**
+       * Processes the given item.
+       * @param item The item to process.
+       * @return The result.
+       * @throws IOException if a communication error occurs.
+       * @throws ElpisException if the server returns an error.
+       */
+      R apply(T item) throws IOException, ElpisException;
+   }
+
+   // Attributes:
+
+   /**
+    * The executor that runs the tasks.
+    * @see #getExecutor()
+    */
+   protected ExecutorService executor;
+   /**
+    * Getter for {@link #executor}: The executor that runs the tasks.
+    * @return The executor that runs the tasks.
+    */
+   public ExecutorService getExecutor() { return executor; }
+
+   /**
+    * The maximum number of tasks that may run at once.
+    * @see #getLimit()
+    */
+   protected int limit;
+   /**
+    * Getter for {@link #limit}: The maximum number of tasks that may run at once.
+    * @return The maximum number of tasks that may run at once.
+    */
+   public int getLimit() { return limit; }
+
+   /**
+    * Whether tasks run on virtual threads.
+    * @see #getVirtual()
+    */
+   protected boolean virtual;
+   /**
+    * Getter for {@link #virtual}: Whether tasks run on virtual threads.
+    * @return true if tasks run on virtual threads, false if they run on platform threads.
+    */
+   public boolean getVirtual() { return virtual; }
+
+   /** Permits for running tasks */
+   private Semaphore permits;
+
+   /** Whether the current thread is running one of this executor's tasks */
+   private final ThreadLocal<Boolean> inTask = ThreadLocal.withInitial(() -> false);
+
+   // Methods:
+
+   /**
+    * Creates an executor that runs each task on a new virtual thread, if the JVM supports
+    * them (Java 21 or later), or on a pool of platform threads otherwise.
+    * @param limit The maximum number of tasks that may run at once.
+    * @return A new executor.
+    */
+   public static BulkExecutor virtualThreads(int limit) {
+      try {
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return new BulkExecutor((ExecutorService)factory.invoke(null), limit, true);
+      } catch(ReflectiveOperationException exception) { // virtual threads not supported
+         return platformThreads(limit);
+      }
+   } // end of virtualThreads()
+
+   /**
+    * Creates an executor that runs tasks on a fixed pool of platform threads.
+    * @param limit The maximum number of tasks that may run at once, which is also the
+    * number of threads.
+    * @return A new executor.
+    */
+   public static BulkExecutor platformThreads(int limit) {
+      return new BulkExecutor(Executors.newFixedThreadPool(limit), limit, false);
+   } // end of platformThreads()
+
+   /**
+    * Constructor.
+    * @param executor The executor that runs the tasks.
+    * @param limit The maximum number of tasks that may run at once.
+    * @param virtual Whether the executor runs tasks on virtual threads.
+    */
+   protected BulkExecutor(ExecutorService executor, int limit, boolean virtual) {
+      if (limit < 1) throw new IllegalArgumentException("Limit must be at least 1: " + limit);
+      this.executor = executor;
+      this.limit = limit;
+      this.virtual = virtual;
+      this.permits = new Semaphore(limit);
+   } // end of constructor
+
+   /**
+    * Runs the given task for each of the given items concurrently, and waits for them
+    * all to finish.
+    * <p> If this is called from within one of this executor's own tasks - e.g. a task
+    * that calls {@link Elpis#datasetFiles(List)} on a client with this executor as its
+    * {@link Elpis#setBulkExecutor(BulkExecutor) bulk executor} - the items are processed
+    * one after another on the calling thread instead, as the calling task already holds
+    * one of the permits that concurrent tasks would wait for.
+    * @param items The items to process.
+    * @param task The task to run for each item.
+    * @return The results, in the same order as the items.
+    * @throws IOException If any task failed with a communication error.
+    * @throws ElpisException If any task failed because the server returned an error.
+    */
+   public <T,R> List<R> map(Collection<T> items, Task<? super T,? extends R> task)
+      throws IOException, ElpisException {
+      if (inTask.get()) { // nested call, which would wait for its caller's permit
+         List<R> results = new ArrayList<R>(items.size());
+         for (T item : items) results.add(task.apply(item));
+         return results;
+      }
+      List<Future<R>> futures = new ArrayList<Future<R>>(items.size());
+      for (T item : items) {
+         futures.add(executor.submit(() -> {
+                  permits.acquire();
+                  inTask.set(true);
+                  try {
+                     return task.apply(item);
+                  } finally {
+                     inTask.set(false);
+                     permits.release();
+                  }
+               }));
+      } // next item
+      List<R> results = new ArrayList<R>(futures.size());
+      try {
+         for (Future<R> future : futures) {
+            results.add(future.get());
+         } // next future
+      } catch(InterruptedException exception) {
+         for (Future<R> future : futures) future.cancel(true);
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted", exception);
+      } catch(ExecutionException exception) {
+         for (Future<R> future : futures) future.cancel(true);
+         Throwable cause = exception.getCause();
+         if (cause instanceof IOException) throw (IOException)cause;
+         if (cause instanceof ElpisException) throw (ElpisException)cause;
+         if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+         if (cause instanceof Error) throw (Error)cause;
+         throw new IOException(cause);
+      }
+      return results;
+   } // end of map()
+
+   /**
+    * Shuts down the underlying executor, waiting for running tasks to finish. If the
+    * calling thread is interrupted while waiting, running tasks are interrupted too, and
+    * the thread's interrupt status is restored.
+    */
+   public void close() {
+      executor.shutdown();
+      try {
+         boolean terminated = false;
+         while (!terminated) {
+            terminated = executor.awaitTermination(1, TimeUnit.MINUTES);
+         } // next wait
+      } catch(InterruptedException exception) {
+         executor.shutdownNow();
+         Thread.currentThread().interrupt();
+      }
+   } // end of close()
+
+   /**
+    * String representation of the executor.
+    * @return A String representation of the executor.
+    */
+   public String toString() {
+      return (virtual?"virtual":"platform") + " threads, limit " + limit;
+   } // end of toString()
+
+} // end of class BulkExecutor
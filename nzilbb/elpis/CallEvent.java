@@ -0,0 +1,63 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import nzilbb.elpis.http.TransportRequest;
+
+/**
+ * Java Flight Recorder event for a call to an Elpis API function, from sending the
+ * request until the response has been processed.
+ * <p> Fields are only filled in if the event is going to be recorded - see
+ * {@link Elpis#commit(CallEvent,String,TransportRequest,Response,Throwable)} - so when
+ * JFR isn't running, the cost of the event is creating and timing it.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@Name("nzilbb.elpis.Call")
+@Label("Elpis API Call")
+@Category("Elpis")
+@Description("A request to an Elpis server, from sending it until the response is processed")
+class CallEvent extends Event {
+   
+   @Label("Function")
+   @Description("The API function, e.g. datasetFiles")
+   String function;
+
+   @Label("Endpoint")
+   @Description("The endpoint, relative to the API base URL, e.g. dataset/files")
+   String endpoint;
+   
+   @Label("URL")
+   String url;
+   
+   @Label("HTTP Status")
+   @Description("The HTTP status of the response, or -1 if there was none")
+   int httpStatus = -1;
+
+   @Label("Bytes Sent")
+   @Description("The number of bytes of request body sent, or -1 if unknown")
+   @DataAmount
+   long bytesSent;
+
+   @Label("Bytes Received")
+   @Description("The length of the response body, or -1 if unknown")
+   @DataAmount
+   long bytesReceived = -1;
+
+   @Label("Status")
+   @Description("The status returned by the server, e.g. training, for status calls")
+   String status;
+
+   @Label("Error")
+   @Description("Why the call failed, or null if it succeeded")
+   String error;
+   
+} // end of class CallEvent
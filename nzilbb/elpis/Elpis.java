@@ -5,25 +5,35 @@
 //
 package nzilbb.elpis;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringReader;
+import java.lang.ref.SoftReference;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import javax.json.Json;
 import javax.json.JsonArray;
-import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonString;
+import javax.json.stream.JsonParser;
 import nzilbb.elpis.http.*;
 
 /**
@@ -64,21 +74,15 @@ import nzilbb.elpis.http.*;
  * // model training
  * elpis.modelNew("m", "pd"); 
  * elpis.modelSettings(getNGramSetting());
- * String status = elpis.modelTrain();
- * while(status.equals("training")) {
- *   Thread.sleep(1000);
- *   status = elpis.modelStatus();
- * }
+ * elpis.modelTrain();
+ * elpis.awaitModelTrained(Duration.ofHours(2));
  * System.out.println(elpis.modelResults().toString());
  *
  * // transcription
  *
  * elpis.transcriptionNew(getRecordingToTranscribe());
- * status = elpis.transcriptionTranscribe();
- * while(status.equals("transcribing")) {
- *   Thread.sleep(1000);
- *   status = elpis.transcriptionStatus();
- * }
+ * elpis.transcriptionTranscribe();
+ * elpis.awaitTranscribed(Duration.ofMinutes(30));
  *
  * String transcript = elpis.transcriptionText();
  * System.out.println(transcript);
@@ -93,6 +97,15 @@ import nzilbb.elpis.http.*;
  * // tidy up 
  * elpis.configReset();
  * </pre> 
+ * <p> While Java Flight Recorder is running, each call is recorded as a
+ * <tt>nzilbb.elpis.Call</tt> event, with its endpoint, URL, HTTP status, byte counts,
+ * and the status returned by status calls. Responses and uploaded files are recorded as
+ * <tt>nzilbb.elpis.Response</tt> and <tt>nzilbb.elpis.FileUpload</tt> events. Unlike
+ * {@link #setLog(Log) logged} output, these never include response content, so they
+ * can be used in production.
+ * <p> Requests and responses can be logged with {@link #setLog(Log)}; messages are only
+ * built if their level is enabled, bodies are abbreviated, and messages are written by a
+ * background thread, so logging adds little to each request.
  * @author Robert Fromont robert@fromont.net.nz
  */
 public class Elpis {
@@ -131,21 +144,214 @@ public class Elpis {
    public boolean getVerbose() { return verbose; }
    /**
     * Setter for {@link #verbose}: Whether to print detailed logging to System.out or not.
+    * <p> Verbose output is written by {@link Log#console()}, unless a different
+    * {@link #setLog(Log) log} has been set.
     * @param newVerbose Whether to print detailed logging to System.out or not.
     */
    public Elpis setVerbose(boolean newVerbose) { verbose = newVerbose; return this; }
    
    /**
-    * The last response received from the server.
-    * @see #getResponse()
-    * @see #setResponse(Response)
+    * Where requests and responses are logged, or null to use {@link Log#console()} if
+    * {@link #verbose} is true, and no logging otherwise.
+    * @see #getLog()
+    * @see #setLog(Log)
+    */
+   protected Log log;
+   /**
+    * Getter for {@link #log}: Where requests and responses are logged.
+    * @return The log that has been set, or if none has, {@link Log#console()} if
+    * {@link #verbose} is true, and {@link Log#off()} otherwise.
+    */
+   public Log getLog() {
+      if (log != null) return log;
+      return verbose? Log.console() : Log.off();
+   }
+   /**
+    * Setter for {@link #log}: Where requests and responses are logged, or null to use
+    * {@link Log#console()} if {@link #verbose} is true, and no logging otherwise.
+    * @param newLog Where requests and responses are logged, or null.
+    */
+   public Elpis setLog(Log newLog) { log = newLog; return this; }
+   
+   /**
+    * Whether to keep the raw text of JSON responses, so that it's available via
+    * {@link Response#getRaw()}. If false (the default), and the {@link #log} isn't
+    * logging at {@link Log.Level#TRACE}, JSON responses are parsed directly from the
+    * connection as they're received, so the raw text isn't held in memory as well as
+    * the parsed data.
+    * @see #getKeepRaw()
+    * @see #setKeepRaw(boolean)
+    */
+   protected boolean keepRaw = false;
+   /**
+    * Getter for {@link #keepRaw}: Whether to keep the raw text of JSON responses.
+    * @return Whether to keep the raw text of JSON responses.
+    */
+   public boolean getKeepRaw() { return keepRaw; }
+   /**
+    * Setter for {@link #keepRaw}: Whether to keep the raw text of JSON responses.
+    * @param newKeepRaw Whether to keep the raw text of JSON responses.
+    */
+   public Elpis setKeepRaw(boolean newKeepRaw) { keepRaw = newKeepRaw; return this; }
+   
+   /**
+    * The mechanism for sending requests to the server.
+    * @see #getTransport()
+    * @see #setTransport(Transport)
+    */
+   protected Transport transport;
+   /**
+    * Getter for {@link #transport}: The mechanism for sending requests to the server,
+    * which is {@link HttpClientTransport#shared()} unless otherwise specified.
+    * @return The mechanism for sending requests to the server.
+    */
+   public Transport getTransport() {
+      if (transport == null) transport = HttpClientTransport.shared();
+      return transport;
+   }
+   /**
+    * Setter for {@link #transport}: The mechanism for sending requests to the server.
+    * @param newTransport The mechanism for sending requests to the server.
+    */
+   public Elpis setTransport(Transport newTransport) { transport = newTransport; return this; }
+   
+   /**
+    * Executor for running bulk operations concurrently, or null to run them sequentially.
+    * @see #getBulkExecutor()
+    * @see #setBulkExecutor(BulkExecutor)
+    */
+   protected BulkExecutor bulkExecutor;
+   /**
+    * Getter for {@link #bulkExecutor}: Executor for running bulk operations concurrently,
+    * or null to run them sequentially.
+    * @return Executor for running bulk operations concurrently, or null to run them
+    * sequentially.
+    */
+   public BulkExecutor getBulkExecutor() { return bulkExecutor; }
+   /**
+    * Setter for {@link #bulkExecutor}: Executor for running bulk operations concurrently,
+    * or null to run them sequentially.
+    * <p> If this is set, {@link #datasetFiles(List)} splits the files into shards that
+    * are uploaded by concurrent requests, at most {@link BulkExecutor#getLimit()} at once.
+    * @param newBulkExecutor Executor for running bulk operations concurrently, or null to
+    * run them sequentially.
+    */
+   public Elpis setBulkExecutor(BulkExecutor newBulkExecutor) { bulkExecutor = newBulkExecutor; return this; }
+   
+   /**
+    * The maximum total size of files uploaded by one request, when uploads are sharded
+    * by the {@link #bulkExecutor}. The default is 512MB.
+    * @see #getShardBytes()
+    * @see #setShardBytes(long)
+    */
+   protected long shardBytes = 512L * 1024L * 1024L;
+   /**
+    * Getter for {@link #shardBytes}: The maximum total size of files uploaded by one
+    * request, when uploads are sharded by the {@link #bulkExecutor}.
+    * @return The maximum total size of files uploaded by one request.
+    */
+   public long getShardBytes() { return shardBytes; }
+   /**
+    * Setter for {@link #shardBytes}: The maximum total size of files uploaded by one
+    * request, when uploads are sharded by the {@link #bulkExecutor}.
+    * <p> Smaller shards mean that less is lost if one upload fails, but more requests
+    * are sent. Regardless of this setting, files are split into at least as many
+    * shards as the executor's limit, and a pair of files larger than this is still
+    * uploaded in one request.
+    * @param newShardBytes The maximum total size of files uploaded by one request.
+    */
+   public Elpis setShardBytes(long newShardBytes) { shardBytes = newShardBytes; return this; }
+   
+   /**
+    * Receives progress notifications as shards of files are uploaded, or null.
+    * @see #getUploadListener()
+    * @see #setUploadListener(UploadListener)
+    */
+   protected UploadListener uploadListener;
+   /**
+    * Getter for {@link #uploadListener}: Receives progress notifications as shards of
+    * files are uploaded, or null.
+    * @return Receives progress notifications as shards of files are uploaded, or null.
+    */
+   public UploadListener getUploadListener() { return uploadListener; }
+   /**
+    * Setter for {@link #uploadListener}: Receives progress notifications as shards of
+    * files are uploaded, or null.
+    * @param newUploadListener Receives progress notifications as shards of files are
+    * uploaded, or null.
+    */
+   public Elpis setUploadListener(UploadListener newUploadListener) { uploadListener = newUploadListener; return this; }
+   
+   /**
+    * Checks status while waiting for training or transcription to finish.
+    * @see #getStatusPoller()
+    * @see #setStatusPoller(StatusPoller)
+    */
+   protected StatusPoller statusPoller;
+   /**
+    * Getter for {@link #statusPoller}: Checks status while waiting for training or
+    * transcription to finish. If none has been set, {@link StatusPoller#shared()} is used.
+    * @return Checks status while waiting for training or transcription to finish.
+    */
+   public StatusPoller getStatusPoller() {
+      if (statusPoller == null) statusPoller = StatusPoller.shared();
+      return statusPoller;
+   }
+   /**
+    * Setter for {@link #statusPoller}: Checks status while waiting for training or
+    * transcription to finish.
+    * @param newStatusPoller Checks status while waiting for training or transcription to
+    * finish.
+    */
+   public Elpis setStatusPoller(StatusPoller newStatusPoller) { statusPoller = newStatusPoller; return this; }
+   
+   /**
+    * Records request counts, byte counts, and latencies for each endpoint, or null.
+    * @see #getMetrics()
+    * @see #setMetrics(Metrics)
+    */
+   protected Metrics metrics;
+   /**
+    * Getter for {@link #metrics}: Records request counts, byte counts, and latencies for
+    * each endpoint, or null.
+    * @return Records request counts, byte counts, and latencies for each endpoint, or
+    * null.
+    */
+   public Metrics getMetrics() { return metrics; }
+   /**
+    * Setter for {@link #metrics}: Records request counts, byte counts, and latencies for
+    * each endpoint, or null. The same object can be shared by several clients.
+    * @param newMetrics Records request counts, byte counts, and latencies for each
+    * endpoint, or null.
+    */
+   public Elpis setMetrics(Metrics newMetrics) { metrics = newMetrics; return this; }
+   
+   /** The last response received by each thread, which may be released if memory runs low */
+   private final ThreadLocal<SoftReference<Response>> threadResponse
+   = new ThreadLocal<SoftReference<Response>>();
+
+   /**
+    * The response to the last call made by the current thread.
+    * <p> This is for backward compatibility; the <var>xxxResult</var> version of each
+    * function returns the response along with the data, e.g. {@link #modelStatusResult()},
+    * and should be used instead where possible. The response is only softly referenced,
+    * so that threads in a pool don't keep large responses in memory indefinitely; this
+    * means it may be released if memory runs low, in which case this returns null.
+    * @return The last response received from the server by the current thread, or null
+    * if there is none.
     */
-   protected Response response;
+   public Response getResponse() {
+      SoftReference<Response> last = threadResponse.get();
+      return last == null? null : last.get();
+   } // end of getResponse()
+   
    /**
-    * Getter for {@link #response}: The last response received from the server.
-    * @return The last response received from the server.
+    * Records a response received by the current thread, for {@link #getResponse()}.
+    * @param response The response.
     */
-   public Response getResponse() { return response; }
+   private void setResponse(Response response) {
+      threadResponse.set(new SoftReference<Response>(response));
+   } // end of setResponse()
    
    // Methods:
    
@@ -180,6 +386,284 @@ public class Elpis {
       }
    } // end of editUrl()
    
+   /**
+    * Starts timing a request, if {@link #metrics} are being recorded or the call's event
+    * is enabled, which needs the number of bytes actually sent.
+    * @param function The name of the API function.
+    * @param request The request to send.
+    * @param event The event for the call.
+    * @return The timing of the request, or null if neither needs it.
+    * @throws IOException If the request URL is malformed.
+    */
+   protected RequestTiming startTiming(
+      String function, TransportRequest request, CallEvent event) throws IOException {
+      if (metrics != null) return metrics.start(endpoint(request), function);
+      if (!event.isEnabled()) return null;
+      return new RequestTiming(null, endpoint(request), function);
+   } // end of startTiming()
+   
+   /**
+    * Determines the endpoint of a request, for metrics and events.
+    * @param request The request.
+    * @return The URL path relative to the base URL, e.g. "dataset/files".
+    * @throws IOException If the request URL is malformed.
+    */
+   protected String endpoint(TransportRequest request) throws IOException {
+      String endpoint = request.getUrl().getPath();
+      String base = baseUrl.getPath();
+      if (endpoint.startsWith(base)) endpoint = endpoint.substring(base.length());
+      return endpoint;
+   } // end of endpoint()
+   
+   /**
+    * Ends the given Java Flight Recorder event for a call, and records it if required.
+    * Fields are filled in only if the event is being recorded.
+    * @param event The event for the call.
+    * @param function The API function.
+    * @param request The request.
+    * @param timing The timing of the request, which counted the bytes sent, or null.
+    * @param response The response, or null if there was none.
+    * @param failure Why the call failed, or null if it succeeded.
+    */
+   void commit(CallEvent event, String function, TransportRequest request,
+               RequestTiming timing, Response response, Throwable failure) {
+      event.end();
+      if (!event.shouldCommit()) return;
+      event.function = function;
+      event.bytesSent = timing == null? -1 : timing.getBytesSent();
+      try {
+         event.endpoint = endpoint(request);
+         event.url = request.getUrl().toString();
+      } catch(IOException exception) { // the URL was valid when the request was sent
+      }
+      if (response == null && failure instanceof ElpisException) {
+         response = ((ElpisException)failure).getResponse();
+      }
+      if (response != null) {
+         event.httpStatus = response.getHttpStatus();
+         event.bytesReceived = response.getTransferred() > 0
+            ? response.getTransferred() : response.getBytesReceived();
+         JsonObject data = response.getData();
+         if (data != null && data.get("status") instanceof JsonString) {
+            event.status = data.getString("status");
+         }
+      }
+      if (failure != null) event.error = failure.toString();
+      event.commit();
+   } // end of commit()
+   
+   /**
+    * Sends a request to the server and checks the response for errors.
+    * @param function The name of the API function, for logging.
+    * @param request The request to send.
+    * @param expectJson Whether the response content should be parsed as a JSON object.
+    * @return The response.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   protected Response send(String function, TransportRequest request, boolean expectJson)
+      throws IOException, ElpisException {
+      CallEvent event = new CallEvent();
+      event.begin();
+      RequestTiming timing = startTiming(function, request, event);
+      try {
+         Response response = send(function, request, expectJson, timing);
+         if (timing != null) timing.finish(null);
+         commit(event, function, request, timing, response, null);
+         return response;
+      } catch(Throwable t) {
+         if (timing != null) timing.finish(t);
+         commit(event, function, request, timing, null, t);
+         throw t;
+      }
+   } // end of send()
+   
+   /**
+    * Sends a request to the server and checks the response for errors, timing it if
+    * required.
+    * @param function The name of the API function, for logging.
+    * @param request The request to send.
+    * @param expectJson Whether the response content should be parsed as a JSON object.
+    * @param timing The timing of the request, or null.
+    * @return The response.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   private Response send(
+      String function, TransportRequest request, boolean expectJson, RequestTiming timing)
+      throws IOException, ElpisException {
+      Log log = getLog();
+      log.debug(() -> function + " -> " + request);
+      Response response;
+      if (timing == null) {
+         response = new Response(getTransport().send(request), log, expectJson, keepRaw);
+      } else {
+         response = new Response(
+            timing.responded(getTransport().send(timing.wrap(request))),
+            log, expectJson, keepRaw);
+         timing.received();
+      }
+      setResponse(response);
+      response.checkForErrors(); // throws a ElpisException on error
+      return response;
+   } // end of send()
+   
+   /**
+    * Sends a request to the server, checks the response for errors, and extracts the
+    * data from it.
+    * @param function The name of the API function, for logging.
+    * @param request The request to send.
+    * @param expectJson Whether the response content should be parsed as a JSON object.
+    * @param parser Extracts the data from the response.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   protected <T> Result<T> call(
+      String function, TransportRequest request, boolean expectJson, Result.Parser<T> parser)
+      throws IOException, ElpisException {
+      long start = System.nanoTime();
+      CallEvent event = new CallEvent();
+      event.begin();
+      RequestTiming timing = startTiming(function, request, event);
+      try {
+         Response response = send(function, request, expectJson, timing);
+         long parseStart = System.nanoTime();
+         T data = parser.parse(response);
+         long finish = System.nanoTime();
+         if (timing != null) {
+            timing.extracted(finish - parseStart);
+            timing.finish(null);
+         }
+         commit(event, function, request, timing, response, null);
+         return new Result<T>(function, data, response, finish - start);
+      } catch(Throwable t) {
+         if (timing != null) timing.finish(t);
+         commit(event, function, request, timing, null, t);
+         throw t;
+      }
+   } // end of call()
+   
+   /**
+    * Sends a request to the server, and copies the content of a successful response
+    * directly to the given destination, without loading it into memory.
+    * @param function The name of the API function, for logging.
+    * @param request The request to send.
+    * @param destination Where to copy the response content.
+    * @return The result of the call, whose data is the number of bytes copied.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   protected Result<Long> download(
+      String function, TransportRequest request, WritableByteChannel destination)
+      throws IOException, ElpisException {
+      long start = System.nanoTime();
+      CallEvent event = new CallEvent();
+      event.begin();
+      RequestTiming timing = startTiming(function, request, event);
+      try {
+         Log log = getLog();
+         log.debug(() -> function + " -> " + request);
+         Response response;
+         if (timing == null) {
+            response = new Response(getTransport().send(request), log, destination);
+         } else {
+            response = new Response(
+               timing.responded(getTransport().send(timing.wrap(request))),
+               log, destination);
+            timing.received();
+         }
+         setResponse(response);
+         response.checkForErrors(); // throws a ElpisException on error
+         if (timing != null) timing.finish(null);
+         commit(event, function, request, timing, response, null);
+         return new Result<Long>(
+            function, response.getTransferred(), response, System.nanoTime() - start);
+      } catch(Throwable t) {
+         if (timing != null) timing.finish(t);
+         commit(event, function, request, timing, null, t);
+         throw t;
+      }
+   } // end of download()
+   
+   /**
+    * Opens a file for writing, creating it if necessary and truncating it otherwise.
+    * @param file The file to open.
+    * @return A channel for writing to the file.
+    * @throws IOException If the file can't be opened.
+    */
+   static FileChannel openChannel(Path file) throws IOException {
+      return FileChannel.open(
+         file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+         StandardOpenOption.TRUNCATE_EXISTING);
+   } // end of openChannel()
+   
+   /**
+    * Creates a GET request for the given resource, accepting a JSON response.
+    * @param resource The resource, relative to {@link #baseUrl}.
+    * @return The request.
+    * @throws IOException If the URL is malformed.
+    */
+   protected HttpRequestGet get(String resource) throws IOException {
+      return get(resource, "application/json");
+   } // end of get()
+   
+   /**
+    * Creates a GET request for the given resource.
+    * @param resource The resource, relative to {@link #baseUrl}.
+    * @param accept The MIME type of the expected response.
+    * @return The request.
+    * @throws IOException If the URL is malformed.
+    */
+   protected HttpRequestGet get(String resource, String accept) throws IOException {
+      return new HttpRequestGet(makeUrl(resource))
+         .setHeader("Accept", accept);
+   } // end of get()
+   
+   /**
+    * Creates a POST request for the given resource, accepting a JSON response.
+    * @param resource The resource, relative to {@link #baseUrl}.
+    * @param parameters Alternating names and values of parameters for the JSON body.
+    * @return The request.
+    * @throws IOException If the URL is malformed.
+    */
+   protected HttpRequestPost post(String resource, String... parameters) throws IOException {
+      HttpRequestPost request = new HttpRequestPost(makeUrl(resource))
+         .setHeader("Accept", "application/json");
+      for (int p = 0; p < parameters.length - 1; p += 2) {
+         request.setJsonParameter(parameters[p], parameters[p + 1]);
+      }
+      return request;
+   } // end of post()
+   
+   /**
+    * Creates a multipart POST request for the given resource, accepting a JSON response.
+    * @param resource The resource, relative to {@link #baseUrl}.
+    * @param files The files to upload, each as a "file" parameter.
+    * @return The request.
+    * @throws IOException If the URL is malformed.
+    */
+   protected HttpRequestPostMultipart postFiles(String resource, List<File> files)
+      throws IOException {
+      HttpRequestPostMultipart request = new HttpRequestPostMultipart(makeUrl(resource))
+         .setHeader("Accept", "application/json");
+      for (File f : files) {
+         request.setParameter("file", f);
+      }
+      return request;
+   } // end of postFiles()
+   
+   /**
+    * Returns an asynchronous view of this client, whose methods return immediately
+    * with a CompletableFuture instead of waiting for the server to respond.
+    * <p> The returned object shares this object's {@link #baseUrl}, {@link #transport},
+    * {@link #verbose}, and {@link #log} settings.
+    * @return An asynchronous client for the same server.
+    */
+   public AsyncElpis async() {
+      return new AsyncElpis(this);
+   } // end of async()
+   
    // dataset functions
    
    /**
@@ -189,16 +673,21 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void datasetNew(String name) throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-
-         makeUrl("dataset/new"))
-         .setHeader("Accept", "application/json")
-         .setJsonParameter("name", name);
-      if (verbose) System.out.println("datasetNew -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      datasetNewResult(name);
    } // end of datasetNew()
    
+   /**
+    * Create a new dataset.
+    * @param name The name of the new dataset.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> datasetNewResult(String name)
+      throws IOException, ElpisException {
+      return call("datasetNew", post("dataset/new", "name", name), true, r -> null);
+   } // end of datasetNewResult()
+   
    /**
     * List current dataset names.
     * @return A list of dataset names.
@@ -206,16 +695,20 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public List<String> datasetList() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("dataset/list"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("datasetList -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      JsonArray list = response.getData().getJsonArray("list");
-      return list.stream().map(item->((JsonString)item).getString()).collect(Collectors.toList());
+      return datasetListResult().getData();
    } // end of datasetList()
    
+   /**
+    * List current dataset names.
+    * @return The result of the call, whose data is a list of dataset names.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<List<String>> datasetListResult()
+      throws IOException, ElpisException {
+      return call("datasetList", get("dataset/list"), true, r -> parseStrings(r, "list"));
+   } // end of datasetListResult()
+   
    /**
     * Start using an existing dataset.
     * @param name The name of the existing dataset.
@@ -223,15 +716,21 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void datasetLoad(String name) throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("dataset/load"))
-         .setHeader("Accept", "application/json")
-         .setJsonParameter("name", name);
-      if (verbose) System.out.println("datasetLoad -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      datasetLoadResult(name);
    } // end of datasetLoad()
    
+   /**
+    * Start using an existing dataset.
+    * @param name The name of the existing dataset.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> datasetLoadResult(String name)
+      throws IOException, ElpisException {
+      return call("datasetLoad", post("dataset/load", "name", name), true, r -> null);
+   } // end of datasetLoadResult()
+   
    /**
     * Define dataset settings.
     * @param tier The name of the ELAN tier that contains the transcript.
@@ -239,57 +738,205 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void datasetSettings(String tier) throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("dataset/settings"))
-         .setHeader("Accept", "application/json")
-         .setJsonParameter("tier", tier);
-      if (verbose) System.out.println("datasetSettings -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      datasetSettingsResult(tier);
    } // end of datasetSettings()
    
+   /**
+    * Define dataset settings.
+    * @param tier The name of the ELAN tier that contains the transcript.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> datasetSettingsResult(String tier)
+      throws IOException, ElpisException {
+      return call("datasetSettings", post("dataset/settings", "tier", tier), true, r -> null);
+   } // end of datasetSettingsResult()
+   
    /**
     * Upload transcript/audio files into the dataset.
+    * <p> If a {@link #getBulkExecutor()} has been set, the files are split into shards of
+    * similar size, keeping <tt>.eaf</tt>/<tt>.wav</tt> pairs together, and the shards are
+    * uploaded by concurrent requests.
     * @param file Files to upload, which may be wav audio files and/or an ELAN .eaf transcripts.
     * @return A list of all dataset files uploaded so far.
     * @throws IOException if a communication error occurs.
     * @throws ElpisException if the server returns an error.
     */
    public List<String> datasetFiles(List<File> file) throws IOException, ElpisException {
-      HttpRequestPostMultipart request = new HttpRequestPostMultipart(
-         makeUrl("dataset/files"))
-         .setHeader("Accept", "application/json");
-      for (File f : file) {
-         request.setParameter("file", f);
-      }
-      if (verbose) System.out.println("datasetFiles -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error 
-     JsonArray files = response.getData().getJsonArray("files");
-      return files.stream()
-         .map(item->((JsonString)item).getString())
-         .collect(Collectors.toList());
+      return datasetFilesResult(file).getData();
+   } // end of datasetFiles()
+   
+   /**
+    * Upload transcript/audio files into the dataset.
+    * <p> If a {@link #getBulkExecutor()} has been set, the files are split into shards of
+    * similar size, keeping <tt>.eaf</tt>/<tt>.wav</tt> pairs together, and the shards are
+    * uploaded by concurrent requests. In this case, the result's response is that of the
+    * last shard, and its duration covers all the uploads. Progress is reported to
+    * the {@link #getUploadListener()}, if any.
+    * @param file Files to upload, which may be wav audio files and/or an ELAN .eaf transcripts.
+    * @return The result of the call, whose data is a list of all dataset files uploaded
+    * so far.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<List<String>> datasetFilesResult(List<File> file)
+      throws IOException, ElpisException {
+      return datasetFilesResult(file, null);
+   } // end of datasetFilesResult()
+   
+   /**
+    * Upload transcript/audio files into the dataset, skipping files that the server has
+    * already acknowledged.
+    * <p> The given manifest records which files have been acknowledged by the server,
+    * and is updated as each request succeeds. If an upload fails, calling this function
+    * again with the same manifest sends only the files that haven't been acknowledged, or
+    * whose content has changed.
+    * @param file Files to upload, which may be wav audio files and/or an ELAN .eaf transcripts.
+    * @param manifest The record of files previously uploaded to this dataset.
+    * @return A list of all dataset files uploaded so far.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    * @see UploadManifest#forDataset(Elpis,String)
+    */
+   public List<String> datasetFiles(List<File> file, UploadManifest manifest)
+      throws IOException, ElpisException {
+      return datasetFilesResult(file, manifest).getData();
    } // end of datasetFiles()
    
+   /**
+    * Upload transcript/audio files into the dataset, skipping files that the server has
+    * already acknowledged.
+    * <p> The given manifest records which files have been acknowledged by the server,
+    * and is updated as each request succeeds. If an upload fails, calling this function
+    * again with the same manifest sends only the files that haven't been acknowledged, or
+    * whose content has changed.
+    * <p> If all the files have already been acknowledged, no request is sent, and the
+    * result's data is the list of files in the manifest, with a null response.
+    * @param file Files to upload, which may be wav audio files and/or an ELAN .eaf transcripts.
+    * @param manifest The record of files previously uploaded to this dataset, or null
+    * to upload all the files.
+    * @return The result of the call, whose data is a list of all dataset files uploaded
+    * so far.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    * @see UploadManifest#forDataset(Elpis,String)
+    */
+   public Result<List<String>> datasetFilesResult(List<File> file, UploadManifest manifest)
+      throws IOException, ElpisException {
+      long start = System.nanoTime();
+      if (manifest != null) {
+         file = manifest.toSend(file);
+         if (file.size() == 0) { // nothing to send
+            return new Result<List<String>>(
+               "datasetFiles", manifest.getAcknowledged(), null, System.nanoTime() - start);
+         }
+      }
+      if (bulkExecutor == null || file.size() < 2) {
+         Result<List<String>> result = call(
+            "datasetFiles", postFiles("dataset/files", file), true,
+            r -> parseStrings(r, "files"));
+         if (manifest != null) manifest.acknowledge(file, result.getData());
+         return result;
+      }
+      // split the files into shards, and upload them concurrently
+      long total = UploadShards.totalBytes(file);
+      int count = bulkExecutor.getLimit();
+      if (shardBytes > 0) { // enough shards that none is larger than shardBytes
+         count = (int)Math.max(count, Math.min(file.size(), (total - 1) / shardBytes + 1));
+      }
+      List<List<File>> shards = UploadShards.split(file, count);
+      Vector<Integer> indices = new Vector<Integer>();
+      for (int s = 0; s < shards.size(); s++) indices.add(s);
+      List<Response> responses = bulkExecutor.map(
+         indices, s -> uploadShard(s, shards.size(), shards.get(s), manifest));
+      // each response lists the files uploaded so far, so merge them all
+      LinkedHashSet<String> files = new LinkedHashSet<String>();
+      for (Response r : responses) files.addAll(parseStrings(r, "files"));
+      Response last = responses.get(responses.size() - 1);
+      setResponse(last);
+      return new Result<List<String>>(
+         "datasetFiles", new Vector<String>(files), last, System.nanoTime() - start);
+   } // end of datasetFilesResult()
+   
+   /**
+    * Uploads one shard of files, notifying the {@link #uploadListener} of progress.
+    * @param shard The index of the shard.
+    * @param shardCount The total number of shards.
+    * @param files The files in the shard.
+    * @param manifest The record of files uploaded, to update once the shard is
+    * acknowledged, or null.
+    * @return The response.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   private Response uploadShard(
+      int shard, int shardCount, List<File> files, UploadManifest manifest)
+      throws IOException, ElpisException {
+      UploadListener listener = uploadListener;
+      long bytes = listener == null? 0 : UploadShards.totalBytes(files);
+      if (listener != null) listener.shardStarted(shard, shardCount, files, bytes);
+      long start = System.nanoTime();
+      try {
+         Response r = send("datasetFiles", postFiles("dataset/files", files), true);
+         if (manifest != null) manifest.acknowledge(files, parseStrings(r, "files"));
+         if (listener != null) {
+            listener.shardUploaded(shard, shardCount, files, bytes, System.nanoTime() - start);
+         }
+         return r;
+      } catch(IOException | ElpisException | RuntimeException exception) {
+         if (listener != null) listener.shardFailed(shard, shardCount, files, exception);
+         throw exception;
+      }
+   } // end of uploadShard()
+   
    /**
     * Process the transcripts to create word/frequency lists.
     * @return A map of word types to frequencies in the uploaded transcripts.
     * @throws IOException if a communication error occurs.
     * @throws ElpisException if the server returns an error.
+    * @see #datasetPrepareCompact()
     */
    public Map<String,Integer> datasetPrepare() throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("dataset/prepare"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("datasetPrepare -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      String wordlistString = response.getData().getString("wordlist");
-      JsonObject wordlistJson = Json.createReader(new StringReader(wordlistString)).readObject();
-      return wordlistJson.entrySet().stream()
-         .collect(Collectors.toMap(Map.Entry::getKey,
-                                   e -> Integer.valueOf(((JsonNumber)e.getValue()).intValue())));
+      return datasetPrepareResult().getData();
    } // end of datasetPrepare()
+   
+   /**
+    * Process the transcripts to create word/frequency lists.
+    * @return The result of the call, whose data is a map of word types to
+    * frequencies in the uploaded transcripts.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Map<String,Integer>> datasetPrepareResult()
+      throws IOException, ElpisException {
+      return call("datasetPrepare", post("dataset/prepare"), true, r -> parseWordlist(r));
+   } // end of datasetPrepareResult()
+   
+   /**
+    * Process the transcripts to create word/frequency lists, returning them in a compact
+    * table, which uses much less memory than a map for large vocabularies.
+    * @return The word types and their frequencies in the uploaded transcripts.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public WordFrequencies datasetPrepareCompact() throws IOException, ElpisException {
+      return datasetPrepareCompactResult().getData();
+   } // end of datasetPrepareCompact()
+   
+   /**
+    * Process the transcripts to create word/frequency lists, returning them in a compact
+    * table, which uses much less memory than a map for large vocabularies.
+    * @return The result of the call, whose data is the word types and their
+    * frequencies in the uploaded transcripts.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<WordFrequencies> datasetPrepareCompactResult()
+      throws IOException, ElpisException {
+      return call("datasetPrepare", post("dataset/prepare"), true,
+                  r -> parseWordFrequencies(r));
+   } // end of datasetPrepareCompactResult()
 
    // pron-dict functions
 
@@ -301,16 +948,24 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void pronDictNew(String name, String datasetName) throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("pron-dict/new"))
-         .setHeader("Accept", "application/json")
-         .setJsonParameter("name", name)
-         .setJsonParameter("dataset_name", datasetName);
-      if (verbose) System.out.println("pronDictNew -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      pronDictNewResult(name, datasetName);
    } // end of pronDictNew()
    
+   /**
+    * Create a new pronunciation dictionary.
+    * @param name The name of the new pronunciation dictionary.
+    * @param datasetName The name of the dataset.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> pronDictNewResult(String name, String datasetName)
+      throws IOException, ElpisException {
+      return call("pronDictNew",
+                  post("pron-dict/new", "name", name, "dataset_name", datasetName), true,
+                  r -> null);
+   } // end of pronDictNewResult()
+   
    /**
     * Start using an existing pronunciation dictionary.
     * @param name The name of the existing pronunciation dictionary.
@@ -318,15 +973,21 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void pronDictLoad(String name) throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("pron-dict/load"))
-         .setHeader("Accept", "application/json")
-         .setJsonParameter("name", name);
-      if (verbose) System.out.println("pronDictLoad -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      pronDictLoadResult(name);
    } // end of pronDictNew()
    
+   /**
+    * Start using an existing pronunciation dictionary.
+    * @param name The name of the existing pronunciation dictionary.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> pronDictLoadResult(String name)
+      throws IOException, ElpisException {
+      return call("pronDictLoad", post("pron-dict/load", "name", name), true, r -> null);
+   } // end of pronDictLoadResult()
+   
    /**
     * List the current pronunciation dictionaries.
     * @return A list of existing pronunciation dictionaries.
@@ -334,18 +995,21 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public List<String> pronDictList() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("pron-dict/list"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("pronDictList -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      JsonArray list = response.getData().getJsonArray("list");
-      return list.stream()
-         .map(item->((JsonObject)item).getString("name"))
-         .collect(Collectors.toList());
+      return pronDictListResult().getData();
    } // end of pronDictList()
    
+   /**
+    * List the current pronunciation dictionaries.
+    * @return The result of the call, whose data is a list of existing pronunciation
+    * dictionaries.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<List<String>> pronDictListResult()
+      throws IOException, ElpisException {
+      return call("pronDictList", get("pron-dict/list"), true, r -> parseNames(r));
+   } // end of pronDictListResult()
+   
    /**
     * Specify the letter-to-sound mapping for creating a pronunciation dictionary.
     * <p>The letter to sound file is used to build a pronunciation dictionary for the
@@ -364,15 +1028,33 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void pronDictL2S(File file) throws IOException, ElpisException {
-      HttpRequestPostMultipart request = new HttpRequestPostMultipart(
-         makeUrl("pron-dict/l2s"))
-         .setHeader("Accept", "application/json");
-      request.setParameter("file", file);
-      if (verbose) System.out.println("pronDictL2S -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      pronDictL2SResult(file);
    } // end of pronDictL2S()
    
+   /**
+    * Specify the letter-to-sound mapping for creating a pronunciation dictionary.
+    * <p>The letter to sound file is used to build a pronunciation dictionary for the
+    * corpus. Make one by listing one column of all the characters in your corpus. Make a
+    * second column (separated by a space) of a symbol representing how that character is
+    * pronounced. You can use IPA, or SAMPA for the pronunciation symbols. You can include
+    * comments in this file by beginning the comment line with <tt>#</tt>. For example:  
+    * <pre># This is a comment 
+    * n n
+    * ng ŋ
+    * r r
+    * y j
+    * </pre>
+    * @param file The plain-text file to upload.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> pronDictL2SResult(File file)
+      throws IOException, ElpisException {
+      return call("pronDictL2S", postFiles("pron-dict/l2s", Arrays.asList(file)), true,
+                  r -> null);
+   } // end of pronDictL2SResult()
+   
    /**
     * Generate the pronunciation dictionary.
     * <p>This is a list of all words in the uploaded transcripts, followed by their
@@ -381,36 +1063,99 @@ public class Elpis {
     * @return A map of word types to pronunciations.
     * @throws IOException if a communication error occurs.
     * @throws ElpisException if the server returns an error.
+    * @see #pronDictGenerateLexiconCompact()
     */
    public Map<String,String> pronDictGenerateLexicon() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("pron-dict/generate-lexicon"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("pronDictGenerateLexicon -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      
-      // get the lexicon as a string
-      String lexicon = response.getData().getString("lexicon");
-
-      // parse the lexicon into a map
-      LinkedHashMap<String,String> dictionary = new LinkedHashMap<String,String>();
-      String[] lines = lexicon.split("\n");
-      for (int l = 0; l < lines.length; l++) {
-         String line = lines[l];
-         int firstSpace = line.indexOf(' ');
-         if (firstSpace <= 0) {
-            System.err.println("Ignoring line " + l + " as it contains no space: " + line);
-         } else {
-            String word = line.substring(0, firstSpace);
-            String pronunciation = line.substring(firstSpace + 1);
-            dictionary.put(word, pronunciation);
-         }
-      } // next line
-      
-      return dictionary;
+      return pronDictGenerateLexiconResult().getData();
    } // end of pronDictGenerateLexicon()
    
+   /**
+    * Generate the pronunciation dictionary.
+    * <p>This is a list of all words in the uploaded transcripts, followed by their
+    * pronunciations as generated by combining the word spelling with the letter-to-sound
+    * mapping uploaded with {@link #pronDictL2S(File)}.
+    * @return The result of the call, whose data is a map of word types to pronunciations.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Map<String,String>> pronDictGenerateLexiconResult()
+      throws IOException, ElpisException {
+      return call("pronDictGenerateLexicon", get("pron-dict/generate-lexicon"), true,
+                  r -> parseLexicon(r));
+   } // end of pronDictGenerateLexiconResult()
+   
+   /**
+    * Generate the pronunciation dictionary, which replaces the lexicon the server has, and
+    * update the given snapshot to match.
+    * @param snapshot The record of the lexicon saved to this pronunciation dictionary.
+    * @return A map of word types to pronunciations.
+    * @throws IOException if a communication error occurs, or the snapshot can't be saved.
+    * @throws ElpisException if the server returns an error.
+    * @see LexiconSnapshot#forPronDict(Elpis,String)
+    */
+   public Map<String,String> pronDictGenerateLexicon(LexiconSnapshot snapshot)
+      throws IOException, ElpisException {
+      return pronDictGenerateLexiconResult(snapshot).getData();
+   } // end of pronDictGenerateLexicon()
+   
+   /**
+    * Generate the pronunciation dictionary, which replaces the lexicon the server has, and
+    * update the given snapshot to match, so that a later
+    * {@link #pronDictSaveLexicon(Map,LexiconSnapshot)} compares against the generated
+    * lexicon rather than the one previously saved.
+    * <p> If the call fails, the server's lexicon is unknown, so the snapshot is cleared,
+    * and the next lexicon is saved regardless.
+    * @param snapshot The record of the lexicon saved to this pronunciation dictionary.
+    * @return The result of the call, whose data is a map of word types to pronunciations.
+    * @throws IOException if a communication error occurs, or the snapshot can't be saved.
+    * @throws ElpisException if the server returns an error.
+    * @see LexiconSnapshot#forPronDict(Elpis,String)
+    */
+   public Result<Map<String,String>> pronDictGenerateLexiconResult(LexiconSnapshot snapshot)
+      throws IOException, ElpisException {
+      Result<Map<String,String>> result;
+      try {
+         result = pronDictGenerateLexiconResult();
+      } catch(IOException | ElpisException exception) {
+         snapshot.clear();
+         throw exception;
+      }
+      snapshot.update(result.getData());
+      return result;
+   } // end of pronDictGenerateLexiconResult()
+   
+   /**
+    * Generate the pronunciation dictionary, returning it in a compact structure, which
+    * uses much less memory than a map for large lexicons.
+    * @return The word types and their pronunciations.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    * @see #pronDictGenerateLexicon()
+    */
+   public Lexicon pronDictGenerateLexiconCompact() throws IOException, ElpisException {
+      return pronDictGenerateLexiconCompactResult().getData();
+   } // end of pronDictGenerateLexiconCompact()
+   
+   /**
+    * Generate the pronunciation dictionary, returning it in a compact structure, which
+    * uses much less memory than a map for large lexicons.
+    * @return The result of the call, whose data is the word types and their
+    * pronunciations.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Lexicon> pronDictGenerateLexiconCompactResult()
+      throws IOException, ElpisException {
+      return call("pronDictGenerateLexicon", get("pron-dict/generate-lexicon"), true, r -> {
+            Lexicon lexicon = parseCompactLexicon(r);
+            if (lexicon.getSkippedLines() > 0) {
+               getLog().info(
+                  () -> "Ignored " + lexicon.getSkippedLines() + " lexicon lines with no space");
+            }
+            return lexicon;
+         });
+   } // end of pronDictGenerateLexiconCompactResult()
+   
    /**
     * Update the pronunciation dictionary.
     * <p>This is a list of all words in the uploaded transcripts, mapped to their
@@ -421,34 +1166,26 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void pronDictSaveLexicon(File lexicon) throws IOException, ElpisException {
-
-      // read contents of the file into a string buffer
-      StringBuilder content = new StringBuilder();
-      BufferedReader reader = new BufferedReader(
-         new InputStreamReader(new FileInputStream(lexicon), StandardCharsets.UTF_8));
-      String line = reader.readLine();
-      String lastLine = line;
-      while (line != null) {
-         if (content.length() > 0) content.append("\n");
-         content.append(line);      
-         line = reader.readLine();
-         if (line != null) lastLine = line;
-      } // next line
-      // ensure the file ends in a blank line
-      if (lastLine.length() > 0) content.append("\n");
-      reader.close();
-
-      // post the request
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("pron-dict/save-lexicon"))
-         .setHeader("Accept", "application/json")
-         .setJsonParameter("lexicon", content.toString());
-      if (verbose) System.out.println("pronDictSaveLexicon -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      
+      pronDictSaveLexiconResult(lexicon);
    } // end of pronDictSaveLexicon()
    
+   /**
+    * Update the pronunciation dictionary.
+    * <p>This is a list of all words in the uploaded transcripts, mapped to their
+    * pronunciations; i.e. an edited version of the pronunciation dictionary generated by 
+    * {@link #pronDictGenerateLexicon()}.
+    * @param lexicon A file containing a map of word types to pronunciations.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> pronDictSaveLexiconResult(File lexicon)
+      throws IOException, ElpisException {
+      return call("pronDictSaveLexicon",
+                  post("pron-dict/save-lexicon").setBody(lexiconBody(lexicon)), true,
+                  r -> null);
+   } // end of pronDictSaveLexiconResult()
+   
    /**
     * Update the pronunciation dictionary.
     * <p>This is a list of all words in the uploaded transcripts, mapped to their
@@ -459,25 +1196,78 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void pronDictSaveLexicon(Map<String,String> lexicon) throws IOException, ElpisException {
-      
-      // save the map to a file
-      File file = File.createTempFile("pronDictSaveLexicon-", ".txt");
-      PrintWriter writer = new PrintWriter(file, "UTF-8");
-      file.deleteOnExit();
-      for (String key : lexicon.keySet()) {
-         writer.println(key + " " + lexicon.get(key));
-      } // next entry
-      writer.close();
-
-      // upload the file
-      try {
-       pronDictSaveLexicon(file);
-      } finally {
-         // tidy up the temporary file
-         file.delete();
-      }
+      pronDictSaveLexiconResult(lexicon);
+   } // end of pronDictSaveLexicon()
+   
+   /**
+    * Update the pronunciation dictionary.
+    * <p>This is a list of all words in the uploaded transcripts, mapped to their
+    * pronunciations; i.e. an edited version of the pronunciation dictionary generated by 
+    * {@link #pronDictGenerateLexicon()}.
+    * @param lexicon A map of word types to pronunciations.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> pronDictSaveLexiconResult(Map<String,String> lexicon)
+      throws IOException, ElpisException {
+      return call("pronDictSaveLexicon",
+                  post("pron-dict/save-lexicon").setBody(lexiconBody(lexicon)), true,
+                  r -> null);
+   } // end of pronDictSaveLexiconResult()
+   
+   /**
+    * Update the pronunciation dictionary, only if the lexicon has changed since it was
+    * last saved.
+    * <p> The lexicon is compared with the given snapshot of the lexicon last saved. If
+    * any words have been added, changed, or removed, the whole lexicon is saved, and the
+    * snapshot is updated. Otherwise, no request is sent.
+    * @param lexicon A map of word types to pronunciations.
+    * @param snapshot The record of the lexicon previously saved to this pronunciation
+    * dictionary.
+    * @return The words that were added, changed, or removed since the last save.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    * @see LexiconSnapshot#forPronDict(Elpis,String)
+    */
+   public LexiconSnapshot.Diff pronDictSaveLexicon(
+      Map<String,String> lexicon, LexiconSnapshot snapshot) throws IOException, ElpisException {
+      return pronDictSaveLexiconResult(lexicon, snapshot).getData();
    } // end of pronDictSaveLexicon()
    
+   /**
+    * Update the pronunciation dictionary, only if the lexicon has changed since it was
+    * last saved.
+    * <p> The lexicon is compared with the given snapshot of the lexicon last saved. If
+    * any words have been added, changed, or removed, the whole lexicon is saved, and the
+    * snapshot is updated. Otherwise, no request is sent, and the result's response is
+    * null.
+    * @param lexicon A map of word types to pronunciations.
+    * @param snapshot The record of the lexicon previously saved to this pronunciation
+    * dictionary.
+    * @return The result of the call, whose data is the words that were added, changed,
+    * or removed since the last save.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    * @see LexiconSnapshot#forPronDict(Elpis,String)
+    */
+   public Result<LexiconSnapshot.Diff> pronDictSaveLexiconResult(
+      Map<String,String> lexicon, LexiconSnapshot snapshot) throws IOException, ElpisException {
+      long start = System.nanoTime();
+      LexiconSnapshot.Diff diff = snapshot.diff(lexicon);
+      getLog().debug(() -> "pronDictSaveLexicon: " + diff);
+      if (diff.isEmpty()) { // nothing to send
+         return new Result<LexiconSnapshot.Diff>(
+            "pronDictSaveLexicon", diff, null, System.nanoTime() - start);
+      }
+      Result<LexiconSnapshot.Diff> result = call(
+         "pronDictSaveLexicon",
+         post("pron-dict/save-lexicon").setBody(lexiconBody(lexicon)), true,
+         r -> diff);
+      snapshot.update(lexicon);
+      return result;
+   } // end of pronDictSaveLexiconResult()
+   
    // model functions
 
    /**
@@ -487,18 +1277,20 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public List<String> modelList() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("model/list"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("modelList -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      JsonArray list = response.getData().getJsonArray("list");
-      return list.stream()
-         .map(item->((JsonObject)item).getString("name"))
-         .collect(Collectors.toList());
+      return modelListResult().getData();
    } // end of modelList()
    
+   /**
+    * List the current models.
+    * @return The result of the call, whose data is a list of existing models.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<List<String>> modelListResult()
+      throws IOException, ElpisException {
+      return call("modelList", get("model/list"), true, r -> parseNames(r));
+   } // end of modelListResult()
+   
    /**
     * Create a new model for training.
     * @param name The name of the new model to create.
@@ -508,16 +1300,24 @@ public class Elpis {
     */
    public void modelNew(String name, String pronDictName)
       throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("model/new"))
-         .setHeader("Accept", "application/json")
-         .setJsonParameter("name", name)
-         .setJsonParameter("pron_dict_name", pronDictName);
-      if (verbose) System.out.println("modelNew -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      modelNewResult(name, pronDictName);
    } // end of modelNew()
    
+   /**
+    * Create a new model for training.
+    * @param name The name of the new model to create.
+    * @param pronDictName The pronunciation dictionary to use.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> modelNewResult(String name, String pronDictName)
+      throws IOException, ElpisException {
+      return call("modelNew",
+                  post("model/new", "name", name, "pron_dict_name", pronDictName), true,
+                  r -> null);
+   } // end of modelNewResult()
+   
    /**
     * Start using an existing model.
     * @param name The name of the existing model to use.
@@ -525,15 +1325,21 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void modelLoad(String name) throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("model/load"))
-         .setHeader("Accept", "application/json")
-         .setJsonParameter("name", name);
-      if (verbose) System.out.println("modelLoad -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      modelLoadResult(name);
    } // end of modelLoad()
    
+   /**
+    * Start using an existing model.
+    * @param name The name of the existing model to use.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> modelLoadResult(String name)
+      throws IOException, ElpisException {
+      return call("modelLoad", post("model/load", "name", name), true, r -> null);
+   } // end of modelLoadResult()
+   
    /**
     * Specify model configuration.
     * @param ngram The n-gram setting (number of consecutive words to use) for the
@@ -542,15 +1348,22 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void modelSettings(int ngram) throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("model/settings"))
-         .setHeader("Accept", "application/json")
-         .setJsonParameter("ngram", ""+ngram);
-      if (verbose) System.out.println("modelSettings -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      modelSettingsResult(ngram);
    } // end of modelSettings()      
    
+   /**
+    * Specify model configuration.
+    * @param ngram The n-gram setting (number of consecutive words to use) for the
+    * language model.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> modelSettingsResult(int ngram)
+      throws IOException, ElpisException {
+      return call("modelSettings", post("model/settings", "ngram", ""+ngram), true, r -> null);
+   } // end of modelSettingsResult()
+   
    /**
     * Start the process of training models on the dataset.
     * @return The status of the training.
@@ -558,15 +1371,20 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public String modelTrain() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("model/train"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("modelTrain -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      return response.getData().getString("status");
+      return modelTrainResult().getData();
    } // end of modelTrain()      
    
+   /**
+    * Start the process of training models on the dataset.
+    * @return The result of the call, whose data is the status of the training.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<String> modelTrainResult()
+      throws IOException, ElpisException {
+      return call("modelTrain", get("model/train"), true, r -> parseStatus(r));
+   } // end of modelTrainResult()
+   
    /**
     * Start the process of training models on the dataset.
     * @return The status of the training.
@@ -574,34 +1392,78 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public String modelStatus() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("model/status"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("modelStatus -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      return response.getData().getString("status");
+      return modelStatusResult().getData();
    } // end of modelStatus()
    
+   /**
+    * Start the process of training models on the dataset.
+    * @return The result of the call, whose data is the status of the training.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<String> modelStatusResult()
+      throws IOException, ElpisException {
+      return call("modelStatus", get("model/status"), true, r -> parseStatus(r));
+   } // end of modelStatusResult()
+   
+   /**
+    * Wait for model training, started using {@link #modelTrain()}, to finish.
+    * <p> The status is checked immediately, and then at increasing intervals, using the
+    * {@link #getStatusPoller()}.
+    * @param timeout How long to wait before giving up, or null to wait indefinitely.
+    * @return The final status, which is "trained".
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if training fails or times out, or the server returns an error.
+    */
+   public String awaitModelTrained(Duration timeout) throws IOException, ElpisException {
+      return await(async().awaitModelTrained(timeout));
+   } // end of awaitModelTrained()
+   
    /**
     * Get the training results - i.e. metrics for the final model performance after
     * training.
     * @return A map of metric names to their values.
     * @throws IOException if a communication error occurs.
     * @throws ElpisException if the server returns an error.
+    * @see #modelResultsCompact()
     */
    public Map<String,String> modelResults() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("model/results"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("modelResults -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      JsonObject results = response.getData().getJsonObject("results");
-      return results.entrySet().stream()
-         .collect(Collectors.toMap(Map.Entry::getKey,
-                                   e -> ((JsonString)e.getValue()).getString()));
+      return modelResultsResult().getData();
    } // end of modelResults()      
+   
+   /**
+    * Get the training results - i.e. metrics for the final model performance after
+    * training.
+    * @return The result of the call, whose data is a map of metric names to their values.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Map<String,String>> modelResultsResult()
+      throws IOException, ElpisException {
+      return call("modelResults", get("model/results"), true, r -> parseResults(r));
+   } // end of modelResultsResult()
+   
+   /**
+    * Get the training results, with the word error rate and word counts as numbers.
+    * @return The word error rate, word counts, and any other metrics.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public ModelResults modelResultsCompact() throws IOException, ElpisException {
+      return modelResultsCompactResult().getData();
+   } // end of modelResultsCompact()
+   
+   /**
+    * Get the training results, with the word error rate and word counts as numbers.
+    * @return The result of the call, whose data is the word error rate, word counts, and
+    * any other metrics.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<ModelResults> modelResultsCompactResult()
+      throws IOException, ElpisException {
+      return call("modelResults", get("model/results"), true, r -> ModelResults.parse(r));
+   } // end of modelResultsCompactResult()
 
    // transcription functions
    
@@ -612,15 +1474,45 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void transcriptionNew(File file) throws IOException, ElpisException {
-      HttpRequestPostMultipart request = new HttpRequestPostMultipart(
-         makeUrl("transcription/new"))
-         .setHeader("Accept", "application/json");
-      request.setParameter("file", file);
-      if (verbose) System.out.println("transcriptionNew -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      transcriptionNewResult(file);
    } // end of transcriptionNew()
    
+   /**
+    * Upload an audio file to transcribe.
+    * @param file The wav audio file to upload.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> transcriptionNewResult(File file)
+      throws IOException, ElpisException {
+      return transcriptionNewResult(transcriptionNewRequest(file));
+   } // end of transcriptionNewResult()
+   
+   /**
+    * Creates the request that uploads an audio file to transcribe, so that it can be
+    * prepared in advance.
+    * @param file The wav audio file to upload.
+    * @return The request.
+    * @throws IOException if the request can't be created.
+    */
+   TransportRequest transcriptionNewRequest(File file) throws IOException {
+      return postFiles("transcription/new", Arrays.asList(file));
+   } // end of transcriptionNewRequest()
+   
+   /**
+    * Upload an audio file to transcribe, with a request created by
+    * {@link #transcriptionNewRequest(File)}.
+    * @param request The request, which may have been staged in advance.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   Result<Void> transcriptionNewResult(TransportRequest request)
+      throws IOException, ElpisException {
+      return call("transcriptionNew", request, true, r -> null);
+   } // end of transcriptionNewResult()
+   
    /**
     * Begin the transcription process, with the last recording uploaded using
     * {@link #transcriptionNew(File)}.
@@ -629,15 +1521,22 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public String transcriptionTranscribe() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("transcription/transcribe"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("transcriptionTranscribe -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      return response.getData().getString("status");
+      return transcriptionTranscribeResult().getData();
    } // end of transcriptionNew()
    
+   /**
+    * Begin the transcription process, with the last recording uploaded using
+    * {@link #transcriptionNew(File)}.
+    * @return The result of the call, whose data is the status of the transcription.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<String> transcriptionTranscribeResult()
+      throws IOException, ElpisException {
+      return call("transcriptionTranscribe", get("transcription/transcribe"), true,
+                  r -> parseStatus(r));
+   } // end of transcriptionTranscribeResult()
+   
    /**
     * Get the current status of the transcription process started using
     * {@link #transcriptionTranscribe()}.
@@ -646,14 +1545,59 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public String transcriptionStatus() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("transcription/status"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("transcriptionStatus -> " + request);
-      response = new Response(request.get(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
-      return response.getData().getString("status");
+      return transcriptionStatusResult().getData();
    } // end of transcriptionStatus()
+   
+   /**
+    * Get the current status of the transcription process started using
+    * {@link #transcriptionTranscribe()}.
+    * @return The result of the call, whose data is the status of the transcription.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<String> transcriptionStatusResult()
+      throws IOException, ElpisException {
+      return call("transcriptionStatus", get("transcription/status"), true,
+                  r -> parseStatus(r));
+   } // end of transcriptionStatusResult()
+   
+   /**
+    * Wait for transcription, started using {@link #transcriptionTranscribe()}, to finish.
+    * <p> The status is checked immediately, and then at increasing intervals, using the
+    * {@link #getStatusPoller()}.
+    * @param timeout How long to wait before giving up, or null to wait indefinitely.
+    * @return The final status, which is "transcribed".
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if transcription fails or times out, or the server returns
+    * an error.
+    */
+   public String awaitTranscribed(Duration timeout) throws IOException, ElpisException {
+      return await(async().awaitTranscribed(timeout));
+   } // end of awaitTranscribed()
+   
+   /**
+    * Waits for the given future to complete.
+    * @param future The future.
+    * @return The result of the future.
+    * @throws IOException if a communication error occurs, or the thread is interrupted.
+    * @throws ElpisException if the server returns an error.
+    */
+   static <T> T await(CompletableFuture<T> future) throws IOException, ElpisException {
+      try {
+         return future.get();
+      } catch(InterruptedException exception) {
+         future.cancel(true);
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted", exception);
+      } catch(ExecutionException exception) {
+         Throwable cause = exception.getCause();
+         if (cause instanceof IOException) throw (IOException)cause;
+         if (cause instanceof ElpisException) throw (ElpisException)cause;
+         if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+         if (cause instanceof Error) throw (Error)cause;
+         throw new IOException(cause);
+      }
+   } // end of await()
 
    /**
     * Get the plain-text version of the last transcript created by
@@ -663,14 +1607,80 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public String transcriptionText() throws IOException, ElpisException {
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("transcription/text"))
-         .setHeader("Accept", "text/plain");
-      if (verbose) System.out.println("transcriptionText -> " + request);
-      response = new Response(request.get(), verbose, false);
-      response.checkForErrors(); // throws a ElpisException on error
-      return response.getRaw();
+      return transcriptionTextResult().getData();
    } // end of transcriptionText()
+   
+   /**
+    * Get the plain-text version of the last transcript created by
+    * {@link #transcriptionTranscribe()}.
+    * @return The result of the call, whose data is the transcript of the recording.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<String> transcriptionTextResult()
+      throws IOException, ElpisException {
+      return call("transcriptionText", get("transcription/text", "text/plain"), false,
+                  r -> r.getRaw());
+   } // end of transcriptionTextResult()
+
+   /**
+    * Get the plain-text version of the last transcript created by
+    * {@link #transcriptionTranscribe()}, writing it directly to the given file.
+    * <p> The content is streamed to the file as it's received, so memory use doesn't
+    * depend on the size of the transcript.
+    * @param destination The file to write the transcript to, which is created or
+    * overwritten. 
+    * @return The number of bytes written.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public long transcriptionText(Path destination) throws IOException, ElpisException {
+      return transcriptionTextResult(destination).getData();
+   } // end of transcriptionText()
+   
+   /**
+    * Get the plain-text version of the last transcript created by
+    * {@link #transcriptionTranscribe()}, writing it directly to the given file.
+    * @param destination The file to write the transcript to, which is created or
+    * overwritten. 
+    * @return The result of the call, whose data is the number of bytes written.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Long> transcriptionTextResult(Path destination)
+      throws IOException, ElpisException {
+      try (FileChannel channel = openChannel(destination)) {
+         return download("transcriptionText", get("transcription/text", "text/plain"), channel);
+      }
+   } // end of transcriptionTextResult()
+   
+   /**
+    * Get the plain-text version of the last transcript created by
+    * {@link #transcriptionTranscribe()}, writing it directly to the given stream.
+    * <p> The content is streamed as it's received, so memory use doesn't depend on the
+    * size of the transcript.
+    * @param destination The stream to write the transcript to, which is not closed.
+    * @return The number of bytes written.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public long transcriptionText(OutputStream destination) throws IOException, ElpisException {
+      return transcriptionTextResult(destination).getData();
+   } // end of transcriptionText()
+   
+   /**
+    * Get the plain-text version of the last transcript created by
+    * {@link #transcriptionTranscribe()}, writing it directly to the given stream.
+    * @param destination The stream to write the transcript to, which is not closed.
+    * @return The result of the call, whose data is the number of bytes written.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Long> transcriptionTextResult(OutputStream destination)
+      throws IOException, ElpisException {
+      return download("transcriptionText", get("transcription/text", "text/plain"),
+                      Channels.newChannel(destination));
+   } // end of transcriptionTextResult()
 
    /**
     * Get the ELAN (.eaf) version of the last transcript created by
@@ -682,23 +1692,91 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public File transcriptionElan() throws IOException, ElpisException {
-
-      // get the content
-      HttpRequestGet request = new HttpRequestGet(
-         makeUrl("transcription/elan"))
-         .setHeader("Accept", "text/x-eaf+xml");
-      if (verbose) System.out.println("transcriptionElan -> " + request);
-      response = new Response(request.get(), verbose, false);
-      response.checkForErrors(); // throws a ElpisException on error
-
-      // save the content to a file
+      return transcriptionElanResult().getData();
+   } // end of transcriptionElan()
+   
+   /**
+    * Get the ELAN (.eaf) version of the last transcript created by
+    * {@link #transcriptionTranscribe()}, which has a tier that includes an aligned
+    * annotation for each word token. 
+    * @return The result of the call, whose data is a file containing the ELAN (.eaf)
+    * transcription of the recording, which should be deleted by the caller when no
+    * longer needed.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<File> transcriptionElanResult()
+      throws IOException, ElpisException {
       File file = File.createTempFile("transcriptionElan-", ".eaf");
-      PrintWriter writer = new PrintWriter(file, "UTF-8");
-      writer.print(response.getRaw());
-      writer.close();
-
-      return file;
-   } // end of transcriptionText()
+      try {
+         Result<Long> result = transcriptionElanResult(file.toPath());
+         return new Result<File>(
+            result.getFunction(), file, result.getResponse(), result.getDurationNanos());
+      } catch(IOException | ElpisException | RuntimeException exception) {
+         file.delete();
+         throw exception;
+      }
+   } // end of transcriptionElanResult()
+   
+   /**
+    * Get the ELAN (.eaf) version of the last transcript created by
+    * {@link #transcriptionTranscribe()}, writing it directly to the given file.
+    * <p> The content is streamed to the file as it's received, so memory use doesn't
+    * depend on the size of the transcript.
+    * @param destination The file to write the transcript to, which is created or
+    * overwritten. 
+    * @return The number of bytes written.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public long transcriptionElan(Path destination) throws IOException, ElpisException {
+      return transcriptionElanResult(destination).getData();
+   } // end of transcriptionElan()
+   
+   /**
+    * Get the ELAN (.eaf) version of the last transcript created by
+    * {@link #transcriptionTranscribe()}, writing it directly to the given file.
+    * @param destination The file to write the transcript to, which is created or
+    * overwritten. 
+    * @return The result of the call, whose data is the number of bytes written.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Long> transcriptionElanResult(Path destination)
+      throws IOException, ElpisException {
+      try (FileChannel channel = openChannel(destination)) {
+         return download(
+            "transcriptionElan", get("transcription/elan", "text/x-eaf+xml"), channel);
+      }
+   } // end of transcriptionElanResult()
+   
+   /**
+    * Get the ELAN (.eaf) version of the last transcript created by
+    * {@link #transcriptionTranscribe()}, writing it directly to the given stream.
+    * <p> The content is streamed as it's received, so memory use doesn't depend on the
+    * size of the transcript.
+    * @param destination The stream to write the transcript to, which is not closed.
+    * @return The number of bytes written.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public long transcriptionElan(OutputStream destination) throws IOException, ElpisException {
+      return transcriptionElanResult(destination).getData();
+   } // end of transcriptionElan()
+   
+   /**
+    * Get the ELAN (.eaf) version of the last transcript created by
+    * {@link #transcriptionTranscribe()}, writing it directly to the given stream.
+    * @param destination The stream to write the transcript to, which is not closed.
+    * @return The result of the call, whose data is the number of bytes written.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Long> transcriptionElanResult(OutputStream destination)
+      throws IOException, ElpisException {
+      return download("transcriptionElan", get("transcription/elan", "text/x-eaf+xml"),
+                      Channels.newChannel(destination));
+   } // end of transcriptionElanResult()
 
    // config functions
 
@@ -708,12 +1786,175 @@ public class Elpis {
     * @throws ElpisException if the server returns an error.
     */
    public void configReset() throws IOException, ElpisException {
-      HttpRequestPost request = new HttpRequestPost(
-         makeUrl("config/reset"))
-         .setHeader("Accept", "application/json");
-      if (verbose) System.out.println("datasetPrepare -> " + request);
-      response = new Response(request.post(), verbose);
-      response.checkForErrors(); // throws a ElpisException on error
+      configResetResult();
    } // end of configReset()
+   
+   /**
+    * Reset the server - delete all uploads, datasets, pronunciation maps, etc.
+    * @return The result of the call.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   public Result<Void> configResetResult()
+      throws IOException, ElpisException {
+      return call("configReset", post("config/reset"), true, r -> null);
+   } // end of configResetResult()
+
+   // response parsing, shared with AsyncElpis
+
+   /**
+    * Extracts a list of strings from the response data.
+    * @param response The response.
+    * @param key The key of the array in the response data.
+    * @return The list of strings.
+    */
+   static List<String> parseStrings(Response response, String key) {
+      JsonArray list = response.getData().getJsonArray(key);
+      return list.stream()
+         .map(item->((JsonString)item).getString())
+         .collect(Collectors.toList());
+   } // end of parseStrings()
+
+   /**
+    * Extracts a list of names from the "list" array of objects in the response data.
+    * @param response The response.
+    * @return The list of names.
+    */
+   static List<String> parseNames(Response response) {
+      JsonArray list = response.getData().getJsonArray("list");
+      return list.stream()
+         .map(item->((JsonObject)item).getString("name"))
+         .collect(Collectors.toList());
+   } // end of parseNames()
+
+   /**
+    * Extracts the status from the response data.
+    * @param response The response.
+    * @return The status.
+    */
+   static String parseStatus(Response response) {
+      return response.getData().getString("status");
+   } // end of parseStatus()
+
+   /**
+    * Extracts model training results from the response data.
+    * @param response The response.
+    * @return A map of metric names to their values.
+    */
+   static Map<String,String> parseResults(Response response) {
+      JsonObject results = response.getData().getJsonObject("results");
+      return results.entrySet().stream()
+         .collect(Collectors.toMap(Map.Entry::getKey,
+                                   e -> ((JsonString)e.getValue()).getString()));
+   } // end of parseResults()
+
+   /**
+    * Extracts word frequencies from the "wordlist" in the response data, which is a
+    * string containing a JSON object.
+    * @param response The response.
+    * @return A map of word types to frequencies.
+    */
+   static Map<String,Integer> parseWordlist(Response response) {
+      // the wordlist is a JSON object encoded as a string, which may be large, so parse it
+      // straight into the map, rather than via an intermediate JsonObject
+      String wordlistString = response.getData().getString("wordlist");
+      LinkedHashMap<String,Integer> wordlist = new LinkedHashMap<String,Integer>();
+      JsonParser parser = Json.createParser(new StringReader(wordlistString));
+      try {
+         parser.next(); // START_OBJECT
+         while (parser.next() == JsonParser.Event.KEY_NAME) {
+            String word = parser.getString();
+            parser.next(); // VALUE_NUMBER
+            wordlist.put(word, parser.getInt());
+         } // next word
+      } finally {
+         parser.close();
+      }
+      return wordlist;
+   } // end of parseWordlist()
+
+   /**
+    * Extracts word frequencies from the "wordlist" in the response data, which is a
+    * string containing a JSON object, into a compact table.
+    * @param response The response.
+    * @return The word types and their frequencies.
+    */
+   static WordFrequencies parseWordFrequencies(Response response) {
+      // parse straight into primitive storage, rather than via a JsonObject or Map
+      String wordlistString = response.getData().getString("wordlist");
+      JsonParser parser = Json.createParser(new StringReader(wordlistString));
+      try {
+         parser.next(); // START_OBJECT
+         return WordFrequencies.parse(parser);
+      } finally {
+         parser.close();
+      }
+   } // end of parseWordFrequencies()
+
+   /**
+    * Extracts the lexicon from the response data.
+    * @param response The response.
+    * @return A map of word types to pronunciations.
+    */
+   static Map<String,String> parseLexicon(Response response) {
+      
+      // get the lexicon as a string
+      String lexicon = response.getData().getString("lexicon");
+
+      // parse the lexicon into a map, line by line, without splitting it into an array
+      LinkedHashMap<String,String> dictionary = new LinkedHashMap<String,String>();
+      int l = 0;
+      int start = 0;
+      while (start < lexicon.length()) {
+         int end = lexicon.indexOf('\n', start);
+         if (end < 0) end = lexicon.length();
+         int firstSpace = lexicon.indexOf(' ', start);
+         if (firstSpace <= start || firstSpace >= end) {
+            if (end > start) { // not a trailing blank line
+               int line = l;
+               String content = lexicon.substring(start, end);
+               response.getLog().info(
+                  () -> "Ignoring line " + line + " as it contains no space: " + content);
+            }
+         } else {
+            String word = lexicon.substring(start, firstSpace);
+            String pronunciation = lexicon.substring(firstSpace + 1, end);
+            dictionary.put(word, pronunciation);
+         }
+         start = end + 1;
+         l++;
+      } // next line
+      
+      return dictionary;
+   } // end of parseLexicon()
+
+   /**
+    * Extracts the lexicon from the response data, into a compact structure.
+    * @param response The response.
+    * @return The word types and their pronunciations.
+    */
+   static Lexicon parseCompactLexicon(Response response) {
+      return Lexicon.parse(response.getData().getString("lexicon"));
+   } // end of parseCompactLexicon()
+
+   /**
+    * Creates a request body for saving the contents of a lexicon file, which is streamed
+    * as the request is sent, ensuring it ends with a newline.
+    * @param lexicon The file to upload.
+    * @return The request body.
+    */
+   static RequestBody lexiconBody(File lexicon) {
+      return JsonStringBody.lines("lexicon", lexicon.toPath());
+   } // end of lexiconBody()
+
+   /**
+    * Creates a request body for saving a lexicon map as lines of space-separated words
+    * and pronunciations, which are formatted as the request is sent.
+    * @param lexicon A map of word types to pronunciations.
+    * @return The request body.
+    */
+   static RequestBody lexiconBody(Map<String,String> lexicon) {
+      return JsonStringBody.entries("lexicon", lexicon.entrySet());
+   } // end of lexiconBody()
 
 } // end of class Elpis
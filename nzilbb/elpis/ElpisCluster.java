@@ -0,0 +1,393 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client for a group of Elpis servers, which routes each job to a server that isn't
+ * busy.
+ * <p> Each Elpis server has only one "current" dataset, pronunciation dictionary, model,
+ * and transcription, so it can only do one thing at a time. The cluster runs each
+ * {@link Job} on a server that is idle, and queues jobs until a server is available.
+ * <p> A server is only considered idle once its {@link Elpis#modelStatus()} and
+ * {@link Elpis#transcriptionStatus()} show that it is not training or transcribing,
+ * so servers in use by other clients aren't interrupted; they're checked again every
+ * {@link #getRecheckInterval()} until they're free.
+ * <p> Jobs can be submitted with a key, which pins the server to that key - e.g. a
+ * model trained by one job can be used for transcription by a later job with the same
+ * key, because it's run on the same server. The server isn't used for other keys until
+ * it's {@link #release(String)}d.
+ * <p> e.g.
+ * <pre>
+ * try (ElpisCluster cluster = new ElpisCluster(
+ *         "http://elpis1:5000", "http://elpis2:5000")) {
+ *   cluster.submit("project-a", elpis -&gt; {
+ *       elpis.modelLoad("a");
+ *       elpis.transcriptionNew(recording);
+ *       elpis.transcriptionTranscribe();
+ *       elpis.awaitTranscribed(Duration.ofMinutes(30));
+ *       return elpis.transcriptionText();
+ *     }).thenAccept(transcript -&gt; System.out.println(transcript));
+ * }
+ * </pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ElpisCluster implements AutoCloseable {
+
+   /**
+    * A unit of work that runs on one server.
+    */
+   @FunctionalInterface
+   public interface Job<R> {
+      /**
+       * Does the work.
+       * @param elpis The server to use.
+       * @return The result.
+       * @throws IOException if a communication error occurs.
+       * @throws ElpisException if the server returns an error.
+       */
+      R run(Elpis elpis) throws IOException, ElpisException;
+   }
+
+   /** Server state: status not yet checked */
+   static final int UNKNOWN = 0;
+   /** Server state: status being checked */
+   static final int CHECKING = 1;
+   /** Server state: not training or transcribing */
+   static final int IDLE = 2;
+   /** Server state: training, transcribing, or unreachable */
+   static final int BUSY = 3;
+   /** Server state: running a job from this cluster */
+   static final int RUNNING = 4;
+
+   /**
+    * A server in the cluster.
+    */
+   static class Server {
+      Elpis elpis;
+      int state = UNKNOWN;
+      String owner; // the key the server is pinned to, if any
+      int jobCount;
+      Server(Elpis elpis) { this.elpis = elpis; }
+      public String toString() {
+         return elpis.getBaseUrl() + " ("
+            + new String[]{"unknown","checking","idle","busy","running"}[state]
+            + (owner != null? ", pinned to " + owner : "") + ", " + jobCount + " jobs)";
+      }
+   }
+
+   /**
+    * A job waiting for a server.
+    */
+   static class Pending<R> {
+      String key;
+      Job<R> job;
+      CompletableFuture<R> future = new CompletableFuture<R>();
+   }
+
+   // Attributes:
+
+   /** The servers, in the order given */
+   private List<Server> servers = new Vector<Server>();
+
+   /** Servers that are pinned to a key */
+   private HashMap<String,Server> pins = new HashMap<String,Server>();
+
+   /** Jobs waiting for a server, in the order submitted */
+   private ArrayDeque<Pending<?>> queue = new ArrayDeque<Pending<?>>();
+
+   /** Whether a status recheck has been scheduled */
+   private boolean recheckScheduled = false;
+
+   /**
+    * Runs jobs, which block while they wait for the server.
+    * @see #getExecutor()
+    */
+   protected BulkExecutor executor;
+   /**
+    * Getter for {@link #executor}: Runs jobs, which block while they wait for the server.
+    * This runs each job on a virtual thread if possible.
+    * @return Runs jobs, which block while they wait for the server.
+    */
+   public BulkExecutor getExecutor() { return executor; }
+
+   /**
+    * How often servers that are busy are checked to see if they've become idle. The
+    * default is 5 seconds.
+    * @see #getRecheckInterval()
+    * @see #setRecheckInterval(Duration)
+    */
+   protected Duration recheckInterval = Duration.ofSeconds(5);
+   /**
+    * Getter for {@link #recheckInterval}: How often servers that are busy are checked to
+    * see if they've become idle.
+    * @return How often servers that are busy are checked to see if they've become idle.
+    */
+   public Duration getRecheckInterval() { return recheckInterval; }
+   /**
+    * Setter for {@link #recheckInterval}: How often servers that are busy are checked to
+    * see if they've become idle.
+    * @param newRecheckInterval How often servers that are busy are checked to see if
+    * they've become idle.
+    */
+   public ElpisCluster setRecheckInterval(Duration newRecheckInterval) { recheckInterval = newRecheckInterval; return this; }
+
+   // Methods:
+
+   /**
+    * Constructor from URLs.
+    * @param baseUrls The base URLs of the servers.
+    * @throws MalformedURLException If a URL is invalid.
+    */
+   public ElpisCluster(String... baseUrls) throws MalformedURLException {
+      this(toClients(baseUrls));
+   } // end of constructor
+
+   /**
+    * Constructor from clients, which allows each client's settings to be configured.
+    * @param clients A client for each server.
+    */
+   public ElpisCluster(List<Elpis> clients) {
+      if (clients.size() == 0) throw new IllegalArgumentException("No servers specified");
+      for (Elpis elpis : clients) servers.add(new Server(elpis));
+      executor = BulkExecutor.virtualThreads(clients.size());
+   } // end of constructor
+
+   /**
+    * Creates clients for the given URLs.
+    * @param baseUrls The base URLs of the servers.
+    * @return A client for each server.
+    * @throws MalformedURLException If a URL is invalid.
+    */
+   private static List<Elpis> toClients(String... baseUrls) throws MalformedURLException {
+      Vector<Elpis> clients = new Vector<Elpis>();
+      for (String url : baseUrls) clients.add(new Elpis(url));
+      return clients;
+   } // end of toClients()
+
+   /**
+    * Gets the clients for the servers in the cluster.
+    * @return The clients for the servers.
+    */
+   public List<Elpis> getServers() {
+      Vector<Elpis> clients = new Vector<Elpis>();
+      for (Server server : servers) clients.add(server.elpis);
+      return Collections.unmodifiableList(clients);
+   } // end of getServers()
+
+   /**
+    * The number of jobs waiting for a server.
+    * @return The number of jobs waiting for a server.
+    */
+   public synchronized int getQueueLength() {
+      return queue.size();
+   } // end of getQueueLength()
+
+   /**
+    * Gets the server that the given key is pinned to.
+    * @param key The job key.
+    * @return The server the key is pinned to, or null if it isn't pinned.
+    */
+   public synchronized Elpis getPinned(String key) {
+      Server server = pins.get(key);
+      return server == null? null : server.elpis;
+   } // end of getPinned()
+
+   /**
+    * Runs a job on the first server that is idle. The server is used only by this job
+    * until the job finishes.
+    * @param job The job to run.
+    * @return A future that completes with the result of the job, or completes
+    * exceptionally with an IOException or ElpisException if the job fails.
+    */
+   public <R> CompletableFuture<R> submit(Job<R> job) {
+      return submit(null, job);
+   } // end of submit()
+
+   /**
+    * Runs a job on the server pinned to the given key, or pins the first idle server to
+    * the key if there isn't one yet. The server is not used for any other key until
+    * the key is {@link #release(String)}d. Jobs with the same key run one at a time, in
+    * the order they are submitted.
+    * @param key The job key, or null if the server shouldn't be pinned.
+    * @param job The job to run.
+    * @return A future that completes with the result of the job, or completes
+    * exceptionally with an IOException or ElpisException if the job fails.
+    */
+   public <R> CompletableFuture<R> submit(String key, Job<R> job) {
+      Pending<R> pending = new Pending<R>();
+      pending.key = key;
+      pending.job = job;
+      synchronized (this) {
+         queue.add(pending);
+      }
+      dispatch();
+      return pending.future;
+   } // end of submit()
+
+   /**
+    * Unpins the server pinned to the given key, so that it can be used for other jobs.
+    * @param key The job key.
+    */
+   public void release(String key) {
+      synchronized (this) {
+         Server server = pins.remove(key);
+         if (server == null) return;
+         server.owner = null;
+         if (server.state != RUNNING) server.state = UNKNOWN; // check before reuse
+      }
+      dispatch();
+   } // end of release()
+
+   /**
+    * Starts as many queued jobs as possible, and checks the status of servers that may be
+    * needed.
+    */
+   private void dispatch() {
+      Vector<Server> toCheck = new Vector<Server>();
+      synchronized (this) {
+         boolean needServer = false;
+         Iterator<Pending<?>> pendings = queue.iterator();
+         while (pendings.hasNext()) {
+            Pending<?> pending = pendings.next();
+            Server server = pending.key == null? null : pins.get(pending.key);
+            if (server != null) { // pinned, so must wait for that server
+               if (server.state == RUNNING) continue;
+            } else {
+               server = servers.stream()
+                  .filter(s -> s.owner == null && s.state == IDLE)
+                  .findFirst().orElse(null);
+               if (server == null) {
+                  needServer = true;
+                  continue;
+               }
+               if (pending.key != null) {
+                  server.owner = pending.key;
+                  pins.put(pending.key, server);
+               }
+            }
+            pendings.remove();
+            server.state = RUNNING;
+            server.jobCount++;
+            run(server, pending);
+         } // next pending job
+         if (needServer) {
+            boolean busy = false;
+            for (Server server : servers) {
+               if (server.owner != null) continue;
+               if (server.state == UNKNOWN) {
+                  server.state = CHECKING;
+                  toCheck.add(server);
+               } else if (server.state == BUSY) {
+                  busy = true;
+               }
+            } // next server
+            if (busy && !recheckScheduled) {
+               recheckScheduled = true;
+               StatusPoller.sharedScheduler().schedule(
+                  () -> recheck(), recheckInterval.toNanos(), TimeUnit.NANOSECONDS);
+            }
+         }
+      } // synchronized
+      for (Server server : toCheck) check(server);
+   } // end of dispatch()
+
+   /**
+    * Marks busy servers for checking again, and dispatches queued jobs.
+    */
+   private void recheck() {
+      synchronized (this) {
+         recheckScheduled = false;
+         for (Server server : servers) {
+            if (server.state == BUSY && server.owner == null) server.state = UNKNOWN;
+         }
+      }
+      dispatch();
+   } // end of recheck()
+
+   /**
+    * Checks whether the given server is training or transcribing, and marks it as idle or
+    * busy accordingly.
+    * @param server The server to check.
+    */
+   private void check(Server server) {
+      AsyncElpis elpis = server.elpis.async();
+      elpis.modelStatus()
+         .thenCombine(elpis.transcriptionStatus(),
+                      (model, transcription) -> !"training".equals(model)
+                      && !"transcribing".equals(transcription))
+         .whenComplete((idle, exception) -> {
+               synchronized (this) {
+                  if (server.state == CHECKING) {
+                     // unreachable servers are treated as busy, to be checked again later
+                     server.state = exception == null && idle? IDLE : BUSY;
+                  }
+               }
+               dispatch();
+            });
+   } // end of check()
+
+   /**
+    * Runs the given job on the given server.
+    * @param server The server, whose state is already {@link #RUNNING}.
+    * @param pending The job.
+    */
+   private <R> void run(Server server, Pending<R> pending) {
+      try {
+         executor.getExecutor().execute(() -> {
+               try {
+                  pending.future.complete(pending.job.run(server.elpis));
+               } catch(Throwable exception) {
+                  pending.future.completeExceptionally(exception);
+               } finally {
+                  synchronized (this) {
+                     // the job may have left the server training or transcribing
+                     server.state = server.owner != null? IDLE : UNKNOWN;
+                  }
+                  dispatch();
+               }
+            });
+      } catch(RuntimeException exception) { // e.g. rejected because the cluster is closed
+         server.state = UNKNOWN;
+         pending.future.completeExceptionally(exception);
+      }
+   } // end of run()
+
+   /**
+    * Waits for running jobs to finish, and fails any jobs that are still queued.
+    */
+   public void close() {
+      Vector<Pending<?>> abandoned;
+      synchronized (this) {
+         abandoned = new Vector<Pending<?>>(queue);
+         queue.clear();
+      }
+      for (Pending<?> pending : abandoned) {
+         pending.future.completeExceptionally(new IOException("Cluster closed"));
+      }
+      executor.close();
+   } // end of close()
+
+   /**
+    * String representation of the cluster.
+    * @return A String representation of the cluster.
+    */
+   public synchronized String toString() {
+      return servers + ", " + queue.size() + " queued";
+   } // end of toString()
+
+} // end of class ElpisCluster
@@ -0,0 +1,196 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Request counts, byte counts, and latency histograms for one API endpoint.
+ * <p> Counters are {@link LongAdder}s and latencies are {@link LatencyHistogram}s, so
+ * requests can be recorded concurrently without locking.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class EndpointMetrics implements EndpointMetricsMXBean {
+
+   // Attributes:
+
+   /**
+    * The endpoint, e.g. "dataset/files".
+    * @see #getEndpoint()
+    */
+   protected String endpoint;
+   /**
+    * Getter for {@link #endpoint}: The endpoint, e.g. "dataset/files".
+    * @return The endpoint.
+    */
+   public String getEndpoint() { return endpoint; }
+
+   /** The number of requests */
+   private final LongAdder requests = new LongAdder();
+
+   /** The number of requests that failed */
+   private final LongAdder errors = new LongAdder();
+
+   /** The number of bytes sent */
+   private final LongAdder bytesSent = new LongAdder();
+
+   /** The number of bytes received */
+   private final LongAdder bytesReceived = new LongAdder();
+
+   /** Latency histograms, indexed by {@link Metrics.Phase#ordinal()} */
+   private final LatencyHistogram[] latencies
+   = new LatencyHistogram[Metrics.Phase.values().length];
+
+   // Methods:
+
+   /**
+    * Constructor.
+    * @param endpoint The endpoint, e.g. "dataset/files".
+    */
+   public EndpointMetrics(String endpoint) {
+      this.endpoint = endpoint;
+      for (int p = 0; p < latencies.length; p++) latencies[p] = new LatencyHistogram();
+   } // end of constructor
+
+   /**
+    * Records a finished request.
+    * @param timing The timing of the request.
+    */
+   public void record(RequestTiming timing) {
+      requests.increment();
+      if (timing.isError()) errors.increment();
+      bytesSent.add(timing.getBytesSent());
+      bytesReceived.add(timing.getBytesReceived());
+      for (Metrics.Phase phase : Metrics.Phase.values()) {
+         latencies[phase.ordinal()].record(timing.getNanos(phase));
+      } // next phase
+   } // end of record()
+
+   /**
+    * The number of requests sent to the endpoint.
+    * @return The number of requests, including failed ones.
+    */
+   public long getRequestCount() {
+      return requests.sum();
+   } // end of getRequestCount()
+
+   /**
+    * The number of requests to the endpoint that failed.
+    * @return The number of requests that failed.
+    */
+   public long getErrorCount() {
+      return errors.sum();
+   } // end of getErrorCount()
+
+   /**
+    * The total number of bytes of request body sent to the endpoint.
+    * @return The number of bytes sent.
+    */
+   public long getBytesSent() {
+      return bytesSent.sum();
+   } // end of getBytesSent()
+
+   /**
+    * The total number of bytes of response body received from the endpoint.
+    * @return The number of bytes received.
+    */
+   public long getBytesReceived() {
+      return bytesReceived.sum();
+   } // end of getBytesReceived()
+
+   /**
+    * The latency histogram for the given phase.
+    * @param phase The phase.
+    * @return The histogram of durations of the phase.
+    */
+   public LatencyHistogram getLatency(Metrics.Phase phase) {
+      return latencies[phase.ordinal()];
+   } // end of getLatency()
+
+   /**
+    * The mean latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getMeanMillis() {
+      LinkedHashMap<String,Double> millis = new LinkedHashMap<String,Double>();
+      for (Metrics.Phase phase : Metrics.Phase.values()) {
+         millis.put(phase.getName(), getLatency(phase).getMeanNanos() / 1000000.0);
+      } // next phase
+      return millis;
+   } // end of getMeanMillis()
+
+   /**
+    * The median latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getMedianMillis() {
+      return millis(h -> h.getPercentileNanos(50));
+   } // end of getMedianMillis()
+
+   /**
+    * The 95th percentile latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getP95Millis() {
+      return millis(h -> h.getPercentileNanos(95));
+   } // end of getP95Millis()
+
+   /**
+    * The 99th percentile latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getP99Millis() {
+      return millis(h -> h.getPercentileNanos(99));
+   } // end of getP99Millis()
+
+   /**
+    * The maximum latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getMaxMillis() {
+      return millis(LatencyHistogram::getMaxNanos);
+   } // end of getMaxMillis()
+
+   /**
+    * Gets a statistic of each phase's latency in milliseconds.
+    * @param statistic Gets the statistic in nanoseconds from a histogram.
+    * @return Phase names mapped to milliseconds.
+    */
+   private Map<String,Double> millis(ToLongFunction<LatencyHistogram> statistic) {
+      LinkedHashMap<String,Double> millis = new LinkedHashMap<String,Double>();
+      for (Metrics.Phase phase : Metrics.Phase.values()) {
+         millis.put(phase.getName(), statistic.applyAsLong(getLatency(phase)) / 1000000.0);
+      } // next phase
+      return millis;
+   } // end of millis()
+
+   /**
+    * Clears all counts and latencies.
+    */
+   public void reset() {
+      requests.reset();
+      errors.reset();
+      bytesSent.reset();
+      bytesReceived.reset();
+      for (LatencyHistogram latency : latencies) latency.reset();
+   } // end of reset()
+
+   /**
+    * String representation of the metrics.
+    * @return A String representation of the metrics.
+    */
+   public String toString() {
+      LatencyHistogram total = getLatency(Metrics.Phase.TOTAL);
+      return endpoint + ": " + getRequestCount() + " requests, " + getErrorCount()
+         + " errors, " + getBytesSent() + " bytes sent, " + getBytesReceived()
+         + " bytes received, p50 " + total.getPercentileNanos(50) / 1000000
+         + "ms, p99 " + total.getPercentileNanos(99) / 1000000 + "ms";
+   } // end of toString()
+
+} // end of class EndpointMetrics
@@ -0,0 +1,86 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link EndpointMetrics}, through which metrics for one
+ * API endpoint are published via JMX once {@link Metrics#registerMBeans(String)} has
+ * been called.
+ * <p> Latencies are maps from the name of each {@link Metrics.Phase} - "connect",
+ * "upload", "firstByte", "download", "parse", and "total" - to a duration in
+ * milliseconds.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public interface EndpointMetricsMXBean {
+
+   /**
+    * The endpoint, e.g. "dataset/files".
+    * @return The endpoint.
+    */
+   public String getEndpoint();
+
+   /**
+    * The number of requests sent to the endpoint.
+    * @return The number of requests, including failed ones.
+    */
+   public long getRequestCount();
+
+   /**
+    * The number of requests to the endpoint that failed.
+    * @return The number of requests that failed.
+    */
+   public long getErrorCount();
+
+   /**
+    * The total number of bytes of request body sent to the endpoint.
+    * @return The number of bytes sent.
+    */
+   public long getBytesSent();
+
+   /**
+    * The total number of bytes of response body received from the endpoint.
+    * @return The number of bytes received.
+    */
+   public long getBytesReceived();
+
+   /**
+    * The mean latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getMeanMillis();
+
+   /**
+    * The median latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getMedianMillis();
+
+   /**
+    * The 95th percentile latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getP95Millis();
+
+   /**
+    * The 99th percentile latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getP99Millis();
+
+   /**
+    * The maximum latency of each phase.
+    * @return Phase names mapped to milliseconds.
+    */
+   public Map<String,Double> getMaxMillis();
+
+   /**
+    * Clears all counts and latencies.
+    */
+   public void reset();
+
+} // end of interface EndpointMetricsMXBean
@@ -0,0 +1,175 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations, which can be recorded concurrently by many threads without
+ * locking.
+ * <p> Durations are counted in logarithmic buckets - each power of two is divided into
+ * four buckets - so percentiles are accurate to within about 25%, regardless of
+ * whether durations are microseconds or hours. Each bucket is a {@link LongAdder}, so
+ * threads recording at the same time don't contend for the same counter. Buckets are
+ * only created once a duration falls into them.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class LatencyHistogram {
+
+   /** The number of bits of each value used to divide powers of two into buckets */
+   static final int SUB_BUCKET_BITS = 2;
+
+   /** The number of buckets per power of two */
+   static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+   /** The total number of buckets, enough for any non-negative long */
+   static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+   /** Counts of durations in each bucket, created as required */
+   private final AtomicReferenceArray<LongAdder> buckets
+   = new AtomicReferenceArray<LongAdder>(BUCKETS);
+
+   /** The number of durations recorded */
+   private final LongAdder count = new LongAdder();
+
+   /** The total of all durations recorded */
+   private final LongAdder sum = new LongAdder();
+
+   /** The longest duration recorded */
+   private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+   /**
+    * Determines the bucket for the given value.
+    * @param value A non-negative value.
+    * @return The index of the bucket.
+    */
+   static int bucket(long value) {
+      if (value < SUB_BUCKETS) return (int)value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+   } // end of bucket()
+
+   /**
+    * Determines the smallest value that falls in the given bucket.
+    * @param bucket The index of the bucket.
+    * @return The lower bound of the bucket.
+    */
+   static long lowerBound(int bucket) {
+      if (bucket < SUB_BUCKETS) return bucket;
+      int shift = bucket / SUB_BUCKETS - 1;
+      return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+   } // end of lowerBound()
+
+   /**
+    * Records a duration.
+    * @param nanos The duration in nanoseconds; negative values are counted as 0.
+    */
+   public void record(long nanos) {
+      if (nanos < 0) nanos = 0;
+      int b = bucket(nanos);
+      LongAdder bucket = buckets.get(b);
+      if (bucket == null) {
+         buckets.compareAndSet(b, null, new LongAdder());
+         bucket = buckets.get(b);
+      }
+      bucket.increment();
+      count.increment();
+      sum.add(nanos);
+      max.accumulate(nanos);
+   } // end of record()
+
+   /**
+    * The number of durations recorded.
+    * @return The number of durations recorded.
+    */
+   public long getCount() {
+      return count.sum();
+   } // end of getCount()
+
+   /**
+    * The total of all durations recorded.
+    * @return The total in nanoseconds.
+    */
+   public long getSumNanos() {
+      return sum.sum();
+   } // end of getSumNanos()
+
+   /**
+    * The mean duration.
+    * @return The mean in nanoseconds, or 0 if nothing has been recorded.
+    */
+   public double getMeanNanos() {
+      long n = count.sum();
+      return n == 0? 0.0 : (double)sum.sum() / n;
+   } // end of getMeanNanos()
+
+   /**
+    * The longest duration recorded.
+    * @return The maximum in nanoseconds, or 0 if nothing has been recorded.
+    */
+   public long getMaxNanos() {
+      return max.get();
+   } // end of getMaxNanos()
+
+   /**
+    * Estimates the given percentile of the recorded durations.
+    * <p> Durations recorded while this is running may or may not be included.
+    * @param percentile The percentile, between 0 and 100 - e.g. 99 for the 99th
+    * percentile.
+    * @return The midpoint of the bucket that the percentile falls into (but no more than
+    * the maximum), in nanoseconds, or 0 if nothing has been recorded. The 100th
+    * percentile is the maximum.
+    */
+   public long getPercentileNanos(double percentile) {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int b = 0; b < BUCKETS; b++) {
+         LongAdder bucket = buckets.get(b);
+         if (bucket != null) total += counts[b] = bucket.sum();
+      } // next bucket
+      if (total == 0) return 0;
+      if (percentile >= 100) return getMaxNanos();
+      long rank = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+      long seen = 0;
+      for (int b = 0; b < BUCKETS; b++) {
+         seen += counts[b];
+         if (seen >= rank) {
+            long lower = lowerBound(b);
+            long upper = b + 1 < BUCKETS? lowerBound(b + 1) - 1 : Long.MAX_VALUE;
+            return Math.min(lower + (upper - lower) / 2, getMaxNanos());
+         }
+      } // next bucket
+      return getMaxNanos();
+   } // end of getPercentileNanos()
+
+   /**
+    * Clears all recorded durations. Durations recorded while this is running may or may
+    * not be cleared.
+    */
+   public void reset() {
+      for (int b = 0; b < BUCKETS; b++) {
+         LongAdder bucket = buckets.get(b);
+         if (bucket != null) bucket.reset();
+      } // next bucket
+      count.reset();
+      sum.reset();
+      max.reset();
+   } // end of reset()
+
+   /**
+    * String representation of the histogram.
+    * @return A String representation of the histogram.
+    */
+   public String toString() {
+      return getCount() + " recorded, mean " + (long)getMeanNanos()
+         + "ns, p50 " + getPercentileNanos(50) + "ns, p99 " + getPercentileNanos(99)
+         + "ns, max " + getMaxNanos() + "ns";
+   } // end of toString()
+
+} // end of class LatencyHistogram
@@ -0,0 +1,641 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Vector;
+import java.util.function.BiConsumer;
+
+/**
+ * A pronunciation dictionary; words and their pronunciations, as returned by
+ * {@link Elpis#pronDictGenerateLexiconCompact()}.
+ * <p> Pronunciations are sequences of phones, separated by spaces. Each distinct phone
+ * is stored once, in a symbol table, and pronunciations are stored as sequences of
+ * symbol numbers in a shared <tt>int[]</tt>. Words are stored as UTF-8 in a shared
+ * <tt>byte[]</tt>, and found with an open-addressing hash table. So there's no String,
+ * map entry, or array per word, which keeps memory use down for lexicons of hundreds
+ * of thousands of words once they're parsed. The server returns the lexicon as a single
+ * JSON string, so the whole text is still held in memory while it's parsed.
+ * <p> Words are kept in the order they were first added - i.e. the order the server
+ * listed them in. {@link #withPrefix(String)} finds words that start with a given prefix,
+ * in sorted order, using an index that is sorted the first time it's needed after
+ * words are added.
+ * <p> {@link #asMap()} provides a {@link Map} view, where pronunciations are Strings,
+ * for code that needs one. Pronunciations are normalised to single spaces between
+ * phones.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class Lexicon {
+
+   /** Initial number of words that can be stored before growing */
+   static final int INITIAL_CAPACITY = 64;
+
+   /** Phone symbols, by symbol number */
+   private String[] symbols = new String[16];
+
+   /** The number of phone symbols */
+   private int symbolCount;
+
+   /**
+    * Open-addressing hash table of symbols; each slot is 1 + a symbol number, or 0 if the
+    * slot is empty.
+    */
+   private int[] symbolTable = new int[32];
+
+   /** UTF-8 encoded words, one after the other */
+   private byte[] wordBytes;
+
+   /** The number of bytes used in {@link #wordBytes} */
+   private int wordBytesUsed;
+
+   /**
+    * Start of each word in {@link #wordBytes}; the word ends where the next one starts,
+    * so there's one more element than there are entries.
+    */
+   private int[] wordStart;
+
+   /** Hash of each word */
+   private int[] hashes;
+
+   /** Start of each pronunciation in {@link #phones} */
+   private int[] pronunciationStart;
+
+   /** Number of phones in each pronunciation, or -1 if the word has been removed */
+   private int[] pronunciationLength;
+
+   /** Phone symbol numbers of all pronunciations, one after the other */
+   private int[] phones;
+
+   /** The number of elements used in {@link #phones} */
+   private int phonesUsed;
+
+   /**
+    * Open-addressing hash table of words; each slot is 1 + the entry number, or 0 if the
+    * slot is empty.
+    */
+   private int[] table;
+
+   /** The number of entries, including removed ones */
+   private int entryCount;
+
+   /** The number of words, not including removed ones */
+   private int size;
+
+   /** Entry numbers sorted by word, or null if words have been added since sorting */
+   private int[] sorted;
+
+   /**
+    * The number of lines skipped by {@link #parse(String)} because they had no
+    * pronunciation.
+    * @see #getSkippedLines()
+    */
+   protected int skippedLines;
+   /**
+    * Getter for {@link #skippedLines}: The number of lines skipped by
+    * {@link #parse(String)} because they had no pronunciation.
+    * @return The number of lines skipped.
+    */
+   public int getSkippedLines() { return skippedLines; }
+
+   // Methods:
+
+   /**
+    * Default constructor.
+    */
+   public Lexicon() {
+      this(INITIAL_CAPACITY);
+   } // end of constructor
+
+   /**
+    * Constructor for a known number of words.
+    * @param capacity The number of words that can be added before storage has to grow.
+    */
+   public Lexicon(int capacity) {
+      capacity = Math.max(capacity, 1);
+      wordBytes = new byte[capacity * 8];
+      wordStart = new int[capacity + 1];
+      hashes = new int[capacity];
+      pronunciationStart = new int[capacity];
+      pronunciationLength = new int[capacity];
+      phones = new int[capacity * 4];
+      table = new int[tableSize(capacity)];
+   } // end of constructor
+
+   /**
+    * Parses a lexicon in one pass; each line has a word, followed by a space, followed by
+    * its pronunciation. Lines with no space are skipped, and counted by
+    * {@link #getSkippedLines()}. If a word appears more than once, the last pronunciation
+    * is kept.
+    * @param text The lexicon.
+    * @return The lexicon.
+    */
+   public static Lexicon parse(String text) {
+      // estimate the number of lines, assuming ~16 characters per line
+      Lexicon lexicon = new Lexicon(text.length() / 16 + 1);
+      int start = 0;
+      int length = text.length();
+      while (start < length) {
+         int end = text.indexOf('\n', start);
+         if (end < 0) end = length;
+         int lineEnd = end > start && text.charAt(end - 1) == '\r'? end - 1 : end;
+         int firstSpace = start;
+         while (firstSpace < lineEnd && text.charAt(firstSpace) != ' ') firstSpace++;
+         if (firstSpace == start || firstSpace >= lineEnd) {
+            if (lineEnd > start) lexicon.skippedLines++; // not a blank line
+         } else {
+            lexicon.put(text, start, firstSpace, firstSpace + 1, lineEnd);
+         }
+         start = end + 1;
+      } // next line
+      return lexicon;
+   } // end of parse()
+
+   /**
+    * The smallest power of two that is at least twice the given capacity.
+    * @param capacity The number of items to be stored.
+    * @return The hash table size.
+    */
+   private static int tableSize(int capacity) {
+      return Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+   } // end of tableSize()
+
+   /**
+    * Adds a word, or replaces its pronunciation, reading both from a region of the given
+    * text, without creating Strings.
+    * @param text The text containing the word and pronunciation.
+    * @param wordFrom The index of the first character of the word.
+    * @param wordTo The index after the last character of the word.
+    * @param pronunciationFrom The index of the first character of the pronunciation.
+    * @param pronunciationTo The index after the last character of the pronunciation.
+    * @return The entry number.
+    */
+   private int put(CharSequence text, int wordFrom, int wordTo,
+                   int pronunciationFrom, int pronunciationTo) {
+      // encode the word at the end of the word bytes, where it will stay if it's new
+      int maxBytes = (wordTo - wordFrom) * 3;
+      if (wordBytesUsed + maxBytes > wordBytes.length) {
+         wordBytes = Arrays.copyOf(
+            wordBytes, Math.max(wordBytes.length * 2, wordBytesUsed + maxBytes));
+      }
+      int wordEnd = encode(text, wordFrom, wordTo, wordBytes, wordBytesUsed);
+      int hash = hash(wordBytes, wordBytesUsed, wordEnd);
+      int slot = slot(wordBytes, wordBytesUsed, wordEnd, hash);
+      int entry = table[slot] - 1;
+      if (entry < 0) { // new word
+         if (entryCount == hashes.length) {
+            growEntries();
+            slot = slot(wordBytes, wordBytesUsed, wordEnd, hash);
+         }
+         entry = entryCount++;
+         hashes[entry] = hash;
+         wordStart[entry] = wordBytesUsed;
+         wordStart[entry + 1] = wordEnd;
+         wordBytesUsed = wordEnd;
+         table[slot] = entry + 1;
+         pronunciationLength[entry] = -1;
+         sorted = null;
+      }
+      if (pronunciationLength[entry] < 0) size++;
+      setPronunciation(entry, text, pronunciationFrom, pronunciationTo);
+      return entry;
+   } // end of put()
+
+   /**
+    * Sets the pronunciation of an entry. The phones of the previous pronunciation are
+    * overwritten if the new pronunciation fits, or otherwise the new pronunciation is
+    * appended.
+    * @param entry The entry number.
+    * @param text The text containing the pronunciation.
+    * @param from The index of the first character of the pronunciation.
+    * @param to The index after the last character of the pronunciation.
+    */
+   private void setPronunciation(int entry, CharSequence text, int from, int to) {
+      int count = 0;
+      boolean inPhone = false;
+      for (int c = from; c < to; c++) {
+         boolean space = Character.isWhitespace(text.charAt(c));
+         if (!space && !inPhone) count++;
+         inPhone = !space;
+      } // next character
+      int start;
+      if (pronunciationLength[entry] >= count) { // reuse the existing space
+         start = pronunciationStart[entry];
+      } else {
+         if (phonesUsed + count > phones.length) {
+            phones = Arrays.copyOf(phones, Math.max(phones.length * 2, phonesUsed + count));
+         }
+         start = phonesUsed;
+         phonesUsed += count;
+      }
+      int p = start;
+      int phoneFrom = -1;
+      for (int c = from; c <= to; c++) {
+         boolean space = c == to || Character.isWhitespace(text.charAt(c));
+         if (space && phoneFrom >= 0) {
+            phones[p++] = symbol(text, phoneFrom, c);
+            phoneFrom = -1;
+         } else if (!space && phoneFrom < 0) {
+            phoneFrom = c;
+         }
+      } // next character
+      pronunciationStart[entry] = start;
+      pronunciationLength[entry] = count;
+   } // end of setPronunciation()
+
+   /**
+    * Gets the number of the given phone symbol, adding it to the symbol table if it's
+    * new.
+    * @param text The text containing the phone.
+    * @param from The index of the first character of the phone.
+    * @param to The index after the last character of the phone.
+    * @return The symbol number.
+    */
+   private int symbol(CharSequence text, int from, int to) {
+      int hash = 0;
+      for (int c = from; c < to; c++) hash = 31 * hash + text.charAt(c);
+      int mask = symbolTable.length - 1;
+      int s = hash & mask;
+      while (symbolTable[s] != 0) {
+         String symbol = symbols[symbolTable[s] - 1];
+         if (symbol.length() == to - from) {
+            boolean same = true;
+            for (int c = 0; same && c < symbol.length(); c++) {
+               same = symbol.charAt(c) == text.charAt(from + c);
+            }
+            if (same) return symbolTable[s] - 1;
+         }
+         s = (s + 1) & mask;
+      }
+      // new symbol
+      if (symbolCount == symbols.length) symbols = Arrays.copyOf(symbols, symbolCount * 2);
+      int number = symbolCount++;
+      symbols[number] = text.subSequence(from, to).toString();
+      if (symbolCount * 2 > symbolTable.length) { // rebuild the table
+         symbolTable = new int[symbolTable.length * 2];
+         mask = symbolTable.length - 1;
+         for (int n = 0; n < symbolCount; n++) {
+            s = symbols[n].hashCode() & mask;
+            while (symbolTable[s] != 0) s = (s + 1) & mask;
+            symbolTable[s] = n + 1;
+         } // next symbol
+      } else {
+         symbolTable[s] = number + 1;
+      }
+      return number;
+   } // end of symbol()
+
+   /**
+    * Encodes characters as UTF-8.
+    * @param text The characters to encode.
+    * @param from The index of the first character.
+    * @param to The index after the last character.
+    * @param bytes The destination, which must have space for 3 bytes per character.
+    * @param offset Where to start writing.
+    * @return The index after the last byte written.
+    */
+   private static int encode(CharSequence text, int from, int to, byte[] bytes, int offset) {
+      int b = offset;
+      for (int i = from; i < to; i++) {
+         char c = text.charAt(i);
+         if (c < 0x80) {
+            bytes[b++] = (byte)c;
+         } else if (c < 0x800) {
+            bytes[b++] = (byte)(0xC0 | (c >> 6));
+            bytes[b++] = (byte)(0x80 | (c & 0x3F));
+         } else if (Character.isHighSurrogate(c) && i + 1 < to
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, text.charAt(++i));
+            bytes[b++] = (byte)(0xF0 | (cp >> 18));
+            bytes[b++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+            bytes[b++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+            bytes[b++] = (byte)(0x80 | (cp & 0x3F));
+         } else {
+            bytes[b++] = (byte)(0xE0 | (c >> 12));
+            bytes[b++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+            bytes[b++] = (byte)(0x80 | (c & 0x3F));
+         }
+      } // next character
+      return b;
+   } // end of encode()
+
+   /**
+    * Hashes a range of bytes.
+    * @param bytes The bytes.
+    * @param from The first byte.
+    * @param to The index after the last byte.
+    * @return The hash.
+    */
+   private static int hash(byte[] bytes, int from, int to) {
+      int h = 0;
+      for (int b = from; b < to; b++) h = 31 * h + bytes[b];
+      return h ^ (h >>> 16);
+   } // end of hash()
+
+   /**
+    * Finds the table slot for a word.
+    * @param bytes The bytes containing the UTF-8 encoded word.
+    * @param from The first byte of the word.
+    * @param to The index after the last byte of the word.
+    * @param hash The hash of the word.
+    * @return The slot containing the word, or the empty slot where it would go.
+    */
+   private int slot(byte[] bytes, int from, int to, int hash) {
+      int mask = table.length - 1;
+      int s = hash & mask;
+      while (true) {
+         int entry = table[s] - 1;
+         if (entry < 0) return s;
+         if (hashes[entry] == hash
+             && Arrays.equals(wordBytes, wordStart[entry], wordStart[entry + 1],
+                              bytes, from, to)) {
+            return s;
+         }
+         s = (s + 1) & mask;
+      }
+   } // end of slot()
+
+   /**
+    * Doubles the per-entry storage, and rebuilds the hash table.
+    */
+   private void growEntries() {
+      int capacity = hashes.length * 2;
+      wordStart = Arrays.copyOf(wordStart, capacity + 1);
+      hashes = Arrays.copyOf(hashes, capacity);
+      pronunciationStart = Arrays.copyOf(pronunciationStart, capacity);
+      pronunciationLength = Arrays.copyOf(pronunciationLength, capacity);
+      table = new int[tableSize(capacity)];
+      int mask = table.length - 1;
+      for (int e = 0; e < entryCount; e++) {
+         int s = hashes[e] & mask;
+         while (table[s] != 0) s = (s + 1) & mask;
+         table[s] = e + 1;
+      } // next entry
+   } // end of growEntries()
+
+   /**
+    * Finds the entry number of the given word.
+    * @param word The word.
+    * @return The entry number, or -1 if the word isn't present.
+    */
+   private int entry(String word) {
+      byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+      int entry = table[slot(bytes, 0, bytes.length, hash(bytes, 0, bytes.length))] - 1;
+      return entry >= 0 && pronunciationLength[entry] >= 0? entry : -1;
+   } // end of entry()
+
+   /**
+    * Gets the word of an entry.
+    * @param entry The entry number.
+    * @return The word.
+    */
+   private String word(int entry) {
+      return new String(wordBytes, wordStart[entry], wordStart[entry + 1] - wordStart[entry],
+                        StandardCharsets.UTF_8);
+   } // end of word()
+
+   /**
+    * Gets the pronunciation of an entry.
+    * @param entry The entry number.
+    * @return The phones, separated by spaces.
+    */
+   private String pronunciation(int entry) {
+      StringBuilder pronunciation = new StringBuilder();
+      int start = pronunciationStart[entry];
+      int end = start + pronunciationLength[entry];
+      for (int p = start; p < end; p++) {
+         if (p > start) pronunciation.append(' ');
+         pronunciation.append(symbols[phones[p]]);
+      } // next phone
+      return pronunciation.toString();
+   } // end of pronunciation()
+
+   /**
+    * Adds a word, or replaces its pronunciation.
+    * @param word The word, which must not contain spaces or newlines.
+    * @param pronunciation The pronunciation; phones separated by spaces.
+    * @return The previous pronunciation, or null if the word is new.
+    */
+   public String put(String word, String pronunciation) {
+      String previous = get(word);
+      StringBuilder line = new StringBuilder(word.length() + 1 + pronunciation.length());
+      line.append(word).append(' ').append(pronunciation);
+      put(line, 0, word.length(), word.length() + 1, line.length());
+      return previous;
+   } // end of put()
+
+   /**
+    * Removes a word.
+    * @param word The word.
+    * @return The pronunciation of the word, or null if it wasn't present.
+    */
+   public String remove(String word) {
+      int entry = entry(word);
+      if (entry < 0) return null;
+      String pronunciation = pronunciation(entry);
+      pronunciationLength[entry] = -1;
+      size--;
+      return pronunciation;
+   } // end of remove()
+
+   /**
+    * Gets the pronunciation of a word.
+    * @param word The word.
+    * @return The phones, separated by spaces, or null if the word isn't present.
+    */
+   public String get(String word) {
+      int entry = entry(word);
+      return entry < 0? null : pronunciation(entry);
+   } // end of get()
+
+   /**
+    * Gets the pronunciation of a word as phone symbol numbers.
+    * @param word The word.
+    * @return The symbol numbers of the phones - see {@link #symbol(int)} - or null if the
+    * word isn't present.
+    */
+   public int[] getPhones(String word) {
+      int entry = entry(word);
+      if (entry < 0) return null;
+      int start = pronunciationStart[entry];
+      return Arrays.copyOfRange(phones, start, start + pronunciationLength[entry]);
+   } // end of getPhones()
+
+   /**
+    * Determines whether a word is present.
+    * @param word The word.
+    * @return true if the word is present.
+    */
+   public boolean contains(String word) {
+      return entry(word) >= 0;
+   } // end of contains()
+
+   /**
+    * The number of words.
+    * @return The number of words.
+    */
+   public int size() {
+      return size;
+   } // end of size()
+
+   /**
+    * Gets a phone symbol.
+    * @param number The symbol number.
+    * @return The phone.
+    */
+   public String symbol(int number) {
+      if (number < 0 || number >= symbolCount) {
+         throw new IndexOutOfBoundsException("" + number);
+      }
+      return symbols[number];
+   } // end of symbol()
+
+   /**
+    * Gets all the phone symbols used, in the order they first appeared.
+    * @return The phone symbols, indexed by symbol number.
+    */
+   public List<String> getSymbols() {
+      return Collections.unmodifiableList(Arrays.asList(symbols).subList(0, symbolCount));
+   } // end of getSymbols()
+
+   /**
+    * Passes each word and its pronunciation to the given consumer, in the order the words
+    * were first added.
+    * @param consumer Receives each word and its pronunciation.
+    */
+   public void forEach(BiConsumer<String,String> consumer) {
+      for (int e = 0; e < entryCount; e++) {
+         if (pronunciationLength[e] >= 0) consumer.accept(word(e), pronunciation(e));
+      } // next entry
+   } // end of forEach()
+
+   /**
+    * Compares the words of two entries, by their UTF-8 bytes, which sorts them by Unicode
+    * code point.
+    * @param a An entry number.
+    * @param b Another entry number.
+    * @return A negative number, zero, or a positive number, if the word of <var>a</var>
+    * comes before, is the same as, or comes after the word of <var>b</var>.
+    */
+   private int compareWords(int a, int b) {
+      return Arrays.compareUnsigned(wordBytes, wordStart[a], wordStart[a + 1],
+                                    wordBytes, wordStart[b], wordStart[b + 1]);
+   } // end of compareWords()
+
+   /**
+    * Gets entry numbers sorted by word, sorting them if words have been added since last
+    * time.
+    * @return Entry numbers sorted by word.
+    */
+   private int[] sorted() {
+      if (sorted == null) {
+         Integer[] entries = new Integer[entryCount];
+         for (int e = 0; e < entryCount; e++) entries[e] = e;
+         Arrays.sort(entries, (a, b) -> compareWords(a, b));
+         int[] order = new int[entryCount];
+         for (int e = 0; e < entryCount; e++) order[e] = entries[e];
+         sorted = order;
+      }
+      return sorted;
+   } // end of sorted()
+
+   /**
+    * Finds all words that start with the given prefix.
+    * @param prefix The prefix.
+    * @return The words that start with the prefix, in sorted order.
+    */
+   public List<String> withPrefix(String prefix) {
+      byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+      int[] order = sorted();
+      // binary search for the first word not less than the prefix
+      int low = 0;
+      int high = order.length;
+      while (low < high) {
+         int middle = (low + high) >>> 1;
+         int e = order[middle];
+         if (Arrays.compareUnsigned(wordBytes, wordStart[e], wordStart[e + 1],
+                                    bytes, 0, bytes.length) < 0) {
+            low = middle + 1;
+         } else {
+            high = middle;
+         }
+      }
+      Vector<String> words = new Vector<String>();
+      for (int i = low; i < order.length; i++) {
+         int e = order[i];
+         if (wordStart[e + 1] - wordStart[e] < bytes.length
+             || !Arrays.equals(wordBytes, wordStart[e], wordStart[e] + bytes.length,
+                               bytes, 0, bytes.length)) {
+            break;
+         }
+         if (pronunciationLength[e] >= 0) words.add(word(e));
+      } // next word
+      return words;
+   } // end of withPrefix()
+
+   /**
+    * Gets a {@link Map} view of the lexicon, in the order words were first added. Changes
+    * to the map change the lexicon. Words and pronunciations are created as Strings only
+    * as they're accessed.
+    * @return A map of words to their pronunciations.
+    */
+   public Map<String,String> asMap() {
+      return new AbstractMap<String,String>() {
+         @Override public int size() { return size; }
+         @Override public boolean containsKey(Object key) {
+            return key instanceof String && contains((String)key);
+         }
+         @Override public String get(Object key) {
+            return key instanceof String? Lexicon.this.get((String)key) : null;
+         }
+         @Override public String put(String key, String value) {
+            return Lexicon.this.put(key, value);
+         }
+         @Override public String remove(Object key) {
+            return key instanceof String? Lexicon.this.remove((String)key) : null;
+         }
+         @Override public Set<Map.Entry<String,String>> entrySet() {
+            return new AbstractSet<Map.Entry<String,String>>() {
+               @Override public int size() { return size; }
+               @Override public Iterator<Map.Entry<String,String>> iterator() {
+                  return new Iterator<Map.Entry<String,String>>() {
+                     int next = advance(0);
+                     int advance(int e) {
+                        while (e < entryCount && pronunciationLength[e] < 0) e++;
+                        return e;
+                     }
+                     @Override public boolean hasNext() { return next < entryCount; }
+                     @Override public Map.Entry<String,String> next() {
+                        if (next >= entryCount) throw new NoSuchElementException();
+                        int e = next;
+                        next = advance(e + 1);
+                        return new AbstractMap.SimpleImmutableEntry<String,String>(
+                           word(e), pronunciation(e));
+                     }
+                  };
+               }
+            };
+         }
+      };
+   } // end of asMap()
+
+   /**
+    * String representation of the lexicon; the number of words and phones.
+    * @return A String representation of the lexicon.
+    */
+   public String toString() {
+      return size + " words, " + symbolCount + " phones";
+   } // end of toString()
+
+} // end of class Lexicon
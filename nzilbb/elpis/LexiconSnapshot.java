@@ -0,0 +1,323 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * A local record of the lexicon last saved to a particular Elpis server and
+ * pronunciation dictionary, so that saving an unchanged lexicon can be skipped, and
+ * the changes made to a lexicon can be reported.
+ * <p> Only a 64-bit hash of each word's pronunciation is kept, not the pronunciation
+ * itself, so the snapshot is much smaller than the lexicon. Words are kept sorted, in
+ * an array parallel to their hashes, so there's no map entry per word.
+ * <p> The snapshot is saved as a tab-separated text file in the cache directory, one
+ * file per server and pronunciation dictionary, and is updated each time the lexicon is
+ * saved with {@link Elpis#pronDictSaveLexicon(Map,LexiconSnapshot)}.
+ * <p> The snapshot must reflect what the server has. Generating the lexicon replaces the
+ * server's lexicon, so {@link Elpis#pronDictGenerateLexicon(LexiconSnapshot)} should be
+ * used to update the snapshot at the same time. If the server's lexicon is replaced some
+ * other way - e.g. by {@link Elpis#pronDictGenerateLexicon()}, or by re-creating the
+ * pronunciation dictionary - the snapshot should be {@link #update(Map) updated} with the
+ * new lexicon, or {@link #clear() cleared}.
+ * <p> e.g.
+ * <pre>
+ * Elpis elpis = new Elpis("http://localhost:5000");
+ * LexiconSnapshot snapshot = LexiconSnapshot.forPronDict(elpis, "my-pron-dict");
+ * Map&lt;String,String&gt; lexicon = elpis.pronDictGenerateLexicon(snapshot);
+ * lexicon.put("one", "w ʌ n");
+ * LexiconSnapshot.Diff diff = elpis.pronDictSaveLexicon(lexicon, snapshot); // 1 changed
+ * diff = elpis.pronDictSaveLexicon(lexicon, snapshot); // no changes, nothing sent
+ * </pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class LexiconSnapshot {
+
+   /**
+    * The differences between a lexicon and the snapshot.
+    */
+   public static class Diff {
+      Vector<String> added = new Vector<String>();
+      Vector<String> changed = new Vector<String>();
+      Vector<String> removed = new Vector<String>();
+
+      /**
+       * Words that are in the lexicon but not the snapshot.
+       * @return Added words, in the lexicon's order.
+       */
+      public List<String> getAdded() { return added; }
+
+      /**
+       * Words whose pronunciation is different in the lexicon and the snapshot.
+       * @return Changed words, in the lexicon's order.
+       */
+      public List<String> getChanged() { return changed; }
+
+      /**
+       * Words that are in the snapshot but not the lexicon.
+       * @return Removed words, in alphabetical order.
+       */
+      public List<String> getRemoved() { return removed; }
+
+      /**
+       * The total number of differences.
+       * @return The number of words added, changed, or removed.
+       */
+      public int size() { return added.size() + changed.size() + removed.size(); }
+
+      /**
+       * Determines whether there are no differences.
+       * @return true if the lexicon matches the snapshot.
+       */
+      public boolean isEmpty() { return size() == 0; }
+
+      /**
+       * String representation of the differences.
+       * @return A String representation of the differences.
+       */
+      public String toString() {
+         return added.size() + " added, " + changed.size() + " changed, "
+            + removed.size() + " removed";
+      }
+   } // end of class Diff
+
+   // Attributes:
+
+   /**
+    * The file the snapshot is saved in.
+    * @see #getFile()
+    */
+   protected File file;
+   /**
+    * Getter for {@link #file}: The file the snapshot is saved in.
+    * @return The file the snapshot is saved in.
+    */
+   public File getFile() { return file; }
+
+   /**
+    * The base URL of the server the lexicon is saved to.
+    * @see #getBaseUrl()
+    */
+   protected String baseUrl;
+   /**
+    * Getter for {@link #baseUrl}: The base URL of the server the lexicon is saved to.
+    * @return The base URL of the server the lexicon is saved to.
+    */
+   public String getBaseUrl() { return baseUrl; }
+
+   /**
+    * The name of the pronunciation dictionary the lexicon is saved to.
+    * @see #getPronDict()
+    */
+   protected String pronDict;
+   /**
+    * Getter for {@link #pronDict}: The name of the pronunciation dictionary the lexicon
+    * is saved to.
+    * @return The name of the pronunciation dictionary the lexicon is saved to.
+    */
+   public String getPronDict() { return pronDict; }
+
+   /** Words in the snapshot, in sorted order */
+   private String[] words = new String[0];
+
+   /** Hashes of the pronunciations, parallel to {@link #words} */
+   private long[] hashes = new long[0];
+
+   // Methods:
+
+   /**
+    * Opens the snapshot for the given pronunciation dictionary on the given server, in
+    * the default cache directory, <tt>.elpis/lexicons</tt> in the user's home directory.
+    * @param elpis The server the lexicon is saved to.
+    * @param pronDict The name of the pronunciation dictionary the lexicon is saved to.
+    * @return The snapshot, which is empty if no lexicon has been saved before.
+    * @throws IOException If the snapshot exists but can't be read.
+    */
+   public static LexiconSnapshot forPronDict(Elpis elpis, String pronDict) throws IOException {
+      File cache = new File(new File(System.getProperty("user.home"), ".elpis"), "lexicons");
+      return new LexiconSnapshot(cache, elpis.getBaseUrl().toString(), pronDict);
+   } // end of forPronDict()
+
+   /**
+    * Constructor, which loads the snapshot if it has been saved before.
+    * @param cacheDirectory The directory snapshots are saved in.
+    * @param baseUrl The base URL of the server the lexicon is saved to.
+    * @param pronDict The name of the pronunciation dictionary the lexicon is saved to.
+    * @throws IOException If the snapshot exists but can't be read.
+    */
+   public LexiconSnapshot(File cacheDirectory, String baseUrl, String pronDict)
+      throws IOException {
+      this.baseUrl = baseUrl;
+      this.pronDict = pronDict;
+      this.file = new File(cacheDirectory, UploadManifest.cacheFileName(baseUrl, pronDict));
+      if (file.exists()) load();
+   } // end of constructor
+
+   /**
+    * Reads the hashes from {@link #file}.
+    * @throws IOException If the file can't be read.
+    */
+   private void load() throws IOException {
+      Vector<String> loadedWords = new Vector<String>();
+      Vector<String> loadedHashes = new Vector<String>();
+      try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+         String line = reader.readLine();
+         while (line != null) {
+            if (!line.startsWith("#")) {
+               String[] fields = line.split("\t", 2);
+               if (fields.length == 2) {
+                  loadedHashes.add(fields[0]);
+                  loadedWords.add(fields[1]);
+               }
+            }
+            line = reader.readLine();
+         } // next line
+      }
+      int size = loadedWords.size();
+      words = loadedWords.toArray(new String[size]);
+      hashes = new long[size];
+      boolean sorted = true;
+      for (int i = 0; i < size; i++) {
+         hashes[i] = Long.parseUnsignedLong(loadedHashes.get(i), 16);
+         if (i > 0 && words[i - 1].compareTo(words[i]) >= 0) sorted = false;
+      } // next word
+      if (!sorted) { // the file has been edited, so sort it again
+         Integer[] order = new Integer[size];
+         for (int i = 0; i < size; i++) order[i] = i;
+         String[] unsortedWords = words;
+         long[] unsortedHashes = hashes;
+         Arrays.sort(order, (a, b) -> unsortedWords[a].compareTo(unsortedWords[b]));
+         words = new String[size];
+         hashes = new long[size];
+         for (int i = 0; i < size; i++) {
+            words[i] = unsortedWords[order[i]];
+            hashes[i] = unsortedHashes[order[i]];
+         } // next word
+      }
+   } // end of load()
+
+   /**
+    * Writes the hashes to {@link #file}, replacing the previous version only once the
+    * new version has been completely written.
+    * @throws IOException If the file can't be written.
+    */
+   public synchronized void save() throws IOException {
+      file.getParentFile().mkdirs();
+      File temp = new File(file.getPath() + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+         writer.write("# " + baseUrl + "\t" + pronDict);
+         writer.newLine();
+         for (int i = 0; i < words.length; i++) {
+            writer.write(Long.toHexString(hashes[i]) + "\t" + words[i]);
+            writer.newLine();
+         } // next word
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+   } // end of save()
+
+   /**
+    * Computes the 64-bit FNV-1a hash of a pronunciation.
+    * @param pronunciation The pronunciation.
+    * @return The hash.
+    */
+   static long hash(String pronunciation) {
+      long hash = 0xcbf29ce484222325L;
+      int length = pronunciation.length();
+      for (int i = 0; i < length; i++) {
+         hash ^= pronunciation.charAt(i);
+         hash *= 0x100000001b3L;
+      } // next character
+      return hash;
+   } // end of hash()
+
+   /**
+    * The number of words in the snapshot.
+    * @return The number of words.
+    */
+   public synchronized int size() {
+      return words.length;
+   } // end of size()
+
+   /**
+    * Determines whether the snapshot includes the given word.
+    * @param word The word.
+    * @return true if the word was in the lexicon when the snapshot was taken.
+    */
+   public synchronized boolean contains(String word) {
+      return Arrays.binarySearch(words, word) >= 0;
+   } // end of contains()
+
+   /**
+    * Compares the given lexicon with the snapshot.
+    * @param lexicon A map of word types to pronunciations.
+    * @return The differences between the lexicon and the snapshot.
+    */
+   public synchronized Diff diff(Map<String,String> lexicon) {
+      Diff diff = new Diff();
+      boolean[] present = new boolean[words.length];
+      for (Map.Entry<String,String> entry : lexicon.entrySet()) {
+         int i = Arrays.binarySearch(words, entry.getKey());
+         if (i < 0) {
+            diff.added.add(entry.getKey());
+         } else {
+            present[i] = true;
+            if (hashes[i] != hash(entry.getValue())) diff.changed.add(entry.getKey());
+         }
+      } // next entry
+      for (int i = 0; i < words.length; i++) {
+         if (!present[i]) diff.removed.add(words[i]);
+      } // next word
+      return diff;
+   } // end of diff()
+
+   /**
+    * Replaces the snapshot with the given lexicon, and saves it.
+    * @param lexicon A map of word types to pronunciations, which the server now has.
+    * @throws IOException If the snapshot can't be saved.
+    */
+   public synchronized void update(Map<String,String> lexicon) throws IOException {
+      String[] newWords = lexicon.keySet().toArray(new String[0]);
+      Arrays.sort(newWords);
+      long[] newHashes = new long[newWords.length];
+      for (int i = 0; i < newWords.length; i++) {
+         newHashes[i] = hash(lexicon.get(newWords[i]));
+      } // next word
+      words = newWords;
+      hashes = newHashes;
+      save();
+   } // end of update()
+
+   /**
+    * Empties the snapshot, and saves it, so that the next lexicon is saved regardless;
+    * e.g. because the pronunciation dictionary has been re-created.
+    * @throws IOException If the snapshot can't be saved.
+    */
+   public synchronized void clear() throws IOException {
+      words = new String[0];
+      hashes = new long[0];
+      save();
+   } // end of clear()
+
+   /**
+    * String representation of the snapshot.
+    * @return A String representation of the snapshot.
+    */
+   public String toString() {
+      return pronDict + " on " + baseUrl + " (" + size() + " words)";
+   } // end of toString()
+
+} // end of class LexiconSnapshot
@@ -0,0 +1,507 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import nzilbb.elpis.http.TransportRequest;
+
+/**
+ * Low-overhead logging of requests and responses, set with {@link Elpis#setLog(Log)}.
+ * <p> Messages are given as {@link Supplier}s, which are only called if the message's
+ * level is enabled, so no text is built for messages that aren't logged. Request and
+ * response bodies are logged as size-capped {@link #preview(Object) previews}.
+ * <p> Messages are written asynchronously: the calling thread puts each message into a
+ * fixed-size ring buffer without locking, and a background thread writes them out. If
+ * the buffer is full, the message is dropped rather than holding up the request; dropped
+ * messages are counted in {@link #getDropped()}, and the count is written to the log
+ * once it catches up. A {@link #setLossless(boolean) lossless} log makes the caller wait
+ * for space instead. A log with a capacity of 0, like the {@link #console()} log used
+ * for verbose output, writes each message synchronously, so it's never dropped and
+ * appears before anything the caller prints next.
+ * <p> Background threads are shared by all logs, and only used while a log has messages
+ * waiting to be written, so a log that's no longer used can be garbage collected even
+ * if it isn't {@link #close() closed}. Outstanding messages are written before the JVM
+ * exits.
+ * <p> e.g.
+ * <pre>
+ * Log log = new Log(System.err, Log.Level.TRACE).setPreviewLength(200);
+ * Elpis elpis = new Elpis(elpisUrl).setLog(log);
+ * </pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class Log implements AutoCloseable {
+
+   /**
+    * Logging levels, from least to most detailed.
+    */
+   public enum Level {
+      /** Nothing is logged */
+      OFF,
+      /** Failures */
+      ERROR,
+      /** Unexpected conditions that don't cause failure */
+      WARN,
+      /** Notable events */
+      INFO,
+      /** Each request, and a summary of each response */
+      DEBUG,
+      /** Previews of the content of each response */
+      TRACE
+   } // end of enum Level
+
+   /**
+    * A logged message.
+    */
+   public static class Entry {
+      final long time;
+      final Level level;
+      final String thread;
+      final String message;
+      Entry(Level level, String message) {
+         this.time = System.currentTimeMillis();
+         this.level = level;
+         this.thread = Thread.currentThread().getName();
+         this.message = message;
+      }
+      /**
+       * When the message was logged.
+       * @return The time in milliseconds since the epoch.
+       */
+      public long getTime() { return time; }
+      /**
+       * The level of the message.
+       * @return The level.
+       */
+      public Level getLevel() { return level; }
+      /**
+       * The thread that logged the message.
+       * @return The name of the thread.
+       */
+      public String getThread() { return thread; }
+      /**
+       * The message.
+       * @return The message.
+       */
+      public String getMessage() { return message; }
+      /**
+       * String representation of the entry, as written to a stream.
+       * @return The time, level, thread, and message.
+       */
+      public String toString() {
+         return Instant.ofEpochMilli(time) + " " + level + " [" + thread + "] " + message;
+      }
+   } // end of class Entry
+
+   /** The default size of the ring buffer */
+   public static final int DEFAULT_CAPACITY = 4096;
+
+   /** Log that writes nothing */
+   private static final Log OFF = new Log(entry -> {}, Level.OFF, 1);
+
+   /** Log for verbose output, created when first used */
+   private static Log console;
+
+   /** Logs that have started writing and haven't been closed, weakly referenced */
+   private static final Set<Log> open
+   = Collections.newSetFromMap(new WeakHashMap<Log,Boolean>());
+
+   /** Writes outstanding entries of all open logs before the JVM exits */
+   private static Thread shutdownHook;
+
+   /** Runs a task for each log with entries waiting, while it has entries waiting */
+   private static final ExecutorService writers = Executors.newCachedThreadPool(task -> {
+         Thread thread = new Thread(task, "elpis-log");
+         thread.setDaemon(true);
+         return thread;
+      });
+
+   // Attributes:
+
+   /**
+    * The most detailed level that's logged.
+    * @see #getLevel()
+    * @see #setLevel(Level)
+    */
+   protected volatile Level level;
+   /**
+    * Getter for {@link #level}: The most detailed level that's logged.
+    * @return The most detailed level that's logged.
+    */
+   public Level getLevel() { return level; }
+   /**
+    * Setter for {@link #level}: The most detailed level that's logged. The level of
+    * {@link #off()} can't be changed.
+    * @param newLevel The most detailed level that's logged.
+    * @return A reference to this object.
+    */
+   public Log setLevel(Level newLevel) { if (this != OFF) level = newLevel; return this; }
+
+   /**
+    * The maximum number of characters of a body that's logged. The default is 1000.
+    * @see #getPreviewLength()
+    * @see #setPreviewLength(int)
+    */
+   protected int previewLength = 1000;
+   /**
+    * Getter for {@link #previewLength}: The maximum number of characters of a body
+    * that's logged.
+    * @return The maximum number of characters of a body that's logged.
+    */
+   public int getPreviewLength() { return previewLength; }
+   /**
+    * Setter for {@link #previewLength}: The maximum number of characters of a body
+    * that's logged.
+    * @param newPreviewLength The maximum number of characters of a body that's logged.
+    * @return A reference to this object.
+    */
+   public Log setPreviewLength(int newPreviewLength) { previewLength = newPreviewLength; return this; }
+
+   /**
+    * Whether messages are never dropped. If true, a message logged when the buffer is
+    * full waits until there's space for it, holding up the calling thread. The default
+    * is false. Synchronous logs, with a capacity of 0, never drop messages anyway.
+    * @see #getLossless()
+    * @see #setLossless(boolean)
+    */
+   protected volatile boolean lossless = false;
+   /**
+    * Getter for {@link #lossless}: Whether messages are never dropped.
+    * @return Whether messages are never dropped.
+    */
+   public boolean getLossless() { return lossless; }
+   /**
+    * Setter for {@link #lossless}: Whether messages are never dropped.
+    * @param newLossless Whether messages are never dropped.
+    * @return A reference to this object.
+    */
+   public Log setLossless(boolean newLossless) { lossless = newLossless; return this; }
+
+   /** Writes each entry */
+   private final Consumer<Entry> sink;
+
+   /** The ring buffer, or null if entries are written synchronously; a null slot
+    * hasn't been filled yet */
+   private final AtomicReferenceArray<Entry> ring;
+
+   /** {@link #ring} length - 1, for converting sequence numbers to slots */
+   private final int mask;
+
+   /** The sequence number of the next entry to be added */
+   private final AtomicLong tail = new AtomicLong();
+
+   /** The sequence number of the next entry to be written */
+   private volatile long head = 0;
+
+   /** The number of entries dropped because the buffer was full */
+   private final LongAdder dropped = new LongAdder();
+
+   /** Whether a writer task has been submitted, and not yet found the buffer empty */
+   private final AtomicBoolean scheduled = new AtomicBoolean();
+
+   /** The thread currently writing entries, or null if there is none */
+   private volatile Thread writer;
+
+   /** Whether the log has been closed */
+   private volatile boolean closed = false;
+
+   /** The number of dropped entries that have been reported by a writer */
+   private long reported = 0;
+
+   // Methods:
+
+   /**
+    * Log that writes nothing, for when logging is disabled.
+    * @return A log whose level is {@link Level#OFF}.
+    */
+   public static Log off() {
+      return OFF;
+   } // end of off()
+
+   /**
+    * The log used for {@link Elpis#setVerbose(boolean) verbose} output, which writes
+    * {@link Level#DEBUG} messages to <tt>System.out</tt>. It writes synchronously, as
+    * verbose output has been explicitly asked for, and is interleaved with other output.
+    * @return The verbose log.
+    */
+   public static synchronized Log console() {
+      if (console == null) {
+         console = new Log(entry -> System.out.println(entry.getMessage()), Level.DEBUG, 0);
+      }
+      return console;
+   } // end of console()
+
+   /**
+    * Constructor for a log that writes to a stream, with a buffer of
+    * {@link #DEFAULT_CAPACITY} entries.
+    * @param out The stream to write to.
+    * @param level The most detailed level that's logged.
+    */
+   public Log(PrintStream out, Level level) {
+      this(entry -> out.println(entry), level, DEFAULT_CAPACITY);
+   } // end of constructor
+
+   /**
+    * Constructor.
+    * @param sink Writes each entry; it's called by one thread at a time - a background
+    * thread, or the logging thread if the capacity is 0.
+    * @param level The most detailed level that's logged.
+    * @param capacity The maximum number of entries waiting to be written, which is
+    * rounded up to a power of two, or 0 to write each entry synchronously.
+    */
+   public Log(Consumer<Entry> sink, Level level, int capacity) {
+      this.sink = sink;
+      this.level = level;
+      if (capacity <= 0) {
+         this.ring = null;
+         this.mask = 0;
+      } else {
+         int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+         this.ring = new AtomicReferenceArray<Entry>(size);
+         this.mask = size - 1;
+      }
+   } // end of constructor
+
+   /**
+    * Determines whether the given level is logged.
+    * @param messageLevel The level of a message.
+    * @return true if messages at that level are logged.
+    */
+   public boolean isEnabled(Level messageLevel) {
+      return messageLevel.compareTo(level) <= 0 && messageLevel != Level.OFF;
+   } // end of isEnabled()
+
+   /**
+    * Logs a message, if its level is enabled.
+    * @param messageLevel The level of the message.
+    * @param message Produces the message; it's only called if the level is enabled.
+    */
+   public void log(Level messageLevel, Supplier<String> message) {
+      if (!isEnabled(messageLevel)) return;
+      offer(new Entry(messageLevel, message.get()));
+   } // end of log()
+
+   /**
+    * Logs an {@link Level#ERROR} message.
+    * @param message Produces the message; it's only called if the level is enabled.
+    */
+   public void error(Supplier<String> message) {
+      log(Level.ERROR, message);
+   } // end of error()
+
+   /**
+    * Logs a {@link Level#WARN} message.
+    * @param message Produces the message; it's only called if the level is enabled.
+    */
+   public void warn(Supplier<String> message) {
+      log(Level.WARN, message);
+   } // end of warn()
+
+   /**
+    * Logs an {@link Level#INFO} message.
+    * @param message Produces the message; it's only called if the level is enabled.
+    */
+   public void info(Supplier<String> message) {
+      log(Level.INFO, message);
+   } // end of info()
+
+   /**
+    * Logs a {@link Level#DEBUG} message.
+    * @param message Produces the message; it's only called if the level is enabled.
+    */
+   public void debug(Supplier<String> message) {
+      log(Level.DEBUG, message);
+   } // end of debug()
+
+   /**
+    * Logs a {@link Level#TRACE} message.
+    * @param message Produces the message; it's only called if the level is enabled.
+    */
+   public void trace(Supplier<String> message) {
+      log(Level.TRACE, message);
+   } // end of trace()
+
+   /**
+    * Abbreviates text to at most {@link #previewLength} characters, for logging.
+    * @param text The text, which may be null.
+    * @return The text, or its start followed by the total length.
+    */
+   public String preview(Object text) {
+      return TransportRequest.preview(text == null? null : text.toString(), previewLength);
+   } // end of preview()
+
+   /**
+    * The number of messages dropped because the buffer was full.
+    * @return The number of messages dropped.
+    */
+   public long getDropped() {
+      return dropped.sum();
+   } // end of getDropped()
+
+   /**
+    * Adds an entry to the ring buffer, and makes sure a writer is running to write it.
+    * If the buffer is full, the entry is dropped, unless the log is {@link #lossless}, in
+    * which case this waits for space. If the log is synchronous, the entry is written
+    * directly.
+    * @param entry The entry.
+    */
+   private void offer(Entry entry) {
+      if (ring == null) { // synchronous
+         synchronized (this) {
+            if (closed) return;
+            try {
+               sink.accept(entry);
+            } catch(RuntimeException exception) {
+               // as for an entry written by a writer
+            }
+         }
+         return;
+      }
+      long sequence;
+      while (true) {
+         if (closed) return;
+         sequence = tail.get();
+         if (sequence - head > mask) { // full
+            // a writer can't wait for itself, e.g. if the sink logs
+            if (!lossless || writer == Thread.currentThread()) {
+               dropped.increment();
+               return;
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+         } else if (tail.compareAndSet(sequence, sequence + 1)) {
+            break;
+         }
+      } // next attempt
+      ring.set((int)(sequence & mask), entry);
+      if (scheduled.compareAndSet(false, true)) {
+         register(this);
+         writers.execute(this::write);
+      }
+   } // end of offer()
+
+   /**
+    * Adds a log to those flushed before the JVM exits, registering the shutdown hook
+    * that does so the first time. The hook only holds logs weakly, so it doesn't stop
+    * them being garbage collected.
+    * @param log The log.
+    */
+   private static synchronized void register(Log log) {
+      open.add(log);
+      if (shutdownHook == null) {
+         shutdownHook = new Thread(() -> {
+               List<Log> logs;
+               synchronized (Log.class) {
+                  logs = new ArrayList<Log>(open);
+               }
+               for (Log l : logs) l.flush(1000);
+            }, "elpis-log-flush");
+         Runtime.getRuntime().addShutdownHook(shutdownHook);
+      }
+   } // end of register()
+
+   /**
+    * Removes a log from those flushed before the JVM exits.
+    * @param log The log.
+    */
+   private static synchronized void unregister(Log log) {
+      open.remove(log);
+   } // end of unregister()
+
+   /**
+    * Writes entries until there are none waiting. This runs as a task on one of the
+    * shared {@link #writers}, which {@link #offer(Entry)} submits when there isn't one
+    * already running for this log, so only one runs at a time.
+    */
+   private void write() {
+      writer = Thread.currentThread();
+      while (true) {
+         long sequence = head;
+         int slot = (int)(sequence & mask);
+         Entry entry = ring.get(slot);
+         if (entry == null) { // nothing to write
+            writer = null;
+            scheduled.set(false);
+            // an entry added before scheduled was cleared didn't submit another task
+            if (ring.get(slot) == null || !scheduled.compareAndSet(false, true)) return;
+            writer = Thread.currentThread();
+            continue;
+         }
+         ring.set(slot, null);
+         try {
+            sink.accept(entry);
+         } catch(RuntimeException exception) {
+            // keep writing subsequent entries
+         }
+         if (sequence + 1 == tail.get()) reportDropped(); // caught up
+         head = sequence + 1; // only now, so that flush() waits for the entry to be written
+      } // next entry
+   } // end of write()
+
+   /**
+    * Writes the number of entries dropped since the last report, if any. This is only
+    * called by a writer, once it has caught up.
+    */
+   private void reportDropped() {
+      long count = dropped.sum();
+      if (count == reported) return;
+      try {
+         sink.accept(new Entry(Level.WARN, (count - reported) + " log messages dropped"));
+      } catch(RuntimeException exception) {
+         // as for any other entry
+      }
+      reported = count;
+   } // end of reportDropped()
+
+   /**
+    * Waits until all messages logged so far have been written.
+    * @param timeoutMillis The maximum time to wait, in milliseconds.
+    * @return true if all messages were written, false if the timeout expired first.
+    */
+   public boolean flush(long timeoutMillis) {
+      long target = tail.get();
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (head < target) {
+         if (System.nanoTime() >= deadline) return false;
+         LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      } // wait
+      return true;
+   } // end of flush()
+
+   /**
+    * Writes outstanding messages, waiting for up to a second. Messages logged after this
+    * are ignored.
+    */
+   public void close() {
+      closed = true;
+      flush(1000);
+      unregister(this);
+   } // end of close()
+
+   /**
+    * String representation of the log.
+    * @return A String representation of the log.
+    */
+   public String toString() {
+      return "Log " + level + " (" + (tail.get() - head) + " waiting, " + getDropped()
+         + " dropped)";
+   } // end of toString()
+
+} // end of class Log
@@ -0,0 +1,272 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records request counts, byte counts, and latencies for each API endpoint, when set
+ * with {@link Elpis#setMetrics(Metrics)}.
+ * <p> Metrics can be read directly with {@link #getEndpoint(String)}, published as JMX
+ * MBeans with {@link #registerMBeans(String)}, or passed on as each request finishes to
+ * listeners added with {@link #addListener(MetricsListener)}. Problems with listeners
+ * or MBeans don't affect requests, and are reported to the {@link #setLog(Log) log}.
+ * <p> Recording doesn't lock, so one Metrics object can be shared by many threads and
+ * many {@link Elpis} objects.
+ * <p> e.g.
+ * <pre>
+ * Metrics metrics = new Metrics().registerMBeans("training");
+ * metrics.addListener(timing -&gt; monitor.record(timing.getEndpoint(), timing));
+ * Elpis elpis = new Elpis(elpisUrl).setMetrics(metrics);
+ * elpis.datasetFiles(files);
+ * System.out.println(metrics.getEndpoint("dataset/files").getP99Millis());
+ * </pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class Metrics {
+
+   /**
+    * The phases of a request that are timed. See {@link RequestTiming} for the
+    * definition of each phase.
+    */
+   public enum Phase {
+      CONNECT("connect"),
+      UPLOAD("upload"),
+      FIRST_BYTE("firstByte"),
+      DOWNLOAD("download"),
+      PARSE("parse"),
+      TOTAL("total");
+
+      private String name;
+      Phase(String name) {
+         this.name = name;
+      }
+      /**
+       * The name of the phase, as used for JMX attributes.
+       * @return The name of the phase, e.g. "firstByte".
+       */
+      public String getName() { return name; }
+   } // end of enum Phase
+
+   /** The JMX domain of registered MBeans */
+   public static final String JMX_DOMAIN = "nzilbb.elpis";
+
+   // Attributes:
+
+   /** Metrics for each endpoint */
+   private final ConcurrentHashMap<String,EndpointMetrics> endpoints
+   = new ConcurrentHashMap<String,EndpointMetrics>();
+
+   /** Listeners notified as each request finishes */
+   private final CopyOnWriteArrayList<MetricsListener> listeners
+   = new CopyOnWriteArrayList<MetricsListener>();
+
+   /**
+    * The name MBeans are registered with, or null if they are not registered.
+    * @see #getMBeanName()
+    */
+   protected String mbeanName;
+   /**
+    * Getter for {@link #mbeanName}: The name MBeans are registered with, or null if they
+    * are not registered.
+    * @return The name MBeans are registered with, or null if they are not registered.
+    */
+   public String getMBeanName() { return mbeanName; }
+
+   /**
+    * Where failing listeners and MBean registration problems are reported, or null if
+    * they're not reported.
+    * @see #getLog()
+    * @see #setLog(Log)
+    */
+   protected Log log;
+   /**
+    * Getter for {@link #log}: Where failing listeners and MBean registration problems
+    * are reported.
+    * @return The log that has been set, or {@link Log#off()} if none has.
+    */
+   public Log getLog() { return log == null? Log.off() : log; }
+   /**
+    * Setter for {@link #log}: Where failing listeners and MBean registration problems
+    * are reported, or null if they're not reported.
+    * @param newLog Where problems are reported, or null.
+    * @return A reference to this object.
+    */
+   public Metrics setLog(Log newLog) { log = newLog; return this; }
+
+   // Methods:
+
+   /**
+    * Default constructor.
+    */
+   public Metrics() {
+   } // end of constructor
+
+   /**
+    * Gets the metrics for the given endpoint, creating them if necessary.
+    * @param endpoint The endpoint, e.g. "dataset/files".
+    * @return The metrics for the endpoint.
+    */
+   public EndpointMetrics getEndpoint(String endpoint) {
+      EndpointMetrics metrics = endpoints.get(endpoint);
+      if (metrics == null) {
+         metrics = endpoints.computeIfAbsent(endpoint, e -> {
+               EndpointMetrics newMetrics = new EndpointMetrics(e);
+               registerMBean(newMetrics);
+               return newMetrics;
+            });
+      }
+      return metrics;
+   } // end of getEndpoint()
+
+   /**
+    * Gets the metrics for all endpoints that requests have been sent to.
+    * @return Endpoints mapped to their metrics, in alphabetical order.
+    */
+   public Map<String,EndpointMetrics> getEndpoints() {
+      return new TreeMap<String,EndpointMetrics>(endpoints);
+   } // end of getEndpoints()
+
+   /**
+    * Adds a listener that's notified as each request finishes.
+    * @param listener The listener.
+    * @return A reference to this object.
+    */
+   public Metrics addListener(MetricsListener listener) {
+      listeners.add(listener);
+      return this;
+   } // end of addListener()
+
+   /**
+    * Removes a listener.
+    * @param listener The listener.
+    * @return A reference to this object.
+    */
+   public Metrics removeListener(MetricsListener listener) {
+      listeners.remove(listener);
+      return this;
+   } // end of removeListener()
+
+   /**
+    * Starts timing a request.
+    * @param endpoint The endpoint the request is sent to, e.g. "dataset/files".
+    * @param function The name of the API function sending the request.
+    * @return The timing of the request, which records it here when finished.
+    */
+   RequestTiming start(String endpoint, String function) {
+      return new RequestTiming(this, endpoint, function);
+   } // end of start()
+
+   /**
+    * Records a finished request, and notifies listeners.
+    * @param timing The timing of the request.
+    */
+   void record(RequestTiming timing) {
+      getEndpoint(timing.getEndpoint()).record(timing);
+      for (MetricsListener listener : listeners) {
+         try {
+            listener.requestFinished(timing);
+         } catch(RuntimeException exception) {
+            // a broken listener shouldn't break the request
+            getLog().warn(() -> "Metrics: " + listener + " failed for "
+                          + timing.getEndpoint() + ": " + exception);
+         }
+      } // next listener
+   } // end of record()
+
+   /**
+    * Publishes the metrics of each endpoint as a JMX MBean on the platform MBean server,
+    * including endpoints that requests are sent to later.
+    * <p> MBeans are named
+    * <tt>nzilbb.elpis:type=Endpoint,name=<var>name</var>,endpoint=<var>endpoint</var></tt>
+    * so that metrics for different clients - e.g. different servers - can be
+    * distinguished.
+    * @param name The name that distinguishes these metrics from others.
+    * @return A reference to this object.
+    * @throws JMException If an MBean can't be registered, e.g. because the name is
+    * already used.
+    */
+   public synchronized Metrics registerMBeans(String name) throws JMException {
+      if (mbeanName != null) unregisterMBeans();
+      mbeanName = name;
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (EndpointMetrics metrics : endpoints.values()) {
+         server.registerMBean(metrics, objectName(metrics));
+      } // next endpoint
+      return this;
+   } // end of registerMBeans()
+
+   /**
+    * Removes the MBeans registered by {@link #registerMBeans(String)}.
+    * @throws JMException If an MBean can't be unregistered.
+    */
+   public synchronized void unregisterMBeans() throws JMException {
+      if (mbeanName == null) return;
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (EndpointMetrics metrics : endpoints.values()) {
+         ObjectName objectName = objectName(metrics);
+         if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+      } // next endpoint
+      mbeanName = null;
+   } // end of unregisterMBeans()
+
+   /**
+    * Registers the MBean of an endpoint that has just been added, if MBeans are
+    * registered.
+    * @param metrics The endpoint's metrics.
+    */
+   private synchronized void registerMBean(EndpointMetrics metrics) {
+      if (mbeanName == null) return;
+      try {
+         ManagementFactory.getPlatformMBeanServer()
+            .registerMBean(metrics, objectName(metrics));
+      } catch(JMException exception) {
+         // metrics are still recorded, even if they can't be published
+         getLog().warn(() -> "Metrics: could not register " + metrics.getEndpoint()
+                       + ": " + exception);
+      }
+   } // end of registerMBean()
+
+   /**
+    * Determines the JMX name of an endpoint's MBean.
+    * @param metrics The endpoint's metrics.
+    * @return The ObjectName for the MBean.
+    * @throws JMException If the name is invalid.
+    */
+   private ObjectName objectName(EndpointMetrics metrics) throws JMException {
+      return new ObjectName(
+         JMX_DOMAIN + ":type=Endpoint,name=" + ObjectName.quote(mbeanName)
+         + ",endpoint=" + ObjectName.quote(metrics.getEndpoint()));
+   } // end of objectName()
+
+   /**
+    * Clears the counts and latencies of all endpoints.
+    */
+   public void reset() {
+      for (EndpointMetrics metrics : endpoints.values()) metrics.reset();
+   } // end of reset()
+
+   /**
+    * String representation of the metrics.
+    * @return A String representation of the metrics, one endpoint per line.
+    */
+   public String toString() {
+      StringBuilder s = new StringBuilder();
+      for (EndpointMetrics metrics : getEndpoints().values()) {
+         if (s.length() > 0) s.append('\n');
+         s.append(metrics);
+      } // next endpoint
+      return s.toString();
+   } // end of toString()
+
+} // end of class Metrics
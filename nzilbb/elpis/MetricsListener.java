@@ -0,0 +1,24 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+/**
+ * Receives the timing of each request recorded by {@link Metrics}, e.g. to feed it into
+ * an external monitoring system.
+ * <p> Requests may be sent concurrently, so this may be called from several threads at
+ * once. It's called on the thread that sent the request, so it should return quickly.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@FunctionalInterface
+public interface MetricsListener {
+
+   /**
+    * Called when a request has finished, whether it succeeded or failed.
+    * @param timing The timing of the request, which has already been recorded.
+    */
+   void requestFinished(RequestTiming timing);
+   
+} // end of interface MetricsListener
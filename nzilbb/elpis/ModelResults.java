@@ -0,0 +1,412 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
+
+/**
+ * The results of model training, as returned by {@link Elpis#modelResultsCompact()}; metrics
+ * for the final model's performance on the test transcripts.
+ * <p> The word error rate and the word counts are parsed straight into primitive fields.
+ * Any other metrics the server returns are kept as strings, and are available with
+ * {@link #get(String)}.
+ * <p> Results can be written in a compact binary form with {@link #writeTo(DataOutput)},
+ * and read back with {@link #readFrom(DataInput)}, so that the results of many models -
+ * e.g. from an {@link NgramSweep}, or a history of training runs - can be stored and
+ * compared cheaply. A missing metric is written as a single bit, and counts take one or
+ * two bytes each, so typical results take about 15 bytes.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ModelResults {
+
+   /** Key of the word error rate */
+   public static final String WER = "wer";
+   /** Key of the number of inserted words */
+   public static final String INSERTIONS = "ins_val";
+   /** Key of the number of deleted words */
+   public static final String DELETIONS = "del_val";
+   /** Key of the number of substituted words */
+   public static final String SUBSTITUTIONS = "sub_val";
+   /** Key of the number of words */
+   public static final String COUNT = "count_val";
+
+   /** Version of the binary format */
+   static final int FORMAT_VERSION = 1;
+
+   /** Flags of the binary format, indicating which values are present */
+   static final int HAS_WER = 1;
+   static final int HAS_INSERTIONS = 2;
+   static final int HAS_DELETIONS = 4;
+   static final int HAS_SUBSTITUTIONS = 8;
+   static final int HAS_COUNT = 16;
+   static final int HAS_OTHER = 32;
+
+   // Attributes:
+
+   /**
+    * The word error rate, as a percentage.
+    * @see #getWer()
+    */
+   protected double wer = Double.NaN;
+   /**
+    * Getter for {@link #wer}: The word error rate, as a percentage.
+    * @return The word error rate, or NaN if the server didn't return one.
+    */
+   public double getWer() { return wer; }
+
+   /**
+    * The number of inserted words.
+    * @see #getInsertions()
+    */
+   protected int insertions = -1;
+   /**
+    * Getter for {@link #insertions}: The number of inserted words.
+    * @return The number of inserted words, or -1 if the server didn't return it.
+    */
+   public int getInsertions() { return insertions; }
+
+   /**
+    * The number of deleted words.
+    * @see #getDeletions()
+    */
+   protected int deletions = -1;
+   /**
+    * Getter for {@link #deletions}: The number of deleted words.
+    * @return The number of deleted words, or -1 if the server didn't return it.
+    */
+   public int getDeletions() { return deletions; }
+
+   /**
+    * The number of substituted words.
+    * @see #getSubstitutions()
+    */
+   protected int substitutions = -1;
+   /**
+    * Getter for {@link #substitutions}: The number of substituted words.
+    * @return The number of substituted words, or -1 if the server didn't return it.
+    */
+   public int getSubstitutions() { return substitutions; }
+
+   /**
+    * The number of words in the test transcripts.
+    * @see #getCount()
+    */
+   protected int count = -1;
+   /**
+    * Getter for {@link #count}: The number of words in the test transcripts.
+    * @return The number of words, or -1 if the server didn't return it.
+    */
+   public int getCount() { return count; }
+
+   /** Any other metrics, or null if there are none */
+   private LinkedHashMap<String,String> other;
+
+   // Methods:
+
+   /**
+    * Default constructor, for results with no metrics.
+    */
+   public ModelResults() {
+   } // end of constructor
+
+   /**
+    * Constructor from metric values.
+    * @param wer The word error rate.
+    * @param insertions The number of inserted words.
+    * @param deletions The number of deleted words.
+    * @param substitutions The number of substituted words.
+    * @param count The number of words.
+    */
+   public ModelResults(double wer, int insertions, int deletions, int substitutions, int count) {
+      this.wer = wer;
+      this.insertions = insertions;
+      this.deletions = deletions;
+      this.substitutions = substitutions;
+      this.count = count;
+   } // end of constructor
+
+   /**
+    * Extracts the results from a response. The response has already read the results
+    * object, which is small, so values are taken from it directly.
+    * @param response A response to <tt>model/results</tt>.
+    * @return The results.
+    */
+   static ModelResults parse(Response response) {
+      ModelResults results = new ModelResults();
+      JsonObject object = response.getData().getJsonObject("results");
+      if (object == null) return results;
+      for (Map.Entry<String,JsonValue> metric : object.entrySet()) {
+         JsonValue value = metric.getValue();
+         if (value instanceof JsonString) {
+            results.set(metric.getKey(), ((JsonString)value).getString());
+         } else if (value instanceof JsonNumber) {
+            results.set(metric.getKey(), value.toString());
+         }
+      } // next metric
+      return results;
+   } // end of parse()
+
+   /**
+    * Reads results from a JSON parser, whose last event was the START_OBJECT of the
+    * results object. On return, the last event is the matching END_OBJECT.
+    * <p> Values may be strings or numbers. Values that aren't numeric - e.g. <q>n/a</q> -
+    * leave the corresponding field unset.
+    * @param parser The parser.
+    * @return The results.
+    */
+   public static ModelResults parse(JsonParser parser) {
+      ModelResults results = new ModelResults();
+      while (parser.next() == JsonParser.Event.KEY_NAME) {
+         String key = parser.getString();
+         JsonParser.Event event = parser.next();
+         if (event == JsonParser.Event.START_OBJECT) {
+            parser.skipObject();
+         } else if (event == JsonParser.Event.START_ARRAY) {
+            parser.skipArray();
+         } else if (event == JsonParser.Event.VALUE_STRING
+                    || event == JsonParser.Event.VALUE_NUMBER) {
+            results.set(key, parser.getString());
+         }
+      } // next key
+      return results;
+   } // end of parse()
+
+   /**
+    * Sets a metric from its string value.
+    * @param key The metric name.
+    * @param value The value.
+    */
+   private void set(String key, String value) {
+      switch (key) {
+         case WER: wer = number(value); break;
+         case INSERTIONS: insertions = count(value); break;
+         case DELETIONS: deletions = count(value); break;
+         case SUBSTITUTIONS: substitutions = count(value); break;
+         case COUNT: count = count(value); break;
+         default:
+            if (other == null) other = new LinkedHashMap<String,String>();
+            other.put(key, value);
+      }
+   } // end of set()
+
+   /**
+    * Parses a decimal value.
+    * @param value The value returned by the server.
+    * @return The value, or NaN if it's not a number.
+    */
+   private static double number(String value) {
+      try {
+         return Double.parseDouble(value.trim());
+      } catch(NumberFormatException exception) {
+         return Double.NaN;
+      }
+   } // end of number()
+
+   /**
+    * Parses a count.
+    * @param value The value returned by the server.
+    * @return The value, or -1 if it's not a number.
+    */
+   private static int count(String value) {
+      double number = number(value);
+      return Double.isNaN(number)? -1 : (int)Math.round(number);
+   } // end of count()
+
+   /**
+    * Gets a metric by the name the server uses for it.
+    * @param key The metric name, e.g. {@link #WER}.
+    * @return The value as a string, or null if the server didn't return it.
+    */
+   public String get(String key) {
+      switch (key) {
+         case WER: return Double.isNaN(wer)? null : Double.toString(wer);
+         case INSERTIONS: return insertions < 0? null : Integer.toString(insertions);
+         case DELETIONS: return deletions < 0? null : Integer.toString(deletions);
+         case SUBSTITUTIONS: return substitutions < 0? null : Integer.toString(substitutions);
+         case COUNT: return count < 0? null : Integer.toString(count);
+         default: return other == null? null : other.get(key);
+      }
+   } // end of get()
+
+   /**
+    * Gets all the metrics, keyed by the names the server uses for them.
+    * @return A map of metric names to their values.
+    */
+   public Map<String,String> toMap() {
+      LinkedHashMap<String,String> map = new LinkedHashMap<String,String>();
+      for (String key : new String[] { WER, INSERTIONS, DELETIONS, SUBSTITUTIONS, COUNT }) {
+         String value = get(key);
+         if (value != null) map.put(key, value);
+      } // next key
+      if (other != null) map.putAll(other);
+      return map;
+   } // end of toMap()
+
+   /**
+    * Gets the metrics other than the word error rate and word counts.
+    * @return A map of metric names to their values, which may be empty.
+    */
+   public Map<String,String> getOther() {
+      if (other == null) return Collections.emptyMap();
+      return Collections.unmodifiableMap(other);
+   } // end of getOther()
+
+   /**
+    * Writes the results in binary form.
+    * @param out The destination.
+    * @throws IOException If the results can't be written.
+    */
+   public void writeTo(DataOutput out) throws IOException {
+      int flags = (Double.isNaN(wer)? 0 : HAS_WER)
+         | (insertions < 0? 0 : HAS_INSERTIONS)
+         | (deletions < 0? 0 : HAS_DELETIONS)
+         | (substitutions < 0? 0 : HAS_SUBSTITUTIONS)
+         | (count < 0? 0 : HAS_COUNT)
+         | (other == null || other.isEmpty()? 0 : HAS_OTHER);
+      out.writeByte(FORMAT_VERSION);
+      out.writeByte(flags);
+      if ((flags & HAS_WER) != 0) out.writeDouble(wer);
+      if ((flags & HAS_INSERTIONS) != 0) writeCount(out, insertions);
+      if ((flags & HAS_DELETIONS) != 0) writeCount(out, deletions);
+      if ((flags & HAS_SUBSTITUTIONS) != 0) writeCount(out, substitutions);
+      if ((flags & HAS_COUNT) != 0) writeCount(out, count);
+      if ((flags & HAS_OTHER) != 0) {
+         writeCount(out, other.size());
+         for (Map.Entry<String,String> metric : other.entrySet()) {
+            out.writeUTF(metric.getKey());
+            out.writeUTF(metric.getValue());
+         } // next metric
+      }
+   } // end of writeTo()
+
+   /**
+    * Reads results written by {@link #writeTo(DataOutput)}.
+    * @param in The source.
+    * @return The results.
+    * @throws IOException If the results can't be read, or are in an unknown format.
+    */
+   public static ModelResults readFrom(DataInput in) throws IOException {
+      int version = in.readUnsignedByte();
+      if (version != FORMAT_VERSION) {
+         throw new IOException("Unknown model results format: " + version);
+      }
+      int flags = in.readUnsignedByte();
+      ModelResults results = new ModelResults();
+      if ((flags & HAS_WER) != 0) results.wer = in.readDouble();
+      if ((flags & HAS_INSERTIONS) != 0) results.insertions = readCount(in);
+      if ((flags & HAS_DELETIONS) != 0) results.deletions = readCount(in);
+      if ((flags & HAS_SUBSTITUTIONS) != 0) results.substitutions = readCount(in);
+      if ((flags & HAS_COUNT) != 0) results.count = readCount(in);
+      if ((flags & HAS_OTHER) != 0) {
+         int size = readCount(in);
+         results.other = new LinkedHashMap<String,String>();
+         for (int m = 0; m < size; m++) results.other.put(in.readUTF(), in.readUTF());
+      }
+      return results;
+   } // end of readFrom()
+
+   /**
+    * Gets the results in binary form.
+    * @return The results, as written by {@link #writeTo(DataOutput)}.
+    */
+   public byte[] toBytes() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+      try {
+         writeTo(new DataOutputStream(bytes));
+      } catch(IOException impossible) { // writing to memory
+         throw new RuntimeException(impossible);
+      }
+      return bytes.toByteArray();
+   } // end of toBytes()
+
+   /**
+    * Reads results from binary form.
+    * @param bytes The results, as written by {@link #writeTo(DataOutput)}.
+    * @return The results.
+    * @throws IOException If the bytes are not valid results.
+    */
+   public static ModelResults fromBytes(byte[] bytes) throws IOException {
+      return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+   } // end of fromBytes()
+
+   /**
+    * Writes a non-negative integer in as few bytes as possible; seven bits per byte,
+    * with the high bit set on all but the last byte.
+    * @param out The destination.
+    * @param value The value, which must not be negative.
+    * @throws IOException If the value can't be written.
+    */
+   static void writeCount(DataOutput out, int value) throws IOException {
+      while ((value & ~0x7F) != 0) {
+         out.writeByte((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.writeByte(value);
+   } // end of writeCount()
+
+   /**
+    * Reads a value written by {@link #writeCount(DataOutput,int)}.
+    * @param in The source.
+    * @return The value.
+    * @throws IOException If the value can't be read.
+    */
+   static int readCount(DataInput in) throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+         int b = in.readUnsignedByte();
+         value |= (b & 0x7F) << shift;
+         if ((b & 0x80) == 0) return value;
+      }
+      throw new IOException("Malformed count");
+   } // end of readCount()
+
+   /**
+    * Determines whether the given object is results with the same metrics.
+    * @param o The object to compare with.
+    * @return true if the metrics are all the same.
+    */
+   public boolean equals(Object o) {
+      if (!(o instanceof ModelResults)) return false;
+      ModelResults r = (ModelResults)o;
+      return Double.compare(wer, r.wer) == 0
+         && insertions == r.insertions && deletions == r.deletions
+         && substitutions == r.substitutions && count == r.count
+         && getOther().equals(r.getOther());
+   } // end of equals()
+
+   /**
+    * Hash code consistent with {@link #equals(Object)}.
+    * @return The hash code.
+    */
+   public int hashCode() {
+      return Objects.hash(wer, insertions, deletions, substitutions, count, getOther());
+   } // end of hashCode()
+
+   /**
+    * String representation of the results, in the same form as a map of metric names to
+    * values.
+    * @return A String representation of the results.
+    */
+   public String toString() {
+      return toMap().toString();
+   } // end of toString()
+
+} // end of class ModelResults
@@ -0,0 +1,273 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Trains a model for each of a set of n-gram settings, concurrently across the servers
+ * of an {@link ElpisCluster}, and ranks the models by word error rate, to help choose
+ * the best {@link Elpis#modelSettings(int)}.
+ * <p> Each model is trained by a {@link TrainingPipeline}, which is created for the
+ * server the model is trained on by a factory function supplied by the caller; the
+ * factory specifies the dataset and pronunciation dictionary, and the sweep sets the
+ * model name and n-gram setting. The dataset and pronunciation dictionary are created
+ * on each server the first time it's used, and reused for later models on the same
+ * server.
+ * <p> Each model is named after the n-gram setting, with a {@link #getModelPrefix()},
+ * e.g. <q>ngram-3</q>.
+ * <p> e.g.
+ * <pre>
+ * try (ElpisCluster cluster = new ElpisCluster(
+ *         "http://elpis1:5000", "http://elpis2:5000")) {
+ *   NgramSweep sweep = new NgramSweep(cluster, elpis -&gt; new TrainingPipeline(elpis)
+ *       .setDataset("ds").setTier("Phrase").setFiles(trainingFiles)
+ *       .setPronDict("pd").setLetterToSound(new File("l2s.txt"))
+ *       .setTimeout(Duration.ofHours(2)));
+ *   List&lt;NgramSweep.Trial&gt; ranked = sweep.run(Arrays.asList(1, 2, 3, 4, 5));
+ *   System.out.println(sweep); // ranked report
+ * }
+ * </pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class NgramSweep {
+
+   /**
+    * The outcome of training one model.
+    */
+   public static class Trial {
+      int ngram;
+      String model;
+      String server;
+      ModelResults results = new ModelResults();
+      Duration trainingTime = Duration.ZERO;
+      Duration totalTime = Duration.ZERO;
+      String error;
+
+      /**
+       * The n-gram setting of the model.
+       * @return The n-gram setting of the model.
+       */
+      public int getNgram() { return ngram; }
+
+      /**
+       * The name of the model.
+       * @return The name of the model.
+       */
+      public String getModel() { return model; }
+
+      /**
+       * The base URL of the server the model was trained on.
+       * @return The base URL of the server the model was trained on, or null if no server
+       * was available.
+       */
+      public String getServer() { return server; }
+
+      /**
+       * The results returned by {@link Elpis#modelResultsCompact()}.
+       * @return The model results, which have no metrics if training failed.
+       */
+      public ModelResults getResults() { return results; }
+
+      /**
+       * The word error rate of the model.
+       * @return The word error rate, or NaN if training failed.
+       */
+      public double getWer() { return results.getWer(); }
+
+      /**
+       * How long the server took to train the model, from {@link Elpis#modelTrain()}
+       * until training finished.
+       * @return The training time, which is zero if the model had already been trained.
+       */
+      public Duration getTrainingTime() { return trainingTime; }
+
+      /**
+       * How long all the stages took, including creating the dataset and pronunciation
+       * dictionary if necessary, but not including time waiting for a server.
+       * @return The total time.
+       */
+      public Duration getTotalTime() { return totalTime; }
+
+      /**
+       * The reason training failed.
+       * @return The error message, or null if the model was trained successfully.
+       */
+      public String getError() { return error; }
+
+      /**
+       * String representation of the trial.
+       * @return A String representation of the trial.
+       */
+      public String toString() {
+         if (error != null) return model + ": failed - " + error;
+         return model + ": WER " + results.getWer()
+            + " (ins " + results.getInsertions() + ", del " + results.getDeletions()
+            + ", sub " + results.getSubstitutions() + ", of " + results.getCount() + ")"
+            + " trained in " + trainingTime.toMillis() + "ms"
+            + " on " + server;
+      }
+   } // end of class Trial
+
+   /**
+    * Orders trials by word error rate, lowest first, with ties broken by training time,
+    * and failed trials last.
+    */
+   public static final Comparator<Trial> RANKING = Comparator
+      .comparing((Trial t) -> t.error != null || Double.isNaN(t.getWer()))
+      .thenComparingDouble(t -> Double.isNaN(t.getWer())? 0.0 : t.getWer())
+      .thenComparing(t -> t.trainingTime)
+      .thenComparingInt(t -> t.ngram);
+
+   // Attributes:
+
+   /**
+    * The servers to train the models on.
+    * @see #getCluster()
+    */
+   protected ElpisCluster cluster;
+   /**
+    * Getter for {@link #cluster}: The servers to train the models on.
+    * @return The servers to train the models on.
+    */
+   public ElpisCluster getCluster() { return cluster; }
+
+   /**
+    * Creates a pipeline, specifying the dataset and pronunciation dictionary, for the
+    * given server.
+    * @see #getPipelineFactory()
+    */
+   protected Function<Elpis,TrainingPipeline> pipelineFactory;
+   /**
+    * Getter for {@link #pipelineFactory}: Creates a pipeline, specifying the dataset and
+    * pronunciation dictionary, for the given server.
+    * @return Creates a pipeline for the given server.
+    */
+   public Function<Elpis,TrainingPipeline> getPipelineFactory() { return pipelineFactory; }
+
+   /**
+    * Prefix for model names. The default is "ngram-".
+    * @see #getModelPrefix()
+    * @see #setModelPrefix(String)
+    */
+   protected String modelPrefix = "ngram-";
+   /**
+    * Getter for {@link #modelPrefix}: Prefix for model names.
+    * @return Prefix for model names.
+    */
+   public String getModelPrefix() { return modelPrefix; }
+   /**
+    * Setter for {@link #modelPrefix}: Prefix for model names.
+    * @param newModelPrefix Prefix for model names.
+    */
+   public NgramSweep setModelPrefix(String newModelPrefix) { modelPrefix = newModelPrefix; return this; }
+
+   /**
+    * The trials of the last run, ranked by {@link #RANKING}.
+    * @see #getTrials()
+    */
+   protected List<Trial> trials = new Vector<Trial>();
+   /**
+    * Getter for {@link #trials}: The trials of the last run, ranked by {@link #RANKING}.
+    * @return The trials of the last run, best first.
+    */
+   public List<Trial> getTrials() { return Collections.unmodifiableList(trials); }
+
+   // Methods:
+
+   /**
+    * Constructor.
+    * @param cluster The servers to train the models on.
+    * @param pipelineFactory Creates a pipeline, specifying the dataset and pronunciation
+    * dictionary, for the given server.
+    */
+   public NgramSweep(ElpisCluster cluster, Function<Elpis,TrainingPipeline> pipelineFactory) {
+      this.cluster = cluster;
+      this.pipelineFactory = pipelineFactory;
+   } // end of constructor
+
+   /**
+    * Trains a model for each of the given n-gram settings, concurrently, and ranks them.
+    * <p> A model that fails to train doesn't stop the others; it's ranked last, with
+    * its {@link Trial#getError()}.
+    * @param ngrams The n-gram settings to try.
+    * @return The trials, ranked by {@link #RANKING}, i.e. best first.
+    */
+   public List<Trial> run(List<Integer> ngrams) {
+      Vector<CompletableFuture<Trial>> futures = new Vector<CompletableFuture<Trial>>();
+      for (int ngram : ngrams) {
+         Trial trial = new Trial();
+         trial.ngram = ngram;
+         trial.model = modelPrefix + ngram;
+         futures.add(cluster.submit(elpis -> train(elpis, trial))
+                     .exceptionally(exception -> {
+                           Throwable cause = exception instanceof CompletionException
+                              && exception.getCause() != null?
+                              exception.getCause() : exception;
+                           trial.error = cause.getMessage() != null?
+                              cause.getMessage() : cause.toString();
+                           return trial;
+                        }));
+      } // next ngram
+      Vector<Trial> ranked = new Vector<Trial>();
+      for (CompletableFuture<Trial> future : futures) ranked.add(future.join());
+      ranked.sort(RANKING);
+      trials = ranked;
+      return getTrials();
+   } // end of run()
+
+   /**
+    * Trains one model.
+    * @param elpis The server to train the model on.
+    * @param trial The trial, which is updated with the results.
+    * @return The trial.
+    * @throws IOException If a communication error occurs.
+    * @throws ElpisException If the server returns an error, or training fails.
+    */
+   private Trial train(Elpis elpis, Trial trial) throws IOException, ElpisException {
+      trial.server = elpis.getBaseUrl().toString();
+      TrainingPipeline pipeline = pipelineFactory.apply(elpis)
+         .setModel(trial.model)
+         .setNgram(trial.ngram);
+      try {
+         trial.results = pipeline.run();
+      } finally {
+         Map<String,Duration> times = pipeline.getStageTimes();
+         for (Map.Entry<String,Duration> stage : times.entrySet()) {
+            trial.totalTime = trial.totalTime.plus(stage.getValue());
+            if (stage.getKey().equals(TrainingPipeline.MODEL_TRAIN)
+                || stage.getKey().equals(TrainingPipeline.MODEL_AWAIT)) {
+               trial.trainingTime = trial.trainingTime.plus(stage.getValue());
+            }
+         } // next stage
+      }
+      return trial;
+   } // end of train()
+
+   /**
+    * String representation of the sweep; a report of the last run, best model first.
+    * @return A String representation of the sweep.
+    */
+   public String toString() {
+      StringBuilder s = new StringBuilder();
+      int rank = 1;
+      for (Trial trial : trials) {
+         if (s.length() > 0) s.append("\n");
+         s.append(rank++).append(". ").append(trial);
+      } // next trial
+      return s.toString();
+   } // end of toString()
+
+} // end of class NgramSweep
@@ -0,0 +1,375 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import nzilbb.elpis.http.RequestBody;
+import nzilbb.elpis.http.TransportRequest;
+import nzilbb.elpis.http.TransportResponse;
+
+/**
+ * The timing of one request to the server, which is recorded in {@link Metrics} and
+ * passed to each {@link MetricsListener} once the request is finished.
+ * <p> Phases are measured by watching the request body and response body as the
+ * transport reads and writes them, so they work with any
+ * {@link nzilbb.elpis.http.Transport}:
+ * <dl>
+ *  <dt>connect</dt> <dd>until the transport starts reading the request body, which it
+ *   does once it's connected. Requests without a body have no connect time; the time
+ *   taken to connect is included in time-to-first-byte instead.</dd>
+ *  <dt>upload</dt> <dd>from then until the whole request body has been read.</dd>
+ *  <dt>first byte</dt> <dd>from then until the response status and headers have been
+ *   received.</dd>
+ *  <dt>download</dt> <dd>time spent waiting for the response body to arrive.</dd>
+ *  <dt>parse</dt> <dd>time spent processing the response body, other than waiting for
+ *   it - i.e. parsing the JSON and extracting data from it, or writing the content to
+ *   its destination.</dd>
+ *  <dt>total</dt> <dd>from the start of the request until it's finished.</dd>
+ * </dl>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class RequestTiming {
+
+   // Attributes:
+
+   /**
+    * The endpoint the request was sent to, e.g. "dataset/files".
+    * @see #getEndpoint()
+    */
+   protected String endpoint;
+   /**
+    * Getter for {@link #endpoint}: The endpoint the request was sent to, e.g.
+    * "dataset/files".
+    * @return The endpoint the request was sent to.
+    */
+   public String getEndpoint() { return endpoint; }
+
+   /**
+    * The name of the API function that sent the request, e.g. "datasetFiles".
+    * @see #getFunction()
+    */
+   protected String function;
+   /**
+    * Getter for {@link #function}: The name of the API function that sent the request,
+    * e.g. "datasetFiles".
+    * @return The name of the API function that sent the request.
+    */
+   public String getFunction() { return function; }
+
+   /**
+    * The HTTP status of the response, or -1 if no response was received.
+    * @see #getHttpStatus()
+    */
+   protected int httpStatus = -1;
+   /**
+    * Getter for {@link #httpStatus}: The HTTP status of the response, or -1 if no
+    * response was received.
+    * @return The HTTP status of the response, or -1 if no response was received.
+    */
+   public int getHttpStatus() { return httpStatus; }
+
+   /**
+    * The reason the request failed, or null if it succeeded.
+    * @see #getError()
+    */
+   protected Throwable error;
+   /**
+    * Getter for {@link #error}: The reason the request failed, or null if it succeeded.
+    * @return The reason the request failed, or null if it succeeded.
+    */
+   public Throwable getError() { return error; }
+
+   /**
+    * The number of bytes of request body sent.
+    * @see #getBytesSent()
+    */
+   protected volatile long bytesSent;
+   /**
+    * Getter for {@link #bytesSent}: The number of bytes of request body sent.
+    * @return The number of bytes of request body sent.
+    */
+   public long getBytesSent() { return bytesSent; }
+
+   /**
+    * The number of bytes of response body received.
+    * @see #getBytesReceived()
+    */
+   protected volatile long bytesReceived;
+   /**
+    * Getter for {@link #bytesReceived}: The number of bytes of response body received.
+    * @return The number of bytes of response body received.
+    */
+   public long getBytesReceived() { return bytesReceived; }
+
+   /** Where the timing is recorded when the request is finished */
+   private Metrics metrics;
+
+   /** When the request started */
+   private long start;
+
+   /** When the transport started reading the request body, or -1 */
+   private volatile long bodyStart = -1;
+
+   /** When the transport finished reading the request body, or -1 */
+   private volatile long bodyEnd = -1;
+
+   /** When the response status and headers were received, or -1 */
+   private long responded = -1;
+
+   /** When the response body was completely processed, or -1 */
+   private long received = -1;
+
+   /** Time spent waiting for the response body */
+   private volatile long downloadNanos;
+
+   /** Time spent extracting data from the response after it was received */
+   private long extractNanos;
+
+   /** When the request finished, or -1 */
+   private long end = -1;
+
+   // Methods:
+
+   /**
+    * Constructor, which starts timing the request.
+    * @param metrics Where the timing is recorded when the request is finished, or null
+    * if it's not recorded.
+    * @param endpoint The endpoint the request was sent to, e.g. "dataset/files".
+    * @param function The name of the API function that sent the request.
+    */
+   RequestTiming(Metrics metrics, String endpoint, String function) {
+      this.metrics = metrics;
+      this.endpoint = endpoint;
+      this.function = function;
+      this.start = System.nanoTime();
+   } // end of constructor
+
+   /**
+    * Determines whether the request failed.
+    * @return true if the request failed, false if it succeeded.
+    */
+   public boolean isError() {
+      return error != null;
+   } // end of isError()
+
+   /**
+    * The duration of the given phase of the request.
+    * @param phase The phase.
+    * @return The duration of the phase in nanoseconds, or 0 if the request didn't get
+    * that far.
+    */
+   public long getNanos(Metrics.Phase phase) {
+      long last = end >= 0? end : System.nanoTime();
+      switch (phase) {
+         case CONNECT:
+            return bodyStart >= 0? bodyStart - start : 0;
+         case UPLOAD:
+            if (bodyStart < 0) return 0;
+            if (bodyEnd >= 0) return bodyEnd - bodyStart;
+            return (responded >= 0? responded : last) - bodyStart;
+         case FIRST_BYTE:
+            if (responded < 0) return 0;
+            long uploaded = bodyEnd >= 0? bodyEnd : bodyStart >= 0? bodyStart : start;
+            return Math.max(0, responded - uploaded);
+         case DOWNLOAD:
+            return downloadNanos;
+         case PARSE:
+            if (received < 0) return 0;
+            return Math.max(0, received - responded - downloadNanos) + extractNanos;
+         default: // TOTAL
+            return last - start;
+      }
+   } // end of getNanos()
+
+   /**
+    * Wraps the given request so that its body is timed and counted as the transport
+    * sends it.
+    * @param request The request to send.
+    * @return A request that sends the same content.
+    */
+   TransportRequest wrap(TransportRequest request) {
+      return new TransportRequest() {
+         public String getMethod() { return request.getMethod(); }
+         public URL getUrl() throws IOException { return request.getUrl(); }
+         public Map<String,String> getRequestHeaders() { return request.getRequestHeaders(); }
+         public RequestBody getBody() throws IOException {
+            RequestBody body = request.getBody();
+            return body == null? null : new TimedBody(body);
+         }
+         public String toString() { return request.toString(); }
+      };
+   } // end of wrap()
+
+   /**
+    * Marks the receipt of the response status and headers, and wraps the response so
+    * that its body is timed and counted as it's read.
+    * @param response The response from the transport.
+    * @return A response with the same content.
+    * @throws IOException If the status can't be read.
+    */
+   TransportResponse responded(TransportResponse response) throws IOException {
+      httpStatus = response.getHttpStatus(); // may block until the response arrives
+      responded = System.nanoTime();
+      return new TransportResponse() {
+         public int getHttpStatus() throws IOException { return response.getHttpStatus(); }
+         public String getHttpMessage() throws IOException { return response.getHttpMessage(); }
+         public String getHeader(String name) { return response.getHeader(name); }
+         public InputStream getBody() throws IOException {
+            return new TimedInputStream(response.getBody());
+         }
+         public void close() throws IOException { response.close(); }
+      };
+   } // end of responded()
+
+   /**
+    * Marks the end of processing the response body.
+    */
+   void received() {
+      received = System.nanoTime();
+   } // end of received()
+
+   /**
+    * Adds time spent extracting data from the response after it was received.
+    * @param nanos The time taken.
+    */
+   void extracted(long nanos) {
+      extractNanos += nanos;
+   } // end of extracted()
+
+   /**
+    * Finishes timing the request, and records it.
+    * @param failure The reason the request failed, or null if it succeeded.
+    */
+   void finish(Throwable failure) {
+      end = System.nanoTime();
+      error = failure;
+      if (metrics != null) metrics.record(this);
+   } // end of finish()
+
+   /**
+    * String representation of the timing.
+    * @return A String representation of the timing.
+    */
+   public String toString() {
+      StringBuilder s = new StringBuilder(endpoint);
+      for (Metrics.Phase phase : Metrics.Phase.values()) {
+         s.append(' ').append(phase.getName()).append('=')
+            .append(getNanos(phase) / 1000).append("µs");
+      } // next phase
+      s.append(" sent=").append(bytesSent).append(" received=").append(bytesReceived);
+      if (error != null) s.append(" error=").append(error);
+      return s.toString();
+   } // end of toString()
+
+   /**
+    * Marks the start of the request body being read.
+    */
+   private void bodyStarted() {
+      if (bodyStart < 0) bodyStart = System.nanoTime();
+   } // end of bodyStarted()
+
+   /**
+    * Marks the end of the request body being read.
+    */
+   private void bodyEnded() {
+      if (bodyEnd < 0) bodyEnd = System.nanoTime();
+   } // end of bodyEnded()
+
+   /**
+    * Request body that records when the transport reads it, and how much it reads.
+    */
+   class TimedBody implements RequestBody {
+      RequestBody body;
+      TimedBody(RequestBody body) {
+         this.body = body;
+      }
+      public String getContentType() { return body.getContentType(); }
+      public long getContentLength() { return body.getContentLength(); }
+      public InputStream openStream() throws IOException {
+         bodyStarted();
+         return new FilterInputStream(body.openStream()) {
+            public int read() throws IOException {
+               int b = super.read();
+               if (b < 0) bodyEnded(); else bytesSent++;
+               return b;
+            }
+            public int read(byte[] b, int off, int len) throws IOException {
+               int n = in.read(b, off, len);
+               if (n < 0) bodyEnded(); else bytesSent += n;
+               return n;
+            }
+            public void close() throws IOException {
+               bodyEnded();
+               super.close();
+            }
+         };
+      }
+      public long writeTo(WritableByteChannel channel) throws IOException {
+         bodyStarted();
+         long n = body.writeTo(channel);
+         bytesSent += n;
+         bodyEnded();
+         return n;
+      }
+      public Flow.Publisher<ByteBuffer> publisher() {
+         Flow.Publisher<ByteBuffer> publisher = body.publisher();
+         if (publisher == null) return null;
+         return subscriber -> publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+               public void onSubscribe(Flow.Subscription subscription) {
+                  bodyStarted();
+                  subscriber.onSubscribe(subscription);
+               }
+               public void onNext(ByteBuffer buffer) {
+                  bytesSent += buffer.remaining();
+                  subscriber.onNext(buffer);
+               }
+               public void onError(Throwable throwable) {
+                  subscriber.onError(throwable);
+               }
+               public void onComplete() {
+                  bodyEnded();
+                  subscriber.onComplete();
+               }
+            });
+      }
+   } // end of class TimedBody
+
+   /**
+    * Response body stream that records how long reading takes, and how much is read.
+    */
+   class TimedInputStream extends FilterInputStream {
+      TimedInputStream(InputStream in) {
+         super(in);
+      }
+      public int read() throws IOException {
+         long t = System.nanoTime();
+         int b = in.read();
+         downloadNanos += System.nanoTime() - t;
+         if (b >= 0) bytesReceived++;
+         return b;
+      }
+      public int read(byte[] b, int off, int len) throws IOException {
+         long t = System.nanoTime();
+         int n = in.read(b, off, len);
+         downloadNanos += System.nanoTime() - t;
+         if (n > 0) bytesReceived += n;
+         return n;
+      }
+      public long skip(long n) throws IOException {
+         long skipped = in.skip(n);
+         bytesReceived += skipped;
+         return skipped;
+      }
+   } // end of class TimedInputStream
+
+} // end of class RequestTiming
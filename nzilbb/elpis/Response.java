@@ -6,17 +6,27 @@
 package nzilbb.elpis;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
 import java.io.StringReader;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Vector;
 import javax.json.Json;
 import javax.json.JsonException;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonParser;
 import javax.json.stream.JsonParsingException;
+import nzilbb.elpis.http.TransportResponse;
 
 /**
  * A class representing the JSON response of an Elpis request.
@@ -24,6 +34,9 @@ import javax.json.stream.JsonParsingException;
  */
 
 public class Response {
+
+   /** Size of the buffer used to copy content to a destination */
+   static final int BUFFER_SIZE = 65536;
    
    // Attributes:
    
@@ -81,10 +94,58 @@ public class Response {
    protected String raw;
    /**
     * Getter for {@link #raw}: Raw response text.
-    * @return Raw response text.
+    * @return Raw response text, or null if the JSON response was parsed directly from the
+    * stream without keeping it - see {@link #getKeepRaw()}.
     */
    public String getRaw() { return raw; }   
 
+   /**
+    * Whether to keep the raw text of JSON responses. If false, and {@link #log} isn't
+    * logging at {@link Log.Level#TRACE}, JSON responses are parsed directly from the
+    * stream as it's read, so the raw text isn't held in memory as well as the parsed
+    * {@link #data} - although the "data" object itself is still fully materialized.
+    * @see #getKeepRaw()
+    * @see #setKeepRaw(boolean)
+    */
+   protected boolean keepRaw = false;
+   /**
+    * Getter for {@link #keepRaw}: Whether to keep the raw text of JSON responses.
+    * @return Whether to keep the raw text of JSON responses.
+    */
+   public boolean getKeepRaw() { return keepRaw; }
+   /**
+    * Setter for {@link #keepRaw}: Whether to keep the raw text of JSON responses.
+    * @param newKeepRaw Whether to keep the raw text of JSON responses.
+    */
+   public Response setKeepRaw(boolean newKeepRaw) { keepRaw = newKeepRaw; return this; }
+
+   /**
+    * The number of bytes of content copied to a destination, or -1 if the content was
+    * not copied.
+    * @see #getTransferred()
+    */
+   protected long transferred = -1;
+   /**
+    * Getter for {@link #transferred}: The number of bytes of content copied to a
+    * destination, or -1 if the content was not copied.
+    * @return The number of bytes of content copied to a destination, or -1 if the content
+    * was not copied.
+    */
+   public long getTransferred() { return transferred; }
+
+   /**
+    * The number of bytes of content read, or -1 if they were not counted. They are
+    * counted while a Java Flight Recorder recording of Elpis responses is running.
+    * @see #getBytesReceived()
+    */
+   protected long bytesReceived = -1;
+   /**
+    * Getter for {@link #bytesReceived}: The number of bytes of content read, or -1 if
+    * they were not counted.
+    * @return The number of bytes of content read, or -1 if they were not counted.
+    */
+   public long getBytesReceived() { return bytesReceived; }
+
    /**
     * Whether to print verbose output or not.
     * @see #getVerbose()
@@ -95,6 +156,17 @@ public class Response {
     * @return Whether to print verbose output or not.
     */
    public boolean getVerbose() { return verbose; }
+
+   /**
+    * Where the response is logged.
+    * @see #getLog()
+    */
+   protected Log log = Log.off();
+   /**
+    * Getter for {@link #log}: Where the response is logged.
+    * @return Where the response is logged.
+    */
+   public Log getLog() { return log; }
    
    /**
     * Whether the response content should be parsed as a JSON object.
@@ -136,7 +208,7 @@ public class Response {
     * @param verbose The verbosity setting to use.
     */
    public Response(InputStream input, boolean verbose) throws IOException {      
-      this.verbose = verbose;
+      setVerbose(verbose);
       load(input);
    } // end of constructor
    
@@ -159,10 +231,10 @@ public class Response {
       throws IOException {
       
       this.expectJson = expectJson;
-      this.verbose = verbose;
+      setVerbose(verbose);
 
       httpStatus = connection.getResponseCode();
-      if (verbose) System.out.println("HTTP status: " + connection.getResponseCode());
+      log.debug(() -> "HTTP status: " + httpStatus);
 
       if (httpStatus == HttpURLConnection.HTTP_OK)
       {
@@ -170,21 +242,206 @@ public class Response {
       }
       else
       {
-         if (verbose) {
-            System.out.println(
-               "HTTP error: " + httpStatus + ": " + connection.getResponseMessage());
-         }
+         String httpMessage = connection.getResponseMessage();
+         log.debug(() -> "HTTP error: " + httpStatus + ": " + httpMessage);
          load(connection.getErrorStream());
       }
    } // end of constructor
    
+   /**
+    * Constructor from TransportResponse.
+    * @param transportResponse The response to read from, which is closed once read.
+    * @param verbose The verbosity setting to use.
+    * @param expectJson Whether the response content should be parsed as a JSON object.
+    */
+   public Response(TransportResponse transportResponse, boolean verbose, boolean expectJson)
+      throws IOException {
+      this(transportResponse, verbose, expectJson, false);
+   } // end of constructor
+   
+   /**
+    * Constructor from TransportResponse.
+    * @param transportResponse The response to read from, which is closed once read.
+    * @param verbose The verbosity setting to use.
+    * @param expectJson Whether the response content should be parsed as a JSON object.
+    * @param keepRaw Whether to keep the raw text of JSON responses.
+    */
+   public Response(TransportResponse transportResponse, boolean verbose, boolean expectJson,
+                   boolean keepRaw)
+      throws IOException {
+      this(transportResponse, verbose? Log.console() : Log.off(), expectJson, keepRaw);
+   } // end of constructor
+   
+   /**
+    * Constructor from TransportResponse.
+    * @param transportResponse The response to read from, which is closed once read.
+    * @param log Where to log the response.
+    * @param expectJson Whether the response content should be parsed as a JSON object.
+    * @param keepRaw Whether to keep the raw text of JSON responses.
+    */
+   public Response(TransportResponse transportResponse, Log log, boolean expectJson,
+                   boolean keepRaw)
+      throws IOException {
+      
+      this.expectJson = expectJson;
+      setLog(log);
+      this.keepRaw = keepRaw;
+      
+      ResponseEvent event = new ResponseEvent();
+      event.begin();
+      try {
+         httpStatus = transportResponse.getHttpStatus();
+         log.debug(() -> "HTTP status: " + httpStatus);
+         if (httpStatus != HttpURLConnection.HTTP_OK) {
+            String httpMessage = transportResponse.getHttpMessage();
+            log.debug(() -> "HTTP error: " + httpStatus + ": " + httpMessage);
+            // error responses may not be JSON, so keep the text for the error message
+            this.keepRaw = true;
+         }
+         load(body(transportResponse, event));
+      } finally {
+         transportResponse.close();
+         commit(event);
+      }
+   } // end of constructor
+   
+   /**
+    * Constructor from TransportResponse, which copies successful response content
+    * directly to the given destination, instead of loading it into memory.
+    * <p> If the request failed, the content is loaded as usual instead, so that the error
+    * message is available.
+    * @param transportResponse The response to read from, which is closed once read.
+    * @param verbose The verbosity setting to use.
+    * @param destination Where to copy the content, which is not closed.
+    * @throws IOException If the content can't be read or written.
+    */
+   public Response(TransportResponse transportResponse, boolean verbose,
+                   WritableByteChannel destination)
+      throws IOException {
+      this(transportResponse, verbose? Log.console() : Log.off(), destination);
+   } // end of constructor
+
+   /**
+    * Constructor from TransportResponse, which copies successful response content
+    * directly to the given destination, instead of loading it into memory.
+    * <p> If the request failed, the content is loaded as usual instead, so that the error
+    * message is available.
+    * @param transportResponse The response to read from, which is closed once read.
+    * @param log Where to log the response.
+    * @param destination Where to copy the content, which is not closed.
+    * @throws IOException If the content can't be read or written.
+    */
+   public Response(TransportResponse transportResponse, Log log,
+                   WritableByteChannel destination)
+      throws IOException {
+      
+      this.expectJson = false;
+      setLog(log);
+      
+      ResponseEvent event = new ResponseEvent();
+      event.begin();
+      try {
+         httpStatus = transportResponse.getHttpStatus();
+         log.debug(() -> "HTTP status: " + httpStatus);
+         if (httpStatus != HttpURLConnection.HTTP_OK) {
+            String httpMessage = transportResponse.getHttpMessage();
+            log.debug(() -> "HTTP error: " + httpStatus + ": " + httpMessage);
+            load(body(transportResponse, event));
+         } else {
+            transferred = transfer(body(transportResponse, event), destination);
+            log.debug(() -> "transferred: " + transferred + " bytes");
+         }
+      } finally {
+         transportResponse.close();
+         commit(event);
+      }
+   } // end of constructor
+
+   /**
+    * Gets the body of the given response, counting the bytes read into
+    * {@link #bytesReceived} if the given event is enabled.
+    * @param transportResponse The response.
+    * @param event The event for this response.
+    * @return The body of the response.
+    * @throws IOException If a communications error occurs.
+    */
+   private InputStream body(TransportResponse transportResponse, ResponseEvent event)
+      throws IOException {
+      InputStream body = transportResponse.getBody();
+      if (!event.isEnabled()) return body;
+      bytesReceived = 0;
+      return new FilterInputStream(body) {
+         public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) bytesReceived++;
+            return b;
+         }
+         public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) bytesReceived += n;
+            return n;
+         }
+      };
+   } // end of body()
+
+   /**
+    * Ends the given event, and records it if required.
+    * @param event The event for this response.
+    */
+   private void commit(ResponseEvent event) {
+      event.end();
+      if (event.shouldCommit()) {
+         event.httpStatus = httpStatus;
+         event.status = status;
+         event.bytes = transferred >= 0? transferred : bytesReceived;
+         event.parsed = expectJson;
+         event.rawKept = raw != null;
+         event.commit();
+      }
+   } // end of commit()
+
+   /**
+    * Copies all content from the given stream to the given channel, using a fixed-size
+    * buffer, so memory use doesn't depend on the size of the content.
+    * @param input The stream to read from.
+    * @param destination The channel to write to.
+    * @return The number of bytes copied.
+    * @throws IOException If the content can't be read or written.
+    */
+   static long transfer(InputStream input, WritableByteChannel destination)
+      throws IOException {
+      ReadableByteChannel source = Channels.newChannel(input);
+      long total = 0;
+      if (destination instanceof FileChannel) { // let the file channel do the copying
+         FileChannel file = (FileChannel)destination;
+         long position = file.position();
+         long count;
+         while ((count = file.transferFrom(source, position + total, BUFFER_SIZE)) > 0) {
+            total += count;
+         }
+         file.position(position + total);
+      } else {
+         ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+         while (source.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) total += destination.write(buffer);
+            buffer.clear();
+         }
+      }
+      return total;
+   } // end of transfer()
+
    /**
     * Loads the response from the given stream.
+    * <p> If a JSON response is expected, {@link #keepRaw} isn't set, and
+    * {@link Log.Level#TRACE} isn't being logged, the JSON is parsed directly from the
+    * stream, and {@link #raw} is not set.
     * @param input The stream to read from.
     * @return A reference to this object,
     * @throws IOException, JSONException
     */
    public Response load(InputStream input) throws IOException {
+      if (expectJson && !keepRaw && !log.isEnabled(Log.Level.TRACE)) return parse(input);
       StringBuilder content = new StringBuilder();
       BufferedReader reader = new BufferedReader(
          new InputStreamReader(input, StandardCharsets.UTF_8));
@@ -208,36 +465,109 @@ public class Response {
    public Response load(String text) {
       
       raw = text;
-      if (verbose) System.out.println("raw: " + raw);
+      log.trace(() -> "raw: " + log.preview(raw));
       if (raw != null && raw.length() > 0 && expectJson) {
          try {
             
             JsonObject json = Json.createReader(new StringReader(raw)).readObject();
             
             status = json.getInt("status");
-            if (verbose) System.out.println("status: " + status);
             
             try {
                data = json.getJsonObject("data");      
-               if (verbose) System.out.println("data: " + data);
             } catch(ClassCastException exception) {
                // maybe it's a string
                message = json.getString("data");      
-               if (verbose) System.out.println("message: " + message);
             }
+            logContent();
             
          } catch (JsonParsingException x) {
             // not JSON response
-            if (verbose) {
-               System.out.println("JSONException: " + x.getMessage());
-               System.out.println(raw);
-            }
+            log.debug(() -> "JSONException: " + x.getMessage() + ": " + log.preview(raw));
             message = "Response not JSON: " + raw;
          }
       } // text not blank 
       return this;
    } // end of load()
    
+   /**
+    * Parses the JSON response directly from the given stream, without keeping the raw
+    * text.
+    * <p> Only the "status" and "data" attributes of the top-level object are
+    * materialized; anything else is skipped.
+    * @param input The stream to read from.
+    * @return A reference to this object,
+    * @throws IOException If the stream can't be read.
+    */
+   public Response parse(InputStream input) throws IOException {
+      PushbackInputStream stream = new PushbackInputStream(input);
+      int first = stream.read();
+      if (first < 0) { // blank response
+         stream.close();
+         return this;
+      }
+      stream.unread(first);
+      JsonParser parser = Json.createParser(new InputStreamReader(stream, StandardCharsets.UTF_8));
+      try {
+         if (parser.next() != JsonParser.Event.START_OBJECT) {
+            message = "Response not a JSON object";
+            return this;
+         }
+         JsonParser.Event event = parser.next();
+         while (event == JsonParser.Event.KEY_NAME) {
+            String key = parser.getString();
+            event = parser.next();
+            if (key.equals("status") && event == JsonParser.Event.VALUE_NUMBER) {
+               status = parser.getInt();
+            } else if (key.equals("data") && event == JsonParser.Event.START_OBJECT) {
+               data = parser.getObject();
+            } else if (key.equals("data") && event == JsonParser.Event.VALUE_STRING) {
+               message = parser.getString();
+            } else if (event == JsonParser.Event.START_OBJECT) {
+               parser.skipObject();
+            } else if (event == JsonParser.Event.START_ARRAY) {
+               parser.skipArray();
+            }
+            event = parser.next();
+         } // next attribute
+      } catch (JsonException x) { // includes JsonParsingException
+         message = "Response not JSON: " + x.getMessage();
+      } finally {
+         parser.close();
+      }
+      logContent();
+      return this;
+   } // end of parse()
+
+   /**
+    * Logs the status and a preview of the data or message.
+    */
+   private void logContent() {
+      log.debug(() -> "status: " + status);
+      if (data != null) {
+         log.debug(() -> "data: " + log.preview(data));
+      } else if (message != null) {
+         log.debug(() -> "message: " + log.preview(message));
+      }
+   } // end of logContent()
+
+   /**
+    * Sets {@link #verbose}, logging to {@link Log#console()} if it's true.
+    * @param verbose Whether to print verbose output or not.
+    */
+   private void setVerbose(boolean verbose) {
+      setLog(verbose? Log.console() : Log.off());
+   } // end of setVerbose()
+
+   /**
+    * Sets {@link #log}, and {@link #verbose} accordingly.
+    * @param log Where to log the response.
+    */
+   private void setLog(Log log) {
+      this.log = log;
+      this.verbose = log.isEnabled(Log.Level.DEBUG);
+   } // end of setLog()
+   
    /**
     * Convenience method for checking whether the response any errors. If so, a
     * corresponding StoreException will be thrown.
@@ -258,6 +588,15 @@ public class Response {
     */
    public String toString() {
       if (raw != null && raw.length() > 0) return raw;
+      if (status >= 0 && (data != null || message != null)) { // reconstruct the JSON
+         JsonObjectBuilder json = Json.createObjectBuilder().add("status", status);
+         if (data != null) {
+            json.add("data", data);
+         } else {
+            json.add("data", message);
+         }
+         return json.build().toString();
+      }
       if (message != null) return message;
       if (httpStatus > 0) return "HTTP " + httpStatus;
       return "";
@@ -0,0 +1,50 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for reading and processing the body of a response - i.e.
+ * parsing JSON, or copying content to its destination.
+ * <p> Unlike {@link Response#getRaw() raw} verbose output, the content itself is never
+ * recorded, only its size.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@Name("nzilbb.elpis.Response")
+@Label("Elpis Response")
+@Category("Elpis")
+@Description("Reading and processing the body of a response from an Elpis server")
+@StackTrace(false)
+class ResponseEvent extends Event {
+   
+   @Label("HTTP Status")
+   int httpStatus;
+
+   @Label("Status")
+   @Description("The status in the JSON response, or -1 if there was none")
+   int status;
+
+   @Label("Bytes")
+   @Description("The length of the response body")
+   @DataAmount
+   long bytes;
+
+   @Label("Parsed")
+   @Description("Whether the body was parsed as JSON, rather than copied to a destination")
+   boolean parsed;
+
+   @Label("Raw Kept")
+   @Description("Whether the raw text of the body was kept in memory")
+   boolean rawKept;
+   
+} // end of class ResponseEvent
@@ -0,0 +1,121 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.IOException;
+
+/**
+ * The result of a single call to the Elpis server, including the parsed data, the raw
+ * response, and how long the call took.
+ * <p> Each call returns its own Result, so unlike {@link Elpis#getResponse()}, results
+ * can't be confused when many threads share the same {@link Elpis} object.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class Result<T> {
+
+   /**
+    * Extracts the typed data from a response.
+    */
+   @FunctionalInterface
+   public interface Parser<T> {
+      /**
+       * Extracts the typed data from the given response.
+       * @param response The response.
+       * @return The data.
+       * @throws IOException If the data can't be extracted.
+       */
+      T parse(Response response) throws IOException;
+   }
+
+   // Attributes:
+
+   /**
+    * The name of the API function called.
+    * @see #getFunction()
+    */
+   protected String function;
+   /**
+    * Getter for {@link #function}: The name of the API function called.
+    * @return The name of the API function called.
+    */
+   public String getFunction() { return function; }
+
+   /**
+    * The data returned by the call, or null if the function returns none.
+    * @see #getData()
+    */
+   protected T data;
+   /**
+    * Getter for {@link #data}: The data returned by the call, or null if the function
+    * returns none.
+    * @return The data returned by the call, or null if the function returns none.
+    */
+   public T getData() { return data; }
+
+   /**
+    * The response received from the server, or null if no request was sent.
+    * @see #getResponse()
+    */
+   protected Response response;
+   /**
+    * Getter for {@link #response}: The response received from the server, or null if no
+    * request was sent.
+    * @return The response received from the server, or null if no request was sent.
+    */
+   public Response getResponse() { return response; }
+
+   /**
+    * How long the call took, in nanoseconds.
+    * @see #getDurationNanos()
+    */
+   protected long durationNanos;
+   /**
+    * Getter for {@link #durationNanos}: How long the call took, in nanoseconds.
+    * @return How long the call took, in nanoseconds.
+    */
+   public long getDurationNanos() { return durationNanos; }
+
+   // Methods:
+
+   /**
+    * Constructor.
+    * @param function The name of the API function called.
+    * @param data The data returned by the call.
+    * @param response The response received from the server.
+    * @param durationNanos How long the call took, in nanoseconds.
+    */
+   public Result(String function, T data, Response response, long durationNanos) {
+      this.function = function;
+      this.data = data;
+      this.response = response;
+      this.durationNanos = durationNanos;
+   } // end of constructor
+
+   /**
+    * The HTTP status code of the response.
+    * @return The HTTP status code of the response, or 0 if no request was sent.
+    */
+   public int getHttpStatus() {
+      return response == null? 0 : response.getHttpStatus();
+   } // end of getHttpStatus()
+
+   /**
+    * How long the call took, in milliseconds.
+    * @return How long the call took, in milliseconds.
+    */
+   public long getDurationMillis() {
+      return durationNanos / 1000000L;
+   } // end of getDurationMillis()
+
+   /**
+    * String representation of the result.
+    * @return A String representation of the result.
+    */
+   public String toString() {
+      return function + " (" + getHttpStatus() + ", " + getDurationMillis() + "ms): " + data;
+   } // end of toString()
+
+} // end of class Result
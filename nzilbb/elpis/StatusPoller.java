@@ -0,0 +1,321 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Repeatedly checks the status of a long-running server process - e.g. model training or
+ * transcription - until it finishes, fails, or takes too long.
+ * <p> The status is checked immediately, so that a process that has already finished
+ * is detected without any delay. After that, the interval between checks starts at
+ * {@link #getInitialInterval()} and grows by {@link #getMultiplier()} each time, up
+ * to {@link #getMaxInterval()}, with random {@link #getJitter()} so that many jobs
+ * started together don't all poll the server at the same moment.
+ * <p> Waiting doesn't tie up a thread; checks are scheduled on a
+ * {@link ScheduledExecutorService} shared by all pollers (by default), and status
+ * requests are sent with {@link AsyncElpis}, so thousands of jobs can be waited on
+ * using only a few threads.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class StatusPoller {
+
+   /** Scheduler shared by pollers that don't specify one */
+   private static ScheduledExecutorService sharedScheduler;
+
+   /** Poller with default settings */
+   private static StatusPoller shared;
+
+   /**
+    * Gets the scheduler shared by all pollers, creating it if necessary. Its threads are
+    * daemon threads, so they don't prevent the JVM from exiting.
+    * @return The shared scheduler.
+    */
+   public static synchronized ScheduledExecutorService sharedScheduler() {
+      if (sharedScheduler == null) {
+         AtomicInteger count = new AtomicInteger();
+         ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(2, r -> {
+               Thread thread = new Thread(r, "elpis-status-poller-" + count.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            });
+         scheduler.setRemoveOnCancelPolicy(true);
+         sharedScheduler = scheduler;
+      }
+      return sharedScheduler;
+   } // end of sharedScheduler()
+
+   /**
+    * Gets a poller with default settings, using the shared scheduler.
+    * @return A shared poller.
+    */
+   public static synchronized StatusPoller shared() {
+      if (shared == null) shared = new StatusPoller();
+      return shared;
+   } // end of shared()
+
+   // Attributes:
+
+   /**
+    * The scheduler that runs status checks.
+    * @see #getScheduler()
+    * @see #setScheduler(ScheduledExecutorService)
+    */
+   protected ScheduledExecutorService scheduler;
+   /**
+    * Getter for {@link #scheduler}: The scheduler that runs status checks.
+    * @return The scheduler that runs status checks.
+    */
+   public ScheduledExecutorService getScheduler() {
+      if (scheduler == null) scheduler = sharedScheduler();
+      return scheduler;
+   }
+   /**
+    * Setter for {@link #scheduler}: The scheduler that runs status checks.
+    * @param newScheduler The scheduler that runs status checks.
+    */
+   public StatusPoller setScheduler(ScheduledExecutorService newScheduler) { scheduler = newScheduler; return this; }
+
+   /**
+    * The interval between the first and second status check. The default is 250ms.
+    * @see #getInitialInterval()
+    * @see #setInitialInterval(Duration)
+    */
+   protected Duration initialInterval = Duration.ofMillis(250);
+   /**
+    * Getter for {@link #initialInterval}: The interval between the first and second status
+    * check.
+    * @return The interval between the first and second status check.
+    */
+   public Duration getInitialInterval() { return initialInterval; }
+   /**
+    * Setter for {@link #initialInterval}: The interval between the first and second status
+    * check.
+    * @param newInitialInterval The interval between the first and second status check.
+    */
+   public StatusPoller setInitialInterval(Duration newInitialInterval) { initialInterval = newInitialInterval; return this; }
+
+   /**
+    * The longest interval between status checks. The default is 10s.
+    * @see #getMaxInterval()
+    * @see #setMaxInterval(Duration)
+    */
+   protected Duration maxInterval = Duration.ofSeconds(10);
+   /**
+    * Getter for {@link #maxInterval}: The longest interval between status checks.
+    * @return The longest interval between status checks.
+    */
+   public Duration getMaxInterval() { return maxInterval; }
+   /**
+    * Setter for {@link #maxInterval}: The longest interval between status checks.
+    * @param newMaxInterval The longest interval between status checks.
+    */
+   public StatusPoller setMaxInterval(Duration newMaxInterval) { maxInterval = newMaxInterval; return this; }
+
+   /**
+    * How much the interval grows after each check. The default is 1.5.
+    * @see #getMultiplier()
+    * @see #setMultiplier(double)
+    */
+   protected double multiplier = 1.5;
+   /**
+    * Getter for {@link #multiplier}: How much the interval grows after each check.
+    * @return How much the interval grows after each check.
+    */
+   public double getMultiplier() { return multiplier; }
+   /**
+    * Setter for {@link #multiplier}: How much the interval grows after each check.
+    * @param newMultiplier How much the interval grows after each check.
+    */
+   public StatusPoller setMultiplier(double newMultiplier) { multiplier = newMultiplier; return this; }
+
+   /**
+    * The proportion by which each interval is randomly lengthened or shortened, between
+    * 0 and 1. The default is 0.2, i.e. +/- 20%.
+    * @see #getJitter()
+    * @see #setJitter(double)
+    */
+   protected double jitter = 0.2;
+   /**
+    * Getter for {@link #jitter}: The proportion by which each interval is randomly
+    * lengthened or shortened.
+    * @return The proportion by which each interval is randomly lengthened or shortened.
+    */
+   public double getJitter() { return jitter; }
+   /**
+    * Setter for {@link #jitter}: The proportion by which each interval is randomly
+    * lengthened or shortened.
+    * @param newJitter The proportion by which each interval is randomly lengthened or
+    * shortened, between 0 and 1.
+    */
+   public StatusPoller setJitter(double newJitter) { jitter = newJitter; return this; }
+
+   // Methods:
+
+   /**
+    * Default constructor.
+    */
+   public StatusPoller() {
+   } // end of constructor
+
+   /**
+    * Determines whether the given status indicates that the process has failed.
+    * @param status The status returned by the server.
+    * @return true if the status includes "error" or "fail".
+    */
+   public boolean isFailure(String status) {
+      String lower = status.toLowerCase();
+      return lower.contains("error") || lower.contains("fail");
+   } // end of isFailure()
+
+   /**
+    * Checks the status until it is the given target status.
+    * <p> The timeout is enforced independently of status checks, so if a check hangs,
+    * the future still times out, and the check is cancelled.
+    * @param process A description of the process, for error messages, e.g. "Training".
+    * @param check Sends a status request, returning a future status.
+    * @param target The status that indicates the process is finished.
+    * @param timeout How long to wait before giving up, or null to wait indefinitely.
+    * @return A future that completes with the target status, or completes exceptionally
+    * with an ElpisException if the process fails or times out, or an IOException if
+    * a communication error occurs. Cancelling the future stops polling.
+    */
+   public CompletableFuture<String> await(
+      String process, Supplier<CompletableFuture<String>> check, String target,
+      Duration timeout) {
+      Polling polling = new Polling(process, check, target, timeout);
+      polling.poll(initialInterval.toNanos());
+      return polling.result;
+   } // end of await()
+
+   /**
+    * The state of one {@link #await(String,Supplier,String,Duration)} call.
+    */
+   private class Polling {
+      final String process;
+      final Supplier<CompletableFuture<String>> check;
+      final String target;
+      /** The System.nanoTime() after which to give up */
+      final long deadline;
+      /** Completed once polling is finished */
+      final CompletableFuture<String> result = new CompletableFuture<String>();
+      /** The status check in progress, if any */
+      final AtomicReference<CompletableFuture<String>> pending
+      = new AtomicReference<CompletableFuture<String>>();
+      /** The last status returned, for the timeout message */
+      volatile String lastStatus;
+
+      Polling(String process, Supplier<CompletableFuture<String>> check, String target,
+              Duration timeout) {
+         this.process = process;
+         this.check = check;
+         this.target = target;
+         if (timeout == null) {
+            deadline = Long.MAX_VALUE;
+         } else {
+            deadline = System.nanoTime() + timeout.toNanos();
+            ScheduledFuture<?> timer = getScheduler().schedule(
+               () -> timedOut(), timeout.toNanos(), TimeUnit.NANOSECONDS);
+            result.whenComplete((status, exception) -> timer.cancel(false));
+         }
+         // once finished - including timing out or being cancelled - stop any check
+         result.whenComplete((status, exception) -> {
+               CompletableFuture<String> inFlight = pending.getAndSet(null);
+               if (inFlight != null) inFlight.cancel(true);
+            });
+      }
+
+      /** Fails the result because the deadline has passed */
+      void timedOut() {
+         String status = lastStatus;
+         result.completeExceptionally(
+            new ElpisException(process + " timed out, status: "
+                               + (status == null? "unknown" : status)));
+      }
+
+      /**
+       * Checks the status once, and schedules the next check if necessary.
+       * @param interval The nominal interval before the next check, in nanoseconds.
+       */
+      void poll(long interval) {
+         if (result.isDone()) return; // cancelled or timed out
+         CompletableFuture<String> inFlight;
+         try {
+            inFlight = check.get();
+         } catch(Throwable exception) { // otherwise it would be lost on a scheduler thread
+            result.completeExceptionally(exception);
+            return;
+         }
+         pending.set(inFlight);
+         if (result.isDone()) { // finished while the check was being sent
+            inFlight.cancel(true);
+            return;
+         }
+         inFlight.whenComplete((status, exception) -> {
+               pending.compareAndSet(inFlight, null);
+               try {
+                  checked(status, exception, interval);
+               } catch(Throwable t) { // e.g. isFailure() can't handle the status
+                  result.completeExceptionally(t);
+               }
+            });
+      }
+
+      /**
+       * Handles the outcome of one status check.
+       * @param status The status returned, if the check succeeded.
+       * @param exception The reason the check failed, if it did.
+       * @param interval The nominal interval before the next check, in nanoseconds.
+       */
+      void checked(String status, Throwable exception, long interval) {
+         if (exception != null) {
+            result.completeExceptionally(
+               exception instanceof CompletionException && exception.getCause() != null?
+               exception.getCause() : exception);
+         } else if (target.equals(status)) {
+            result.complete(status);
+         } else if (isFailure(status)) {
+            result.completeExceptionally(
+               new ElpisException(process + " failed: " + status));
+         } else {
+            lastStatus = status;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+               timedOut();
+            } else {
+               // randomise the delay so that many jobs don't all poll at once
+               double factor = 1.0
+                  + jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1);
+               long delay = Math.min((long)(interval * factor), remaining);
+               long nextInterval = Math.min(
+                  (long)(interval * multiplier), maxInterval.toNanos());
+               getScheduler().schedule(
+                  () -> poll(nextInterval), delay, TimeUnit.NANOSECONDS);
+            }
+         }
+      }
+   } // end of class Polling
+
+   /**
+    * String representation of the poller.
+    * @return A String representation of the poller.
+    */
+   public String toString() {
+      return "initial " + initialInterval.toMillis() + "ms, max " + maxInterval.toMillis()
+         + "ms, x" + multiplier + " +/-" + Math.round(jitter * 100) + "%";
+   } // end of toString()
+
+} // end of class StatusPoller
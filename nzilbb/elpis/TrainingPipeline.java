@@ -0,0 +1,602 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import nzilbb.elpis.http.StagedRequest;
+
+/**
+ * Trains a model from a specification of the dataset, pronunciation dictionary, and
+ * model, running all the steps of a training session in order:
+ * <ol>
+ *  <li>{@link Elpis#datasetNew(String)} and {@link Elpis#datasetSettings(String)}</li>
+ *  <li>{@link Elpis#datasetFiles(List)}</li>
+ *  <li>{@link Elpis#datasetPrepareCompact()}</li>
+ *  <li>{@link Elpis#pronDictNew(String,String)}</li>
+ *  <li>{@link Elpis#pronDictL2S(File)}</li>
+ *  <li>{@link Elpis#pronDictGenerateLexiconCompact()} and
+ *      {@link Elpis#pronDictSaveLexicon(Map)}</li>
+ *  <li>{@link Elpis#modelNew(String,String)} and {@link Elpis#modelSettings(int)}</li>
+ *  <li>{@link Elpis#modelTrain()}</li>
+ *  <li>{@link Elpis#awaitModelTrained(Duration)}</li>
+ *  <li>{@link Elpis#modelResultsCompact()}</li>
+ * </ol>
+ * <p> Stages whose output already exists on the server are skipped; if the dataset,
+ * pronunciation dictionary, or model already exists, it's loaded instead of being
+ * created, and the outputs it already has are checked:
+ * <ul>
+ *  <li>only files that aren't in the dataset's file list are uploaded - or, if there's
+ *      an {@link #getUploadManifest()}, files the manifest hasn't recorded as
+ *      acknowledged with their current content,</li>
+ *  <li>the dataset is prepared if it has no word list, or files were uploaded,</li>
+ *  <li>the letter-to-sound mapping is uploaded if the pronunciation dictionary has
+ *      none,</li>
+ *  <li>the lexicon is generated and saved if the pronunciation dictionary has none, or
+ *      an earlier stage ran, and</li>
+ *  <li>the model is trained - with the current {@link #getNgram()} setting - unless it's
+ *      already trained and no earlier stage ran.</li>
+ * </ul>
+ * So if a pipeline fails part way through, running it again carries on from the first
+ * missing output.
+ * <p> Client-side work that doesn't depend on the server - hashing the dataset files
+ * (if there's an {@link #getUploadManifest()}), and reading the letter-to-sound file -
+ * is done in the background while the server works on earlier stages. A lexicon file
+ * is streamed straight from disk when it's saved.
+ * <p> The wall-clock time taken by each stage is recorded, and can be retrieved with
+ * {@link #getStageTimes()} once the pipeline has run.
+ * <p> e.g.
+ * <pre>
+ * TrainingPipeline pipeline = new TrainingPipeline(new Elpis(elpisUrl))
+ *   .setDataset("ds").setTier("Phrase").setFiles(trainingFiles)
+ *   .setPronDict("pd").setLetterToSound(new File("l2s.txt"))
+ *   .setModel("m").setNgram(3)
+ *   .setTimeout(Duration.ofHours(2));
+ * ModelResults results = pipeline.run();
+ * System.out.println(pipeline); // time taken by each stage
+ * </pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TrainingPipeline {
+
+   /** Stage that lists existing datasets, pronunciation dictionaries, and models */
+   public static final String LIST = "list";
+   /** Stage that creates or loads the dataset */
+   public static final String DATASET = "dataset";
+   /** Stage that uploads the dataset files */
+   public static final String DATASET_FILES = "datasetFiles";
+   /** Stage that prepares the dataset */
+   public static final String DATASET_PREPARE = "datasetPrepare";
+   /** Stage that creates or loads the pronunciation dictionary */
+   public static final String PRON_DICT = "pronDict";
+   /** Stage that uploads the letter-to-sound mapping */
+   public static final String PRON_DICT_L2S = "pronDictL2S";
+   /** Stage that generates and saves the lexicon */
+   public static final String PRON_DICT_LEXICON = "pronDictLexicon";
+   /** Stage that creates or loads the model */
+   public static final String MODEL = "model";
+   /** Stage that starts model training */
+   public static final String MODEL_TRAIN = "modelTrain";
+   /** Stage that waits for model training to finish */
+   public static final String MODEL_AWAIT = "awaitModelTrained";
+   /** Stage that gets the model training results */
+   public static final String MODEL_RESULTS = "modelResults";
+
+   // Attributes:
+
+   /**
+    * The server to train the model on.
+    * @see #getElpis()
+    */
+   protected Elpis elpis;
+   /**
+    * Getter for {@link #elpis}: The server to train the model on.
+    * @return The server to train the model on.
+    */
+   public Elpis getElpis() { return elpis; }
+
+   /**
+    * The name of the dataset.
+    * @see #getDataset()
+    * @see #setDataset(String)
+    */
+   protected String dataset;
+   /**
+    * Getter for {@link #dataset}: The name of the dataset.
+    * @return The name of the dataset.
+    */
+   public String getDataset() { return dataset; }
+   /**
+    * Setter for {@link #dataset}: The name of the dataset.
+    * @param newDataset The name of the dataset.
+    */
+   public TrainingPipeline setDataset(String newDataset) { dataset = newDataset; return this; }
+
+   /**
+    * The name of the transcript tier to use for training, or null to use the server's
+    * default.
+    * @see #getTier()
+    * @see #setTier(String)
+    */
+   protected String tier;
+   /**
+    * Getter for {@link #tier}: The name of the transcript tier to use for training.
+    * @return The name of the transcript tier to use for training, or null to use the
+    * server's default.
+    */
+   public String getTier() { return tier; }
+   /**
+    * Setter for {@link #tier}: The name of the transcript tier to use for training.
+    * @param newTier The name of the transcript tier to use for training, or null to use
+    * the server's default.
+    */
+   public TrainingPipeline setTier(String newTier) { tier = newTier; return this; }
+
+   /**
+    * The transcripts and recordings to upload to the dataset.
+    * @see #getFiles()
+    * @see #setFiles(List)
+    */
+   protected List<File> files;
+   /**
+    * Getter for {@link #files}: The transcripts and recordings to upload to the dataset.
+    * @return The transcripts and recordings to upload to the dataset.
+    */
+   public List<File> getFiles() { return files; }
+   /**
+    * Setter for {@link #files}: The transcripts and recordings to upload to the dataset.
+    * @param newFiles The transcripts and recordings to upload to the dataset.
+    */
+   public TrainingPipeline setFiles(List<File> newFiles) { files = newFiles; return this; }
+
+   /**
+    * The manifest for resuming the dataset upload, or null to upload all files.
+    * @see #getUploadManifest()
+    * @see #setUploadManifest(UploadManifest)
+    */
+   protected UploadManifest uploadManifest;
+   /**
+    * Getter for {@link #uploadManifest}: The manifest for resuming the dataset upload.
+    * @return The manifest for resuming the dataset upload, or null to upload all files.
+    */
+   public UploadManifest getUploadManifest() { return uploadManifest; }
+   /**
+    * Setter for {@link #uploadManifest}: The manifest for resuming the dataset upload.
+    * @param newUploadManifest The manifest for resuming the dataset upload, or null to
+    * upload all files.
+    */
+   public TrainingPipeline setUploadManifest(UploadManifest newUploadManifest) { uploadManifest = newUploadManifest; return this; }
+
+   /**
+    * The name of the pronunciation dictionary.
+    * @see #getPronDict()
+    * @see #setPronDict(String)
+    */
+   protected String pronDict;
+   /**
+    * Getter for {@link #pronDict}: The name of the pronunciation dictionary.
+    * @return The name of the pronunciation dictionary.
+    */
+   public String getPronDict() { return pronDict; }
+   /**
+    * Setter for {@link #pronDict}: The name of the pronunciation dictionary.
+    * @param newPronDict The name of the pronunciation dictionary.
+    */
+   public TrainingPipeline setPronDict(String newPronDict) { pronDict = newPronDict; return this; }
+
+   /**
+    * The letter-to-sound mapping file.
+    * @see #getLetterToSound()
+    * @see #setLetterToSound(File)
+    */
+   protected File letterToSound;
+   /**
+    * Getter for {@link #letterToSound}: The letter-to-sound mapping file.
+    * @return The letter-to-sound mapping file.
+    */
+   public File getLetterToSound() { return letterToSound; }
+   /**
+    * Setter for {@link #letterToSound}: The letter-to-sound mapping file.
+    * @param newLetterToSound The letter-to-sound mapping file.
+    */
+   public TrainingPipeline setLetterToSound(File newLetterToSound) { letterToSound = newLetterToSound; return this; }
+
+   /**
+    * A file containing the lexicon to save in place of the generated one, or null to save
+    * the generated lexicon.
+    * @see #getLexicon()
+    * @see #setLexicon(File)
+    */
+   protected File lexicon;
+   /**
+    * Getter for {@link #lexicon}: A file containing the lexicon to save in place of the
+    * generated one.
+    * @return A file containing the lexicon to save in place of the generated one, or null
+    * to save the generated lexicon.
+    */
+   public File getLexicon() { return lexicon; }
+   /**
+    * Setter for {@link #lexicon}: A file containing the lexicon to save in place of the
+    * generated one.
+    * @param newLexicon A file containing the lexicon to save in place of the generated
+    * one, or null to save the generated lexicon.
+    */
+   public TrainingPipeline setLexicon(File newLexicon) { lexicon = newLexicon; return this; }
+
+   /**
+    * Edits the generated lexicon before it's saved, or null to save it unchanged. This
+    * is ignored if {@link #getLexicon()} is set.
+    * @see #getLexiconEditor()
+    * @see #setLexiconEditor(Function)
+    */
+   protected Function<Map<String,String>,Map<String,String>> lexiconEditor;
+   /**
+    * Getter for {@link #lexiconEditor}: Edits the generated lexicon before it's saved.
+    * @return Edits the generated lexicon before it's saved, or null to save it unchanged.
+    */
+   public Function<Map<String,String>,Map<String,String>> getLexiconEditor() { return lexiconEditor; }
+   /**
+    * Setter for {@link #lexiconEditor}: Edits the generated lexicon before it's saved.
+    * @param newLexiconEditor Edits the generated lexicon before it's saved, or null to
+    * save it unchanged.
+    */
+   public TrainingPipeline setLexiconEditor(Function<Map<String,String>,Map<String,String>> newLexiconEditor) { lexiconEditor = newLexiconEditor; return this; }
+
+   /**
+    * The name of the model.
+    * @see #getModel()
+    * @see #setModel(String)
+    */
+   protected String model;
+   /**
+    * Getter for {@link #model}: The name of the model.
+    * @return The name of the model.
+    */
+   public String getModel() { return model; }
+   /**
+    * Setter for {@link #model}: The name of the model.
+    * @param newModel The name of the model.
+    */
+   public TrainingPipeline setModel(String newModel) { model = newModel; return this; }
+
+   /**
+    * The n-gram setting for the language model. The default is 3.
+    * @see #getNgram()
+    * @see #setNgram(int)
+    */
+   protected int ngram = 3;
+   /**
+    * Getter for {@link #ngram}: The n-gram setting for the language model.
+    * @return The n-gram setting for the language model.
+    */
+   public int getNgram() { return ngram; }
+   /**
+    * Setter for {@link #ngram}: The n-gram setting for the language model.
+    * @param newNgram The n-gram setting for the language model.
+    */
+   public TrainingPipeline setNgram(int newNgram) { ngram = newNgram; return this; }
+
+   /**
+    * How long to wait for training to finish, or null to wait indefinitely. The default
+    * is null.
+    * @see #getTimeout()
+    * @see #setTimeout(Duration)
+    */
+   protected Duration timeout;
+   /**
+    * Getter for {@link #timeout}: How long to wait for training to finish.
+    * @return How long to wait for training to finish, or null to wait indefinitely.
+    */
+   public Duration getTimeout() { return timeout; }
+   /**
+    * Setter for {@link #timeout}: How long to wait for training to finish.
+    * @param newTimeout How long to wait for training to finish, or null to wait
+    * indefinitely.
+    */
+   public TrainingPipeline setTimeout(Duration newTimeout) { timeout = newTimeout; return this; }
+
+   /**
+    * The wall-clock time taken by each stage of the last run, in the order they ran.
+    * @see #getStageTimes()
+    */
+   protected LinkedHashMap<String,Duration> stageTimes = new LinkedHashMap<String,Duration>();
+   /**
+    * Getter for {@link #stageTimes}: The wall-clock time taken by each stage of the last
+    * run, in the order they ran. Stages that were skipped are not included.
+    * @return The time taken by each stage, keyed by stage name - e.g. {@link #DATASET}.
+    */
+   public Map<String,Duration> getStageTimes() { return Collections.unmodifiableMap(stageTimes); }
+
+   /**
+    * The stages skipped in the last run because their output already existed.
+    * @see #getSkipped()
+    */
+   protected LinkedHashSet<String> skipped = new LinkedHashSet<String>();
+   /**
+    * Getter for {@link #skipped}: The stages skipped in the last run because their output
+    * already existed.
+    * @return The names of the skipped stages - e.g. {@link #DATASET_FILES}.
+    */
+   public Set<String> getSkipped() { return Collections.unmodifiableSet(skipped); }
+
+   // Methods:
+
+   /**
+    * Constructor.
+    * @param elpis The server to train the model on.
+    */
+   public TrainingPipeline(Elpis elpis) {
+      this.elpis = elpis;
+   } // end of constructor
+
+   /**
+    * A stage of the pipeline, which may talk to the server.
+    */
+   interface Stage<R> {
+      R run() throws IOException, ElpisException;
+   }
+
+   /**
+    * Runs a stage, recording how long it takes.
+    * @param name The name of the stage.
+    * @param stage The stage to run.
+    * @return The result of the stage.
+    * @throws IOException If a communication error occurs.
+    * @throws ElpisException If the server returns an error.
+    */
+   private <R> R time(String name, Stage<R> stage) throws IOException, ElpisException {
+      long start = System.nanoTime();
+      try {
+         return stage.run();
+      } finally {
+         stageTimes.put(name, Duration.ofNanos(System.nanoTime() - start));
+      }
+   } // end of time()
+
+   /**
+    * Runs client-side work in the background.
+    * @param bulk The executor to run the work on.
+    * @param stage The work to do.
+    * @return The future result.
+    */
+   private <R> CompletableFuture<R> background(BulkExecutor bulk, Stage<R> stage) {
+      return CompletableFuture.supplyAsync(() -> {
+            try {
+               return stage.run();
+            } catch(IOException | ElpisException exception) {
+               throw new CompletionException(exception);
+            }
+         }, bulk.getExecutor());
+   } // end of background()
+
+   /**
+    * Runs the pipeline, skipping stages whose output already exists on the server.
+    * @return The model training results.
+    * @throws IOException If a communication error occurs, or a file can't be read.
+    * @throws ElpisException If the server returns an error, or training fails or times out.
+    * @throws IllegalStateException If the specification is incomplete.
+    */
+   public ModelResults run() throws IOException, ElpisException {
+      if (dataset == null) throw new IllegalStateException("No dataset specified");
+      if (pronDict == null) throw new IllegalStateException("No pronunciation dictionary specified");
+      if (model == null) throw new IllegalStateException("No model specified");
+      stageTimes.clear();
+      skipped.clear();
+
+      try (BulkExecutor bulk = BulkExecutor.virtualThreads(3)) {
+
+         // client-side preparation, which doesn't depend on the server
+         CompletableFuture<List<String>> hashes = files != null && uploadManifest != null?
+            background(bulk, () -> uploadManifest.hash(files))
+            : CompletableFuture.completedFuture(null);
+         CompletableFuture<StagedRequest> l2sRequest = letterToSound != null?
+            background(bulk, () -> new StagedRequest(
+                          elpis.postFiles("pron-dict/l2s", Arrays.asList(letterToSound))))
+            : CompletableFuture.completedFuture(null);
+         try {
+
+            // what's already there?
+            AsyncElpis async = elpis.async();
+            CompletableFuture<List<String>> datasets = async.datasetList();
+            CompletableFuture<List<String>> pronDicts = async.pronDictList();
+            CompletableFuture<List<String>> models = async.modelList();
+            List<List<String>> existing = time(LIST, () -> Arrays.asList(
+                                                  Elpis.await(datasets),
+                                                  Elpis.await(pronDicts),
+                                                  Elpis.await(models)));
+            boolean datasetExists = existing.get(0).contains(dataset);
+            boolean pronDictExists = existing.get(1).contains(pronDict);
+            boolean modelExists = existing.get(2).contains(model);
+
+            // dataset
+            List<File> toUpload = files;
+            boolean prepared = false;
+            if (datasetExists) {
+               JsonObject loaded = time(DATASET, () -> elpis.datasetLoadResult(dataset)
+                                        .getResponse().getData());
+               List<String> uploaded = datasetFiles(loaded);
+               if (files == null) {
+                  if (uploaded.isEmpty()) {
+                     throw new IllegalStateException("No dataset files specified");
+                  }
+                  toUpload = Collections.emptyList();
+               } else if (uploadManifest != null) {
+                  // the manifest knows which files changed, even if their names didn't
+                  Elpis.await(hashes); // so the manifest doesn't hash them again
+                  if (uploadManifest.toSend(files).isEmpty()) toUpload = Collections.emptyList();
+               } else {
+                  toUpload = new Vector<File>();
+                  for (File file : files) {
+                     if (!uploaded.contains(file.getName())) toUpload.add(file);
+                  }
+               }
+               prepared = toUpload.isEmpty() && hasContent(loaded, "wordlist");
+            } else {
+               if (files == null) throw new IllegalStateException("No dataset files specified");
+               time(DATASET, () -> {
+                     elpis.datasetNew(dataset);
+                     if (tier != null) elpis.datasetSettings(tier);
+                     return null; });
+            }
+            List<File> missingFiles = toUpload;
+            if (missingFiles.isEmpty()) {
+               skipped.add(DATASET_FILES);
+            } else {
+               time(DATASET_FILES, () -> {
+                     if (uploadManifest == null) return elpis.datasetFiles(missingFiles);
+                     Elpis.await(hashes); // so the manifest doesn't hash them again
+                     return elpis.datasetFiles(missingFiles, uploadManifest); });
+            }
+            // once a stage has run, later outputs are out of date
+            boolean changed = !prepared;
+            if (prepared) {
+               skipped.add(DATASET_PREPARE);
+            } else {
+               time(DATASET_PREPARE, () -> elpis.datasetPrepareCompact());
+            }
+
+            // pronunciation dictionary
+            boolean hasL2S = false;
+            boolean hasLexicon = false;
+            if (pronDictExists) {
+               JsonObject loaded = time(PRON_DICT, () -> elpis.pronDictLoadResult(pronDict)
+                                        .getResponse().getData());
+               hasL2S = hasContent(loaded, "l2s");
+               hasLexicon = hasContent(loaded, "lexicon");
+            } else {
+               time(PRON_DICT, () -> { elpis.pronDictNew(pronDict, dataset); return null; });
+            }
+            if (hasL2S) {
+               skipped.add(PRON_DICT_L2S);
+            } else {
+               if (letterToSound == null) {
+                  throw new IllegalStateException("No letter-to-sound file specified");
+               }
+               time(PRON_DICT_L2S, () -> elpis.call(
+                       "pronDictL2S", Elpis.await(l2sRequest), true, r -> null));
+               changed = true;
+            }
+            if (hasLexicon && !changed) {
+               skipped.add(PRON_DICT_LEXICON);
+            } else {
+               time(PRON_DICT_LEXICON, () -> {
+                     Map<String,String> generated = elpis.pronDictGenerateLexiconCompact().asMap();
+                     if (lexicon != null) {
+                        elpis.pronDictSaveLexicon(lexicon);
+                     } else {
+                        elpis.pronDictSaveLexicon(
+                           lexiconEditor == null? generated : lexiconEditor.apply(generated));
+                     }
+                     return null;
+                  });
+               changed = true;
+            }
+
+            // model
+            boolean trained = false;
+            if (modelExists) {
+               trained = time(MODEL, () -> {
+                     elpis.modelLoad(model);
+                     return "trained".equals(elpis.modelStatus()); });
+            } else {
+               time(MODEL, () -> {
+                     elpis.modelNew(model, pronDict);
+                     elpis.modelSettings(ngram);
+                     return null; });
+            }
+            trained = trained && !changed;
+            if (trained) {
+               skipped.add(MODEL_TRAIN);
+               skipped.add(MODEL_AWAIT);
+            } else {
+               time(MODEL_TRAIN, () -> {
+                     // the settings may have changed since the model was last trained
+                     if (modelExists) elpis.modelSettings(ngram);
+                     return elpis.modelTrain(); });
+               time(MODEL_AWAIT, () -> elpis.awaitModelTrained(timeout));
+            }
+            return time(MODEL_RESULTS, () -> elpis.modelResultsCompact());
+         } finally {
+            // don't leave background work running if a stage failed
+            hashes.cancel(true);
+            l2sRequest.cancel(true);
+         }
+      }
+   } // end of run()
+
+   /**
+    * Gets the names of the files already uploaded to a dataset.
+    * @param loaded The data returned when the dataset was loaded.
+    * @return The names of the dataset's files, which may be empty.
+    */
+   private static List<String> datasetFiles(JsonObject loaded) {
+      Vector<String> names = new Vector<String>();
+      JsonObject config = loaded == null? null : loaded.getJsonObject("config");
+      JsonArray list = config == null? null : config.getJsonArray("files");
+      if (list != null) {
+         for (JsonValue name : list) {
+            if (name instanceof JsonString) names.add(((JsonString)name).getString());
+         }
+      }
+      return names;
+   } // end of datasetFiles()
+
+   /**
+    * Determines whether data returned when loading a dataset or pronunciation dictionary
+    * includes the given output.
+    * @param loaded The data returned when the dataset/pronunciation dictionary was loaded.
+    * @param key The key of the output - e.g. "wordlist" or "lexicon".
+    * @return true if the output is present and not empty, false otherwise.
+    */
+   private static boolean hasContent(JsonObject loaded, String key) {
+      JsonValue value = loaded == null? null : loaded.get(key);
+      if (value == null) return false;
+      switch (value.getValueType()) {
+         case STRING:
+            String content = ((JsonString)value).getString().trim();
+            return content.length() > 0 && !content.equals("{}");
+         case OBJECT: return !value.asJsonObject().isEmpty();
+         case ARRAY: return !value.asJsonArray().isEmpty();
+         case TRUE: case NUMBER: return true;
+         default: return false;
+      }
+   } // end of hasContent()
+
+   /**
+    * String representation of the pipeline, listing the time taken by each stage of the
+    * last run.
+    * @return A String representation of the pipeline.
+    */
+   public String toString() {
+      StringBuilder s = new StringBuilder();
+      s.append(dataset).append(" > ").append(pronDict).append(" > ").append(model);
+      for (Map.Entry<String,Duration> stage : stageTimes.entrySet()) {
+         s.append("\n").append(stage.getKey()).append(": ")
+            .append(stage.getValue().toMillis()).append("ms");
+      } // next stage
+      for (String stage : skipped) {
+         s.append("\n").append(stage).append(": skipped");
+      } // next skipped stage
+      return s.toString();
+   } // end of toString()
+
+} // end of class TrainingPipeline
@@ -0,0 +1,795 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import nzilbb.elpis.http.StagedRequest;
+import nzilbb.elpis.http.TransportRequest;
+
+/**
+ * Transcribes many recordings, using one or more Elpis servers, writing the transcripts
+ * to an output directory.
+ * <p> Each server works through the queue one recording at a time, uploading it
+ * with {@link Elpis#transcriptionNew(File)}, starting transcription, waiting for it to
+ * finish, and then saving the plain-text (<tt>.txt</tt>) and ELAN (<tt>.eaf</tt>)
+ * transcripts, named after the recording. As soon as one recording's transcripts have
+ * been saved, the next recording is uploaded. Transcripts are all saved in the same
+ * directory, so recordings must have distinct names, not counting their extension.
+ * <p> In {@link #getPipeline()} mode (the default), while the server transcribes one
+ * recording, the next recording is read, hashed, and encoded into a request in advance,
+ * so that it can be uploaded the moment the previous transcripts have been saved. This
+ * reduces the time that the server sits idle between recordings, particularly for
+ * short recordings, or recordings on slow storage.
+ * <p> The progress of each recording is recorded in a queue file, so if the process is
+ * stopped part way through, a new TranscriptionQueue for the same queue file carries on
+ * where the last one left off. Recordings that were in progress at the time are
+ * transcribed again.
+ * <p> e.g.
+ * <pre>
+ * try (TranscriptionQueue queue = new TranscriptionQueue(
+ *         new File("queue.tsv"), new File("transcripts"),
+ *         Arrays.asList(new Elpis("http://elpis1:5000"), new Elpis("http://elpis2:5000")))) {
+ *   queue.add(recordings);
+ *   queue.run();
+ *   for (TranscriptionQueue.Stats stats : queue.getStats()) System.out.println(stats);
+ * }
+ * </pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TranscriptionQueue implements AutoCloseable {
+
+   /** State of a recording that hasn't been transcribed yet */
+   public static final String QUEUED = "queued";
+   /** State of a recording that is being transcribed */
+   public static final String STARTED = "started";
+   /** State of a recording whose transcripts have been saved */
+   public static final String DONE = "done";
+   /**
+    * State of a recording that the server failed to transcribe, or that couldn't be read,
+    * or whose transcripts couldn't be saved
+    */
+   public static final String FAILED = "failed";
+
+   /**
+    * A recording in the queue.
+    */
+   static class Entry {
+      File recording;
+      String state;
+      String detail;
+      Entry(File recording, String state) {
+         this.recording = recording;
+         this.state = state;
+      }
+   }
+
+   /**
+    * A failure to read a recording or write a transcript, as opposed to a failure to
+    * communicate with the server.
+    */
+   static class LocalIOException extends IOException {
+      private static final long serialVersionUID = 1;
+      LocalIOException(String message, IOException cause) {
+         super(message + ": " + cause.getMessage(), cause);
+      }
+   }
+
+   /**
+    * An upload request prepared in advance.
+    */
+   static class Staged {
+      TransportRequest request;
+      String hash;
+      boolean inAdvance;
+   }
+
+   /**
+    * Throughput and latency statistics for one server.
+    */
+   public static class Stats {
+      String endpoint;
+      int completed;
+      int failed;
+      int staged;
+      long uploadNanos;
+      long decodeNanos;
+      long fetchNanos;
+      long maxLatencyNanos;
+      long startNanos;
+      long finishNanos;
+      Exception lastError;
+
+      Stats(String endpoint) { this.endpoint = endpoint; }
+
+      /**
+       * The base URL of the server.
+       * @return The base URL of the server.
+       */
+      public String getEndpoint() { return endpoint; }
+
+      /**
+       * The number of recordings transcribed.
+       * @return The number of recordings transcribed.
+       */
+      public synchronized int getCompleted() { return completed; }
+
+      /**
+       * The number of recordings the server failed to transcribe, including those that
+       * couldn't be read, or whose transcripts couldn't be saved.
+       * @return The number of recordings that failed.
+       */
+      public synchronized int getFailed() { return failed; }
+
+      /**
+       * The number of recordings whose upload was prepared while the server was
+       * transcribing the previous recording.
+       * @return The number of recordings prepared in advance.
+       */
+      public synchronized int getStaged() { return staged; }
+
+      /**
+       * The error that stopped the server being used, if any.
+       * @return The error that stopped the server being used, or null.
+       */
+      public synchronized Exception getLastError() { return lastError; }
+
+      /**
+       * The mean time taken to transcribe a recording, from the start of the upload to
+       * when the transcripts are saved.
+       * @return The mean latency in milliseconds, or 0 if nothing has been transcribed.
+       */
+      public synchronized long getMeanLatencyMillis() {
+         if (completed == 0) return 0;
+         return (uploadNanos + decodeNanos + fetchNanos) / completed / 1000000L;
+      }
+
+      /**
+       * The longest time taken to transcribe a recording.
+       * @return The maximum latency in milliseconds.
+       */
+      public synchronized long getMaxLatencyMillis() { return maxLatencyNanos / 1000000L; }
+
+      /**
+       * The mean time spent uploading each recording.
+       * @return The mean upload time in milliseconds.
+       */
+      public synchronized long getMeanUploadMillis() {
+         return completed == 0? 0 : uploadNanos / completed / 1000000L;
+      }
+
+      /**
+       * The mean time spent waiting for the server to transcribe each recording.
+       * @return The mean transcription time in milliseconds.
+       */
+      public synchronized long getMeanDecodeMillis() {
+         return completed == 0? 0 : decodeNanos / completed / 1000000L;
+      }
+
+      /**
+       * The mean time spent fetching and saving the transcripts of each recording.
+       * @return The mean fetch time in milliseconds.
+       */
+      public synchronized long getMeanFetchMillis() {
+         return completed == 0? 0 : fetchNanos / completed / 1000000L;
+      }
+
+      /**
+       * The number of recordings transcribed per hour, while the server was in use.
+       * @return The number of recordings transcribed per hour.
+       */
+      public synchronized double getThroughputPerHour() {
+         long elapsed = (finishNanos > 0? finishNanos : System.nanoTime()) - startNanos;
+         if (startNanos == 0 || elapsed <= 0) return 0;
+         return completed * 3600e9 / elapsed;
+      }
+
+      /**
+       * Records the timing of a completed recording.
+       */
+      synchronized void record(long upload, long decode, long fetch, boolean inAdvance) {
+         completed++;
+         if (inAdvance) staged++;
+         uploadNanos += upload;
+         decodeNanos += decode;
+         fetchNanos += fetch;
+         maxLatencyNanos = Math.max(maxLatencyNanos, upload + decode + fetch);
+      }
+
+      /**
+       * String representation of the statistics.
+       * @return A String representation of the statistics.
+       */
+      public synchronized String toString() {
+         return endpoint + ": " + completed + " transcribed (" + staged + " staged), "
+            + failed + " failed, "
+            + Math.round(getThroughputPerHour()) + "/hour, mean latency "
+            + getMeanLatencyMillis() + "ms (upload " + getMeanUploadMillis()
+            + "ms, transcribe " + getMeanDecodeMillis() + "ms, fetch " + getMeanFetchMillis()
+            + "ms), max " + getMaxLatencyMillis() + "ms"
+            + (lastError != null? ", stopped: " + lastError : "");
+      }
+   } // end of class Stats
+
+   // Attributes:
+
+   /**
+    * The file that records the progress of each recording.
+    * @see #getQueueFile()
+    */
+   protected File queueFile;
+   /**
+    * Getter for {@link #queueFile}: The file that records the progress of each recording.
+    * @return The file that records the progress of each recording.
+    */
+   public File getQueueFile() { return queueFile; }
+
+   /**
+    * The directory transcripts are saved in.
+    * @see #getOutputDirectory()
+    */
+   protected File outputDirectory;
+   /**
+    * Getter for {@link #outputDirectory}: The directory transcripts are saved in.
+    * @return The directory transcripts are saved in.
+    */
+   public File getOutputDirectory() { return outputDirectory; }
+
+   /**
+    * How long to wait for each transcription to finish. The default is 1 hour.
+    * @see #getTimeout()
+    * @see #setTimeout(Duration)
+    */
+   protected Duration timeout = Duration.ofHours(1);
+   /**
+    * Getter for {@link #timeout}: How long to wait for each transcription to finish.
+    * @return How long to wait for each transcription to finish.
+    */
+   public Duration getTimeout() { return timeout; }
+   /**
+    * Setter for {@link #timeout}: How long to wait for each transcription to finish.
+    * @param newTimeout How long to wait for each transcription to finish.
+    */
+   public TranscriptionQueue setTimeout(Duration newTimeout) { timeout = newTimeout; return this; }
+
+   /**
+    * Whether to prepare the next upload while the server is transcribing. The default
+    * is true.
+    * @see #getPipeline()
+    * @see #setPipeline(boolean)
+    */
+   protected boolean pipeline = true;
+   /**
+    * Getter for {@link #pipeline}: Whether to prepare the next upload while the server
+    * is transcribing.
+    * @return Whether to prepare the next upload while the server is transcribing.
+    */
+   public boolean getPipeline() { return pipeline; }
+   /**
+    * Setter for {@link #pipeline}: Whether to prepare the next upload while the server
+    * is transcribing.
+    * @param newPipeline Whether to prepare the next upload while the server is
+    * transcribing.
+    */
+   public TranscriptionQueue setPipeline(boolean newPipeline) { pipeline = newPipeline; return this; }
+
+   /**
+    * The largest recording whose upload is encoded in memory in advance. Larger
+    * recordings are only read and hashed in advance, and are uploaded directly from the
+    * file. The default is 64MB.
+    * @see #getStageLimit()
+    * @see #setStageLimit(long)
+    */
+   protected long stageLimit = 64L * 1024L * 1024L;
+   /**
+    * Getter for {@link #stageLimit}: The largest recording whose upload is encoded in
+    * memory in advance.
+    * @return The largest recording whose upload is encoded in memory in advance, in bytes.
+    */
+   public long getStageLimit() { return stageLimit; }
+   /**
+    * Setter for {@link #stageLimit}: The largest recording whose upload is encoded in
+    * memory in advance.
+    * @param newStageLimit The largest recording whose upload is encoded in memory in
+    * advance, in bytes.
+    */
+   public TranscriptionQueue setStageLimit(long newStageLimit) { stageLimit = newStageLimit; return this; }
+
+   /** The servers to use */
+   private List<Elpis> endpoints;
+
+   /** Statistics for each server, in the same order as {@link #endpoints} */
+   private List<Stats> stats = new Vector<Stats>();
+
+   /** All recordings, keyed by absolute path */
+   private LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>();
+
+   /** All recordings, keyed by the name of their transcripts */
+   private HashMap<String,Entry> outputs = new HashMap<String,Entry>();
+
+   /** Recordings waiting to be transcribed */
+   private ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+
+   /**
+    * The number of workers with a recording in hand, which they might put back in the
+    * queue
+    */
+   private int busy = 0;
+
+   /** Writer that appends changes to the queue file */
+   private BufferedWriter journal;
+
+   // Methods:
+
+   /**
+    * Constructor. If the queue file exists, the state of the queue is loaded from it.
+    * @param queueFile The file that records the progress of each recording.
+    * @param outputDirectory The directory to save transcripts in.
+    * @param endpoints The servers to use.
+    * @throws IOException If the queue file can't be read or written.
+    */
+   public TranscriptionQueue(File queueFile, File outputDirectory, List<Elpis> endpoints)
+      throws IOException {
+      if (endpoints.size() == 0) throw new IllegalArgumentException("No servers specified");
+      this.queueFile = queueFile;
+      this.outputDirectory = outputDirectory;
+      this.endpoints = endpoints;
+      for (Elpis elpis : endpoints) stats.add(new Stats(elpis.getBaseUrl().toString()));
+      if (queueFile.exists()) load();
+      compact();
+      journal = Files.newBufferedWriter(
+         queueFile.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+   } // end of constructor
+
+   /**
+    * Reads the queue file, in which each line is a change of state of a recording, so
+    * the last line for each recording determines its state. Recordings that were
+    * started but not finished are queued again.
+    * @throws IOException If the file can't be read.
+    */
+   private void load() throws IOException {
+      try (BufferedReader reader = Files.newBufferedReader(
+              queueFile.toPath(), StandardCharsets.UTF_8)) {
+         String line = reader.readLine();
+         while (line != null) {
+            String[] fields = line.split("\t", 3);
+            if (fields.length >= 2 && !line.startsWith("#")) {
+               Entry entry = entries.computeIfAbsent(
+                  fields[1], path -> new Entry(new File(path), QUEUED));
+               entry.state = fields[0].equals(STARTED)? QUEUED : fields[0];
+               entry.detail = fields.length > 2? fields[2] : null;
+            }
+            line = reader.readLine();
+         } // next line
+      }
+      for (Entry entry : entries.values()) {
+         outputs.putIfAbsent(UploadShards.pairKey(entry.recording), entry);
+         if (QUEUED.equals(entry.state)) pending.add(entry);
+      }
+   } // end of load()
+
+   /**
+    * Rewrites the queue file with one line per recording.
+    * @throws IOException If the file can't be written.
+    */
+   private void compact() throws IOException {
+      if (queueFile.getAbsoluteFile().getParentFile() != null) {
+         queueFile.getAbsoluteFile().getParentFile().mkdirs();
+      }
+      File temp = new File(queueFile.getPath() + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+         for (Entry entry : entries.values()) writer.write(line(entry));
+      }
+      Files.move(temp.toPath(), queueFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+   } // end of compact()
+
+   /**
+    * Formats an entry as a line of the queue file.
+    * @param entry The entry.
+    * @return The line, including the line terminator.
+    */
+   private static String line(Entry entry) {
+      return entry.state + "\t" + entry.recording.getAbsolutePath()
+         + (entry.detail != null? "\t" + entry.detail.replaceAll("[\t\r\n]", " ") : "") + "\n";
+   } // end of line()
+
+   /**
+    * Changes the state of the given entry, and records the change in the queue file.
+    * @param entry The entry.
+    * @param state The new state.
+    * @param detail The server (for {@link #STARTED}), error (for {@link #FAILED}), or null.
+    * @throws IOException If the queue file can't be written.
+    */
+   private synchronized void setState(Entry entry, String state, String detail)
+      throws IOException {
+      entry.state = state;
+      entry.detail = detail;
+      journal.write(line(entry));
+      journal.flush();
+   } // end of setState()
+
+   /**
+    * Adds recordings to the queue. Recordings that are already in the queue, including
+    * those already transcribed, are not added again.
+    * <p> Transcripts are named after the recording, without its extension, so if any of
+    * the recordings has the same name as a different recording in the queue, or in the
+    * given list, none of them are added.
+    * @param recordings The audio files to transcribe.
+    * @return The number of recordings added.
+    * @throws IOException If the queue file can't be written.
+    * @throws IllegalArgumentException If two recordings would have the same transcript
+    * names.
+    */
+   public synchronized int add(List<File> recordings) throws IOException {
+      HashMap<String,File> names = new HashMap<String,File>();
+      for (File recording : recordings) {
+         String path = recording.getAbsolutePath();
+         if (entries.containsKey(path)) continue;
+         String name = UploadShards.pairKey(recording);
+         Entry existing = outputs.get(name);
+         File other = existing != null? existing.recording : names.get(name);
+         if (other != null && !other.getAbsolutePath().equals(path)) {
+            throw new IllegalArgumentException(
+               "Transcripts of " + path + " would overwrite those of " + other.getPath());
+         }
+         names.put(name, recording.getAbsoluteFile());
+      } // next recording
+      
+      int added = 0;
+      for (File recording : recordings) {
+         String path = recording.getAbsolutePath();
+         if (entries.containsKey(path)) continue;
+         Entry entry = new Entry(recording.getAbsoluteFile(), QUEUED);
+         entries.put(path, entry);
+         outputs.put(UploadShards.pairKey(recording), entry);
+         pending.add(entry);
+         journal.write(line(entry));
+         added++;
+      } // next recording
+      journal.flush();
+      notifyAll();
+      return added;
+   } // end of add()
+
+   /**
+    * Adds recordings that previously failed back into the queue.
+    * @return The number of recordings requeued.
+    * @throws IOException If the queue file can't be written.
+    */
+   public synchronized int retryFailed() throws IOException {
+      int requeued = 0;
+      for (Entry entry : entries.values()) {
+         if (FAILED.equals(entry.state)) {
+            setState(entry, QUEUED, null);
+            pending.add(entry);
+            requeued++;
+         }
+      } // next entry
+      notifyAll();
+      return requeued;
+   } // end of retryFailed()
+
+   /**
+    * Counts the recordings in the given state.
+    * @param state {@link #QUEUED}, {@link #STARTED}, {@link #DONE}, or {@link #FAILED}.
+    * @return The number of recordings in that state.
+    */
+   public synchronized int count(String state) {
+      int count = 0;
+      for (Entry entry : entries.values()) if (state.equals(entry.state)) count++;
+      return count;
+   } // end of count()
+
+   /**
+    * Gets the statistics for each server.
+    * @return Statistics for each server, in the order the servers were given.
+    */
+   public List<Stats> getStats() {
+      return Collections.unmodifiableList(stats);
+   } // end of getStats()
+
+   /**
+    * Transcribes all queued recordings, using all servers concurrently, and returns once
+    * the queue is empty.
+    * <p> If a server returns an error for a recording, or the recording can't be read, or
+    * its transcripts can't be saved, the recording is marked as {@link #FAILED} and the
+    * server moves on to the next one. If a communication error occurs, the recording is
+    * put back in the queue, and the server is not used again during this run. Servers
+    * that have run out of recordings wait until all recordings in progress are finished,
+    * so requeued recordings are picked up by any server still in use.
+    * @return The number of recordings still queued, which is 0 unless communication with
+    * every server failed.
+    * @throws IOException If the queue file can't be written.
+    */
+   public int run() throws IOException {
+      Vector<Integer> workers = new Vector<Integer>();
+      for (int e = 0; e < endpoints.size(); e++) workers.add(e);
+      try (BulkExecutor bulk = BulkExecutor.virtualThreads(endpoints.size());
+           BulkExecutor stager = BulkExecutor.virtualThreads(endpoints.size())) {
+         bulk.map(workers, e -> work(endpoints.get(e), stats.get(e), stager));
+      } catch(ElpisException exception) { // work() handles these
+         throw new IOException(exception);
+      }
+      synchronized (this) {
+         return pending.size();
+      }
+   } // end of run()
+
+   /**
+    * Takes the next recording from the queue, without waiting.
+    * @return The next recording, or null if the queue is empty.
+    */
+   private synchronized Entry next() {
+      return pending.poll();
+   } // end of next()
+
+   /**
+    * Takes the next recording from the queue for a worker. If the queue is empty but
+    * other workers are busy, this waits until they're finished, in case they put their
+    * recordings back in the queue. The worker must call {@link #release()} when it has
+    * finished with the recording.
+    * @return The next recording, or null if the queue is empty and no workers are busy.
+    * @throws InterruptedIOException If the thread is interrupted while waiting.
+    */
+   private synchronized Entry take() throws InterruptedIOException {
+      while (pending.isEmpty() && busy > 0) {
+         try {
+            wait();
+         } catch(InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for recordings");
+         }
+      } // wait
+      Entry entry = pending.poll();
+      if (entry != null) busy++;
+      return entry;
+   } // end of take()
+
+   /**
+    * Records that a worker has finished with the recording it took with {@link #take()}.
+    */
+   private synchronized void release() {
+      busy--;
+      notifyAll();
+   } // end of release()
+
+   /**
+    * Transcribes queued recordings with the given server, until the queue is empty.
+    * @param elpis The server.
+    * @param stats Statistics for the server.
+    * @param stager Executor for preparing uploads in advance.
+    * @return null.
+    * @throws IOException If the queue file can't be written.
+    */
+   private Void work(Elpis elpis, Stats stats, BulkExecutor stager) throws IOException {
+      synchronized (stats) {
+         stats.startNanos = System.nanoTime();
+         stats.finishNanos = 0;
+         stats.lastError = null;
+      }
+      Entry entry = null;
+      try {
+         entry = take();
+         CompletableFuture<Staged> staged = null;
+         while (entry != null) {
+            Entry following = null;
+            CompletableFuture<Staged> followingStaged = null;
+            try {
+               if (!entry.recording.exists()) {
+                  setState(entry, FAILED, "File not found");
+                  synchronized (stats) {
+                     stats.failed++;
+                  }
+               } else {
+                  setState(entry, STARTED, stats.endpoint);
+                  long start = System.nanoTime();
+                  Staged upload = staged != null? staged(staged) : null;
+                  if (upload == null) upload = stage(elpis, entry.recording);
+                  elpis.transcriptionNewResult(upload.request);
+                  long uploaded = System.nanoTime();
+                  elpis.transcriptionTranscribe();
+                  if (pipeline) { // prepare the next upload while the server is busy
+                     following = next();
+                     if (following != null) {
+                        followingStaged = stage(elpis, following.recording, stager);
+                     }
+                  }
+                  elpis.awaitTranscribed(timeout);
+                  long decoded = System.nanoTime();
+                  saveTranscripts(elpis, entry.recording);
+                  long fetched = System.nanoTime();
+                  setState(entry, DONE, upload.hash);
+                  stats.record(uploaded - start, decoded - uploaded, fetched - decoded,
+                               upload.inAdvance);
+               }
+            } catch(ElpisException | LocalIOException exception) {
+               setState(entry, FAILED, exception.getMessage());
+               synchronized (stats) {
+                  stats.failed++;
+               }
+            } catch(IOException exception) {
+               // give the recordings to another server, and stop using this one
+               synchronized (this) {
+                  if (following != null) {
+                     if (followingStaged != null) followingStaged.cancel(true);
+                     pending.addFirst(following);
+                  }
+                  setState(entry, QUEUED, null);
+                  pending.addFirst(entry);
+               }
+               synchronized (stats) {
+                  stats.lastError = exception;
+               }
+               return null; // finally releases the entry, waking any waiting workers
+            }
+            staged = followingStaged;
+            if (following != null) { // still busy
+               entry = following;
+            } else {
+               entry = null;
+               release();
+               entry = take();
+            }
+         } // next recording
+      } finally {
+         if (entry != null) release();
+         synchronized (stats) {
+            stats.finishNanos = System.nanoTime();
+         }
+      }
+      return null;
+   } // end of work()
+
+   /**
+    * Prepares the upload of the given recording in the background.
+    * @param elpis The server the recording will be uploaded to.
+    * @param recording The recording.
+    * @param stager Executor for preparing the upload.
+    * @return The future prepared upload.
+    */
+   private CompletableFuture<Staged> stage(Elpis elpis, File recording, BulkExecutor stager) {
+      return CompletableFuture.supplyAsync(() -> {
+            try {
+               Staged staged = stage(elpis, recording);
+               staged.inAdvance = true;
+               return staged;
+            } catch(IOException exception) {
+               throw new CompletionException(exception);
+            }
+         }, stager.getExecutor());
+   } // end of stage()
+
+   /**
+    * Prepares the upload of the given recording: computes its hash, and, if it's not
+    * larger than {@link #stageLimit}, encodes the request body in memory.
+    * <p> Hashing reads the whole file, so even when a recording is too large to encode in
+    * memory, its content is likely to be cached by the operating system when it's
+    * uploaded.
+    * @param elpis The server the recording will be uploaded to.
+    * @param recording The recording.
+    * @return The prepared upload.
+    * @throws LocalIOException If the recording can't be read.
+    */
+   private Staged stage(Elpis elpis, File recording) throws LocalIOException {
+      try {
+         Staged staged = new Staged();
+         staged.hash = UploadManifest.sha256(recording);
+         staged.request = elpis.transcriptionNewRequest(recording);
+         if (recording.length() <= stageLimit) staged.request = new StagedRequest(staged.request);
+         return staged;
+      } catch(IOException exception) {
+         throw new LocalIOException("Could not read " + recording.getPath(), exception);
+      }
+   } // end of stage()
+
+   /**
+    * Gets an upload that was prepared in advance.
+    * @param staged The future prepared upload.
+    * @return The prepared upload, or null if it couldn't be prepared.
+    */
+   private Staged staged(CompletableFuture<Staged> staged) {
+      try {
+         return staged.join();
+      } catch(RuntimeException exception) { // e.g. the file changed; try again
+         return null;
+      }
+   } // end of staged()
+
+   /**
+    * Saves the transcripts of the given recording in the {@link #outputDirectory}.
+    * @param elpis The server that transcribed the recording.
+    * @param recording The recording.
+    * @throws LocalIOException if a transcript can't be written.
+    * @throws IOException if a communication error occurs.
+    * @throws ElpisException if the server returns an error.
+    */
+   private void saveTranscripts(Elpis elpis, File recording) throws IOException, ElpisException {
+      outputDirectory.mkdirs();
+      String name = UploadShards.pairKey(recording);
+      try (OutputStream text = output(new File(outputDirectory, name + ".txt"))) {
+         elpis.transcriptionText(text);
+      }
+      try (OutputStream elan = output(new File(outputDirectory, name + ".eaf"))) {
+         elpis.transcriptionElan(elan);
+      }
+   } // end of saveTranscripts()
+
+   /**
+    * Opens a transcript file for writing, so that failures to write it are reported as
+    * {@link LocalIOException}s, distinguishing them from failures to download it.
+    * @param file The file to write.
+    * @return A stream for writing to the file.
+    * @throws LocalIOException If the file can't be opened.
+    */
+   private static OutputStream output(File file) throws LocalIOException {
+      String message = "Could not write " + file.getPath();
+      try {
+         return new FilterOutputStream(new FileOutputStream(file)) {
+            public void write(int b) throws IOException {
+               try {
+                  out.write(b);
+               } catch(IOException exception) {
+                  throw new LocalIOException(message, exception);
+               }
+            }
+            public void write(byte[] b, int off, int len) throws IOException {
+               try {
+                  out.write(b, off, len);
+               } catch(IOException exception) {
+                  throw new LocalIOException(message, exception);
+               }
+            }
+            public void close() throws IOException {
+               try {
+                  out.close();
+               } catch(IOException exception) {
+                  throw new LocalIOException(message, exception);
+               }
+            }
+         };
+      } catch(IOException exception) {
+         throw new LocalIOException(message, exception);
+      }
+   } // end of output()
+
+   /**
+    * Closes the queue file.
+    * @throws IOException If the queue file can't be closed.
+    */
+   public synchronized void close() throws IOException {
+      journal.close();
+   } // end of close()
+
+   /**
+    * String representation of the queue.
+    * @return A String representation of the queue.
+    */
+   public synchronized String toString() {
+      return queueFile.getPath() + ": " + pending.size() + " queued, " + count(DONE)
+         + " done, " + count(FAILED) + " failed";
+   } // end of toString()
+
+} // end of class TranscriptionQueue
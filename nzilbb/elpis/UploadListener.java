@@ -0,0 +1,49 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Receives progress notifications as shards of dataset files are uploaded by
+ * {@link Elpis#datasetFiles(List)}.
+ * <p> Shards are uploaded concurrently, so these methods may be called from several
+ * threads at once.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public interface UploadListener {
+
+   /**
+    * Called when a shard starts uploading.
+    * @param shard The index of the shard, starting from 0.
+    * @param shardCount The total number of shards.
+    * @param files The files in the shard.
+    * @param bytes The total size of the files in the shard.
+    */
+   default void shardStarted(int shard, int shardCount, List<File> files, long bytes) {}
+
+   /**
+    * Called when a shard has been uploaded successfully.
+    * @param shard The index of the shard, starting from 0.
+    * @param shardCount The total number of shards.
+    * @param files The files in the shard.
+    * @param bytes The total size of the files in the shard.
+    * @param durationNanos How long the upload took, in nanoseconds.
+    */
+   default void shardUploaded(
+      int shard, int shardCount, List<File> files, long bytes, long durationNanos) {}
+
+   /**
+    * Called when a shard fails to upload.
+    * @param shard The index of the shard, starting from 0.
+    * @param shardCount The total number of shards.
+    * @param files The files in the shard.
+    * @param exception The cause of the failure.
+    */
+   default void shardFailed(int shard, int shardCount, List<File> files, Exception exception) {}
+   
+} // end of interface UploadListener
@@ -0,0 +1,393 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local record of the dataset files uploaded to a particular Elpis server and dataset,
+ * so that an interrupted upload can be resumed without re-sending files the server
+ * already has.
+ * <p> Each file is identified by its name - which is what the server uses - and its
+ * content is identified by its size and SHA-256 hash. A file is skipped only if the
+ * server has acknowledged receiving it (by listing it in the <q>files</q> returned by
+ * {@link Elpis#datasetFiles(List,UploadManifest)}), and its content hasn't changed since.
+ * <p> The manifest is saved as a tab-separated text file in the cache directory, one
+ * file per server and dataset, and is updated as each batch of files is acknowledged.
+ * <p> e.g.
+ * <pre>
+ * Elpis elpis = new Elpis("http://localhost:5000");
+ * UploadManifest manifest = UploadManifest.forDataset(elpis, "my-dataset");
+ * elpis.datasetFiles(files, manifest); // if this fails, call again to resume
+ * </pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class UploadManifest {
+
+   /** Upload state of a file that has been sent, but not acknowledged by the server */
+   public static final String SENT = "sent";
+
+   /** Upload state of a file that the server has listed as received */
+   public static final String ACKNOWLEDGED = "acknowledged";
+
+   /** Size of the buffer used for hashing */
+   static final int BUFFER_SIZE = 65536;
+
+   /**
+    * The record of a single file.
+    */
+   public static class Entry {
+      String name;
+      long size;
+      String hash;
+      String state;
+
+      /**
+       * The name of the file.
+       * @return The name of the file.
+       */
+      public String getName() { return name; }
+
+      /**
+       * The size of the file in bytes.
+       * @return The size of the file in bytes.
+       */
+      public long getSize() { return size; }
+
+      /**
+       * The SHA-256 hash of the file's content, as hexadecimal.
+       * @return The SHA-256 hash of the file's content.
+       */
+      public String getHash() { return hash; }
+
+      /**
+       * The upload state; {@link #SENT} or {@link #ACKNOWLEDGED}.
+       * @return The upload state.
+       */
+      public String getState() { return state; }
+
+      /**
+       * String representation of the entry.
+       * @return A String representation of the entry.
+       */
+      public String toString() {
+         return name + " (" + size + " bytes, " + state + ")";
+      }
+   } // end of class Entry
+
+   // Attributes:
+
+   /**
+    * The file the manifest is saved in.
+    * @see #getFile()
+    */
+   protected File file;
+   /**
+    * Getter for {@link #file}: The file the manifest is saved in.
+    * @return The file the manifest is saved in.
+    */
+   public File getFile() { return file; }
+
+   /**
+    * The base URL of the server the files are uploaded to.
+    * @see #getBaseUrl()
+    */
+   protected String baseUrl;
+   /**
+    * Getter for {@link #baseUrl}: The base URL of the server the files are uploaded to.
+    * @return The base URL of the server the files are uploaded to.
+    */
+   public String getBaseUrl() { return baseUrl; }
+
+   /**
+    * The name of the dataset the files are uploaded to.
+    * @see #getDataset()
+    */
+   protected String dataset;
+   /**
+    * Getter for {@link #dataset}: The name of the dataset the files are uploaded to.
+    * @return The name of the dataset the files are uploaded to.
+    */
+   public String getDataset() { return dataset; }
+
+   /**
+    * How many files may be hashed at once. The default is the number of processors.
+    * @see #getHashThreads()
+    * @see #setHashThreads(int)
+    */
+   protected int hashThreads = Runtime.getRuntime().availableProcessors();
+   /**
+    * Getter for {@link #hashThreads}: How many files may be hashed at once.
+    * @return How many files may be hashed at once.
+    */
+   public int getHashThreads() { return hashThreads; }
+   /**
+    * Setter for {@link #hashThreads}: How many files may be hashed at once.
+    * @param newHashThreads How many files may be hashed at once.
+    */
+   public UploadManifest setHashThreads(int newHashThreads) { hashThreads = newHashThreads; return this; }
+
+   /** Entries, keyed by file name */
+   private LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>();
+
+   /**
+    * Hashes computed by this object, keyed by path, size, and modification time, so
+    * files can be hashed in advance of {@link #toSend(List)}.
+    */
+   private ConcurrentHashMap<String,String> hashCache = new ConcurrentHashMap<String,String>();
+
+   // Methods:
+
+   /**
+    * Opens the manifest for the given dataset on the given server, in the default cache
+    * directory, <tt>.elpis/uploads</tt> in the user's home directory.
+    * @param elpis The server the files are uploaded to.
+    * @param dataset The name of the dataset the files are uploaded to.
+    * @return The manifest, which is empty if no files have been uploaded before.
+    * @throws IOException If the manifest exists but can't be read.
+    */
+   public static UploadManifest forDataset(Elpis elpis, String dataset) throws IOException {
+      File cache = new File(new File(System.getProperty("user.home"), ".elpis"), "uploads");
+      return new UploadManifest(cache, elpis.getBaseUrl().toString(), dataset);
+   } // end of forDataset()
+
+   /**
+    * Constructor, which loads the manifest if it has been saved before.
+    * @param cacheDirectory The directory manifests are saved in.
+    * @param baseUrl The base URL of the server the files are uploaded to.
+    * @param dataset The name of the dataset the files are uploaded to.
+    * @throws IOException If the manifest exists but can't be read.
+    */
+   public UploadManifest(File cacheDirectory, String baseUrl, String dataset)
+      throws IOException {
+      this.baseUrl = baseUrl;
+      this.dataset = dataset;
+      this.file = new File(cacheDirectory, cacheFileName(baseUrl, dataset));
+      if (file.exists()) load();
+   } // end of constructor
+
+   /**
+    * Determines the name of the cache file for the given server and dataset, pronunciation
+    * dictionary, etc.
+    * <p> The name starts with a readable version of the URL and name, with characters
+    * that aren't safe in file names replaced, but different pairs can have the same
+    * readable version - e.g. "a/b" and "a_b" - so it ends with a hash of the exact pair.
+    * @param baseUrl The base URL of the server.
+    * @param name The name of the object on the server.
+    * @return A file name that's different for every server/name pair.
+    */
+   static String cacheFileName(String baseUrl, String name) {
+      String readable = (baseUrl + "-" + name).replaceAll("[^A-Za-z0-9._-]", "_");
+      if (readable.length() > 100) readable = readable.substring(0, 100);
+      MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      } catch(NoSuchAlgorithmException exception) { // every JVM must support SHA-256
+         throw new IllegalStateException(exception);
+      }
+      // prefix the URL with its length, so the boundary between the parts is unambiguous
+      byte[] hash = digest.digest(
+         (baseUrl.length() + ":" + baseUrl + name).getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (int b = 0; b < 8; b++) hex.append(String.format("%02x", hash[b]));
+      return readable + "-" + hex + ".tsv";
+   } // end of cacheFileName()
+
+   /**
+    * Reads the entries from {@link #file}.
+    * @throws IOException If the file can't be read.
+    */
+   private void load() throws IOException {
+      try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+         String line = reader.readLine();
+         while (line != null) {
+            if (!line.startsWith("#")) {
+               String[] fields = line.split("\t", 4);
+               if (fields.length == 4) {
+                  Entry entry = new Entry();
+                  entry.state = fields[0];
+                  entry.size = Long.parseLong(fields[1]);
+                  entry.hash = fields[2];
+                  entry.name = fields[3];
+                  entries.put(entry.name, entry);
+               }
+            }
+            line = reader.readLine();
+         } // next line
+      }
+   } // end of load()
+
+   /**
+    * Writes the entries to {@link #file}, replacing the previous version only once the
+    * new version has been completely written.
+    * @throws IOException If the file can't be written.
+    */
+   public synchronized void save() throws IOException {
+      file.getParentFile().mkdirs();
+      File temp = new File(file.getPath() + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+         writer.write("# " + baseUrl + "\t" + dataset);
+         writer.newLine();
+         for (Entry entry : entries.values()) {
+            writer.write(entry.state + "\t" + entry.size + "\t" + entry.hash + "\t" + entry.name);
+            writer.newLine();
+         } // next entry
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+   } // end of save()
+
+   /**
+    * Gets the entry for the given file name.
+    * @param name The file name.
+    * @return The entry, or null if the file has never been sent.
+    */
+   public synchronized Entry getEntry(String name) {
+      return entries.get(name);
+   } // end of getEntry()
+
+   /**
+    * Lists all files that the server has acknowledged.
+    * @return The names of all acknowledged files.
+    */
+   public synchronized List<String> getAcknowledged() {
+      Vector<String> names = new Vector<String>();
+      for (Entry entry : entries.values()) {
+         if (ACKNOWLEDGED.equals(entry.state)) names.add(entry.name);
+      }
+      return names;
+   } // end of getAcknowledged()
+
+   /**
+    * Determines which of the given files must be sent, because they've never been
+    * acknowledged by the server, or their content has changed since.
+    * <p> Files are hashed concurrently, using up to {@link #hashThreads} threads.
+    * @param files The files to upload.
+    * @return The files that must be sent, in their original order.
+    * @throws IOException If a file can't be read.
+    */
+   public List<File> toSend(List<File> files) throws IOException {
+      List<String> hashes = hash(files);
+      Vector<File> toSend = new Vector<File>();
+      synchronized (this) {
+         for (int f = 0; f < files.size(); f++) {
+            File file = files.get(f);
+            Entry entry = entries.get(file.getName());
+            if (entry == null || !ACKNOWLEDGED.equals(entry.state)
+                || entry.size != file.length() || !entry.hash.equals(hashes.get(f))) {
+               entry = new Entry();
+               entry.name = file.getName();
+               entry.size = file.length();
+               entry.hash = hashes.get(f);
+               entry.state = SENT;
+               entries.put(entry.name, entry);
+               toSend.add(file);
+            }
+         } // next file
+      }
+      return toSend;
+   } // end of toSend()
+
+   /**
+    * Records that the server has acknowledged receipt of the given files, and saves the
+    * manifest.
+    * @param sent The files that were sent.
+    * @param listed The names of files the server lists as received.
+    * @throws IOException If the manifest can't be saved.
+    */
+   public synchronized void acknowledge(Collection<File> sent, Collection<String> listed)
+      throws IOException {
+      for (File file : sent) {
+         Entry entry = entries.get(file.getName());
+         if (entry != null && listed.contains(entry.name)) entry.state = ACKNOWLEDGED;
+      } // next file
+      save();
+   } // end of acknowledge()
+
+   /**
+    * Computes the SHA-256 hashes of the given files, concurrently.
+    * <p> Hashes are remembered, so if a file hasn't been modified since it was last
+    * hashed by this object, it isn't read again. This means that files can be hashed in
+    * advance - e.g. while waiting for the server - to speed up a later call to
+    * {@link #toSend(List)}.
+    * @param files The files to hash.
+    * @return The hashes, as hexadecimal strings, in the same order as the files.
+    * @throws IOException If a file can't be read.
+    */
+   public List<String> hash(List<File> files) throws IOException {
+      if (files.size() < 2 || hashThreads < 2) {
+         Vector<String> hashes = new Vector<String>();
+         for (File f : files) hashes.add(cachedSha256(f));
+         return hashes;
+      }
+      try (BulkExecutor bulk = BulkExecutor.platformThreads(
+              Math.min(hashThreads, files.size()))) {
+         return bulk.map(files, f -> cachedSha256(f));
+      } catch(ElpisException exception) { // hashing doesn't talk to the server
+         throw new IOException(exception);
+      }
+   } // end of hash()
+
+   /**
+    * Gets the SHA-256 hash of the given file, computing it only if it hasn't been
+    * computed since the file was last modified.
+    * @param file The file to hash.
+    * @return The hash as a hexadecimal string.
+    * @throws IOException If the file can't be read.
+    */
+   private String cachedSha256(File file) throws IOException {
+      String key = file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified();
+      String hash = hashCache.get(key);
+      if (hash == null) {
+         hash = sha256(file);
+         hashCache.put(key, hash);
+      }
+      return hash;
+   } // end of cachedSha256()
+
+   /**
+    * Computes the SHA-256 hash of the given file, reading it a buffer at a time.
+    * @param file The file to hash.
+    * @return The hash as a hexadecimal string.
+    * @throws IOException If the file can't be read.
+    */
+   public static String sha256(File file) throws IOException {
+      MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      } catch(NoSuchAlgorithmException exception) { // every JVM must support SHA-256
+         throw new IOException(exception);
+      }
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+         while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+         } // next buffer
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+      return hex.toString();
+   } // end of sha256()
+
+} // end of class UploadManifest
@@ -0,0 +1,114 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Vector;
+
+/**
+ * Splits a list of dataset files into shards of roughly equal total size, so they can be
+ * uploaded by concurrent requests.
+ * <p> Files with the same name apart from their extension - e.g. <tt>abc.eaf</tt> and
+ * <tt>abc.wav</tt> - are always put in the same shard, so that each transcript is
+ * uploaded along with its recording.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class UploadShards {
+
+   /**
+    * Files that must be uploaded together.
+    */
+   static class Group {
+      int index;
+      long bytes;
+      List<File> files = new Vector<File>();
+   }
+
+   /**
+    * Files to upload in one request.
+    */
+   static class Shard {
+      long bytes;
+      List<Group> groups = new Vector<Group>();
+   }
+
+   /**
+    * Determines the key that identifies files that must be uploaded together, which is
+    * the file name without its extension.
+    * @param file The file.
+    * @return The file name without its extension.
+    */
+   public static String pairKey(File file) {
+      String name = file.getName();
+      int dot = name.lastIndexOf('.');
+      return dot > 0? name.substring(0, dot) : name;
+   } // end of pairKey()
+
+   /**
+    * Splits the given files into the given number of shards, balanced by size.
+    * <p> Groups of files are assigned, largest first, to whichever shard is currently
+    * smallest. Within each shard, files keep the order they had in the original list.
+    * @param files The files to split.
+    * @param count The maximum number of shards.
+    * @return The shards, each a non-empty list of files, largest first. There may be
+    * fewer than <var>count</var> shards if there aren't enough files.
+    */
+   public static List<List<File>> split(List<File> files, int count) {
+      if (count < 1) throw new IllegalArgumentException("Count must be at least 1: " + count);
+
+      // group files by name
+      LinkedHashMap<String,Group> byKey = new LinkedHashMap<String,Group>();
+      for (File file : files) {
+         Group group = byKey.computeIfAbsent(pairKey(file), k -> new Group());
+         if (group.files.size() == 0) group.index = byKey.size();
+         group.files.add(file);
+         group.bytes += file.length();
+      } // next file
+      List<Group> groups = new ArrayList<Group>(byKey.values());
+      groups.sort(Comparator.comparingLong((Group g) -> g.bytes).reversed());
+
+      // assign largest groups first to the smallest shard
+      PriorityQueue<Shard> smallest = new PriorityQueue<Shard>(
+         Math.max(1, Math.min(count, groups.size())), Comparator.comparingLong(s -> s.bytes));
+      for (int s = 0; s < count && s < groups.size(); s++) smallest.add(new Shard());
+      for (Group group : groups) {
+         Shard shard = smallest.poll();
+         shard.groups.add(group);
+         shard.bytes += group.bytes;
+         smallest.add(shard);
+      } // next group
+
+      List<Shard> shards = new ArrayList<Shard>(smallest);
+      shards.sort(Comparator.comparingLong((Shard s) -> s.bytes).reversed());
+      List<List<File>> result = new Vector<List<File>>();
+      for (Shard shard : shards) {
+         shard.groups.sort(Comparator.comparingInt(g -> g.index));
+         List<File> shardFiles = new Vector<File>();
+         for (Group group : shard.groups) shardFiles.addAll(group.files);
+         result.add(shardFiles);
+      } // next shard
+      return result;
+   } // end of split()
+
+   /**
+    * Determines the total size of the given files.
+    * @param files The files.
+    * @return The total size in bytes.
+    */
+   public static long totalBytes(List<File> files) {
+      long bytes = 0;
+      for (File file : files) bytes += file.length();
+      return bytes;
+   } // end of totalBytes()
+
+   private UploadShards() {} // only static methods
+
+} // end of class UploadShards
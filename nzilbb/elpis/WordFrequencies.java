@@ -0,0 +1,370 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Vector;
+import java.util.function.ObjIntConsumer;
+import javax.json.stream.JsonParser;
+
+/**
+ * Word types and their frequencies, as returned by {@link Elpis#datasetPrepareCompact()}.
+ * <p> Counts are stored as an <tt>int[]</tt>, and words are found with an
+ * open-addressing hash table of <tt>int</tt> indices, so there's no boxed Integer or
+ * map entry per word. This keeps memory use and garbage collection down for
+ * vocabularies of hundreds of thousands of words.
+ * <p> Words are kept in the order they were added - i.e. the order the server listed
+ * them in - and can be accessed by index with {@link #word(int)} and
+ * {@link #count(int)}, by frequency with {@link #top(int)} and
+ * {@link #forEachByFrequency(ObjIntConsumer)}, or by word with {@link #get(String)}.
+ * {@link #asMap()} provides a read-only {@link Map} view, for code that needs one.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class WordFrequencies {
+
+   /** Initial number of words that can be stored before growing */
+   static final int INITIAL_CAPACITY = 64;
+
+   /** Words, in the order they were added */
+   private String[] words;
+
+   /** Counts, parallel to {@link #words} */
+   private int[] counts;
+
+   /** Hashes of words, parallel to {@link #words}, so the table can be rebuilt quickly */
+   private int[] hashes;
+
+   /**
+    * Open-addressing hash table; each slot is 1 + the index of a word, or 0 if the slot
+    * is empty. Its length is a power of two, at least twice the number of words.
+    */
+   private int[] table;
+
+   /** The number of words */
+   private int size;
+
+   /** The total of all counts */
+   private long totalTokens;
+
+   // Methods:
+
+   /**
+    * Default constructor.
+    */
+   public WordFrequencies() {
+      this(INITIAL_CAPACITY);
+   } // end of constructor
+
+   /**
+    * Constructor for a known number of words.
+    * @param capacity The number of words that can be added before storage has to grow.
+    */
+   public WordFrequencies(int capacity) {
+      capacity = Math.max(capacity, 1);
+      words = new String[capacity];
+      counts = new int[capacity];
+      hashes = new int[capacity];
+      table = new int[tableSize(capacity)];
+   } // end of constructor
+
+   /**
+    * Reads a JSON object of words and their frequencies from a parser, whose last event
+    * was the object's START_OBJECT. On return, the last event is the matching
+    * END_OBJECT.
+    * @param parser The parser.
+    * @return The word frequencies.
+    */
+   public static WordFrequencies parse(JsonParser parser) {
+      WordFrequencies frequencies = new WordFrequencies();
+      while (parser.next() == JsonParser.Event.KEY_NAME) {
+         String word = parser.getString();
+         if (parser.next() == JsonParser.Event.VALUE_NUMBER) {
+            frequencies.add(word, parser.getInt());
+         } else {
+            frequencies.add(word, Integer.parseInt(parser.getString().trim()));
+         }
+      } // next word
+      return frequencies;
+   } // end of parse()
+
+   /**
+    * The smallest power of two that is at least twice the given capacity.
+    * @param capacity The number of words to be stored.
+    * @return The hash table size.
+    */
+   private static int tableSize(int capacity) {
+      return Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+   } // end of tableSize()
+
+   /**
+    * Spreads the bits of a word's hash, so that words whose hashes differ only in their
+    * high bits don't collide.
+    * @param word The word.
+    * @return The hash.
+    */
+   private static int hash(String word) {
+      int h = word.hashCode();
+      return h ^ (h >>> 16);
+   } // end of hash()
+
+   /**
+    * Finds the slot for the given word.
+    * @param word The word.
+    * @param hash The word's hash.
+    * @return The slot containing the word, or the empty slot where it would go.
+    */
+   private int slot(String word, int hash) {
+      int mask = table.length - 1;
+      int s = hash & mask;
+      while (true) {
+         int entry = table[s];
+         if (entry == 0) return s;
+         int i = entry - 1;
+         if (hashes[i] == hash && words[i].equals(word)) return s;
+         s = (s + 1) & mask;
+      }
+   } // end of slot()
+
+   /**
+    * Finds the index of the given word.
+    * @param word The word.
+    * @return The index of the word, or -1 if it's not present.
+    */
+   public int indexOf(String word) {
+      return table[slot(word, hash(word))] - 1;
+   } // end of indexOf()
+
+   /**
+    * Adds to the frequency of the given word, adding the word if it's not already
+    * present.
+    * @param word The word.
+    * @param count The number of occurrences to add.
+    * @return The index of the word.
+    */
+   public int add(String word, int count) {
+      int hash = hash(word);
+      int s = slot(word, hash);
+      int i = table[s] - 1;
+      if (i < 0) {
+         if (size == words.length) {
+            grow();
+            s = slot(word, hash);
+         }
+         i = size++;
+         words[i] = word;
+         hashes[i] = hash;
+         table[s] = i + 1;
+      }
+      counts[i] += count;
+      totalTokens += count;
+      return i;
+   } // end of add()
+
+   /**
+    * Doubles the storage, and rebuilds the hash table.
+    */
+   private void grow() {
+      int capacity = words.length * 2;
+      words = Arrays.copyOf(words, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+      hashes = Arrays.copyOf(hashes, capacity);
+      table = new int[tableSize(capacity)];
+      int mask = table.length - 1;
+      for (int i = 0; i < size; i++) {
+         int s = hashes[i] & mask;
+         while (table[s] != 0) s = (s + 1) & mask;
+         table[s] = i + 1;
+      } // next word
+   } // end of grow()
+
+   /**
+    * Gets the frequency of the given word.
+    * @param word The word.
+    * @return The frequency of the word, or 0 if it's not present.
+    */
+   public int get(String word) {
+      int i = indexOf(word);
+      return i < 0? 0 : counts[i];
+   } // end of get()
+
+   /**
+    * Determines whether the given word is present.
+    * @param word The word.
+    * @return true if the word is present.
+    */
+   public boolean contains(String word) {
+      return indexOf(word) >= 0;
+   } // end of contains()
+
+   /**
+    * The number of word types.
+    * @return The number of distinct words.
+    */
+   public int size() {
+      return size;
+   } // end of size()
+
+   /**
+    * The total number of word tokens; the sum of all the frequencies.
+    * @return The total number of tokens.
+    */
+   public long getTotalTokens() {
+      return totalTokens;
+   } // end of getTotalTokens()
+
+   /**
+    * Gets a word by index.
+    * @param index The index of the word, from 0 to {@link #size()} - 1.
+    * @return The word.
+    */
+   public String word(int index) {
+      if (index < 0 || index >= size) throw new IndexOutOfBoundsException("" + index);
+      return words[index];
+   } // end of word()
+
+   /**
+    * Gets a frequency by index.
+    * @param index The index of the word, from 0 to {@link #size()} - 1.
+    * @return The frequency of the word.
+    */
+   public int count(int index) {
+      if (index < 0 || index >= size) throw new IndexOutOfBoundsException("" + index);
+      return counts[index];
+   } // end of count()
+
+   /**
+    * Packs a word's frequency and index into a long that sorts most frequent first, and
+    * then in index order.
+    * @param i The index of the word.
+    * @return The sort key.
+    */
+   private long sortKey(int i) {
+      return ((long)(Integer.MAX_VALUE - counts[i]) << 32) | i;
+   } // end of sortKey()
+
+   /**
+    * Gets the indices of words ordered by frequency, most frequent first; words with
+    * the same frequency are in the order they were added.
+    * @return Word indices, by frequency.
+    */
+   public int[] indicesByFrequency() {
+      long[] keys = new long[size];
+      for (int i = 0; i < size; i++) keys[i] = sortKey(i);
+      Arrays.sort(keys);
+      int[] indices = new int[size];
+      for (int i = 0; i < size; i++) indices[i] = (int)keys[i];
+      return indices;
+   } // end of indicesByFrequency()
+
+   /**
+    * Gets the most frequent words. Only the top <var>k</var> words are sorted, so this is
+    * faster than sorting the whole vocabulary when <var>k</var> is small.
+    * @param k The number of words to get.
+    * @return Up to <var>k</var> words, most frequent first.
+    */
+   public List<String> top(int k) {
+      k = Math.min(k, size);
+      Vector<String> top = new Vector<String>(k);
+      if (k <= 0) return top;
+      // max-heap of the k smallest sort keys (i.e. the k most frequent words)
+      long[] heap = new long[k];
+      int heapSize = 0;
+      for (int i = 0; i < size; i++) {
+         long key = sortKey(i);
+         if (heapSize < k) {
+            int c = heapSize++;
+            while (c > 0 && heap[(c - 1) / 2] < key) {
+               heap[c] = heap[(c - 1) / 2];
+               c = (c - 1) / 2;
+            }
+            heap[c] = key;
+         } else if (key < heap[0]) {
+            int p = 0;
+            while (true) {
+               int c = 2 * p + 1;
+               if (c >= k) break;
+               if (c + 1 < k && heap[c + 1] > heap[c]) c++;
+               if (heap[c] <= key) break;
+               heap[p] = heap[c];
+               p = c;
+            }
+            heap[p] = key;
+         }
+      } // next word
+      Arrays.sort(heap);
+      for (long key : heap) top.add(words[(int)key]);
+      return top;
+   } // end of top()
+
+   /**
+    * Passes each word and its frequency to the given consumer, most frequent first.
+    * @param consumer Receives each word and its frequency.
+    */
+   public void forEachByFrequency(ObjIntConsumer<String> consumer) {
+      for (int i : indicesByFrequency()) consumer.accept(words[i], counts[i]);
+   } // end of forEachByFrequency()
+
+   /**
+    * Passes each word and its frequency to the given consumer, in the order they were
+    * added.
+    * @param consumer Receives each word and its frequency.
+    */
+   public void forEach(ObjIntConsumer<String> consumer) {
+      for (int i = 0; i < size; i++) consumer.accept(words[i], counts[i]);
+   } // end of forEach()
+
+   /**
+    * Gets a read-only map view of the frequencies, in the order the words were added.
+    * Frequencies are boxed only as they're accessed.
+    * @return A map of words to their frequencies.
+    */
+   public Map<String,Integer> asMap() {
+      return new AbstractMap<String,Integer>() {
+         @Override public int size() { return size; }
+         @Override public boolean containsKey(Object key) {
+            return key instanceof String && indexOf((String)key) >= 0;
+         }
+         @Override public Integer get(Object key) {
+            if (!(key instanceof String)) return null;
+            int i = indexOf((String)key);
+            return i < 0? null : counts[i];
+         }
+         @Override public Set<Map.Entry<String,Integer>> entrySet() {
+            return new AbstractSet<Map.Entry<String,Integer>>() {
+               @Override public int size() { return size; }
+               @Override public Iterator<Map.Entry<String,Integer>> iterator() {
+                  return new Iterator<Map.Entry<String,Integer>>() {
+                     int next = 0;
+                     @Override public boolean hasNext() { return next < size; }
+                     @Override public Map.Entry<String,Integer> next() {
+                        if (next >= size) throw new NoSuchElementException();
+                        int i = next++;
+                        return new AbstractMap.SimpleImmutableEntry<String,Integer>(
+                           words[i], counts[i]);
+                     }
+                  };
+               }
+            };
+         }
+      };
+   } // end of asMap()
+
+   /**
+    * String representation of the frequencies; the number of types and tokens.
+    * @return A String representation of the frequencies.
+    */
+   public String toString() {
+      return size + " types, " + totalTokens + " tokens";
+   } // end of toString()
+
+} // end of class WordFrequencies
@@ -0,0 +1,33 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the executor returned by {@link Transport#blockingExecutor()}, which is only
+ * created when first used.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+class BlockingExecutor {
+
+   /** Threads that are created as required and reused once idle */
+   static final ExecutorService INSTANCE;
+   static {
+      AtomicInteger count = new AtomicInteger();
+      INSTANCE = new ThreadPoolExecutor(
+         0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, "elpis-transport-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         });
+   }
+
+} // end of class BlockingExecutor
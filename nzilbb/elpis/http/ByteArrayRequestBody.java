@@ -0,0 +1,88 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Request body whose content is already in memory.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ByteArrayRequestBody implements RequestBody {
+
+   // Attributes:
+
+   /**
+    * The content.
+    * @see #getContent()
+    */
+   protected byte[] content;
+   /**
+    * Getter for {@link #content}: The content.
+    * @return The content, which may be followed by unused bytes, beyond
+    * {@link #getContentLength()}.
+    */
+   public byte[] getContent() { return content; }
+
+   /**
+    * The number of bytes of {@link #content} that are used.
+    * @see #getContentLength()
+    */
+   protected int length;
+
+   /**
+    * The MIME type of the content.
+    * @see #getContentType()
+    */
+   protected String contentType;
+   /**
+    * Getter for {@link #contentType}: The MIME type of the content.
+    * @return The MIME type of the content.
+    */
+   public String getContentType() { return contentType; }
+
+   // Methods:
+
+   /**
+    * Constructor.
+    * @param content The content.
+    * @param contentType The MIME type of the content.
+    */
+   public ByteArrayRequestBody(byte[] content, String contentType) {
+      this(content, content.length, contentType);
+   } // end of constructor
+
+   /**
+    * Constructor for content that only fills the start of an array, so that it needn't be
+    * copied into an array of the exact size.
+    * @param content The array containing the content.
+    * @param length The number of bytes at the start of the array that are the content.
+    * @param contentType The MIME type of the content.
+    */
+   public ByteArrayRequestBody(byte[] content, int length, String contentType) {
+      this.content = content;
+      this.length = length;
+      this.contentType = contentType;
+   } // end of constructor
+
+   /**
+    * The length of the content in bytes.
+    * @return The number of bytes of {@link #content} that are used.
+    */
+   public long getContentLength() {
+      return length;
+   } // end of getContentLength()
+
+   /**
+    * Opens a stream for reading the content.
+    * @return A stream of the content.
+    */
+   public InputStream openStream() {
+      return new ByteArrayInputStream(content, 0, length);
+   } // end of openStream()
+
+} // end of class ByteArrayRequestBody
@@ -0,0 +1,55 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for the upload of one file in the body of a
+ * {@link HttpRequestPostMultipart}, from when the transport starts reading it until
+ * it has all been read.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@Name("nzilbb.elpis.FileUpload")
+@Label("Elpis File Upload")
+@Category("Elpis")
+@Description("Sending one file in a multipart request to an Elpis server")
+@StackTrace(false)
+class FileUploadEvent extends Event {
+   
+   @Label("URL")
+   String url;
+
+   @Label("Parameter")
+   @Description("The name of the request parameter the file is uploaded as")
+   String parameter;
+
+   @Label("File Name")
+   String fileName;
+
+   @Label("Path")
+   String path;
+
+   @Label("Bytes")
+   @Description("The number of bytes of the file that were sent")
+   @DataAmount
+   long bytes;
+
+   @Label("File Size")
+   @DataAmount
+   long fileSize;
+
+   @Label("Method")
+   @Description("How the file content was sent: transfer, mapped, or stream")
+   String method;
+   
+} // end of class FileUploadEvent
@@ -0,0 +1,213 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Transport that sends requests using a {@link HttpClient}.
+ * <p> The client keeps connections to the server alive between requests, pooling them
+ * for reuse, and uses HTTP/2 if the server supports it. This means that the overhead of
+ * setting up a new TCP connection is not incurred for every request, which is
+ * significant for frequent short requests like polling the training/transcription
+ * status.
+ * <p> {@link #shared()} provides a single instance that can be used by any number of
+ * {@link nzilbb.elpis.Elpis} objects and threads, so they all share the same connection
+ * pool.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class HttpClientTransport implements Transport {
+
+   /** The transport shared by default by all clients */
+   private static HttpClientTransport shared;
+
+   /**
+    * A transport shared by all clients that don't specify their own.
+    * @return A shared transport instance.
+    */
+   public static synchronized HttpClientTransport shared() {
+      if (shared == null) shared = new HttpClientTransport();
+      return shared;
+   } // end of shared()
+
+   // Attributes:
+
+   /**
+    * The underlying HTTP client.
+    * @see #getClient()
+    */
+   protected HttpClient client;
+   /**
+    * Getter for {@link #client}: The underlying HTTP client.
+    * @return The underlying HTTP client.
+    */
+   public HttpClient getClient() { return client; }
+
+   // Methods:
+
+   /**
+    * Default constructor, which creates a client that prefers HTTP/2 and follows
+    * redirects.
+    */
+   public HttpClientTransport() {
+      this(HttpClient.newBuilder()
+           .version(HttpClient.Version.HTTP_2)
+           .followRedirects(HttpClient.Redirect.NORMAL)
+           .connectTimeout(Duration.ofSeconds(30))
+           .build());
+   } // end of constructor
+
+   /**
+    * Constructor with a pre-configured client.
+    * @param client The client to send requests with.
+    */
+   public HttpClientTransport(HttpClient client) {
+      this.client = client;
+   } // end of constructor
+
+   /**
+    * Sends the given request to the server.
+    * @param request The request to send.
+    * @return The server's response.
+    * @throws IOException If a communications error occurs.
+    */
+   public TransportResponse send(TransportRequest request) throws IOException {
+      try {
+         HttpResponse<InputStream> response = client.send(
+            buildRequest(request), HttpResponse.BodyHandlers.ofInputStream());
+         return new HttpClientResponse(response, response.body());
+      } catch(InterruptedException exception) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted sending " + request.getUrl());
+      } catch(UncheckedIOException exception) { // from the body publisher
+         throw exception.getCause();
+      }
+   } // end of send()
+
+   /**
+    * Sends the given request to the server using non-blocking I/O, so no thread waits
+    * for the response.
+    * @param request The request to send.
+    * @return A future that completes with the server's response once its status and
+    * headers have been received. The body is streamed as it's read, rather than held in
+    * memory, so reading it may block until it arrives.
+    */
+   public CompletableFuture<TransportResponse> sendAsync(TransportRequest request) {
+      try {
+         return client.sendAsync(buildRequest(request), HttpResponse.BodyHandlers.ofInputStream())
+            .thenApply(response -> new HttpClientResponse(response, response.body()));
+      } catch(IOException exception) {
+         return CompletableFuture.failedFuture(exception);
+      }
+   } // end of sendAsync()
+
+   /**
+    * Converts the given request into a HttpRequest.
+    * @param request The request to convert.
+    * @return An equivalent HttpRequest.
+    * @throws IOException If the request URL or body is invalid.
+    */
+   protected HttpRequest buildRequest(TransportRequest request) throws IOException {
+      HttpRequest.Builder builder;
+      try {
+         builder = HttpRequest.newBuilder(request.getUrl().toURI());
+      } catch(URISyntaxException exception) {
+         throw new IOException("Invalid URL: " + request.getUrl(), exception);
+      }
+      Map<String,String> headers = request.getRequestHeaders();
+      for (String key : headers.keySet()) {
+         builder.header(key, headers.get(key));
+      } // next header
+
+      RequestBody body = request.getBody();
+      if (body == null) {
+         builder.method(request.getMethod(), HttpRequest.BodyPublishers.noBody());
+      } else {
+         if (body.getContentType() != null) {
+            builder.header("Content-Type", body.getContentType());
+         }
+         HttpRequest.BodyPublisher publisher;
+         Flow.Publisher<ByteBuffer> buffers = body.publisher();
+         if (buffers != null) { // the body can provide buffers directly
+            publisher = body.getContentLength() >= 0
+               ? HttpRequest.BodyPublishers.fromPublisher(buffers, body.getContentLength())
+               : HttpRequest.BodyPublishers.fromPublisher(buffers);
+         } else {
+            publisher = HttpRequest.BodyPublishers.ofInputStream(() -> {
+                  try {
+                     return body.openStream();
+                  } catch(IOException exception) {
+                     throw new UncheckedIOException(exception);
+                  }
+               });
+            if (body.getContentLength() >= 0) {
+               publisher = HttpRequest.BodyPublishers.fromPublisher(
+                  publisher, body.getContentLength());
+            }
+         }
+         builder.method(request.getMethod(), publisher);
+      }
+      return builder.build();
+   } // end of buildRequest()
+
+   /**
+    * String representation of the transport.
+    * @return A String representation of the transport.
+    */
+   public String toString() {
+      return "HttpClient";
+   } // end of toString()
+
+   /**
+    * Response received via a HttpClient.
+    */
+   static class HttpClientResponse implements TransportResponse {
+
+      HttpResponse<?> response;
+      InputStream body;
+
+      HttpClientResponse(HttpResponse<?> response, InputStream body) {
+         this.response = response;
+         this.body = body;
+      }
+
+      public int getHttpStatus() {
+         return response.statusCode();
+      }
+
+      public String getHttpMessage() {
+         return null; // HTTP/2 has no status message
+      }
+
+      public String getHeader(String name) {
+         return response.headers().firstValue(name).orElse(null);
+      }
+
+      public InputStream getBody() {
+         return body;
+      }
+
+      /**
+       * Closes the response stream, releasing the underlying connection to the pool.
+       */
+      public void close() throws IOException {
+         body.close();
+      }
+   } // end of class HttpClientResponse
+
+} // end of class HttpClientTransport
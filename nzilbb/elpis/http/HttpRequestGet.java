@@ -16,7 +16,7 @@ import java.util.*;
  * @author Robert Fromont robert@fromont.net.nz
  */
 
-public class HttpRequestGet {
+public class HttpRequestGet implements TransportRequest {
 
    static Object cookieHandlerSynchronizer = new Object();
    
@@ -229,6 +229,55 @@ public class HttpRequestGet {
       return getConnection();
    } // end of get()
    
+   /**
+    * Fetches the request response using the given transport.
+    * @param transport The transport to send the request with.
+    * @return The response.
+    * @throws IOException
+    */
+   public TransportResponse get(Transport transport) throws IOException {
+      
+      return transport.send(this);
+   } // end of get()
+
+   // TransportRequest methods:
+   
+   /**
+    * The HTTP method of the request.
+    * @return "GET"
+    */
+   public String getMethod() {
+      return "GET";
+   } // end of getMethod()
+   
+   /**
+    * The full URL of the request, including the query string.
+    * @return The URL to send the request to.
+    * @throws IOException If the URL cannot be constructed.
+    */
+   public URL getUrl() throws IOException {
+      return new URL(getBaseUrl().toString() + getQueryString());
+   } // end of getUrl()
+   
+   /**
+    * The HTTP headers of the request, including authorization.
+    * @return A map of header names to values.
+    */
+   public Map<String,String> getRequestHeaders() {
+      if (sAuthorization == null) return mHeaders;
+      HashMap<String,String> headers = new HashMap<String,String>(mHeaders);
+      headers.put("Authorization", sAuthorization);
+      return headers;
+   } // end of getRequestHeaders()
+   
+   /**
+    * The body of the request.
+    * @return null, as GET requests have no body.
+    */
+   public RequestBody getBody() {
+      return null;
+   } // end of getBody()
+   
    /**
     * String representation of the request, for logging.
     * @return A String representation of the request, for logging.
@@ -10,14 +10,11 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.io.File;
-import java.io.InputStream;
-import java.util.Random;
-import java.io.OutputStream;
-import java.io.FileInputStream;
 import java.util.Iterator;
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
@@ -27,18 +24,24 @@ import javax.json.JsonObjectBuilder;
  * <p>Originally com.myjavatools.web.ClientHttpRequest (version 1.0) by Vlad Patryshev</p>
  * <p>Adapted for LaBB-CAT by Robert Fromont</p>
  */
-public class HttpRequestPost {
+public class HttpRequestPost implements TransportRequest {
    
+   /** Connection supplied by the caller, if any */
    protected HttpURLConnection connection;
-   protected OutputStream os = null;
    protected Map<String,String> cookies = new HashMap<String,String>();
    
+   /** HTTP request headers */
+   protected Map<String,String> headers = new LinkedHashMap<String,String>();
+   
    /** Parameters so far flag */
    protected boolean bNoParametersYet = true;
 
    /** JSON body */
    protected Map<String,String> jsonBody = null;
 
+   /** Body supplied by the caller, which takes the place of any parameters */
+   protected RequestBody requestBody = null;
+
    private String url = "?"; 
    private StringBuilder body = new StringBuilder(); 
    
@@ -49,40 +52,27 @@ public class HttpRequestPost {
     */
    public HttpRequestPost setHeader(String sKey, String sValue) {
       
-      connection.setRequestProperty(sKey, sValue);
+      headers.put(sKey, sValue);
       return this;
    } // end of setHeader()
    
-   protected void connect() throws IOException {
-      
-      if (os == null) {
-         os = connection.getOutputStream();
-      }
-   }
-   
    protected void write(char c) throws IOException {
       
-      connect();
-      os.write(c);
+      body.append(c);
    }
    
    protected void write(String s) throws IOException {
       
       body.append(s);
-      connect();
-      os.write(s.getBytes());
    }
    
    protected void newline() throws IOException {
       
-      body.append("\n");
-      connect();
       write("\r\n");
    }
    
    protected void writeln(String s) throws IOException {
       
-      connect();
       write(s);
       newline();
    }
@@ -97,13 +87,10 @@ public class HttpRequestPost {
    public HttpRequestPost(HttpURLConnection connection, String sAuthorization) throws IOException {
       
       this.connection = connection;
-      connection.setUseCaches(false);
+      this.url = connection.getURL().toString();
       if (sAuthorization != null) {
-         connection.setRequestProperty(
-            "Authorization", sAuthorization);
+         headers.put("Authorization", sAuthorization);
       }
-      connection.setDoOutput(true);
-      connection.setChunkedStreamingMode(1024);
    }
    
    /**
@@ -115,8 +102,10 @@ public class HttpRequestPost {
     */
    public HttpRequestPost(URL url, String sAuthorization) throws IOException {
       
-      this((HttpURLConnection)url.openConnection(), sAuthorization);
       this.url = url.toString();
+      if (sAuthorization != null) {
+         headers.put("Authorization", sAuthorization);
+      }
    }
    
    /**
@@ -127,8 +116,7 @@ public class HttpRequestPost {
     */
    public HttpRequestPost(URL url) throws IOException {
       
-      this((HttpURLConnection)url.openConnection(), null);
-      this.url = url.toString();
+      this(url, null);
    }
    
    /**
@@ -140,11 +128,10 @@ public class HttpRequestPost {
    public HttpRequestPost(String urlString, String sAuthorization) throws IOException {
       
       this(new URL(urlString), sAuthorization);
-      url = urlString;
    }
       
    @SuppressWarnings("rawtypes")
-   private void postCookies() {
+   private String postCookies() {
       
       StringBuffer cookieList = new StringBuffer();
       
@@ -156,9 +143,7 @@ public class HttpRequestPost {
             cookieList.append("; ");
          }
       }
-      if (cookieList.length() > 0) {
-         connection.setRequestProperty("Cookie", cookieList.toString());
-      }
+      return cookieList.toString();
    }
    
    /**
@@ -226,7 +211,6 @@ public class HttpRequestPost {
       
       if (value == null) return this;
       if (jsonBody == null) {
-         setHeader("Content-Type", "application/json;charset=utf-8");
          jsonBody = new HashMap<String,String>();
       }
       jsonBody.put(name, value);
@@ -293,6 +277,17 @@ public class HttpRequestPost {
       return this;
    }
    
+   /**
+    * Sets the body of the request, in place of any parameters; e.g. a
+    * {@link JsonStringBody} whose content is streamed rather than held in memory.
+    * @param body The body of the request.
+    * @return A reference to this object.
+    */
+   public HttpRequestPost setBody(RequestBody body) {
+      requestBody = body;
+      return this;
+   } // end of setBody()
+
    /**
     * Generates the JSON body.
     * @return A JSON string.
@@ -317,13 +312,71 @@ public class HttpRequestPost {
     */
    public HttpURLConnection post() throws IOException {
 
-      if (jsonBody != null) {
-         write(generateJson());
-      }
-      if (os != null) os.close();
-      return connection;
+      return UrlConnectionTransport.open(this, connection);
    }
    
+   /**
+    * posts the requests to the server using the given transport, with all the cookies
+    * and parameters that were added 
+    * @param transport The transport to send the request with.
+    * @return The server response.
+    * @throws IOException
+    */
+   public TransportResponse post(Transport transport) throws IOException {
+      
+      return transport.send(this);
+   }
+
+   // TransportRequest methods:
+   
+   /**
+    * The HTTP method of the request.
+    * @return "POST"
+    */
+   public String getMethod() {
+      return "POST";
+   } // end of getMethod()
+   
+   /**
+    * The URL of the request.
+    * @return The URL to send the request to.
+    * @throws IOException If the URL is malformed.
+    */
+   public URL getUrl() throws IOException {
+      return new URL(url);
+   } // end of getUrl()
+   
+   /**
+    * The HTTP headers of the request, including cookies.
+    * @return A map of header names to values.
+    */
+   public Map<String,String> getRequestHeaders() {
+      if (cookies.size() == 0) return headers;
+      LinkedHashMap<String,String> requestHeaders = new LinkedHashMap<String,String>(headers);
+      requestHeaders.put("Cookie", postCookies());
+      return requestHeaders;
+   } // end of getRequestHeaders()
+   
+   /**
+    * The body of the request; either the body set with {@link #setBody(RequestBody)},
+    * the JSON body, if there are JSON parameters, or otherwise URL-encoded form
+    * parameters.
+    * @return The body of the request, or null if there are no parameters.
+    */
+   public RequestBody getBody() {
+      if (requestBody != null) {
+         return requestBody;
+      } else if (jsonBody != null) {
+         return new ByteArrayRequestBody(
+            generateJson().getBytes(StandardCharsets.UTF_8), "application/json;charset=utf-8");
+      } else if (!bNoParametersYet) {
+         return new ByteArrayRequestBody(
+            body.toString().getBytes(StandardCharsets.UTF_8), "application/x-www-form-urlencoded");
+      } else {
+         return null;
+      }
+   } // end of getBody()
+   
    /**
     * posts the requests to the server, with all the cookies and parameters that were
     * added before (if any), and with parameters that are passed in the argument 
@@ -573,14 +626,19 @@ public class HttpRequestPost {
    }
 
    /**
-    * String representation of the request, for logging.
+    * String representation of the request, for logging, in which long bodies are
+    * abbreviated.
     * @return A String representation of the request, for logging.
     */
    public String toString() {
-      if (jsonBody != null) {
-         return "POST " + url + " : " + generateJson();
+      if (requestBody != null) {
+         return "POST " + url + " : " + requestBody.getContentType();
+      } else if (jsonBody != null) {
+         return "POST " + url + " : "
+            + TransportRequest.preview(generateJson(), TransportRequest.PREVIEW_LENGTH);
       } else {
-         return "POST " + url + " : " + body;
+         return "POST " + url + " : "
+            + TransportRequest.preview(body, TransportRequest.PREVIEW_LENGTH);
       }
    } // end of toString()
 }
@@ -11,27 +11,36 @@ import java.net.URL;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Vector;
 import java.io.File;
 import java.io.InputStream;
 import java.util.Random;
-import java.io.OutputStream;
 import java.io.FileInputStream;
 import java.util.Iterator;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Multpart POST HTTP Request class
  * <p>Originally com.myjavatools.web.ClientHttpRequest (version 1.0) by Vlad Patryshev</p>
  * <p>Adapted for LaBB-CAT by Robert Fromont</p>
  */
-public class HttpRequestPostMultipart {
+public class HttpRequestPostMultipart implements TransportRequest {
    
+   /** Connection supplied by the caller, if any */
    protected HttpURLConnection connection;
-   protected OutputStream os = null;
    protected Map<String,String> cookies = new HashMap<String,String>();
    
-   private String url = "?"; 
-   private StringBuilder body = new StringBuilder(); 
+   /** HTTP request headers */
+   protected Map<String,String> headers = new LinkedHashMap<String,String>();
+   
+   /** Parts of the request body, in the order they were added */
+   protected List<Part> parts = new Vector<Part>();
+   
+   String url = "?"; 
    
    /**
     * Sets a request parameter value
@@ -40,7 +49,7 @@ public class HttpRequestPostMultipart {
     */
    public HttpRequestPostMultipart setHeader(String sKey, String sValue) {
       
-      connection.setRequestProperty(sKey, sValue);
+      headers.put(sKey, sValue);
       return this;
    } // end of setHeader()
    
@@ -63,42 +72,6 @@ public class HttpRequestPostMultipart {
       bCancelling = true;
    } // end of cancel()
    
-   protected void connect() throws IOException {
-      if (os == null) {
-         os = connection.getOutputStream();
-      }
-      // check whether we are cancelling here, as this method is called
-      // before every write	
-      if (bCancelling) {
-         throw new RequestCancelledException(this);
-      }
-   }
-   
-   protected void write(char c) throws IOException {
-      
-      connect();
-      os.write(c);
-   }
-   
-   protected void write(String s) throws IOException {
-      
-      connect();
-      os.write(s.getBytes());
-   }
-   
-   protected void newline() throws IOException {
-      
-      connect();
-      write("\r\n");
-   }
-   
-   protected void writeln(String s) throws IOException {
-      
-      connect();
-      write(s);
-      newline();
-   }
-   
    private static Random random = new Random();
    
    protected static String randomString() {
@@ -108,12 +81,6 @@ public class HttpRequestPostMultipart {
    
    String boundary = "---------------------------" + randomString() + randomString() + randomString();
    
-   private void boundary() throws IOException {
-      
-      write("--");
-      write(boundary);
-   }
-   
    /**
     * Creates a new multipart POST HTTP request on a freshly opened URLConnection
     *
@@ -124,15 +91,10 @@ public class HttpRequestPostMultipart {
    public HttpRequestPostMultipart(HttpURLConnection connection, String sAuthorization) throws IOException {
       
       this.connection = connection;
-      connection.setUseCaches(false);
+      this.url = connection.getURL().toString();
       if (sAuthorization != null) {
-         connection.setRequestProperty(
-            "Authorization", sAuthorization);
+         headers.put("Authorization", sAuthorization);
       }
-      connection.setDoOutput(true);
-      connection.setRequestProperty(
-         "Content-Type", "multipart/form-data; boundary=" + boundary);
-      connection.setChunkedStreamingMode(1024);
    }
    
    /**
@@ -144,8 +106,10 @@ public class HttpRequestPostMultipart {
     */
    public HttpRequestPostMultipart(URL url, String sAuthorization) throws IOException {
       
-      this((HttpURLConnection)url.openConnection(), sAuthorization);
       this.url = url.toString(); 
+      if (sAuthorization != null) {
+         headers.put("Authorization", sAuthorization);
+      }
    }
    
    /**
@@ -156,8 +120,7 @@ public class HttpRequestPostMultipart {
     */
    public HttpRequestPostMultipart(URL url) throws IOException {
       
-      this((HttpURLConnection)url.openConnection(), null);
-      this.url = url.toString(); 
+      this(url, null);
    }
    
    /**
@@ -172,7 +135,7 @@ public class HttpRequestPostMultipart {
    }
    
    @SuppressWarnings("rawtypes")
-   private void postCookies() {
+   private String postCookies() {
       
       StringBuffer cookieList = new StringBuffer();
       
@@ -186,10 +149,7 @@ public class HttpRequestPostMultipart {
             cookieList.append("; ");
          }
       }
-      if (cookieList.length() > 0) 
-      {
-         connection.setRequestProperty("Cookie", cookieList.toString());
-      }
+      return cookieList.toString();
    }
    
    /**
@@ -229,14 +189,6 @@ public class HttpRequestPostMultipart {
       }
    }
    
-   private void writeName(String name) throws IOException {
-      
-      newline();
-      write("Content-Disposition: form-data; name=\"");
-      write(name);
-      write('"');
-   }
-   
    /**
     * adds a string parameter to the request
     * @param name parameter name
@@ -246,63 +198,21 @@ public class HttpRequestPostMultipart {
    public HttpRequestPostMultipart setParameter(String name, String value) throws IOException {
       
       if (value == null) return this; //20100520 robert.fromont@canterbury.ac.nz 
-      boundary();
-      writeName(name);
-      newline(); newline();
-      writeln(value);
-      // for toString
-      body.append(name).append(" = ").append(value).append(" ");
+      parts.add(new Part(name, value));
       return this;
    }
    
-   private void pipe(InputStream in, OutputStream out) throws IOException {
-      
-      //20100521 robert.fromont@canterbury.ac.nz smaller buffer to conserve memory
-      byte[] buf = new byte[1024]; 
-      int nread;
-      int navailable;
-      int total = 0;
-      synchronized (in) {
-         while((nread = in.read(buf, 0, buf.length)) >= 0) {
-            //20110221 robert.fromont@canterbury.ac.nz added cancelability
-            if(bCancelling) throw new RequestCancelledException(this);
-            
-            out.write(buf, 0, nread);
-            total += nread;
-         }
-      }
-      out.flush();
-      buf = null;
-   }
-   
    /**
     * adds a file parameter to the request
     * @param name parameter name
     * @param filename the name of the file
-    * @param is input stream to read the contents of the file from
+    * @param is input stream to read the contents of the file from, which is closed once
+    * the request has been sent 
     * @throws IOException
     */
    public HttpRequestPostMultipart setParameter(String name, String filename, InputStream is) throws IOException {
       
-      try {
-         boundary();
-         writeName(name);
-         write("; filename=\"");
-         write(filename);
-         write('"');
-         newline();
-         write("Content-Type: ");
-         String type = HttpURLConnection.guessContentTypeFromName(filename);
-         if (type == null) type = "application/octet-stream";
-         writeln(type);
-         newline();
-         pipe(is, os);
-         newline();
-         // for toString:
-         body.append(name).append(" = file (").append(filename).append(") ");
-      } finally {
-         is.close();  //20100521 robert.fromont@canterbury.ac.nz
-      }
+      parts.add(new Part(name, filename, is));
       return this;
    }
    
@@ -315,7 +225,7 @@ public class HttpRequestPostMultipart {
    public HttpRequestPostMultipart setParameter(String name, File file) throws IOException {
       
       if (file == null) return this; //20100520 robert.fromont@canterbury.ac.nz 
-      setParameter(name, file.getName(), new FileInputStream(file));
+      parts.add(new Part(name, file));
       return this;
    }
    
@@ -387,10 +297,19 @@ public class HttpRequestPostMultipart {
     */
    public HttpURLConnection post() throws IOException {
       
-      boundary();
-      writeln("--");
-      os.close();
-      return connection;
+      return UrlConnectionTransport.open(this, connection);
+   }
+   
+   /**
+    * posts the requests to the server using the given transport, with all the cookies
+    * and parameters that were added 
+    * @param transport The transport to send the request with.
+    * @return The server response.
+    * @throws IOException
+    */
+   public TransportResponse post(Transport transport) throws IOException {
+      
+      return transport.send(this);
    }
    
    /**
@@ -641,11 +560,106 @@ public class HttpRequestPostMultipart {
       return new HttpRequestPostMultipart(url, sAuthorization).post(name1, value1, name2, value2, name3, value3, name4, value4);
    }
    
+   // TransportRequest methods:
+   
+   /**
+    * The HTTP method of the request.
+    * @return "POST"
+    */
+   public String getMethod() {
+      return "POST";
+   } // end of getMethod()
+   
+   /**
+    * The URL of the request.
+    * @return The URL to send the request to.
+    * @throws IOException If the URL is malformed.
+    */
+   public URL getUrl() throws IOException {
+      return new URL(url);
+   } // end of getUrl()
+   
+   /**
+    * The HTTP headers of the request, including cookies.
+    * @return A map of header names to values.
+    */
+   public Map<String,String> getRequestHeaders() {
+      if (cookies.size() == 0) return headers;
+      LinkedHashMap<String,String> requestHeaders = new LinkedHashMap<String,String>(headers);
+      requestHeaders.put("Cookie", postCookies());
+      return requestHeaders;
+   } // end of getRequestHeaders()
+   
+   /**
+    * The multipart body of the request, which streams each file part's content from its
+    * source when it's sent.
+    * @return The body of the request.
+    */
+   public RequestBody getBody() {
+      return new MultipartBody(this);
+   } // end of getBody()
+   
+   /**
+    * A part of the multipart body - either a string parameter or a file.
+    */
+   protected static class Part {
+      String name;
+      String value;
+      String filename;
+      File file;
+      InputStream stream;
+      Part(String name, String value) {
+         this.name = name;
+         this.value = value;
+      }
+      Part(String name, File file) {
+         this.name = name;
+         this.filename = file.getName();
+         this.file = file;
+      }
+      Part(String name, String filename, InputStream stream) {
+         this.name = name;
+         this.filename = filename;
+         this.stream = stream;
+      }
+      /** The part headers, including the preceding boundary */
+      String header(String boundary) {
+         StringBuilder header = new StringBuilder();
+         header.append("--").append(boundary).append("\r\n");
+         header.append("Content-Disposition: form-data; name=\"").append(name).append('"');
+         if (filename != null) {
+            header.append("; filename=\"").append(filename).append('"').append("\r\n");
+            String type = HttpURLConnection.guessContentTypeFromName(filename);
+            if (type == null) type = "application/octet-stream";
+            header.append("Content-Type: ").append(type);
+         }
+         header.append("\r\n\r\n");
+         return header.toString();
+      }
+      /** The part content */
+      InputStream content() throws IOException {
+         if (value != null) return new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+         if (file != null) return new FileInputStream(file);
+         return stream;
+      }
+   }
+   
    /**
-    * String representation of the request, for logging.
+    * String representation of the request, for logging. This is only generated when
+    * required, and long parameter values are abbreviated.
     * @return A String representation of the request, for logging.
     */
    public String toString() {
-      return "POST " + url + " : " + body;
+      StringBuilder s = new StringBuilder("POST ").append(url).append(" : ");
+      for (Part part : parts) {
+         s.append(part.name).append(" = ");
+         if (part.filename != null) {
+            s.append("file (").append(part.filename).append(") ");
+         } else {
+            s.append(TransportRequest.preview(part.value, TransportRequest.PREVIEW_LENGTH))
+               .append(" ");
+         }
+      } // next part
+      return s.toString();
    } // end of toString()
 }
@@ -0,0 +1,358 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * JSON request body with a single string value - i.e. <tt>{"name":"value"}</tt> -
+ * whose value is streamed from a source of text, rather than being built in memory
+ * first.
+ * <p> The value is read, escaped, and encoded a chunk at a time as the body is sent, so
+ * memory use doesn't depend on the size of the value; e.g. a lexicon of hundreds of
+ * thousands of words can be uploaded straight from a file or a map.
+ * <p> The content length isn't known until the whole source has been read, so the body
+ * is sent using chunked encoding; this means the source is read only once, so a source
+ * that changes while the request is being prepared can't produce a body that doesn't
+ * match its declared length.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class JsonStringBody implements RequestBody {
+
+   /**
+    * Successive chunks of the string value.
+    */
+   public interface Source extends Closeable {
+      /**
+       * Gets the next chunk of text.
+       * @return The next chunk, or null if there are no more.
+       * @throws IOException If the text cannot be read.
+       */
+      public CharSequence next() throws IOException;
+   } // end of interface Source
+
+   /**
+    * Opens a new {@link Source} each time the content is read.
+    */
+   public interface SourceFactory {
+      /**
+       * Opens the source of the string value.
+       * @return A source positioned at the start of the value.
+       * @throws IOException If the source cannot be opened.
+       */
+      public Source open() throws IOException;
+   } // end of interface SourceFactory
+
+   /** Size of the buffer for encoded bytes */
+   static final int BUFFER_SIZE = 65536;
+
+   // Attributes:
+
+   /**
+    * The name of the value.
+    * @see #getName()
+    */
+   protected String name;
+   /**
+    * Getter for {@link #name}: The name of the value.
+    * @return The name of the value.
+    */
+   public String getName() { return name; }
+
+   /**
+    * Opens the source of the value.
+    * @see #getSourceFactory()
+    */
+   protected SourceFactory sourceFactory;
+   /**
+    * Getter for {@link #sourceFactory}: Opens the source of the value.
+    * @return Opens the source of the value.
+    */
+   public SourceFactory getSourceFactory() { return sourceFactory; }
+
+   // Methods:
+
+   /**
+    * Constructor.
+    * @param name The name of the value.
+    * @param sourceFactory Opens the source of the value.
+    */
+   public JsonStringBody(String name, SourceFactory sourceFactory) {
+      this.name = name;
+      this.sourceFactory = sourceFactory;
+   } // end of constructor
+
+   /**
+    * Creates a body whose value is the content of a text file, with lines separated by
+    * newlines, and ending with a newline if the last line isn't blank.
+    * @param name The name of the value.
+    * @param file The UTF-8 text file.
+    * @return The request body.
+    */
+   public static JsonStringBody lines(String name, Path file) {
+      return new JsonStringBody(name, () -> new Source() {
+            BufferedReader reader = new BufferedReader(
+               new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8));
+            String lastLine = null;
+            String pendingLine = null;
+            public CharSequence next() throws IOException {
+               if (pendingLine != null) {
+                  String line = pendingLine;
+                  pendingLine = null;
+                  return line;
+               }
+               String line = reader.readLine();
+               if (line == null) {
+                  // ensure the value ends in a blank line
+                  if (lastLine == null || lastLine.length() == 0) return null;
+                  lastLine = "";
+                  return "\n";
+               } else if (lastLine == null) { // first line
+                  lastLine = line;
+                  return line;
+               } else { // separate from the previous line
+                  lastLine = line;
+                  pendingLine = line;
+                  return "\n";
+               }
+            }
+            public void close() throws IOException {
+               reader.close();
+            }
+         });
+   } // end of lines()
+
+   /**
+    * Creates a body whose value is lines of space-separated keys and values, each ending
+    * with a newline.
+    * @param name The name of the value.
+    * @param entries The entries, which are iterated each time the content is read.
+    * @return The request body.
+    */
+   public static JsonStringBody entries(
+      String name, Iterable<? extends Map.Entry<String,String>> entries) {
+      return new JsonStringBody(name, () -> new Source() {
+            Iterator<? extends Map.Entry<String,String>> iterator = entries.iterator();
+            StringBuilder line = new StringBuilder();
+            public CharSequence next() {
+               if (!iterator.hasNext()) return null;
+               Map.Entry<String,String> entry = iterator.next();
+               line.setLength(0);
+               return line.append(entry.getKey()).append(' ')
+                  .append(entry.getValue()).append('\n');
+            }
+            public void close() {}
+         });
+   } // end of entries()
+
+   /**
+    * Appends the given text to a buffer, escaped for inclusion in a JSON string.
+    * @param text The text to escape.
+    * @param buffer The buffer to append to.
+    */
+   static void escape(CharSequence text, StringBuilder buffer) {
+      int length = text.length();
+      int unescaped = 0; // start of the run of characters that need no escaping
+      for (int i = 0; i < length; i++) {
+         char c = text.charAt(i);
+         if (c >= 0x20 && c != '"' && c != '\\') continue;
+         buffer.append(text, unescaped, i);
+         unescaped = i + 1;
+         switch (c) {
+            case '"': buffer.append("\\\""); break;
+            case '\\': buffer.append("\\\\"); break;
+            case '\b': buffer.append("\\b"); break;
+            case '\f': buffer.append("\\f"); break;
+            case '\n': buffer.append("\\n"); break;
+            case '\r': buffer.append("\\r"); break;
+            case '\t': buffer.append("\\t"); break;
+            default:
+               buffer.append("\\u00")
+                  .append(Character.forDigit(c >> 4, 16))
+                  .append(Character.forDigit(c & 0xF, 16));
+         }
+      } // next character
+      buffer.append(text, unescaped, length);
+   } // end of escape()
+
+   /**
+    * The MIME type of the content.
+    * @return "application/json;charset=utf-8"
+    */
+   public String getContentType() {
+      return "application/json;charset=utf-8";
+   } // end of getContentType()
+
+   /**
+    * The length of the content in bytes, which isn't known until the source has been read.
+    * @return -1, so that the content is sent using chunked encoding.
+    */
+   public long getContentLength() {
+      return -1;
+   } // end of getContentLength()
+
+   /**
+    * Opens a stream for reading the content, which opens a new source for the value.
+    * @return A stream of the content.
+    * @throws IOException If the source cannot be opened.
+    */
+   public InputStream openStream() throws IOException {
+      return new JsonStringStream(sourceFactory.open());
+   } // end of openStream()
+
+   /**
+    * Writes the content to the given channel, encoding it straight into the buffer
+    * that's written.
+    * @param channel The channel to write to, which is not closed.
+    * @return The number of bytes written.
+    * @throws IOException If the source cannot be read, or the content can't be written.
+    */
+   public long writeTo(WritableByteChannel channel) throws IOException {
+      long total = 0;
+      try (JsonStringStream stream = new JsonStringStream(sourceFactory.open())) {
+         while (stream.fill()) {
+            while (stream.bytes.hasRemaining()) total += channel.write(stream.bytes);
+         }
+      }
+      return total;
+   } // end of writeTo()
+
+   /**
+    * Escapes and encodes a source of text as the content of the body, a chunk at a
+    * time.
+    */
+   class JsonStringStream extends InputStream {
+
+      /** The source of the value */
+      Source source;
+
+      /** Encodes escaped chunks as UTF-8 */
+      CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+         .onMalformedInput(CodingErrorAction.REPLACE)
+         .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+      /** Escaped chunks, accumulated until there are enough to encode */
+      StringBuilder escaped = new StringBuilder();
+
+      /**
+       * A copy of {@link #escaped}, as encoders are much faster with array-backed
+       * buffers than with a CharSequence
+       */
+      char[] escapedChars = new char[0];
+
+      /** The part of the escaped chunks that hasn't been encoded yet */
+      CharBuffer chars = CharBuffer.wrap(escapedChars);
+
+      /** Encoded bytes that haven't been read yet */
+      ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE).flip();
+
+      /** Whether the opening of the object has been produced yet */
+      boolean started = false;
+
+      /** Whether the source has been exhausted, and the end of the object produced */
+      boolean ended = false;
+
+      /** Whether all content has been encoded */
+      boolean flushed = false;
+
+      /**
+       * Constructor.
+       * @param source The source of the value.
+       */
+      JsonStringStream(Source source) {
+         this.source = source;
+      } // end of constructor
+
+      /**
+       * Encodes more content into {@link #bytes}.
+       * @return false if there is no more content.
+       * @throws IOException If the source cannot be read.
+       */
+      boolean fill() throws IOException {
+         if (flushed) return false;
+         bytes.clear();
+         while (true) {
+            CoderResult result = encoder.encode(chars, bytes, ended);
+            if (result.isOverflow()) break;
+            if (ended) {
+               if (encoder.flush(bytes).isOverflow()) break;
+               flushed = true;
+               break;
+            }
+            nextChunk();
+         } // next chunk
+         bytes.flip();
+         return bytes.hasRemaining() || !flushed;
+      } // end of fill()
+
+      /**
+       * Escapes the next chunks of content into {@link #chars}, after anything left
+       * over from the previous chunks (e.g. half of a surrogate pair). Chunks are
+       * accumulated until there's at least a buffer-full, or the source is exhausted.
+       * @throws IOException If the source cannot be read.
+       */
+      private void nextChunk() throws IOException {
+         escaped.setLength(0);
+         escaped.append(chars);
+         if (!started) {
+            escaped.append("{\"");
+            escape(name, escaped);
+            escaped.append("\":\"");
+            started = true;
+         }
+         while (!ended && escaped.length() < BUFFER_SIZE) {
+            CharSequence text = source.next();
+            if (text != null) {
+               escape(text, escaped);
+            } else {
+               escaped.append("\"}");
+               ended = true;
+            }
+         } // next chunk
+         int length = escaped.length();
+         if (escapedChars.length < length) {
+            escapedChars = new char[Math.max(length, BUFFER_SIZE * 2)];
+         }
+         escaped.getChars(0, length, escapedChars, 0);
+         chars = CharBuffer.wrap(escapedChars, 0, length);
+      } // end of nextChunk()
+
+      public int read() throws IOException {
+         byte[] b = new byte[1];
+         return read(b, 0, 1) < 0? -1 : b[0] & 0xFF;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) return 0;
+         while (!bytes.hasRemaining()) {
+            if (!fill()) return -1;
+         }
+         int n = Math.min(len, bytes.remaining());
+         bytes.get(b, off, n);
+         return n;
+      }
+
+      public void close() throws IOException {
+         source.close();
+      }
+   } // end of class JsonStringStream
+
+} // end of class JsonStringBody
@@ -0,0 +1,479 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The multipart/form-data body of a {@link HttpRequestPostMultipart}.
+ * <p> The framing around each part (boundaries and part headers) is encoded as UTF-8
+ * once, when the body is created, and adjacent framing is merged into a single
+ * segment. If all parts are files or string values, the total length is known in
+ * advance, so the request can be sent with a fixed Content-Length rather than in
+ * chunks.
+ * <p> File content is never copied into a <tt>byte[]</tt>:
+ * <ul>
+ *  <li>{@link #writeTo(WritableByteChannel)} uses {@link FileChannel#transferTo(long,long,WritableByteChannel)},
+ *   which the operating system can perform without copying through the JVM heap if the
+ *   destination is a socket or file channel.</li>
+ *  <li>{@link #publisher()} publishes memory-mapped windows of each file, which
+ *   {@link java.net.http.HttpClient} writes directly to its socket.</li>
+ * </ul>
+ * <p> The upload of each file is recorded as a <tt>nzilbb.elpis.FileUpload</tt> event
+ * while Java Flight Recorder is running.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class MultipartBody implements RequestBody {
+
+   /** Maximum number of bytes of a file to transfer or map at once */
+   static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+   /** Size of buffers for content that can't be mapped */
+   static final int BUFFER_SIZE = 65536;
+
+   /**
+    * A segment of the body - either framing bytes, a file, or a stream.
+    */
+   static class Segment {
+      byte[] bytes;
+      String name; // parameter name of a file or stream
+      File file;
+      long fileLength;
+      InputStream stream;
+   }
+
+   // Attributes:
+
+   /** The request, for checking cancellation */
+   private HttpRequestPostMultipart request;
+
+   /** The segments of the body, in order */
+   private List<Segment> segments = new Vector<Segment>();
+
+   /**
+    * The MIME type of the content.
+    * @see #getContentType()
+    */
+   protected String contentType;
+   /**
+    * Getter for {@link #contentType}: The MIME type of the content.
+    * @return The MIME type of the content.
+    */
+   public String getContentType() { return contentType; }
+
+   /**
+    * The length of the content in bytes, or -1 if unknown.
+    * @see #getContentLength()
+    */
+   protected long contentLength;
+   /**
+    * Getter for {@link #contentLength}: The length of the content in bytes, or -1 if
+    * unknown because some parts are streams.
+    * @return The length of the content in bytes, or -1 if unknown.
+    */
+   public long getContentLength() { return contentLength; }
+
+   // Methods:
+
+   /**
+    * Constructor.
+    * @param request The request whose parts make up the body.
+    */
+   public MultipartBody(HttpRequestPostMultipart request) {
+      this.request = request;
+      this.contentType = "multipart/form-data; boundary=" + request.boundary;
+      ByteArrayOutputStream framing = new ByteArrayOutputStream();
+      long length = 0;
+      for (HttpRequestPostMultipart.Part part : request.parts) {
+         framing.writeBytes(part.header(request.boundary).getBytes(StandardCharsets.UTF_8));
+         if (part.value != null) {
+            framing.writeBytes(part.value.getBytes(StandardCharsets.UTF_8));
+         } else {
+            length += addBytes(framing);
+            Segment segment = new Segment();
+            segment.name = part.name;
+            if (part.file != null) {
+               segment.file = part.file;
+               segment.fileLength = part.file.length();
+               if (length >= 0) length += segment.fileLength;
+            } else {
+               segment.stream = part.stream;
+               length = Long.MIN_VALUE; // unknown
+            }
+            segments.add(segment);
+         }
+         framing.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+      } // next part
+      framing.writeBytes(("--" + request.boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+      length += addBytes(framing);
+      contentLength = length < 0? -1 : length;
+   } // end of constructor
+
+   /**
+    * Adds the given framing as a segment, and resets it.
+    * @param framing The framing accumulated since the last file/stream part.
+    * @return The number of bytes added.
+    */
+   private int addBytes(ByteArrayOutputStream framing) {
+      if (framing.size() == 0) return 0;
+      Segment segment = new Segment();
+      segment.bytes = framing.toByteArray();
+      segments.add(segment);
+      framing.reset();
+      return segment.bytes.length;
+   } // end of addBytes()
+
+   /**
+    * Throws an exception if the request has been cancelled.
+    * @throws RequestCancelledException If the request has been cancelled.
+    */
+   private void checkCancelled() throws RequestCancelledException {
+      if (request.isCancelling()) throw new RequestCancelledException(request);
+   } // end of checkCancelled()
+
+   /**
+    * Ends the Java Flight Recorder event for uploading a file, and records it if
+    * required. Fields are filled in only if the event is being recorded.
+    * @param event The event for the file.
+    * @param request The request being sent.
+    * @param segment The file's segment.
+    * @param bytes The number of bytes of the file sent.
+    * @param method How the content was sent.
+    */
+   static void commit(FileUploadEvent event, HttpRequestPostMultipart request,
+                      Segment segment, long bytes, String method) {
+      event.end();
+      if (!event.shouldCommit()) return;
+      event.url = request.url;
+      event.parameter = segment.name;
+      event.fileName = segment.file.getName();
+      event.path = segment.file.getPath();
+      event.bytes = bytes;
+      event.fileSize = segment.fileLength;
+      event.method = method;
+      event.commit();
+   } // end of commit()
+
+   /**
+    * Opens a stream for reading the content, for transports that can't use channels.
+    * @return A stream of the content, which the caller must close.
+    */
+   public InputStream openStream() {
+      return new ContentInputStream(segments, request);
+   } // end of openStream()
+
+   /**
+    * Writes the content to the given channel, transferring file content directly from
+    * the file's channel.
+    * @param channel The channel to write to, which is not closed.
+    * @return The number of bytes written.
+    * @throws IOException If the content can't be read or written.
+    */
+   public long writeTo(WritableByteChannel channel) throws IOException {
+      long total = 0;
+      for (Segment segment : segments) {
+         checkCancelled();
+         if (segment.bytes != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(segment.bytes);
+            while (buffer.hasRemaining()) total += channel.write(buffer);
+         } else if (segment.file != null) {
+            FileUploadEvent event = new FileUploadEvent();
+            event.begin();
+            long position = 0;
+            try (FileChannel file = FileChannel.open(
+                    segment.file.toPath(), StandardOpenOption.READ)) {
+               while (position < segment.fileLength) {
+                  checkCancelled();
+                  long count = file.transferTo(
+                     position, Math.min(CHUNK_SIZE, segment.fileLength - position), channel);
+                  if (count <= 0) {
+                     throw new IOException(
+                        "File changed while uploading: " + segment.file.getPath());
+                  }
+                  position += count;
+               } // next chunk
+               total += position;
+            } finally {
+               commit(event, request, segment, position, "transfer");
+            }
+         } else {
+            try (ReadableByteChannel stream = Channels.newChannel(segment.stream)) {
+               ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+               while (stream.read(buffer) >= 0) {
+                  checkCancelled();
+                  buffer.flip();
+                  while (buffer.hasRemaining()) total += channel.write(buffer);
+                  buffer.clear();
+               }
+            }
+         }
+      } // next segment
+      return total;
+   } // end of writeTo()
+
+   /**
+    * Publishes the content as a series of buffers; framing is wrapped, and files are
+    * memory-mapped in windows of up to {@link #CHUNK_SIZE} bytes.
+    * @return A publisher of the content.
+    */
+   public Flow.Publisher<ByteBuffer> publisher() {
+      return subscriber -> subscriber.onSubscribe(new BufferSubscription(subscriber));
+   } // end of publisher()
+
+   /**
+    * Subscription that emits buffers as they're requested.
+    */
+   private class BufferSubscription implements Flow.Subscription {
+      final Flow.Subscriber<? super ByteBuffer> subscriber;
+      final AtomicLong demand = new AtomicLong();
+      final AtomicInteger wip = new AtomicInteger();
+      volatile boolean done = false;
+      int s = 0; // index of the current segment
+      long position = 0; // position in the current file
+      FileChannel file;
+      FileUploadEvent fileEvent; // for the current file
+      ReadableByteChannel stream;
+
+      BufferSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+         this.subscriber = subscriber;
+      }
+
+      public void request(long n) {
+         if (n <= 0) {
+            done = true;
+            drain();
+            subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+            return;
+         }
+         demand.getAndAccumulate(n, (a, b) -> a + b < 0? Long.MAX_VALUE : a + b);
+         drain();
+      }
+
+      public void cancel() {
+         done = true;
+         drain();
+      }
+
+      /** Emits as many buffers as have been requested, from only one thread at a time */
+      void drain() {
+         if (wip.getAndIncrement() != 0) return; // another thread is draining
+         int missed = 1;
+         do {
+            while (!done && demand.get() > 0) {
+               ByteBuffer buffer;
+               try {
+                  buffer = next();
+               } catch(IOException exception) {
+                  done = true;
+                  IOException closing = close();
+                  if (closing != null) exception.addSuppressed(closing);
+                  subscriber.onError(exception);
+                  return;
+               }
+               if (buffer == null) {
+                  done = true;
+                  IOException closing = close();
+                  if (closing != null) { // the upload may be incomplete
+                     subscriber.onError(closing);
+                  } else {
+                     subscriber.onComplete();
+                  }
+                  return;
+               }
+               demand.decrementAndGet();
+               subscriber.onNext(buffer);
+            }
+            if (done) close(); // cancelled, so there's no one to report failure to
+            missed = wip.addAndGet(-missed);
+         } while (missed != 0);
+      }
+
+      /** The next buffer of content, or null if there's no more */
+      ByteBuffer next() throws IOException {
+         while (s < segments.size()) {
+            checkCancelled();
+            Segment segment = segments.get(s);
+            if (segment.bytes != null) {
+               s++;
+               return ByteBuffer.wrap(segment.bytes);
+            } else if (segment.file != null) {
+               if (file == null) {
+                  fileEvent = new FileUploadEvent();
+                  fileEvent.begin();
+                  file = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ);
+                  position = 0;
+               }
+               long remaining = segment.fileLength - position;
+               if (remaining > 0) {
+                  long size = Math.min(CHUNK_SIZE, remaining);
+                  ByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, position, size);
+                  position += size;
+                  return buffer;
+               }
+               closeFile();
+            } else {
+               if (stream == null) stream = Channels.newChannel(segment.stream);
+               ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+               boolean more = true;
+               while (more && buffer.hasRemaining()) {
+                  more = stream.read(buffer) >= 0;
+               } // next read
+               if (buffer.position() > 0) {
+                  buffer.flip();
+                  return buffer;
+               }
+               stream.close();
+               stream = null;
+            }
+            s++;
+         } // next segment
+         return null;
+      }
+
+      /** Closes the current file, and records its upload event */
+      void closeFile() throws IOException {
+         try {
+            file.close();
+         } finally {
+            file = null;
+            Segment segment = segments.get(s);
+            commit(fileEvent, request, segment, position, "mapped");
+            fileEvent = null;
+         }
+      }
+
+      /**
+       * Closes the current file or stream, if any.
+       * @return The exception thrown while closing, or null if there was none, so that
+       * the caller can report it to the subscriber.
+       */
+      IOException close() {
+         IOException failure = null;
+         if (file != null) {
+            try {
+               closeFile();
+            } catch(IOException exception) {
+               failure = exception;
+            }
+         }
+         if (stream != null) {
+            try {
+               stream.close();
+            } catch(IOException exception) {
+               if (failure == null) failure = exception;
+               else failure.addSuppressed(exception);
+            }
+         }
+         file = null;
+         stream = null;
+         return failure;
+      }
+   } // end of class BufferSubscription
+
+   /**
+    * Stream of all segments, checking for cancellation before every read. Failure to
+    * open a file, or a file whose length has changed since the body was created, causes
+    * an IOException rather than a truncated upload.
+    */
+   private class ContentInputStream extends FilterInputStream {
+      ContentInputStream(List<Segment> segments, HttpRequestPostMultipart request) {
+         super(new SequenceInputStream(new Enumeration<InputStream>() {
+               int s = 0;
+               public boolean hasMoreElements() {
+                  return s < segments.size();
+               }
+               public InputStream nextElement() {
+                  Segment segment = segments.get(s++);
+                  if (segment.bytes != null) return new ByteArrayInputStream(segment.bytes);
+                  if (segment.stream != null) return segment.stream;
+                  FileUploadEvent event = new FileUploadEvent();
+                  event.begin();
+                  try {
+                     return new FilterInputStream(new FileInputStream(segment.file)) {
+                        long bytes = 0;
+                        boolean closed = false;
+                        public int read() throws IOException {
+                           int b = in.read();
+                           counted(b < 0? -1 : 1);
+                           return b;
+                        }
+                        public int read(byte[] b, int off, int len) throws IOException {
+                           return counted(in.read(b, off, len));
+                        }
+                        /** Counts bytes read, checking the file hasn't changed */
+                        int counted(int n) throws IOException {
+                           if (n > 0) bytes += n;
+                           if (bytes > segment.fileLength
+                               || (n < 0 && bytes < segment.fileLength)) {
+                              throw new IOException(
+                                 "File changed while uploading: " + segment.file.getPath());
+                           }
+                           return n;
+                        }
+                        public void close() throws IOException {
+                           try {
+                              super.close();
+                           } finally {
+                              if (!closed) {
+                                 closed = true;
+                                 commit(event, request, segment, bytes, "stream");
+                              }
+                           }
+                        }
+                     };
+                  } catch(IOException exception) {
+                     throw new UncheckedIOException(exception);
+                  }
+               }
+            }));
+      }
+      public int read() throws IOException {
+         checkCancelled();
+         try {
+            return super.read();
+         } catch(UncheckedIOException exception) { // file couldn't be opened
+            throw exception.getCause();
+         }
+      }
+      public int read(byte[] b, int off, int len) throws IOException {
+         checkCancelled();
+         try {
+            return super.read(b, off, len);
+         } catch(UncheckedIOException exception) { // file couldn't be opened
+            throw exception.getCause();
+         }
+      }
+      public void close() throws IOException {
+         try {
+            super.close();
+         } catch(UncheckedIOException exception) { // remaining file couldn't be opened
+            throw exception.getCause();
+         }
+      }
+   } // end of class ContentInputStream
+
+} // end of class MultipartBody
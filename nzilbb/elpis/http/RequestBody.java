@@ -0,0 +1,74 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Flow;
+
+/**
+ * The content of a {@link TransportRequest}.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public interface RequestBody {
+
+   /**
+    * The MIME type of the content.
+    * @return The Content-Type header value, or null if none should be sent.
+    */
+   public String getContentType();
+
+   /**
+    * The length of the content in bytes, if known.
+    * @return The number of bytes that {@link #openStream()} will return, or -1 if
+    * unknown, in which case the content is sent using chunked encoding.
+    */
+   public long getContentLength();
+
+   /**
+    * Opens a stream for reading the content.
+    * @return A stream of the content, which the caller must close.
+    * @throws IOException If the content cannot be read.
+    */
+   public InputStream openStream() throws IOException;
+
+   /**
+    * Writes the content to the given channel.
+    * <p> The default implementation copies from {@link #openStream()} using a fixed-size
+    * buffer; implementations that can transfer content more directly should override it.
+    * @param channel The channel to write to, which is not closed.
+    * @return The number of bytes written.
+    * @throws IOException If the content cannot be read or written.
+    */
+   public default long writeTo(WritableByteChannel channel) throws IOException {
+      long total = 0;
+      try (ReadableByteChannel in = Channels.newChannel(openStream())) {
+         ByteBuffer buffer = ByteBuffer.allocate(65536);
+         while (in.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) total += channel.write(buffer);
+            buffer.clear();
+         }
+      }
+      return total;
+   } // end of writeTo()
+
+   /**
+    * Publishes the content as a series of buffers, for transports that write buffers
+    * directly to the network.
+    * <p> The default implementation returns null, meaning that transports should read
+    * the content from {@link #openStream()} instead.
+    * @return A publisher of the content, or null if not supported.
+    */
+   public default Flow.Publisher<ByteBuffer> publisher() {
+      return null;
+   } // end of publisher()
+
+} // end of interface RequestBody
@@ -0,0 +1,144 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A copy of another request whose body has been read into memory in advance, so that it
+ * can be sent as soon as it's needed, without waiting for files to be read or the body to
+ * be encoded.
+ * <p> This is useful for overlapping the preparation of one request with waiting for
+ * another - e.g. preparing the next upload while the server is busy.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class StagedRequest implements TransportRequest {
+
+   // Attributes:
+
+   /**
+    * The HTTP method of the request.
+    * @see #getMethod()
+    */
+   protected String method;
+   /**
+    * Getter for {@link #method}: The HTTP method of the request.
+    * @return The HTTP method - e.g. "GET" or "POST".
+    */
+   public String getMethod() { return method; }
+
+   /**
+    * The full URL of the request.
+    * @see #getUrl()
+    */
+   protected URL url;
+   /**
+    * Getter for {@link #url}: The full URL of the request.
+    * @return The URL to send the request to.
+    */
+   public URL getUrl() { return url; }
+
+   /**
+    * The HTTP headers of the request.
+    * @see #getRequestHeaders()
+    */
+   protected Map<String,String> requestHeaders;
+   /**
+    * Getter for {@link #requestHeaders}: The HTTP headers of the request.
+    * @return A map of header names to values.
+    */
+   public Map<String,String> getRequestHeaders() { return requestHeaders; }
+
+   /**
+    * The body of the request, or null if the request has no body.
+    * @see #getBody()
+    */
+   protected ByteArrayRequestBody body;
+   /**
+    * Getter for {@link #body}: The body of the request.
+    * @return The body of the request, or null if the request has no body.
+    */
+   public RequestBody getBody() { return body; }
+
+   // Methods:
+
+   /**
+    * Constructor, which reads the whole body of the given request.
+    * @param request The request to stage.
+    * @throws IOException If the body can't be read.
+    */
+   public StagedRequest(TransportRequest request) throws IOException {
+      this.method = request.getMethod();
+      this.url = request.getUrl();
+      this.requestHeaders = new LinkedHashMap<String,String>(request.getRequestHeaders());
+      RequestBody source = request.getBody();
+      if (source != null) {
+         long length = source.getContentLength();
+         if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Request too large to stage: " + length + " bytes");
+         }
+         // write straight into the array the body uses, rather than copying it from a
+         // stream's buffer, so there's only ever one copy of the content in memory
+         ContentChannel content = new ContentChannel(length >= 0? (int)length : 65536);
+         source.writeTo(content);
+         if (length >= 0 && content.length != length) {
+            throw new IOException(
+               "Request body is " + content.length + " bytes, expected " + length);
+         }
+         body = new ByteArrayRequestBody(
+            content.buffer, content.length, source.getContentType());
+      }
+   } // end of constructor
+
+   /**
+    * Accumulates content in an array, which grows only if the content is longer than
+    * expected.
+    */
+   static class ContentChannel implements WritableByteChannel {
+      /** The content written so far, at the start of the array */
+      byte[] buffer;
+      /** The number of bytes written */
+      int length = 0;
+
+      ContentChannel(int capacity) {
+         buffer = new byte[capacity];
+      }
+
+      public int write(ByteBuffer source) throws IOException {
+         int count = source.remaining();
+         if (buffer.length - length < count) {
+            long needed = (long)length + count;
+            if (needed > Integer.MAX_VALUE - 8) {
+               throw new IOException("Request too large to stage: " + needed + " bytes");
+            }
+            buffer = Arrays.copyOf(
+               buffer, (int)Math.min(Math.max(needed, buffer.length * 2L), Integer.MAX_VALUE - 8));
+         }
+         source.get(buffer, length, count);
+         length += count;
+         return count;
+      }
+
+      public boolean isOpen() { return true; }
+
+      public void close() {}
+   } // end of class ContentChannel
+
+   /**
+    * String representation of the request.
+    * @return A String representation of the request.
+    */
+   public String toString() {
+      return method + " " + url + (body != null? " (" + body.getContentLength() + " bytes)" : "");
+   } // end of toString()
+
+} // end of class StagedRequest
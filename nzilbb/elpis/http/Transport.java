@@ -0,0 +1,65 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Mechanism for sending requests to the server and receiving their responses.
+ * <p> Implementations may pool connections, so a single instance can be shared by many
+ * requests, and by many threads.
+ * @see HttpClientTransport
+ * @see UrlConnectionTransport
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public interface Transport {
+
+   /**
+    * Sends the given request to the server.
+    * @param request The request to send.
+    * @return The server's response, which must be closed by the caller once its body
+    * has been read.
+    * @throws IOException If a communications error occurs.
+    */
+   public TransportResponse send(TransportRequest request) throws IOException;
+
+   /**
+    * Sends the given request to the server without waiting for the response.
+    * <p> The default implementation calls {@link #send(TransportRequest)} on a thread
+    * from the {@link #blockingExecutor()}, which is blocked until the response arrives;
+    * implementations that support non-blocking I/O should override it.
+    * @param request The request to send.
+    * @return A future that completes with the server's response, or completes
+    * exceptionally with an IOException if a communications error occurs. The response
+    * body may still be arriving, so it should be read using the
+    * {@link #blockingExecutor()}.
+    */
+   public default CompletableFuture<TransportResponse> sendAsync(TransportRequest request) {
+      return CompletableFuture.supplyAsync(() -> {
+            try {
+               return send(request);
+            } catch(IOException exception) {
+               throw new CompletionException(exception);
+            }
+         }, blockingExecutor());
+   } // end of sendAsync()
+
+   /**
+    * Executor for work that blocks on behalf of asynchronous requests - e.g. sending a
+    * request with a transport that doesn't support non-blocking I/O, or reading a
+    * response body as it arrives - so that it doesn't tie up threads of the common
+    * fork/join pool or of the HTTP client. Threads are daemon threads that are created as
+    * required, and reused once idle.
+    * @return The executor for blocking work.
+    */
+   public static Executor blockingExecutor() {
+      return BlockingExecutor.INSTANCE;
+   } // end of blockingExecutor()
+
+} // end of interface Transport
@@ -0,0 +1,66 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * A request that can be sent by a {@link Transport}.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public interface TransportRequest {
+
+   /**
+    * The HTTP method of the request.
+    * @return The HTTP method - e.g. "GET" or "POST".
+    */
+   public String getMethod();
+
+   /**
+    * The full URL of the request, including any query string.
+    * @return The URL to send the request to.
+    * @throws IOException If the URL cannot be constructed.
+    */
+   public URL getUrl() throws IOException;
+
+   /**
+    * The HTTP headers of the request, not including Content-Type or Content-Length,
+    * which are determined by the {@link #getBody()}.
+    * @return A map of header names to values.
+    */
+   public Map<String,String> getRequestHeaders();
+
+   /**
+    * The body of the request.
+    * @return The body of the request, or null if the request has no body.
+    * @throws IOException If the body cannot be generated.
+    */
+   public RequestBody getBody() throws IOException;
+
+   /**
+    * The maximum number of characters of each parameter value included in the
+    * <tt>toString()</tt> of requests.
+    */
+   public static final int PREVIEW_LENGTH = 200;
+
+   /**
+    * Abbreviates text for logging, so that large values - e.g. lexicons - aren't
+    * copied into log messages in full.
+    * @param text The text, which may be null.
+    * @param maxLength The maximum number of characters to include.
+    * @return The text if it's no longer than <var>maxLength</var>, or otherwise its
+    * start, followed by an ellipsis and its total length.
+    */
+   public static String preview(CharSequence text, int maxLength) {
+      if (text == null) return null;
+      int length = text.length();
+      if (length <= maxLength) return text.toString();
+      return text.subSequence(0, Math.max(0, maxLength)) + "…(" + length + " chars)";
+   } // end of preview()
+
+} // end of interface TransportRequest
@@ -0,0 +1,46 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The response to a request sent by a {@link Transport}.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public interface TransportResponse extends Closeable {
+
+   /**
+    * The HTTP status code.
+    * @return The HTTP status code, e.g. 200.
+    * @throws IOException If a communications error occurs.
+    */
+   public int getHttpStatus() throws IOException;
+
+   /**
+    * The HTTP status message, if known.
+    * @return The HTTP status message, or null if unknown.
+    * @throws IOException If a communications error occurs.
+    */
+   public String getHttpMessage() throws IOException;
+
+   /**
+    * Gets the value of a response header.
+    * @param name The name of the header.
+    * @return The (first) value of the header, or null if it was not returned.
+    */
+   public String getHeader(String name);
+
+   /**
+    * The body of the response, whether the request was successful or not.
+    * @return A stream for reading the response content, which may be empty.
+    * @throws IOException If a communications error occurs.
+    */
+   public InputStream getBody() throws IOException;
+
+} // end of interface TransportResponse
@@ -0,0 +1,140 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.util.Map;
+
+/**
+ * Transport that opens a new {@link HttpURLConnection} for each request.
+ * <p> This is how requests were sent before the introduction of {@link Transport}s, and
+ * is retained for environments where {@link HttpClientTransport} can't be used.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class UrlConnectionTransport implements Transport {
+
+   /** Size of chunks for request bodies whose length isn't known in advance */
+   static final int CHUNK_SIZE = 65536;
+
+   // Methods:
+
+   /**
+    * Default constructor.
+    */
+   public UrlConnectionTransport() {
+   } // end of constructor
+
+   /**
+    * Sends the given request to the server.
+    * @param request The request to send.
+    * @return The server's response.
+    * @throws IOException If a communications error occurs.
+    */
+   public TransportResponse send(TransportRequest request) throws IOException {
+      return new UrlConnectionResponse(open(request, null));
+   } // end of send()
+
+   /**
+    * Sends the given request using an HttpURLConnection.
+    * @param request The request to send.
+    * @param connection The connection to use, or null to open a new one to
+    * {@link TransportRequest#getUrl()}.
+    * @return The connection, with the request headers and body sent.
+    * @throws IOException If a communications error occurs.
+    */
+   public static HttpURLConnection open(TransportRequest request, HttpURLConnection connection)
+      throws IOException {
+
+      if (connection == null) {
+         connection = (HttpURLConnection)request.getUrl().openConnection();
+      }
+      connection.setUseCaches(false);
+      connection.setRequestMethod(request.getMethod());
+      Map<String,String> headers = request.getRequestHeaders();
+      for (String key : headers.keySet()) {
+         connection.setRequestProperty(key, headers.get(key));
+      } // next header
+
+      RequestBody body = request.getBody();
+      if (body != null) {
+         if (body.getContentType() != null) {
+            connection.setRequestProperty("Content-Type", body.getContentType());
+         }
+         connection.setDoOutput(true);
+         if (body.getContentLength() >= 0) {
+            connection.setFixedLengthStreamingMode(body.getContentLength());
+         } else {
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+         }
+         try {
+            OutputStream out = connection.getOutputStream();
+            body.writeTo(Channels.newChannel(out));
+            out.close();
+         } catch(UncheckedIOException exception) { // from the body content
+            throw exception.getCause();
+         }
+      } else if ("POST".equals(request.getMethod())) {
+         // ensure an empty body is sent
+         connection.setDoOutput(true);
+         connection.setFixedLengthStreamingMode(0);
+         connection.getOutputStream().close();
+      }
+      return connection;
+   } // end of open()
+
+   /**
+    * String representation of the transport.
+    * @return A String representation of the transport.
+    */
+   public String toString() {
+      return "HttpURLConnection";
+   } // end of toString()
+
+   /**
+    * Response received via an HttpURLConnection.
+    */
+   static class UrlConnectionResponse implements TransportResponse {
+
+      HttpURLConnection connection;
+
+      UrlConnectionResponse(HttpURLConnection connection) {
+         this.connection = connection;
+      }
+
+      public int getHttpStatus() throws IOException {
+         return connection.getResponseCode();
+      }
+
+      public String getHttpMessage() throws IOException {
+         return connection.getResponseMessage();
+      }
+
+      public String getHeader(String name) {
+         return connection.getHeaderField(name);
+      }
+
+      public InputStream getBody() throws IOException {
+         InputStream body = connection.getResponseCode() == HttpURLConnection.HTTP_OK?
+            connection.getInputStream() : connection.getErrorStream();
+         // the error stream is null if there was no content
+         return body != null? body : new ByteArrayInputStream(new byte[0]);
+      }
+
+      /**
+       * Closes the response stream, allowing the underlying connection to be reused.
+       */
+      public void close() throws IOException {
+         getBody().close();
+      }
+   } // end of class UrlConnectionResponse
+
+} // end of class UrlConnectionTransport
@@ -0,0 +1,374 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import nzilbb.elpis.*;
+import nzilbb.elpis.http.*;
+import nzilbb.elpis.util.ElpisStub;
+
+/**
+ * Tests and benchmarks bulk operations, using a local stub server that takes a little
+ * while to respond, like a real server would.
+ */
+public class TestBulkExecutor {
+
+   /** How long the stub server takes to respond */
+   static final int latencyMs = 20;
+
+   static HttpServer server;
+   static String elpisUrl;
+   static AtomicInteger inProgress = new AtomicInteger();
+   static AtomicInteger maxInProgress = new AtomicInteger();
+   static Vector<String> uploaded = new Vector<String>();
+   static AtomicInteger uploadRequests = new AtomicInteger();
+
+   @BeforeClass public static void startServer() throws IOException {
+      server = TestTransport.server();
+      server.createContext("/api/transcription/status", exchange -> {
+            maxInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+            try {
+               Thread.sleep(latencyMs);
+            } catch(InterruptedException exception) {}
+            inProgress.decrementAndGet();
+            TestTransport.respond(
+               exchange, "{\"status\":200,\"data\":{\"status\":\"transcribed\"}}");
+         });
+      server.createContext("/api/dataset/files", exchange -> {
+            uploadRequests.incrementAndGet();
+            String body = TestTransport.read(exchange);
+            Matcher filenames = Pattern.compile("filename=\"([^\"]+)\"").matcher(body);
+            while (filenames.find()) uploaded.add(filenames.group(1));
+            StringBuilder files = new StringBuilder();
+            for (String file : new Vector<String>(uploaded)) {
+               if (files.length() > 0) files.append(",");
+               files.append("\"").append(file).append("\"");
+            }
+            TestTransport.respond(
+               exchange, "{\"status\":200,\"data\":{\"files\":[" + files + "]}}");
+         });
+      server.start();
+      elpisUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+   }
+
+   @AfterClass public static void stopServer() {
+      server.stop(0);
+   }
+
+   /** Ensure results are returned in order, and concurrency is limited */
+   @Test public void mapLimitsConcurrency() throws Exception {
+      Vector<Elpis> servers = new Vector<Elpis>();
+      for (int s = 0; s < 40; s++) servers.add(new Elpis(elpisUrl));
+      maxInProgress.set(0);
+      try (BulkExecutor bulk = BulkExecutor.virtualThreads(4)) {
+         List<Response> responses = bulk.map(servers, elpis -> {
+               elpis.transcriptionStatus();
+               return elpis.getResponse();
+            });
+         assertEquals(servers.size(), responses.size());
+         for (Response response : responses) {
+            assertEquals("transcribed", response.getData().getString("status"));
+         }
+      }
+      assertTrue("Concurrency limited: " + maxInProgress, maxInProgress.get() <= 4);
+   }
+
+   /** Ensure concurrent calls on the same client don't see each other's responses */
+   @Test public void responsePerThread() throws Exception {
+      Elpis elpis = new Elpis(elpisUrl);
+      Vector<Integer> tasks = new Vector<Integer>();
+      for (int t = 0; t < 20; t++) tasks.add(t);
+      try (BulkExecutor bulk = BulkExecutor.platformThreads(10)) {
+         List<Response> responses = bulk.map(tasks, t -> {
+               elpis.transcriptionStatus();
+               return elpis.getResponse();
+            });
+         assertEquals("Each thread got its own response",
+                      tasks.size(), new java.util.HashSet<Response>(responses).size());
+      }
+      assertNull("No response on this thread", elpis.getResponse());
+   }
+
+   /** Ensure each call on a shared client returns its own result */
+   @Test public void resultPerCall() throws Exception {
+      Elpis elpis = new Elpis(elpisUrl);
+      Vector<Integer> tasks = new Vector<Integer>();
+      for (int t = 0; t < 20; t++) tasks.add(t);
+      try (BulkExecutor bulk = BulkExecutor.platformThreads(10)) {
+         List<Result<String>> results = bulk.map(tasks, t -> elpis.transcriptionStatusResult());
+         for (Result<String> result : results) {
+            assertEquals("transcribed", result.getData());
+            assertEquals(200, result.getHttpStatus());
+            assertEquals("transcriptionStatus", result.getFunction());
+            assertTrue("Duration includes latency: " + result,
+                       result.getDurationMillis() >= latencyMs);
+         }
+         assertEquals("Each call got its own response",
+                      tasks.size(), results.stream().map(r -> r.getResponse()).distinct().count());
+      }
+   }
+
+   /** Ensure files uploaded concurrently are all reported */
+   @Test public void datasetFilesConcurrently() throws Exception {
+      uploaded.clear();
+      Vector<File> files = new Vector<File>();
+      try (BulkExecutor bulk = BulkExecutor.virtualThreads(4)) {
+         for (int f = 0; f < 10; f++) files.add(File.createTempFile("TestBulkExecutor-", ".wav"));
+         Elpis elpis = new Elpis(elpisUrl).setBulkExecutor(bulk);
+         List<String> result = elpis.datasetFiles(files);
+         assertEquals("All files uploaded: " + result, files.size(), result.size());
+         for (File file : files) {
+            assertTrue(file.getName() + " in " + result, result.contains(file.getName()));
+         }
+         assertNotNull("Response available to caller", elpis.getResponse());
+      } finally {
+         for (File file : files) file.delete();
+      }
+   }
+
+   /** Ensure uploading to several servers with a shared executor doesn't deadlock */
+   @Test(timeout = 30000) public void datasetFilesToServers() throws Exception {
+      Vector<File> files = new Vector<File>();
+      ElpisStub[] stubs = { new ElpisStub().start(), new ElpisStub().start() };
+      try {
+         for (int f = 0; f < 3; f++) {
+            files.add(tempFile("TestBulkExecutor-", ".wav", 100));
+            files.add(tempFile("TestBulkExecutor-", ".eaf", 10));
+         }
+         for (BulkExecutor bulk : new BulkExecutor[] {
+               BulkExecutor.platformThreads(2), BulkExecutor.virtualThreads(2) }) {
+            try {
+               Vector<Elpis> servers = new Vector<Elpis>();
+               for (ElpisStub stub : stubs) {
+                  servers.add(new Elpis(stub.getUrl()).setBulkExecutor(bulk));
+               }
+               List<List<String>> results = bulk.map(servers, elpis -> {
+                     elpis.datasetNew("ds");
+                     return elpis.datasetFiles(files);
+                  });
+               for (List<String> result : results) {
+                  assertEquals(bulk + ": " + result, files.size(), result.size());
+               }
+            } finally {
+               bulk.close();
+            }
+         } // next executor
+      } finally {
+         for (ElpisStub stub : stubs) stub.stop();
+         for (File file : files) file.delete();
+      }
+   }
+
+   /** Ensure shards are balanced by size, and keep .eaf/.wav pairs together */
+   @Test public void shardsBalancedAndPaired() throws Exception {
+      Vector<File> files = new Vector<File>();
+      try {
+         long[] sizes = { 900, 100, 500, 500, 300, 200, 400, 100 };
+         for (int f = 0; f < sizes.length; f++) {
+            files.add(tempFile("speaker" + f + "-", ".wav", sizes[f]));
+         }
+         // the first recording has a transcript
+         File wav = files.get(0);
+         File eaf = new File(wav.getParentFile(), wav.getName().replace(".wav", ".eaf"));
+         try (RandomAccessFile content = new RandomAccessFile(eaf, "rw")) {
+            content.setLength(50);
+         }
+         files.add(eaf);
+         
+         List<List<File>> shards = UploadShards.split(files, 3);
+         assertEquals(3, shards.size());
+         int fileCount = 0;
+         long max = 0;
+         long min = Long.MAX_VALUE;
+         for (List<File> shard : shards) {
+            fileCount += shard.size();
+            long bytes = UploadShards.totalBytes(shard);
+            max = Math.max(max, bytes);
+            min = Math.min(min, bytes);
+            assertEquals("Pair kept together: " + shard, shard.contains(wav), shard.contains(eaf));
+         }
+         assertEquals("All files in a shard", files.size(), fileCount);
+         assertTrue("Balanced: " + min + " - " + max, max - min <= 100);
+         assertTrue("Largest first", UploadShards.totalBytes(shards.get(0)) == max);
+
+         assertEquals("Fewer shards than files",
+                      2, UploadShards.split(files.subList(0, 2), 5).size());
+      } finally {
+         for (File file : files) file.delete();
+      }
+   }
+
+   /** Ensure sharded uploads report progress, and send one request per shard */
+   @Test public void datasetFilesSharded() throws Exception {
+      uploaded.clear();
+      uploadRequests.set(0);
+      Vector<File> files = new Vector<File>();
+      Vector<String> events = new Vector<String>();
+      try (BulkExecutor bulk = BulkExecutor.virtualThreads(3)) {
+         for (int f = 0; f < 12; f++) files.add(tempFile("TestBulkExecutor-", ".wav", 1000));
+         Elpis elpis = new Elpis(elpisUrl)
+            .setBulkExecutor(bulk)
+            .setShardBytes(2500) // so there are more shards than the limit
+            .setUploadListener(new UploadListener() {
+                  public void shardStarted(int shard, int shardCount, List<File> f, long bytes) {
+                     events.add("started " + shard + "/" + shardCount + " " + bytes);
+                  }
+                  public void shardUploaded(
+                     int shard, int shardCount, List<File> f, long bytes, long nanos) {
+                     events.add("uploaded " + shard + "/" + shardCount + " " + bytes);
+                  }
+               });
+         List<String> result = elpis.datasetFiles(files);
+         assertEquals("All files uploaded: " + result, files.size(), result.size());
+         for (File file : files) {
+            assertTrue(file.getName() + " in " + result, result.contains(file.getName()));
+         }
+         assertEquals("One request per shard", 5, uploadRequests.get());
+         assertEquals("Two events per shard: " + events, 10, events.size());
+         assertTrue(events.toString(), events.contains("uploaded 0/5 3000"));
+         assertTrue(events.toString(), events.contains("uploaded 4/5 2000"));
+      } finally {
+         for (File file : files) file.delete();
+      }
+   }
+
+   /** Ensure only new or changed files are sent when the upload is repeated */
+   @Test public void datasetFilesResumed() throws Exception {
+      uploaded.clear();
+      File cache = Files.createTempDirectory("TestBulkExecutor-").toFile();
+      Vector<File> files = new Vector<File>();
+      try (BulkExecutor bulk = BulkExecutor.virtualThreads(2)) {
+         for (int f = 0; f < 6; f++) files.add(tempFile("TestBulkExecutor-", ".wav", 100 + f));
+         Elpis elpis = new Elpis(elpisUrl).setBulkExecutor(bulk);
+         UploadManifest manifest = new UploadManifest(cache, elpisUrl, "resumed");
+         uploadRequests.set(0);
+         assertEquals(files.size(), elpis.datasetFiles(files, manifest).size());
+         assertEquals("Sent in two shards", 2, uploadRequests.get());
+         assertEquals(files.size(), manifest.getAcknowledged().size());
+
+         // nothing has changed, so nothing is sent
+         manifest = new UploadManifest(cache, elpisUrl, "resumed"); // reload from disk
+         uploadRequests.set(0);
+         Result<List<String>> result = elpis.datasetFilesResult(files, manifest);
+         assertEquals("No requests sent", 0, uploadRequests.get());
+         assertEquals(0, result.getHttpStatus());
+         assertEquals(files.size(), result.getData().size());
+
+         // the asynchronous client honours the manifest too
+         assertEquals(files.size(), elpis.async().datasetFiles(files, manifest)
+                      .get(30, TimeUnit.SECONDS).size());
+         assertEquals("No requests sent asynchronously", 0, uploadRequests.get());
+
+         // change one file, and add another
+         try (FileOutputStream out = new FileOutputStream(files.get(2))) {
+            out.write("changed".getBytes());
+         }
+         files.add(tempFile("TestBulkExecutor-", ".eaf", 10));
+         uploaded.clear();
+         uploadRequests.set(0);
+         elpis.datasetFiles(files, manifest);
+         assertEquals("Only new and changed files sent: " + uploaded, 2, uploaded.size());
+         assertTrue(uploaded.contains(files.get(2).getName()));
+         assertTrue(uploaded.contains(files.get(6).getName()));
+         assertEquals(UploadManifest.ACKNOWLEDGED,
+                      manifest.getEntry(files.get(6).getName()).getState());
+      } finally {
+         for (File file : files) file.delete();
+         for (File file : cache.listFiles()) file.delete();
+         cache.delete();
+      }
+   }
+
+   /** Ensure concurrent hashing produces the same hashes as sequential hashing */
+   @Test public void hashConcurrently() throws Exception {
+      Vector<File> files = new Vector<File>();
+      try {
+         for (int f = 0; f < 8; f++) {
+            File file = File.createTempFile("TestBulkExecutor-", ".wav");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+               byte[] content = new byte[200000 + f];
+               new java.util.Random(f).nextBytes(content);
+               out.write(content);
+            }
+            files.add(file);
+         }
+         UploadManifest manifest = new UploadManifest(
+            new File(System.getProperty("java.io.tmpdir")), elpisUrl, "hashed");
+         List<String> sequential = manifest.setHashThreads(1).hash(files);
+         List<String> concurrent = manifest.setHashThreads(4).hash(files);
+         assertEquals(sequential, concurrent);
+         files.add(tempFile("TestBulkExecutor-", ".eaf", 0));
+         assertEquals("SHA-256 of empty file",
+                      "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                      UploadManifest.sha256(files.lastElement()));
+      } finally {
+         for (File file : files) file.delete();
+      }
+   }
+
+   /** Creates a temporary file of the given size */
+   static File tempFile(String prefix, String suffix, long size) throws IOException {
+      File file = File.createTempFile(prefix, suffix);
+      try (RandomAccessFile content = new RandomAccessFile(file, "rw")) {
+         content.setLength(size);
+      }
+      return file;
+   }
+
+   /**
+    * Compare throughput of platform threads with virtual threads for status polling;
+    * with latency-bound requests, either should finish in about
+    * <var>requests</var> / <var>limit</var> &times; <var>latency</var>.
+    */
+   @Test public void platformVsVirtualThroughput() throws Exception {
+      int requestCount = 200;
+      int limit = 10;
+      long idealMs = requestCount / limit * latencyMs;
+      Vector<Elpis> jobs = new Vector<Elpis>();
+      for (int j = 0; j < requestCount; j++) jobs.add(new Elpis(elpisUrl));
+      BulkExecutor[] executors = {
+         BulkExecutor.platformThreads(limit), BulkExecutor.virtualThreads(limit) };
+      for (BulkExecutor bulk : executors) {
+         try {
+            bulk.map(jobs.subList(0, limit), elpis -> elpis.transcriptionStatus()); // warm up
+            maxInProgress.set(0);
+            long start = System.nanoTime();
+            List<String> statuses = bulk.map(jobs, elpis -> elpis.transcriptionStatus());
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            assertEquals(requestCount, statuses.size());
+            assertTrue(bulk + ": concurrency limited: " + maxInProgress,
+                       maxInProgress.get() <= limit);
+            assertTrue(bulk + ": no faster than the limit allows: " + elapsedMs + "ms",
+                       elapsedMs >= idealMs * 9 / 10);
+            assertTrue(bulk + ": close to " + idealMs + "ms: " + elapsedMs + "ms",
+                       elapsedMs < idealMs * 4);
+            System.out.println(
+               bulk + ": " + (requestCount * 1000 / Math.max(1, elapsedMs))
+               + " requests/second");
+         } finally {
+            bulk.close();
+         }
+      } // next executor
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elpis.test.TestBulkExecutor");
+   }
+}
@@ -11,6 +11,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.net.URL;
 import java.net.MalformedURLException;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -118,14 +119,7 @@ public class TestElpis {
       elpis.modelSettings(2);
 
       String status = elpis.modelTrain();
-      int maxSeconds = 60;
-      System.out.print("Training");
-      while(status.equals("training") && --maxSeconds > 0) {
-         System.out.print(".");
-         Thread.sleep(1000);
-         status = elpis.modelStatus();
-      }
-      System.out.println();
+      status = elpis.awaitModelTrained(Duration.ofSeconds(60));
       assertEquals("Final status is 'trained'",
                    "trained", status);
 
@@ -151,16 +145,8 @@ public class TestElpis {
       elpis.transcriptionNew(toTranscribe);
 
       status = elpis.transcriptionTranscribe();
-      maxSeconds = 60;
-      System.out.print("Transcribing");
-      // call transcriptionStatus immediately, to ensure we call it at least once.
-      status = elpis.transcriptionStatus();
-      while(status.equals("transcribing") && --maxSeconds > 0) {
-         System.out.print(".");
-         Thread.sleep(1000);
-         status = elpis.transcriptionStatus();
-      }
-      System.out.println();
+      // this calls transcriptionStatus immediately, so it's called at least once.
+      status = elpis.awaitTranscribed(Duration.ofSeconds(60));
       assertEquals("Final status is 'transcribed'",
                    "transcribed", status);
 
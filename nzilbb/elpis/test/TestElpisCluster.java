@@ -0,0 +1,168 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import nzilbb.elpis.*;
+
+/**
+ * Tests routing jobs to several servers, using local stub servers.
+ */
+public class TestElpisCluster {
+
+   /**
+    * A stub server.
+    */
+   static class Stub {
+      HttpServer server;
+      String url;
+      volatile String modelStatus = "untrained";
+      AtomicInteger inProgress = new AtomicInteger();
+      AtomicInteger maxInProgress = new AtomicInteger();
+      AtomicInteger jobs = new AtomicInteger();
+      Stub() throws IOException {
+         server = TestTransport.server();
+         server.createContext("/api/model/status", exchange -> {
+               TestTransport.read(exchange);
+               TestTransport.respond(
+                  exchange, "{\"status\":200,\"data\":{\"status\":\"" + modelStatus + "\"}}");
+            });
+         server.createContext("/api/transcription/status", exchange -> {
+               TestTransport.read(exchange);
+               TestTransport.respond(
+                  exchange, "{\"status\":200,\"data\":{\"status\":\"ready\"}}");
+            });
+         server.createContext("/api/dataset/list", exchange -> {
+               maxInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+               jobs.incrementAndGet();
+               try {
+                  Thread.sleep(50);
+               } catch(InterruptedException exception) {}
+               inProgress.decrementAndGet();
+               TestTransport.read(exchange);
+               TestTransport.respond(
+                  exchange, "{\"status\":200,\"data\":{\"list\":[\"" + url + "\"]}}");
+            });
+         server.start();
+         url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+      }
+   }
+
+   static List<Stub> stubs = new Vector<Stub>();
+   
+   @BeforeClass public static void startServers() throws IOException {
+      for (int s = 0; s < 3; s++) stubs.add(new Stub());
+   }
+
+   @AfterClass public static void stopServers() {
+      for (Stub stub : stubs) stub.server.stop(0);
+   }
+
+   @Before public void reset() {
+      for (Stub stub : stubs) {
+         stub.modelStatus = "untrained";
+         stub.jobs.set(0);
+         stub.maxInProgress.set(0);
+      }
+   }
+
+   /** Creates a cluster of all the stub servers */
+   ElpisCluster cluster() throws IOException {
+      return new ElpisCluster(stubs.get(0).url, stubs.get(1).url, stubs.get(2).url)
+         .setRecheckInterval(Duration.ofMillis(100));
+   }
+
+   /** Ensure jobs are spread across servers, one at a time per server */
+   @Test public void oneJobPerServer() throws Exception {
+      try (ElpisCluster cluster = cluster()) {
+         List<CompletableFuture<List<String>>> results
+            = new Vector<CompletableFuture<List<String>>>();
+         for (int j = 0; j < 12; j++) results.add(cluster.submit(elpis -> elpis.datasetList()));
+         HashSet<String> used = new HashSet<String>();
+         for (CompletableFuture<List<String>> result : results) used.addAll(result.get());
+         assertEquals("All servers used: " + used, 3, used.size());
+         for (Stub stub : stubs) {
+            assertEquals("One job at a time: " + stub.url, 1, stub.maxInProgress.get());
+         }
+         assertEquals(0, cluster.getQueueLength());
+      }
+   }
+
+   /** Ensure servers that are training aren't used until they're idle */
+   @Test public void busyServerSkipped() throws Exception {
+      Stub busy = stubs.get(0);
+      busy.modelStatus = "training";
+      try (ElpisCluster cluster = cluster()) {
+         List<CompletableFuture<List<String>>> results
+            = new Vector<CompletableFuture<List<String>>>();
+         for (int j = 0; j < 6; j++) results.add(cluster.submit(elpis -> elpis.datasetList()));
+         for (CompletableFuture<List<String>> result : results) result.get();
+         assertEquals("Busy server not used", 0, busy.jobs.get());
+
+         // once training finishes, the server is used again
+         busy.modelStatus = "trained";
+         Thread.sleep(300); // allow for a recheck
+         results.clear();
+         for (int j = 0; j < 6; j++) results.add(cluster.submit(elpis -> elpis.datasetList()));
+         for (CompletableFuture<List<String>> result : results) result.get();
+         assertTrue("Server used once idle", busy.jobs.get() > 0);
+      }
+   }
+
+   /** Ensure jobs with the same key run on the same server, and others avoid it */
+   @Test public void pinnedJobs() throws Exception {
+      try (ElpisCluster cluster = cluster()) {
+         String first = cluster.submit("a", elpis -> elpis.datasetList().get(0)).get();
+         assertEquals(first + "api/", cluster.getPinned("a").getBaseUrl().toString());
+         List<CompletableFuture<String>> results = new Vector<CompletableFuture<String>>();
+         for (int j = 0; j < 5; j++) {
+            results.add(cluster.submit("a", elpis -> elpis.datasetList().get(0)));
+            results.add(cluster.submit("b", elpis -> elpis.datasetList().get(0)));
+         }
+         for (int j = 0; j < results.size(); j++) {
+            if (j % 2 == 0) {
+               assertEquals("Pinned to same server", first, results.get(j).get());
+            } else {
+               assertNotEquals("Other key uses another server", first, results.get(j).get());
+            }
+         }
+         for (Stub stub : stubs) {
+            assertTrue("One job at a time: " + stub.url, stub.maxInProgress.get() <= 1);
+         }
+         cluster.release("a");
+         assertNull(cluster.getPinned("a"));
+      }
+   }
+
+   /** Ensure job failures are passed back to the caller */
+   @Test public void jobFailure() throws Exception {
+      try (ElpisCluster cluster = cluster()) {
+         try {
+            cluster.submit(elpis -> { throw new ElpisException("failed"); }).get();
+            fail("Should have failed");
+         } catch(ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof ElpisException);
+         }
+         // the server is still usable
+         assertEquals(1, cluster.submit(elpis -> elpis.datasetList()).get().size());
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elpis.test.TestElpisCluster");
+   }
+}
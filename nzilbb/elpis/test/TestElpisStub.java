@@ -0,0 +1,153 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import nzilbb.elpis.*;
+import nzilbb.elpis.util.ElpisStub;
+
+/**
+ * Tests the in-process Elpis stub server, by running a whole training and transcription
+ * workflow against it.
+ */
+public class TestElpisStub {
+
+   ElpisStub stub;
+   File dir;
+
+   @Before public void start() throws Exception {
+      stub = new ElpisStub()
+         .setVocabularySize(500)
+         .setTrainingTime(Duration.ofMillis(200))
+         .setTranscriptionTime(Duration.ofMillis(100))
+         .start();
+      dir = Files.createTempDirectory("TestElpisStub-").toFile();
+   }
+
+   @After public void stop() {
+      stub.stop();
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+   }
+
+   /** Creates a file with the given name and size */
+   File file(String name, int size) throws Exception {
+      File file = new File(dir, name);
+      Files.write(file.toPath(), new byte[size]);
+      return file;
+   }
+
+   /** Ensure a whole workflow runs, with simulated training and transcription */
+   @Test public void workflow() throws Exception {
+      Elpis elpis = new Elpis(stub.getUrl());
+      elpis.datasetNew("ds");
+      assertEquals(Arrays.asList("ds"), elpis.datasetList());
+      elpis.datasetSettings("tier");
+      List<File> files = Arrays.asList(
+         file("a.eaf", 1000), file("a.wav", 200000), file("b.eaf", 10));
+      assertEquals(Arrays.asList("a.eaf", "a.wav", "b.eaf"), elpis.datasetFiles(files));
+      assertTrue("file content counted", stub.getBytesReceived() > 201010);
+      Map<String,Integer> wordlist = elpis.datasetPrepare();
+      assertEquals("configurable response size", 500, wordlist.size());
+      assertEquals(500, elpis.datasetPrepareCompact().size());
+
+      elpis.pronDictNew("pd", "ds");
+      assertEquals(Arrays.asList("pd"), elpis.pronDictList());
+      elpis.pronDictL2S(file("l2s.txt", 100));
+      Map<String,String> lexicon = elpis.pronDictGenerateLexicon();
+      assertEquals(500, lexicon.size());
+      assertEquals(500, elpis.pronDictGenerateLexiconCompact().size());
+      lexicon.put("w0", "w ʌ n");
+      elpis.pronDictSaveLexicon(lexicon);
+      assertTrue(stub.getSavedLexicon("pd").startsWith("w0 w ʌ n\n"));
+
+      elpis.modelNew("m", "pd");
+      elpis.modelSettings(2);
+      assertEquals(2, stub.getNgram("m"));
+      assertEquals(ElpisStub.UNTRAINED, elpis.modelStatus());
+      assertEquals(ElpisStub.TRAINING, elpis.modelTrain());
+      assertEquals(ElpisStub.TRAINING, elpis.modelStatus());
+      assertEquals(ElpisStub.TRAINED, elpis.awaitModelTrained(Duration.ofSeconds(10)));
+      assertTrue("status polled", stub.getRequestCount("model/status") > 2);
+      assertEquals("12.5", elpis.modelResults().get("wer"));
+      assertEquals(12.5, elpis.modelResultsCompact().getWer(), 0.0);
+      assertEquals(Arrays.asList("m"), elpis.modelList());
+
+      elpis.transcriptionNew(file("rec.wav", 1000));
+      assertEquals(ElpisStub.TRANSCRIBING, elpis.transcriptionTranscribe());
+      assertEquals(ElpisStub.TRANSCRIBED, elpis.awaitTranscribed(Duration.ofSeconds(10)));
+      assertTrue(elpis.transcriptionText().startsWith("w0 w1 w2"));
+      ByteArrayOutputStream elan = new ByteArrayOutputStream();
+      elpis.transcriptionElan(elan);
+      assertTrue(elan.toString("UTF-8").contains("<ANNOTATION_VALUE>w0 w1"));
+
+      elpis.configReset();
+      assertEquals(Arrays.asList(), elpis.datasetList());
+      assertEquals(Arrays.asList(), elpis.modelList());
+   }
+
+   /** Ensure failures can be injected, and loading something absent fails */
+   @Test public void failures() throws Exception {
+      Elpis elpis = new Elpis(stub.getUrl());
+      elpis.datasetNew("ds");
+      stub.failNext("dataset/list", 2);
+      for (int i = 0; i < 2; i++) {
+         try {
+            elpis.datasetList();
+            fail("injected failure " + i);
+         } catch(ElpisException exception) {
+            assertTrue(exception.getMessage(), exception.getMessage().contains("Injected"));
+         }
+      }
+      assertEquals("recovers after failures", Arrays.asList("ds"), elpis.datasetList());
+      assertEquals(3, stub.getRequestCount("dataset/list"));
+
+      try {
+         elpis.modelLoad("absent");
+         fail("absent model");
+      } catch(ElpisException exception) {
+      }
+      try {
+         elpis.transcriptionText();
+         fail("nothing transcribed");
+      } catch(ElpisException exception) {
+      }
+
+      stub.setFailureRate(0.5);
+      int failed = 0;
+      for (int i = 0; i < 100; i++) {
+         try {
+            elpis.datasetList();
+         } catch(ElpisException exception) {
+            failed++;
+         }
+      }
+      assertTrue("about half fail: " + failed, failed > 25 && failed < 75);
+   }
+
+   /** Ensure latency can be set per endpoint */
+   @Test public void latency() throws Exception {
+      Elpis elpis = new Elpis(stub.getUrl());
+      stub.setLatency("dataset/list", Duration.ofMillis(100));
+      long start = System.nanoTime();
+      elpis.datasetList();
+      assertTrue("slow endpoint", System.nanoTime() - start >= 100000000L);
+      start = System.nanoTime();
+      elpis.pronDictList();
+      assertTrue("other endpoints unaffected", System.nanoTime() - start < 100000000L);
+      stub.resetCounts();
+      assertEquals(0, stub.getRequestCount());
+   }
+}
@@ -0,0 +1,135 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import nzilbb.elpis.*;
+import nzilbb.elpis.http.UrlConnectionTransport;
+import nzilbb.elpis.util.ElpisStub;
+
+/**
+ * Tests Java Flight Recorder events.
+ */
+public class TestEvents {
+
+   ElpisStub stub;
+   File dir;
+
+   @Before public void start() throws Exception {
+      stub = new ElpisStub().setVocabularySize(100).start();
+      dir = Files.createTempDirectory("TestEvents-").toFile();
+   }
+
+   @After public void stop() {
+      stub.stop();
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+   }
+
+   /** Creates a file with the given name and size */
+   File file(String name, int size) throws Exception {
+      File file = new File(dir, name);
+      Files.write(file.toPath(), new byte[size]);
+      return file;
+   }
+
+   /** Runs some calls while recording, and returns the Elpis events */
+   List<RecordedEvent> record(Elpis elpis) throws Exception {
+      Path dump = new File(dir, "recording.jfr").toPath();
+      try (Recording recording = new Recording()) {
+         recording.enable("nzilbb.elpis.Call");
+         recording.enable("nzilbb.elpis.Response");
+         recording.enable("nzilbb.elpis.FileUpload");
+         recording.start();
+         elpis.datasetNew("ds");
+         elpis.datasetFiles(Arrays.asList(file("a.eaf", 1000), file("a.wav", 20000)));
+         elpis.pronDictNew("pd", "ds");
+         elpis.pronDictGenerateLexicon();
+         elpis.modelNew("m", "pd");
+         elpis.modelStatus();
+         stub.failNext("model/train", 1);
+         try {
+            elpis.modelTrain();
+            fail("modelTrain should fail");
+         } catch(ElpisException exception) {
+         }
+         recording.stop();
+         recording.dump(dump);
+      }
+      List<RecordedEvent> events = RecordingFile.readAllEvents(dump).stream()
+         .filter(e -> e.getEventType().getName().startsWith("nzilbb.elpis."))
+         .collect(Collectors.toList());
+      Files.delete(dump);
+      return events;
+   }
+
+   /** Returns the events with the given name */
+   List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+      return events.stream()
+         .filter(e -> e.getEventType().getName().equals(name))
+         .collect(Collectors.toList());
+   }
+
+   /** Ensure calls, responses, and uploads are recorded */
+   @Test public void events() throws Exception {
+      List<RecordedEvent> events = record(new Elpis(stub.getUrl()));
+
+      List<RecordedEvent> calls = named(events, "nzilbb.elpis.Call");
+      assertEquals(Arrays.asList("datasetNew", "datasetFiles", "pronDictNew",
+                                 "pronDictGenerateLexicon", "modelNew", "modelStatus",
+                                 "modelTrain"),
+                   calls.stream().map(e -> e.getString("function"))
+                   .collect(Collectors.toList()));
+      assertTrue("JSON body sent", calls.get(0).getLong("bytesSent") > 0);
+      RecordedEvent files = calls.get(1);
+      assertEquals("dataset/files", files.getString("endpoint"));
+      assertTrue(files.getString("url").endsWith("/api/dataset/files"));
+      assertEquals(200, files.getInt("httpStatus"));
+      assertTrue("multipart length", files.getLong("bytesSent") > 21000);
+      assertNull(files.getString("error"));
+      RecordedEvent lexicon = calls.get(3);
+      assertEquals("GET", 0, lexicon.getLong("bytesSent"));
+      assertTrue("response bytes", lexicon.getLong("bytesReceived") > 100 * 5);
+      assertEquals("poll status", ElpisStub.UNTRAINED, calls.get(5).getString("status"));
+      assertNotNull("failure recorded", calls.get(6).getString("error"));
+
+      List<RecordedEvent> responses = named(events, "nzilbb.elpis.Response");
+      assertEquals(7, responses.size());
+      assertEquals(lexicon.getLong("bytesReceived"), responses.get(3).getLong("bytes"));
+      assertTrue(responses.get(3).getBoolean("parsed"));
+      assertFalse("raw not kept", responses.get(3).getBoolean("rawKept"));
+      assertEquals("JSON status", 500, responses.get(6).getInt("status"));
+
+      List<RecordedEvent> uploads = named(events, "nzilbb.elpis.FileUpload");
+      assertEquals(Arrays.asList("a.eaf", "a.wav"),
+                   uploads.stream().map(e -> e.getString("fileName"))
+                   .collect(Collectors.toList()));
+      assertEquals("file", uploads.get(0).getString("parameter"));
+      assertEquals(20000, uploads.get(1).getLong("bytes"));
+      assertEquals(20000, uploads.get(1).getLong("fileSize"));
+   }
+
+   /** Ensure uploads are recorded when written to the connection's channel */
+   @Test public void urlConnectionUploads() throws Exception {
+      List<RecordedEvent> events = record(
+         new Elpis(stub.getUrl()).setTransport(new UrlConnectionTransport()));
+      List<RecordedEvent> uploads = named(events, "nzilbb.elpis.FileUpload");
+      assertEquals(2, uploads.size());
+      assertEquals(1000, uploads.get(0).getLong("bytes"));
+      assertEquals(20000, uploads.get(1).getLong("bytes"));
+   }
+}
@@ -0,0 +1,103 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import nzilbb.elpis.*;
+
+/**
+ * Tests the compact lexicon.
+ */
+public class TestLexicon {
+
+   /** Ensure lines are parsed in one pass, skipping lines with no pronunciation */
+   @Test public void parse() throws Exception {
+      Lexicon lexicon = Lexicon.parse(
+         "one ɒ n ɛ\nkia k i a\r\nnospace\n\ntwo t w o\none w ʌ n\nmāori m aː o ɾ i\n");
+      assertEquals(4, lexicon.size());
+      assertEquals("line with no space skipped", 1, lexicon.getSkippedLines());
+      assertEquals("last pronunciation kept", "w ʌ n", lexicon.get("one"));
+      assertEquals("carriage return stripped", "k i a", lexicon.get("kia"));
+      assertEquals("non-ASCII word", "m aː o ɾ i", lexicon.get("māori"));
+      assertNull(lexicon.get("nospace"));
+      assertFalse(lexicon.contains("three"));
+      assertEquals("first appearance order",
+                   Arrays.asList("one", "kia", "two", "māori"),
+                   new Vector<String>(lexicon.asMap().keySet()));
+   }
+
+   /** Ensure phones are shared in a symbol table */
+   @Test public void symbols() throws Exception {
+      Lexicon lexicon = Lexicon.parse("kia k i a\naki a k i\nika i  k a\n");
+      assertEquals(Arrays.asList("k", "i", "a"), lexicon.getSymbols());
+      int[] phones = lexicon.getPhones("aki");
+      assertEquals(3, phones.length);
+      assertEquals("a", lexicon.symbol(phones[0]));
+      assertEquals("k", lexicon.symbol(phones[1]));
+      assertEquals("spaces normalised", "i k a", lexicon.get("ika"));
+   }
+
+   /** Ensure words can be found by prefix, in sorted order */
+   @Test public void prefix() throws Exception {
+      Lexicon lexicon = Lexicon.parse(
+         "korero k o r e r o\nkia k i a\nkai k a i\nora o r a\nkā k aː\nk k\n");
+      assertEquals(Arrays.asList("k", "kai", "kia", "korero", "kā"), lexicon.withPrefix("k"));
+      assertEquals(Arrays.asList("kai", "kia"), lexicon.withPrefix("k").subList(1, 3));
+      assertEquals(Arrays.asList("korero"), lexicon.withPrefix("ko"));
+      assertEquals(Arrays.asList(), lexicon.withPrefix("z"));
+      lexicon.put("kapa", "k a p a");
+      assertEquals("index updated after adding",
+                   Arrays.asList("kai", "kapa"), lexicon.withPrefix("ka"));
+      lexicon.remove("kai");
+      assertEquals("removed words excluded", Arrays.asList("kapa"), lexicon.withPrefix("ka"));
+      assertEquals("all words", 6, lexicon.withPrefix("").size());
+   }
+
+   /** Ensure the map view can be read and changed */
+   @Test public void mapView() throws Exception {
+      Lexicon lexicon = Lexicon.parse("one ɒ n ɛ\ntwo t w o\n");
+      Map<String,String> map = lexicon.asMap();
+      assertEquals("ɒ n ɛ", map.put("one", "w ʌ n"));
+      assertEquals("w ʌ n", lexicon.get("one"));
+      assertNull(map.put("three", "θ ɹ iː"));
+      assertEquals("t w o", map.remove("two"));
+      assertEquals(2, map.size());
+      LinkedHashMap<String,String> expected = new LinkedHashMap<String,String>();
+      expected.put("one", "w ʌ n");
+      expected.put("three", "θ ɹ iː");
+      assertEquals(expected, map);
+      assertEquals(expected.toString(), map.toString());
+      map.put("two", "t uː");
+      assertEquals("re-added word", "t uː", lexicon.get("two"));
+      assertEquals(3, lexicon.size());
+   }
+
+   /** Ensure a large lexicon is stored correctly */
+   @Test public void largeLexicon() throws Exception {
+      int words = 200000;
+      StringBuilder text = new StringBuilder();
+      LinkedHashMap<String,String> expected = new LinkedHashMap<String,String>();
+      for (int w = 0; w < words; w++) {
+         String word = "w" + Integer.toString(w, 36) + (w % 7 == 0? "ā" : "");
+         String pronunciation = "w " + (w % 40) + " ə";
+         text.append(word).append(" ").append(pronunciation).append("\n");
+         expected.put(word, pronunciation);
+      }
+      Lexicon lexicon = Lexicon.parse(text.toString());
+      assertEquals(words, lexicon.size());
+      assertEquals("phones shared", 42, lexicon.getSymbols().size());
+      assertEquals(expected, lexicon.asMap());
+      assertTrue(lexicon.withPrefix("w1").contains("w1"));
+      assertEquals("prefix lookup", 1 + 36 + 36 * 36 + 36 * 36 * 36,
+                   lexicon.withPrefix("w1").size());
+   }
+}
@@ -0,0 +1,87 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import nzilbb.elpis.*;
+
+/**
+ * Tests the local record of saved lexicons.
+ */
+public class TestLexiconSnapshot {
+
+   File cache;
+
+   @Before public void createCache() throws Exception {
+      cache = Files.createTempDirectory("TestLexiconSnapshot-").toFile();
+   }
+
+   @After public void deleteCache() {
+      for (File f : cache.listFiles()) f.delete();
+      cache.delete();
+   }
+
+   /** Ensure additions, changes, and removals are found */
+   @Test public void diff() throws Exception {
+      LexiconSnapshot snapshot = new LexiconSnapshot(cache, "http://localhost/", "pd");
+      LinkedHashMap<String,String> lexicon = new LinkedHashMap<String,String>();
+      lexicon.put("one", "ɒ n ɛ");
+      lexicon.put("two", "t w o");
+      lexicon.put("three", "θ ɹ iː");
+      assertEquals("everything added to an empty snapshot",
+                   "3 added, 0 changed, 0 removed", snapshot.diff(lexicon).toString());
+      snapshot.update(lexicon);
+      assertEquals(3, snapshot.size());
+      assertTrue("unchanged", snapshot.diff(lexicon).isEmpty());
+
+      lexicon.put("one", "w ʌ n");
+      lexicon.remove("two");
+      lexicon.put("four", "f ɔː");
+      LexiconSnapshot.Diff diff = snapshot.diff(lexicon);
+      assertEquals(Arrays.asList("four"), diff.getAdded());
+      assertEquals(Arrays.asList("one"), diff.getChanged());
+      assertEquals(Arrays.asList("two"), diff.getRemoved());
+      assertEquals(3, diff.size());
+
+      snapshot.clear();
+      assertEquals(0, snapshot.size());
+      assertEquals(3, snapshot.diff(lexicon).getAdded().size());
+   }
+
+   /** Ensure the snapshot is saved and reloaded, without keeping pronunciations */
+   @Test public void persistence() throws Exception {
+      LexiconSnapshot snapshot = new LexiconSnapshot(cache, "http://localhost/", "pd");
+      LinkedHashMap<String,String> lexicon = new LinkedHashMap<String,String>();
+      for (int w = 0; w < 10000; w++) lexicon.put("w" + w, "w " + (w % 40) + " ə");
+      lexicon.put("māori", "m aː o ɾ i");
+      snapshot.update(lexicon);
+      String saved = new String(Files.readAllBytes(snapshot.getFile().toPath()), "UTF-8");
+      assertFalse("pronunciations not saved", saved.contains("aː"));
+      assertTrue(saved.contains("māori"));
+
+      LexiconSnapshot reloaded = new LexiconSnapshot(cache, "http://localhost/", "pd");
+      assertEquals(lexicon.size(), reloaded.size());
+      assertTrue(reloaded.contains("māori"));
+      assertTrue("reloaded snapshot matches", reloaded.diff(lexicon).isEmpty());
+      lexicon.put("w5", "w 6 ə");
+      assertEquals(Arrays.asList("w5"), reloaded.diff(lexicon).getChanged());
+
+      LexiconSnapshot other = new LexiconSnapshot(cache, "http://localhost/", "other");
+      assertEquals("other pron-dicts have their own snapshot", 0, other.size());
+      new LexiconSnapshot(cache, "http://localhost/", "p_d").update(lexicon);
+      other = new LexiconSnapshot(cache, "http://localhost/", "p/d");
+      assertEquals("names that look alike have their own snapshot", 0, other.size());
+      other = new LexiconSnapshot(cache, "http://localhost/p", "d");
+      assertNotEquals("the boundary between URL and name matters",
+                      snapshot.getFile(), other.getFile());
+   }
+}
@@ -0,0 +1,217 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import nzilbb.elpis.*;
+import nzilbb.elpis.http.HttpRequestPost;
+import nzilbb.elpis.http.HttpRequestPostMultipart;
+import nzilbb.elpis.http.TransportRequest;
+import nzilbb.elpis.util.ElpisStub;
+
+/**
+ * Tests logging.
+ */
+public class TestLog {
+
+   /** Returns the messages of the given entries */
+   static List<String> messages(List<Log.Entry> entries) {
+      return entries.stream().map(e -> e.getMessage()).collect(Collectors.toList());
+   }
+
+   /** Ensure messages aren't built unless their level is enabled */
+   @Test public void lazy() throws Exception {
+      Vector<Log.Entry> entries = new Vector<Log.Entry>();
+      AtomicInteger built = new AtomicInteger();
+      try (Log log = new Log(entries::add, Log.Level.INFO, 16)) {
+         log.debug(() -> "debug " + built.incrementAndGet());
+         log.trace(() -> "trace " + built.incrementAndGet());
+         assertEquals("disabled messages not built", 0, built.get());
+         log.info(() -> "info " + built.incrementAndGet());
+         log.error(() -> "error " + built.incrementAndGet());
+         assertTrue(log.flush(1000));
+         assertEquals(2, built.get());
+         assertEquals(List.of("info 1", "error 2"), messages(entries));
+         assertEquals(Log.Level.INFO, entries.get(0).getLevel());
+         assertEquals(Thread.currentThread().getName(), entries.get(0).getThread());
+      }
+      Log.off().setLevel(Log.Level.TRACE);
+      assertFalse("off can't be enabled", Log.off().isEnabled(Log.Level.ERROR));
+   }
+
+   /** Ensure bodies are abbreviated */
+   @Test public void preview() throws Exception {
+      Log log = new Log(entry -> {}, Log.Level.TRACE, 16).setPreviewLength(5);
+      assertNull(log.preview(null));
+      assertEquals("short", log.preview("short"));
+      assertEquals("longe…(12 chars)", log.preview("longer value"));
+
+      String big = "x".repeat(10000);
+      HttpRequestPostMultipart multipart
+         = new HttpRequestPostMultipart(new URL("http://localhost/api/"))
+         .setParameter("big", big);
+      assertTrue("multipart parameter abbreviated",
+                 multipart.toString().length() < TransportRequest.PREVIEW_LENGTH + 100);
+      HttpRequestPost post = new HttpRequestPost(new URL("http://localhost/api/"))
+         .setJsonParameter("big", big);
+      assertTrue("JSON body abbreviated",
+                 post.toString().length() < TransportRequest.PREVIEW_LENGTH + 100);
+   }
+
+   /** Ensure messages from many threads are all written, in order for each thread */
+   @Test public void concurrent() throws Exception {
+      Vector<Log.Entry> entries = new Vector<Log.Entry>();
+      int threadCount = 4;
+      int perThread = 500;
+      CountDownLatch done = new CountDownLatch(threadCount);
+      try (Log log = new Log(entries::add, Log.Level.DEBUG, threadCount * perThread)) {
+         for (int t = 0; t < threadCount; t++) {
+            new Thread(() -> {
+                  for (int m = 0; m < perThread; m++) {
+                     int n = m;
+                     log.debug(() -> ""+n);
+                  }
+                  done.countDown();
+            }, "TestLog-" + t).start();
+         }
+         done.await();
+         assertTrue(log.flush(5000));
+         assertEquals(0, log.getDropped());
+      }
+      assertEquals(threadCount * perThread, entries.size());
+      for (int t = 0; t < threadCount; t++) {
+         String thread = "TestLog-" + t;
+         List<String> messages = messages(entries.stream()
+                                          .filter(e -> e.getThread().equals(thread))
+                                          .collect(Collectors.toList()));
+         assertEquals(perThread, messages.size());
+         for (int m = 0; m < perThread; m++) assertEquals(""+m, messages.get(m));
+      }
+   }
+
+   /** Ensure messages are dropped rather than blocking when the buffer is full */
+   @Test public void full() throws Exception {
+      Vector<Log.Entry> entries = new Vector<Log.Entry>();
+      CountDownLatch release = new CountDownLatch(1);
+      try (Log log = new Log(entry -> {
+               try { release.await(); } catch(InterruptedException x) {}
+               entries.add(entry);
+      }, Log.Level.DEBUG, 4)) {
+         for (int m = 0; m < 20; m++) {
+            int n = m;
+            log.debug(() -> ""+n);
+         }
+         assertTrue("some dropped", log.getDropped() > 0);
+         release.countDown();
+         assertTrue(log.flush(1000));
+         Log.Entry report = entries.lastElement();
+         assertEquals("drop count reported",
+                      log.getDropped() + " log messages dropped", report.getMessage());
+         assertEquals(Log.Level.WARN, report.getLevel());
+         assertEquals(20, entries.size() - 1 + log.getDropped());
+         assertEquals("first written", "0", entries.get(0).getMessage());
+      }
+   }
+
+   /** Ensure a lossless log waits for space rather than dropping messages */
+   @Test public void lossless() throws Exception {
+      Vector<Log.Entry> entries = new Vector<Log.Entry>();
+      CountDownLatch release = new CountDownLatch(1);
+      try (Log log = new Log(entry -> {
+               try { release.await(); } catch(InterruptedException x) {}
+               entries.add(entry);
+      }, Log.Level.DEBUG, 4).setLossless(true)) {
+         Thread logger = new Thread(() -> {
+               for (int m = 0; m < 20; m++) {
+                  int n = m;
+                  log.debug(() -> ""+n);
+               }
+         }, "TestLog-lossless");
+         logger.start();
+         logger.join(200);
+         assertTrue("logger waits for space", logger.isAlive());
+         release.countDown();
+         logger.join(5000);
+         assertFalse(logger.isAlive());
+         assertTrue(log.flush(1000));
+         assertEquals(0, log.getDropped());
+         assertEquals(20, entries.size());
+         for (int m = 0; m < 20; m++) assertEquals(""+m, entries.get(m).getMessage());
+      }
+   }
+
+   /** Ensure a log with no buffer writes each message before returning */
+   @Test public void synchronous() throws Exception {
+      Vector<Log.Entry> entries = new Vector<Log.Entry>();
+      try (Log log = new Log(entries::add, Log.Level.DEBUG, 0)) {
+         for (int m = 0; m < 20; m++) {
+            int n = m;
+            log.debug(() -> ""+n);
+            assertEquals("written before returning", m + 1, entries.size());
+            assertEquals(Thread.currentThread().getName(), entries.get(m).getThread());
+         }
+         assertTrue(log.flush(0));
+         assertEquals(0, log.getDropped());
+      }
+   }
+
+   /** Ensure a log that's no longer used can be garbage collected, even if not closed */
+   @Test public void collectable() throws Exception {
+      Vector<Log.Entry> entries = new Vector<Log.Entry>();
+      Log log = new Log(entries::add, Log.Level.DEBUG, 16);
+      log.debug(() -> "written");
+      assertTrue(log.flush(1000));
+      WeakReference<Log> reference = new WeakReference<Log>(log);
+      log = null;
+      for (int attempt = 0; attempt < 50 && reference.get() != null; attempt++) {
+         System.gc();
+         Thread.sleep(20);
+      }
+      assertNull("log collected", reference.get());
+      assertEquals(1, entries.size());
+   }
+
+   /** Ensure requests and responses are logged, with the raw body abbreviated */
+   @Test public void elpis() throws Exception {
+      ElpisStub stub = new ElpisStub().setVocabularySize(1000).start();
+      Vector<Log.Entry> entries = new Vector<Log.Entry>();
+      try (Log log = new Log(entries::add, Log.Level.DEBUG, 256).setPreviewLength(100)) {
+         Elpis elpis = new Elpis(stub.getUrl()).setLog(log);
+         elpis.datasetNew("ds");
+         elpis.pronDictNew("pd", "ds");
+         elpis.pronDictGenerateLexicon();
+         assertTrue(log.flush(1000));
+         List<String> messages = messages(entries);
+         assertTrue(messages.toString(),
+                    messages.get(0).startsWith("datasetNew -> POST "));
+         assertTrue(messages.contains("HTTP status: 200"));
+         assertFalse("no raw body at DEBUG",
+                     messages.stream().anyMatch(m -> m.startsWith("raw: ")));
+         assertTrue("data abbreviated",
+                    messages.stream().allMatch(m -> m.length() < 300));
+
+         entries.clear();
+         log.setLevel(Log.Level.TRACE);
+         elpis.pronDictGenerateLexicon();
+         assertTrue(log.flush(1000));
+         String raw = messages(entries).stream()
+            .filter(m -> m.startsWith("raw: ")).findFirst().orElse(null);
+         assertNotNull("raw body at TRACE", raw);
+         assertTrue(raw, raw.length() < 150);
+      } finally {
+         stub.stop();
+      }
+   }
+}
@@ -0,0 +1,178 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Vector;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import nzilbb.elpis.*;
+import nzilbb.elpis.http.UrlConnectionTransport;
+import nzilbb.elpis.util.ElpisStub;
+
+/**
+ * Tests per-endpoint metrics.
+ */
+public class TestMetrics {
+
+   ElpisStub stub;
+
+   @Before public void start() throws Exception {
+      stub = new ElpisStub().setVocabularySize(1000).start();
+   }
+
+   @After public void stop() {
+      stub.stop();
+   }
+
+   /** Ensure percentiles are estimated to within a bucket */
+   @Test public void histogram() throws Exception {
+      LatencyHistogram histogram = new LatencyHistogram();
+      assertEquals(0, histogram.getPercentileNanos(99));
+      for (long v = 1; v <= 1000; v++) histogram.record(v * 1000);
+      assertEquals(1000, histogram.getCount());
+      assertEquals(500500.0, histogram.getMeanNanos(), 0.1);
+      assertEquals(1000000, histogram.getMaxNanos());
+      long median = histogram.getPercentileNanos(50);
+      assertTrue("median " + median, median > 400000 && median < 625000);
+      long p99 = histogram.getPercentileNanos(99);
+      assertTrue("p99 " + p99, p99 > 900000 && p99 <= 1000000);
+      assertEquals("p100 is max", 1000000, histogram.getPercentileNanos(100));
+      histogram.record(-5);
+      assertEquals("negative counted as 0", 0, histogram.getPercentileNanos(0));
+      histogram.record(Long.MAX_VALUE);
+      assertEquals(Long.MAX_VALUE, histogram.getMaxNanos());
+      histogram.reset();
+      assertEquals(0, histogram.getCount());
+   }
+
+   /** Ensure requests are counted and timed by endpoint */
+   @Test public void endpoints() throws Exception {
+      Metrics metrics = new Metrics();
+      Vector<RequestTiming> timings = new Vector<RequestTiming>();
+      metrics.addListener(timing -> timings.add(timing));
+      stub.setLatency("pron-dict/generate-lexicon", Duration.ofMillis(50));
+      Elpis elpis = new Elpis(stub.getUrl()).setMetrics(metrics);
+      elpis.datasetNew("ds");
+      elpis.datasetNew("ds2");
+      elpis.pronDictNew("pd", "ds");
+      Map<String,String> lexicon = elpis.pronDictGenerateLexicon();
+      elpis.pronDictSaveLexicon(lexicon);
+
+      assertEquals(Arrays.asList("dataset/new", "pron-dict/generate-lexicon",
+                                 "pron-dict/new", "pron-dict/save-lexicon"),
+                   new Vector<String>(metrics.getEndpoints().keySet()));
+      EndpointMetrics datasetNew = metrics.getEndpoint("dataset/new");
+      assertEquals(2, datasetNew.getRequestCount());
+      assertEquals(0, datasetNew.getErrorCount());
+      assertEquals("request bodies counted", 2 * "{\"name\":\"ds\"}".length() + 1,
+                   datasetNew.getBytesSent());
+
+      EndpointMetrics generate = metrics.getEndpoint("pron-dict/generate-lexicon");
+      assertEquals("GET has no body", 0, generate.getBytesSent());
+      assertTrue("response bytes counted", generate.getBytesReceived() > 1000 * 5);
+      assertTrue("latency recorded",
+                 generate.getLatency(Metrics.Phase.TOTAL).getMaxNanos() >= 50000000);
+      assertTrue("waiting for the response counted as time to first byte",
+                 generate.getLatency(Metrics.Phase.FIRST_BYTE).getMaxNanos() >= 50000000);
+      assertEquals("no upload", 0, generate.getLatency(Metrics.Phase.UPLOAD).getMaxNanos());
+
+      EndpointMetrics save = metrics.getEndpoint("pron-dict/save-lexicon");
+      assertTrue("streamed body counted", save.getBytesSent() > 1000 * 5);
+
+      assertEquals("listener notified", 5, timings.size());
+      RequestTiming timing = timings.get(3);
+      assertEquals("pronDictGenerateLexicon", timing.getFunction());
+      assertEquals(200, timing.getHttpStatus());
+      assertFalse(timing.isError());
+      long phases = 0;
+      for (Metrics.Phase phase : Metrics.Phase.values()) {
+         if (phase != Metrics.Phase.TOTAL) phases += timing.getNanos(phase);
+      }
+      assertTrue("phases within total", phases <= timing.getNanos(Metrics.Phase.TOTAL));
+   }
+
+   /** Ensure failures are counted, and phases are timed with either transport */
+   @Test public void errors() throws Exception {
+      Metrics metrics = new Metrics();
+      Elpis elpis = new Elpis(stub.getUrl()).setMetrics(metrics)
+         .setTransport(new UrlConnectionTransport());
+      stub.failNext("dataset/new", 1);
+      try {
+         elpis.datasetNew("ds");
+         fail("Should fail");
+      } catch(ElpisException exception) {
+      }
+      elpis.datasetNew("ds");
+      EndpointMetrics datasetNew = metrics.getEndpoint("dataset/new");
+      assertEquals(2, datasetNew.getRequestCount());
+      assertEquals(1, datasetNew.getErrorCount());
+      assertTrue("upload timed",
+                 datasetNew.getLatency(Metrics.Phase.UPLOAD).getCount() == 2);
+      assertTrue("bytes received", datasetNew.getBytesReceived() > 0);
+
+      // asynchronous requests are recorded too
+      elpis.async().datasetList().get();
+      assertEquals(1, metrics.getEndpoint("dataset/list").getRequestCount());
+   }
+
+   /** Ensure a failing listener is logged, and doesn't affect requests or other listeners */
+   @Test public void brokenListener() throws Exception {
+      Vector<Log.Entry> entries = new Vector<Log.Entry>();
+      Vector<RequestTiming> timings = new Vector<RequestTiming>();
+      try (Log log = new Log(entries::add, Log.Level.WARN, 16)) {
+         Metrics metrics = new Metrics().setLog(log)
+            .addListener(timing -> { throw new IllegalStateException("broken"); })
+            .addListener(timing -> timings.add(timing));
+         Elpis elpis = new Elpis(stub.getUrl()).setMetrics(metrics);
+         elpis.datasetNew("ds");
+         assertEquals("other listener notified", 1, timings.size());
+         assertTrue(log.flush(1000));
+         assertEquals(1, entries.size());
+         assertEquals(Log.Level.WARN, entries.get(0).getLevel());
+         assertTrue(entries.get(0).getMessage(),
+                    entries.get(0).getMessage().contains("dataset/new")
+                    && entries.get(0).getMessage().contains("broken"));
+      }
+   }
+
+   /** Ensure metrics are published via JMX, including endpoints added later */
+   @Test public void jmx() throws Exception {
+      Metrics metrics = new Metrics();
+      Elpis elpis = new Elpis(stub.getUrl()).setMetrics(metrics);
+      elpis.datasetNew("ds");
+      metrics.registerMBeans("TestMetrics");
+      try {
+         elpis.datasetList();
+         ObjectName name = new ObjectName(
+            "nzilbb.elpis:type=Endpoint,name=\"TestMetrics\",endpoint=\"dataset/list\"");
+         assertEquals(1L, ManagementFactory.getPlatformMBeanServer()
+                      .getAttribute(name, "RequestCount"));
+         TabularData p99 = (TabularData)ManagementFactory.getPlatformMBeanServer()
+            .getAttribute(name, "P99Millis");
+         assertEquals("all phases", 6, p99.size());
+         CompositeData total = p99.get(new Object[] { "total" });
+         assertTrue((Double)total.get("value") > 0);
+         name = new ObjectName(
+            "nzilbb.elpis:type=Endpoint,name=\"TestMetrics\",endpoint=\"dataset/new\"");
+         assertTrue("existing endpoint registered",
+                    ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+      } finally {
+         metrics.unregisterMBeans();
+      }
+      assertEquals(0, ManagementFactory.getPlatformMBeanServer().queryNames(
+                      new ObjectName("nzilbb.elpis:name=\"TestMetrics\",*"), null).size());
+   }
+}
@@ -0,0 +1,102 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Vector;
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import nzilbb.elpis.*;
+
+/**
+ * Tests parsing and serialising model results.
+ */
+public class TestModelResults {
+
+   /** Parses a JSON results object */
+   static ModelResults parse(String json) {
+      JsonParser parser = Json.createParser(new StringReader(json));
+      try {
+         parser.next(); // START_OBJECT
+         return ModelResults.parse(parser);
+      } finally {
+         parser.close();
+      }
+   }
+
+   /** Ensure string and numeric values are parsed into typed fields */
+   @Test public void parseValues() throws Exception {
+      ModelResults results = parse(
+         "{\"wer\":\"12.5\",\"ins_val\":\"3\",\"del_val\":4,\"sub_val\":\"5\","
+         + "\"count_val\":\"120\",\"sentence\":\"n/a\",\"nested\":{\"x\":[1,2]}}");
+      assertEquals(12.5, results.getWer(), 0.0);
+      assertEquals(3, results.getInsertions());
+      assertEquals("numbers as well as strings", 4, results.getDeletions());
+      assertEquals(5, results.getSubstitutions());
+      assertEquals(120, results.getCount());
+      assertEquals("other values kept", "n/a", results.get("sentence"));
+      assertEquals("typed values available by key", "3", results.get(ModelResults.INSERTIONS));
+      assertEquals("[wer, ins_val, del_val, sub_val, count_val, sentence]",
+                   new Vector<String>(results.toMap().keySet()).toString());
+   }
+
+   /** Ensure missing and non-numeric values are reported as missing */
+   @Test public void missingValues() throws Exception {
+      ModelResults results = parse("{\"wer\":\"n/a\",\"count_val\":\"10\"}");
+      assertTrue(Double.isNaN(results.getWer()));
+      assertEquals(-1, results.getInsertions());
+      assertEquals(10, results.getCount());
+      assertNull(results.get(ModelResults.WER));
+      assertTrue(results.getOther().isEmpty());
+   }
+
+   /** Ensure results survive a binary round trip, compactly */
+   @Test public void binaryRoundTrip() throws Exception {
+      ModelResults results = new ModelResults(12.5, 3, 4, 5, 1200);
+      byte[] bytes = results.toBytes();
+      assertEquals("version, flags, wer, and counts", 2 + 8 + 1 + 1 + 1 + 2, bytes.length);
+      assertEquals(results, ModelResults.fromBytes(bytes));
+
+      ModelResults withOther = parse("{\"wer\":\"7\",\"sentence\":\"n/a\"}");
+      assertEquals(withOther, ModelResults.fromBytes(withOther.toBytes()));
+      assertEquals("n/a", ModelResults.fromBytes(withOther.toBytes()).get("sentence"));
+
+      ModelResults empty = new ModelResults();
+      assertEquals("nothing but version and flags", 2, empty.toBytes().length);
+      assertEquals(empty, ModelResults.fromBytes(empty.toBytes()));
+   }
+
+   /** Ensure many results can be streamed to and from one file */
+   @Test public void history() throws Exception {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      Vector<ModelResults> history = new Vector<ModelResults>();
+      for (int i = 0; i < 1000; i++) {
+         ModelResults results = new ModelResults(i / 10.0, i, i * 2, i * 3, 100000);
+         history.add(results);
+         results.writeTo(out);
+      }
+      String json = history.toString();
+      assertTrue("smaller than JSON: " + bytes.size() + " vs " + json.length(),
+                 bytes.size() < json.length() / 2);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      for (ModelResults expected : history) assertEquals(expected, ModelResults.readFrom(in));
+      assertEquals("all read", 0, in.available());
+   }
+
+   /** Ensure unknown formats are rejected */
+   @Test(expected = IOException.class) public void unknownFormat() throws Exception {
+      ModelResults.fromBytes(new byte[] { 99, 0 });
+   }
+}
@@ -0,0 +1,195 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import nzilbb.elpis.*;
+
+/**
+ * Tests n-gram sweeps, using local stub servers that take a while to train, and give
+ * each n-gram setting a different word error rate.
+ */
+public class TestNgramSweep {
+
+   /** How long the stub servers take to train a model */
+   static final int trainingMs = 200;
+
+   /** The best n-gram setting */
+   static final int bestNgram = 3;
+
+   static AtomicInteger training = new AtomicInteger();
+   static AtomicInteger maxTraining = new AtomicInteger();
+
+   /**
+    * A stub server.
+    */
+   static class Stub {
+      HttpServer server;
+      String url;
+      Set<String> datasets = new TreeSet<String>();
+      Set<String> pronDicts = new TreeSet<String>();
+      Set<String> models = new TreeSet<String>();
+      HashMap<String,Integer> ngrams = new HashMap<String,Integer>();
+      String model;
+      volatile long trainedAt;
+      List<String> trained = new Vector<String>();
+
+      Stub() throws IOException {
+         server = TestTransport.server();
+         server.createContext("/api/", exchange -> {
+               String function = exchange.getRequestURI().getPath().substring(5);
+               String body = TestTransport.read(exchange);
+               String data = "{}";
+               synchronized (this) {
+                  switch (function) {
+                     case "dataset/list":
+                        data = "{\"list\":" + TestTransport.strings(datasets) + "}";
+                        break;
+                     case "pron-dict/list":
+                        data = TestTransport.names(pronDicts);
+                        break;
+                     case "model/list":
+                        data = TestTransport.names(models);
+                        break;
+                     case "dataset/new":
+                        datasets.add(TestTransport.parameter(body, "name"));
+                        break;
+                     case "pron-dict/new":
+                        pronDicts.add(TestTransport.parameter(body, "name"));
+                        break;
+                     case "model/new":
+                        model = TestTransport.parameter(body, "name");
+                        models.add(model);
+                        break;
+                     case "model/settings":
+                        ngrams.put(
+                           model, Integer.valueOf(TestTransport.parameter(body, "ngram")));
+                        break;
+                     case "dataset/files":
+                        data = "{\"files\":[\"a.eaf\",\"a.wav\"]}";
+                        break;
+                     case "dataset/prepare":
+                        data = "{\"wordlist\":\"{\\\"kia\\\":1}\"}";
+                        break;
+                     case "pron-dict/generate-lexicon":
+                        data = "{\"lexicon\":\"kia k i a\\n\"}";
+                        break;
+                     case "model/train":
+                        maxTraining.accumulateAndGet(training.incrementAndGet(), Math::max);
+                        trainedAt = System.currentTimeMillis() + trainingMs;
+                        trained.add(model);
+                        data = "{\"status\":\"training\"}";
+                        break;
+                     case "model/status":
+                        if (trainedAt > 0 && System.currentTimeMillis() >= trainedAt) {
+                           training.decrementAndGet();
+                           trainedAt = 0;
+                        }
+                        data = "{\"status\":\"" + (trainedAt > 0? "training" : "trained")
+                           + "\"}";
+                        break;
+                     case "transcription/status":
+                        data = "{\"status\":\"ready\"}";
+                        break;
+                     case "model/results":
+                        int ngram = ngrams.get(model);
+                        if (ngram == 5) { // a setting that doesn't work
+                           TestTransport.respond(exchange, "{\"status\":500}");
+                           return;
+                        }
+                        int errors = Math.abs(ngram - bestNgram) + 1;
+                        data = "{\"results\":{\"wer\":\"" + (errors * 10.0)
+                           + "\",\"ins_val\":\"" + errors + "\",\"del_val\":\"0\""
+                           + ",\"sub_val\":\"0\",\"count_val\":\"10\"}}";
+                        break;
+                  }
+               }
+               TestTransport.respond(exchange, "{\"status\":200,\"data\":" + data + "}");
+            });
+         server.start();
+         url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+      }
+   }
+
+   static Stub[] stubs;
+
+   @BeforeClass public static void startServers() throws IOException {
+      stubs = new Stub[] { new Stub(), new Stub() };
+   }
+
+   @AfterClass public static void stopServers() {
+      for (Stub stub : stubs) stub.server.stop(0);
+   }
+
+   /** Ensure models are trained concurrently across servers, and ranked by WER */
+   @Test public void sweep() throws Exception {
+      File l2s = File.createTempFile("TestNgramSweep-", ".txt");
+      l2s.deleteOnExit();
+      Files.write(l2s.toPath(), "k k\n".getBytes(StandardCharsets.UTF_8));
+      File data = File.createTempFile("TestNgramSweep-", ".eaf");
+      data.deleteOnExit();
+      Vector<Elpis> servers = new Vector<Elpis>();
+      for (Stub stub : stubs) {
+         servers.add(new Elpis(stub.url).setStatusPoller(
+                        new StatusPoller().setInitialInterval(Duration.ofMillis(10))
+                        .setMaxInterval(Duration.ofMillis(20))));
+      }
+      try (ElpisCluster cluster = new ElpisCluster(servers)) {
+         NgramSweep sweep = new NgramSweep(cluster, elpis -> new TrainingPipeline(elpis)
+                                           .setDataset("ds").setFiles(Arrays.asList(data))
+                                           .setPronDict("pd").setLetterToSound(l2s)
+                                           .setTimeout(Duration.ofSeconds(10)));
+         List<NgramSweep.Trial> trials = sweep.run(Arrays.asList(1, 2, 3, 4, 5));
+         // System.out.println(sweep);
+
+         assertEquals("all trials reported", 5, trials.size());
+         assertEquals("best first", bestNgram, trials.get(0).getNgram());
+         assertEquals("model named after ngram", "ngram-3", trials.get(0).getModel());
+         assertEquals(10.0, trials.get(0).getWer(), 0.001);
+         assertEquals(1, trials.get(0).getResults().getInsertions());
+         assertEquals(10, trials.get(0).getResults().getCount());
+         assertEquals("ranked by WER", 1, trials.get(3).getNgram());
+         assertEquals("ties adjacent",
+                      new TreeSet<Integer>(Arrays.asList(2, 4)),
+                      new TreeSet<Integer>(Arrays.asList(
+                                              trials.get(1).getNgram(),
+                                              trials.get(2).getNgram())));
+         assertTrue("ties broken by training time",
+                    trials.get(1).getTrainingTime().compareTo(
+                       trials.get(2).getTrainingTime()) <= 0);
+         assertNull(trials.get(0).getError());
+         assertEquals("failure ranked last", 5, trials.get(4).getNgram());
+         assertNotNull("failure recorded", trials.get(4).getError());
+         assertTrue(sweep.toString(), sweep.toString().contains("ngram-5: failed"));
+         for (NgramSweep.Trial trial : trials) {
+            assertTrue("training time recorded: " + trial,
+                       trial.getTrainingTime().toMillis() >= trainingMs);
+            assertTrue("total includes training: " + trial,
+                       trial.getTotalTime().compareTo(trial.getTrainingTime()) >= 0);
+         }
+         for (Stub stub : stubs) {
+            assertTrue("both servers used", stub.trained.size() > 0);
+            assertEquals("dataset created once per server", 1, stub.datasets.size());
+         }
+         assertEquals("trained concurrently", 2, maxTraining.get());
+      }
+   }
+}
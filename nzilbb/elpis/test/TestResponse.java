@@ -0,0 +1,70 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import nzilbb.elpis.*;
+
+/**
+ * Tests parsing of responses, both buffered and streamed.
+ */
+public class TestResponse {
+
+   static InputStream stream(String content) {
+      return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+   }
+
+   /** Ensure streamed and buffered parsing produce the same result */
+   @Test public void streamedMatchesBuffered() throws Exception {
+      String json = "{\"status\":200,\"ignored\":{\"a\":[1,2,{\"b\":null}]},"
+         +"\"data\":{\"list\":[\"ds\",\"ŋa\"],\"config\":{\"name\":\"ds\"}},\"also\":[true]}";
+      Response streamed = new Response().load(stream(json));
+      Response buffered = new Response().setKeepRaw(true).load(stream(json));
+      assertNull("raw not kept by default", streamed.getRaw());
+      assertEquals("raw kept", json, buffered.getRaw());
+      assertEquals(200, streamed.getStatus());
+      assertEquals(buffered.getStatus(), streamed.getStatus());
+      assertEquals(buffered.getData(), streamed.getData());
+      assertEquals("ŋa", streamed.getData().getJsonArray("list").getString(1));
+      assertEquals("toString reconstructs JSON",
+                   "{\"status\":200,\"data\":" + buffered.getData() + "}",
+                   streamed.toString());
+      streamed.checkForErrors();
+   }
+
+   /** Ensure error messages are parsed from streamed responses */
+   @Test public void streamedMessage() throws Exception {
+      Response response = new Response().load(stream("{\"status\":500,\"data\":\"no dataset\"}"));
+      assertEquals(500, response.getStatus());
+      assertEquals("no dataset", response.getMessage());
+      assertNull(response.getData());
+      try {
+         response.checkForErrors();
+         fail("checkForErrors should throw");
+      } catch(ElpisException exception) {
+         assertSame(response, exception.getResponse());
+      }
+   }
+
+   /** Ensure invalid and blank responses are handled */
+   @Test public void streamedInvalid() throws Exception {
+      Response response = new Response().load(stream("<html>Internal Server Error</html>"));
+      assertEquals(-1, response.getStatus());
+      assertTrue(response.getMessage(), response.getMessage().startsWith("Response not JSON"));
+      response = new Response().load(stream(""));
+      assertEquals(-1, response.getStatus());
+      assertNull(response.getMessage());
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elpis.test.TestResponse");
+   }
+}
@@ -0,0 +1,175 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import nzilbb.elpis.*;
+
+/**
+ * Tests waiting for long-running processes, using a local stub server.
+ */
+public class TestStatusPoller {
+
+   /** How many times the model status is "training" before it's "trained" */
+   static final int trainingPolls = 3;
+
+   static HttpServer server;
+   static String elpisUrl;
+   static AtomicInteger modelPolls = new AtomicInteger();
+   static volatile String transcriptionStatus = "transcribing";
+
+   /** Poller with short intervals, so tests run quickly */
+   StatusPoller poller = new StatusPoller()
+      .setInitialInterval(Duration.ofMillis(10))
+      .setMaxInterval(Duration.ofMillis(50));
+   
+   @BeforeClass public static void startServer() throws IOException {
+      server = TestTransport.server();
+      server.createContext("/api/model/status", exchange -> {
+            String status = modelPolls.incrementAndGet() > trainingPolls? "trained" : "training";
+            TestTransport.read(exchange);
+            TestTransport.respond(
+               exchange, "{\"status\":200,\"data\":{\"status\":\"" + status + "\"}}");
+         });
+      server.createContext("/api/transcription/status", exchange -> {
+            TestTransport.read(exchange);
+            TestTransport.respond(
+               exchange,
+               "{\"status\":200,\"data\":{\"status\":\"" + transcriptionStatus + "\"}}");
+         });
+      server.start();
+      elpisUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+   }
+
+   @AfterClass public static void stopServer() {
+      server.stop(0);
+   }
+
+   /** Ensure polling continues until the target status is reached */
+   @Test public void awaitModelTrained() throws Exception {
+      modelPolls.set(0);
+      Elpis elpis = new Elpis(elpisUrl).setStatusPoller(poller);
+      assertEquals("trained", elpis.awaitModelTrained(Duration.ofSeconds(10)));
+      assertEquals("Polled until trained", trainingPolls + 1, modelPolls.get());
+   }
+
+   /** Ensure a process that has already finished is detected without delay */
+   @Test public void alreadyFinished() throws Exception {
+      transcriptionStatus = "transcribed";
+      Elpis elpis = new Elpis(elpisUrl).setStatusPoller(
+         new StatusPoller().setInitialInterval(Duration.ofSeconds(10)));
+      long start = System.nanoTime();
+      assertEquals("transcribed", elpis.awaitTranscribed(Duration.ofSeconds(30)));
+      assertTrue("No delay before first check",
+                 System.nanoTime() - start < Duration.ofSeconds(5).toNanos());
+   }
+
+   /** Ensure failure statuses surface as ElpisExceptions */
+   @Test public void failure() throws Exception {
+      transcriptionStatus = "error";
+      Elpis elpis = new Elpis(elpisUrl).setStatusPoller(poller);
+      try {
+         elpis.awaitTranscribed(Duration.ofSeconds(10));
+         fail("Should have failed");
+      } catch(ElpisException exception) {
+         assertTrue(exception.getMessage(), exception.getMessage().contains("error"));
+      }
+   }
+
+   /** Ensure waiting gives up after the timeout */
+   @Test public void timeout() throws Exception {
+      transcriptionStatus = "transcribing";
+      Elpis elpis = new Elpis(elpisUrl).setStatusPoller(poller);
+      long start = System.nanoTime();
+      try {
+         elpis.awaitTranscribed(Duration.ofMillis(200));
+         fail("Should have timed out");
+      } catch(ElpisException exception) {
+         assertTrue(exception.getMessage(), exception.getMessage().contains("timed out"));
+      }
+      long millis = (System.nanoTime() - start) / 1000000L;
+      assertTrue("Gave up promptly: " + millis + "ms", millis < 2000);
+   }
+
+   /** Ensure a status check that never returns still times out, and is cancelled */
+   @Test public void hungCheck() throws Exception {
+      CompletableFuture<String> hung = new CompletableFuture<String>();
+      long start = System.nanoTime();
+      try {
+         poller.await("Training", () -> hung, "trained", Duration.ofMillis(200)).get();
+         fail("Should have timed out");
+      } catch(ExecutionException exception) {
+         assertTrue(exception.getCause().toString(),
+                    exception.getCause() instanceof ElpisException);
+         assertTrue(exception.getCause().getMessage(),
+                    exception.getCause().getMessage().contains("timed out"));
+      }
+      long millis = (System.nanoTime() - start) / 1000000L;
+      assertTrue("Gave up promptly: " + millis + "ms", millis < 2000);
+      assertTrue("Check cancelled", hung.isCancelled());
+   }
+
+   /** Ensure unexpected exceptions complete the future, rather than leaving it hanging */
+   @Test(timeout=10000) public void checkThrows() throws Exception {
+      AtomicInteger checks = new AtomicInteger();
+      // the first check succeeds, the second throws on a scheduler thread
+      CompletableFuture<String> future = poller.await("Training", () -> {
+            if (checks.incrementAndGet() > 1) throw new IllegalStateException("check");
+            return CompletableFuture.completedFuture("training");
+         }, "trained", null);
+      try {
+         future.get();
+         fail("Should have failed");
+      } catch(ExecutionException exception) {
+         assertTrue(exception.getCause().toString(),
+                    exception.getCause() instanceof IllegalStateException);
+      }
+
+      // a null status can't be checked for failure
+      future = poller.await(
+         "Training", () -> CompletableFuture.completedFuture(null), "trained", null);
+      try {
+         future.get();
+         fail("Should have failed");
+      } catch(ExecutionException exception) {
+         assertTrue(exception.getCause().toString(),
+                    exception.getCause() instanceof NullPointerException);
+      }
+   }
+
+   /** Ensure many jobs can be waited on with only a few threads */
+   @Test public void manyJobsFewThreads() throws Exception {
+      int jobCount = 5000;
+      int threadsBefore = Thread.activeCount();
+      List<CompletableFuture<String>> jobs = new Vector<CompletableFuture<String>>();
+      for (int j = 0; j < jobCount; j++) {
+         AtomicInteger polls = new AtomicInteger();
+         jobs.add(poller.await(
+                     "Job " + j, () -> CompletableFuture.completedFuture(
+                        polls.incrementAndGet() > trainingPolls? "done" : "working"),
+                     "done", Duration.ofSeconds(30)));
+      }
+      int maxThreads = Thread.activeCount();
+      CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).get();
+      for (CompletableFuture<String> job : jobs) assertEquals("done", job.get());
+      assertTrue("Few threads used: " + (maxThreads - threadsBefore),
+                 maxThreads - threadsBefore <= 4);
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elpis.test.TestStatusPoller");
+   }
+}
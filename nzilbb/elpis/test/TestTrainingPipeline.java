@@ -0,0 +1,280 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import nzilbb.elpis.*;
+
+/**
+ * Tests running the training pipeline, using a local stub server that remembers what
+ * has been created.
+ */
+public class TestTrainingPipeline {
+
+   static HttpServer server;
+   static String elpisUrl;
+   static Set<String> datasets = new TreeSet<String>();
+   static Set<String> pronDicts = new TreeSet<String>();
+   static Set<String> models = new TreeSet<String>();
+   static volatile String modelStatus = "ready";
+   static Set<String> datasetFiles = new TreeSet<String>();
+   static volatile boolean prepared;
+   static volatile boolean l2s;
+   static volatile String savedLexicon;
+   /** The functions called, in order */
+   static List<String> calls = new Vector<String>();
+
+   @BeforeClass public static void startServer() throws IOException {
+      server = TestTransport.server();
+      server.createContext("/api/", exchange -> {
+            String function = exchange.getRequestURI().getPath().substring("/api/".length());
+            String body = TestTransport.read(exchange);
+            calls.add(function);
+            String data = "{}";
+            switch (function) {
+               case "dataset/list":
+                  data = "{\"list\":" + TestTransport.strings(datasets) + "}";
+                  break;
+               case "pron-dict/list":
+                  data = TestTransport.names(pronDicts);
+                  break;
+               case "model/list":
+                  data = TestTransport.names(models);
+                  break;
+               case "dataset/new":
+                  datasets.add(TestTransport.parameter(body, "name"));
+                  break;
+               case "pron-dict/new":
+                  pronDicts.add(TestTransport.parameter(body, "name"));
+                  break;
+               case "model/new":
+                  models.add(TestTransport.parameter(body, "name"));
+                  break;
+               case "dataset/load":
+                  data = "{\"config\":{\"files\":" + TestTransport.strings(datasetFiles) + "},"
+                     + "\"wordlist\":\"" + (prepared? "{\\\"kia\\\":2}" : "") + "\"}";
+                  break;
+               case "pron-dict/load":
+                  data = "{\"l2s\":\"" + (l2s? "k k" : "") + "\","
+                     + "\"lexicon\":\"" + (savedLexicon != null? "kia k i a" : "") + "\"}";
+                  break;
+               case "dataset/files":
+                  Matcher filename = Pattern.compile("filename=\"([^\"]+)\"").matcher(body);
+                  while (filename.find()) datasetFiles.add(filename.group(1));
+                  data = "{\"files\":" + TestTransport.strings(datasetFiles) + "}";
+                  break;
+               case "pron-dict/l2s":
+                  l2s = true;
+                  break;
+               case "dataset/prepare":
+                  prepared = true;
+                  data = "{\"wordlist\":\"{\\\"kia\\\":2,\\\"ora\\\":1}\"}";
+                  break;
+               case "pron-dict/generate-lexicon":
+                  data = "{\"lexicon\":\"kia k i a\\nora o r a\\n\"}";
+                  break;
+               case "pron-dict/save-lexicon":
+                  savedLexicon = TestTransport.parameter(body, "lexicon");
+                  break;
+               case "model/train":
+                  modelStatus = "training";
+                  data = "{\"status\":\"training\"}";
+                  break;
+               case "model/status":
+                  if (modelStatus.equals("training")) {
+                     modelStatus = "trained";
+                     data = "{\"status\":\"training\"}";
+                  } else {
+                     data = "{\"status\":\"" + modelStatus + "\"}";
+                  }
+                  break;
+               case "model/results":
+                  data = "{\"results\":{\"wer\":\"12.5\"}}";
+                  break;
+            }
+            TestTransport.respond(exchange, "{\"status\":200,\"data\":" + data + "}");
+         });
+      server.start();
+      elpisUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+   }
+
+   @AfterClass public static void stopServer() {
+      server.stop(0);
+   }
+
+   @Before public void reset() {
+      datasets.clear();
+      pronDicts.clear();
+      models.clear();
+      datasetFiles.clear();
+      prepared = false;
+      l2s = false;
+      modelStatus = "ready";
+      savedLexicon = null;
+      calls.clear();
+   }
+
+   /** Creates a pipeline for the stub server */
+   TrainingPipeline pipeline() throws Exception {
+      File l2s = File.createTempFile("TestTrainingPipeline-", ".txt");
+      l2s.deleteOnExit();
+      Files.write(l2s.toPath(), "k k\ni i\na a\no o\nr r\n".getBytes(StandardCharsets.UTF_8));
+      Vector<File> files = new Vector<File>();
+      for (String name : Arrays.asList("a.eaf", "a.wav")) {
+         File dir = Files.createTempDirectory("TestTrainingPipeline-").toFile();
+         File file = new File(dir, name);
+         Files.write(file.toPath(), name.getBytes(StandardCharsets.UTF_8));
+         file.deleteOnExit();
+         dir.deleteOnExit();
+         files.add(file);
+      }
+      Elpis elpis = new Elpis(elpisUrl).setStatusPoller(
+         new StatusPoller().setInitialInterval(Duration.ofMillis(10)));
+      return new TrainingPipeline(elpis)
+         .setDataset("ds").setTier("Phrase").setFiles(files)
+         .setPronDict("pd").setLetterToSound(l2s)
+         .setModel("m").setNgram(2)
+         .setTimeout(Duration.ofSeconds(10));
+   }
+
+   /** Ensure all stages run in order when nothing exists yet */
+   @Test public void fullRun() throws Exception {
+      TrainingPipeline pipeline = pipeline()
+         .setLexiconEditor(lexicon -> {
+               LinkedHashMap<String,String> edited = new LinkedHashMap<String,String>(lexicon);
+               edited.put("kia", "k ia");
+               return edited;
+            });
+      ModelResults results = pipeline.run();
+      assertEquals("results returned", 12.5, results.getWer(), 0.0);
+      assertEquals("stages in order",
+                   Arrays.asList("dataset/new", "dataset/settings", "dataset/files",
+                                 "dataset/prepare", "pron-dict/new", "pron-dict/l2s",
+                                 "pron-dict/generate-lexicon", "pron-dict/save-lexicon",
+                                 "model/new", "model/settings", "model/train"),
+                   calls.subList(3, 14));
+      assertTrue("lists before anything else",
+                 calls.subList(0, 3).containsAll(
+                    Arrays.asList("dataset/list", "pron-dict/list", "model/list")));
+      assertEquals("edited lexicon saved", "kia k ia\nora o r a\n", savedLexicon);
+      assertTrue("nothing skipped: " + pipeline.getSkipped(), pipeline.getSkipped().isEmpty());
+      assertEquals("all stages timed",
+                   Arrays.asList(TrainingPipeline.LIST, TrainingPipeline.DATASET,
+                                 TrainingPipeline.DATASET_FILES,
+                                 TrainingPipeline.DATASET_PREPARE, TrainingPipeline.PRON_DICT,
+                                 TrainingPipeline.PRON_DICT_L2S,
+                                 TrainingPipeline.PRON_DICT_LEXICON, TrainingPipeline.MODEL,
+                                 TrainingPipeline.MODEL_TRAIN, TrainingPipeline.MODEL_AWAIT,
+                                 TrainingPipeline.MODEL_RESULTS),
+                   new Vector<String>(pipeline.getStageTimes().keySet()));
+      assertTrue("waiting took time",
+                 pipeline.getStageTimes().get(TrainingPipeline.MODEL_AWAIT).toNanos() > 0);
+   }
+
+   /** Ensure stages whose outputs exist are skipped */
+   @Test public void skipExisting() throws Exception {
+      pipeline().run();
+      calls.clear();
+      File lexicon = File.createTempFile("TestTrainingPipeline-", ".txt");
+      lexicon.deleteOnExit();
+      TrainingPipeline pipeline = pipeline().setLexicon(lexicon);
+      ModelResults results = pipeline.run();
+      assertEquals("results returned", 12.5, results.getWer(), 0.0);
+      assertEquals("existing outputs loaded",
+                   Arrays.asList("dataset/load", "pron-dict/load", "model/load",
+                                 "model/status", "model/results"),
+                   calls.subList(3, calls.size()));
+      assertEquals("skipped stages",
+                   Arrays.asList(TrainingPipeline.DATASET_FILES,
+                                 TrainingPipeline.DATASET_PREPARE,
+                                 TrainingPipeline.PRON_DICT_L2S,
+                                 TrainingPipeline.PRON_DICT_LEXICON,
+                                 TrainingPipeline.MODEL_TRAIN, TrainingPipeline.MODEL_AWAIT),
+                   new Vector<String>(pipeline.getSkipped()));
+      assertFalse("skipped stages not timed",
+                  pipeline.getStageTimes().containsKey(TrainingPipeline.MODEL_TRAIN));
+      assertTrue(pipeline.toString(), pipeline.toString().contains("modelTrain: skipped"));
+   }
+
+   /** Ensure a partly-populated dataset and pronunciation dictionary are completed */
+   @Test public void resumePartial() throws Exception {
+      // a previous run uploaded one file, and uploaded the l2s, but saved no lexicon
+      datasets.add("ds");
+      datasetFiles.add("a.eaf");
+      pronDicts.add("pd");
+      l2s = true;
+      TrainingPipeline pipeline = pipeline();
+      pipeline.run();
+      assertEquals("missing outputs created",
+                   Arrays.asList("dataset/load", "dataset/files", "dataset/prepare",
+                                 "pron-dict/load", "pron-dict/generate-lexicon",
+                                 "pron-dict/save-lexicon", "model/new", "model/settings",
+                                 "model/train"),
+                   calls.subList(3, 12));
+      assertEquals("existing l2s skipped",
+                   Arrays.asList(TrainingPipeline.PRON_DICT_L2S),
+                   new Vector<String>(pipeline.getSkipped()));
+      assertEquals(new TreeSet<String>(Arrays.asList("a.eaf", "a.wav")), datasetFiles);
+
+      // the dataset is complete, but the lexicon is missing
+      savedLexicon = null;
+      calls.clear();
+      pipeline = pipeline();
+      pipeline.run();
+      assertEquals("only lexicon created, and model retrained",
+                   Arrays.asList("dataset/load", "pron-dict/load",
+                                 "pron-dict/generate-lexicon", "pron-dict/save-lexicon",
+                                 "model/load", "model/status", "model/settings",
+                                 "model/train"),
+                   calls.subList(3, 11));
+      assertEquals(Arrays.asList(TrainingPipeline.DATASET_FILES,
+                                 TrainingPipeline.DATASET_PREPARE,
+                                 TrainingPipeline.PRON_DICT_L2S),
+                   new Vector<String>(pipeline.getSkipped()));
+   }
+
+   /** Ensure a lexicon file replaces the generated lexicon, and hashing is done up front */
+   @Test public void lexiconFileAndManifest() throws Exception {
+      File lexicon = File.createTempFile("TestTrainingPipeline-", ".txt");
+      lexicon.deleteOnExit();
+      Files.write(lexicon.toPath(), "kia k i a".getBytes(StandardCharsets.UTF_8));
+      File cache = Files.createTempDirectory("TestTrainingPipeline-").toFile();
+      UploadManifest manifest = new UploadManifest(cache, elpisUrl, "ds");
+      TrainingPipeline pipeline = pipeline().setLexicon(lexicon).setUploadManifest(manifest);
+      pipeline.run();
+      assertEquals("lexicon file saved", "kia k i a\n", savedLexicon);
+      assertEquals("files acknowledged in manifest",
+                   Arrays.asList("a.eaf", "a.wav"), manifest.getAcknowledged());
+
+      // a file's content changes, but not its name
+      pipeline = pipeline().setLexicon(lexicon).setUploadManifest(manifest);
+      File changed = pipeline.getFiles().get(0);
+      Files.write(changed.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+      calls.clear();
+      pipeline.run();
+      assertTrue("changed file uploaded: " + calls, calls.contains("dataset/files"));
+      assertTrue("dataset prepared again: " + calls, calls.contains("dataset/prepare"));
+      assertTrue("model trained again: " + calls, calls.contains("model/train"));
+      manifest.getFile().delete();
+      cache.delete();
+   }
+}
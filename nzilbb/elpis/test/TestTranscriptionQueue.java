@@ -0,0 +1,328 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import nzilbb.elpis.*;
+
+/**
+ * Tests batch transcription, using local stub servers that take a little while to
+ * transcribe each recording.
+ */
+public class TestTranscriptionQueue {
+
+   /**
+    * A stub server, which "transcribes" a recording as its file name.
+    */
+   static class Stub {
+      HttpServer server;
+      String url;
+      volatile String current;
+      AtomicInteger polls = new AtomicInteger();
+      AtomicInteger transcribed = new AtomicInteger();
+      Stub() throws IOException {
+         server = TestTransport.server();
+         server.createContext("/api/transcription/new", exchange -> {
+               Matcher filename = Pattern.compile("filename=\"([^\"]+)\"")
+                  .matcher(TestTransport.read(exchange));
+               current = filename.find()? filename.group(1) : null;
+               TestTransport.respond(
+                  exchange, "{\"status\":200,\"data\":{\"status\":\"ready\"}}");
+            });
+         server.createContext("/api/transcription/transcribe", exchange -> {
+               TestTransport.read(exchange);
+               polls.set(0);
+               TestTransport.respond(
+                  exchange, "{\"status\":200,\"data\":{\"status\":\"transcribing\"}}");
+            });
+         server.createContext("/api/transcription/status", exchange -> {
+               TestTransport.read(exchange);
+               String status = polls.incrementAndGet() > 2? "transcribed" : "transcribing";
+               TestTransport.respond(
+                  exchange, "{\"status\":200,\"data\":{\"status\":\"" + status + "\"}}");
+            });
+         server.createContext("/api/transcription/text", exchange -> {
+               TestTransport.read(exchange);
+               transcribed.incrementAndGet();
+               respondText(exchange, current);
+            });
+         server.createContext("/api/transcription/elan", exchange -> {
+               TestTransport.read(exchange);
+               respondText(exchange, "<ANNOTATION_DOCUMENT>" + current + "</ANNOTATION_DOCUMENT>");
+            });
+         server.start();
+         url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+      }
+   }
+
+   static void respondText(HttpExchange exchange, String text) throws IOException {
+      byte[] content = text.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, content.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(content);
+      out.close();
+   }
+
+   static List<Stub> stubs = new Vector<Stub>();
+
+   /** Poller with short intervals, so tests run quickly */
+   static StatusPoller poller = new StatusPoller()
+      .setInitialInterval(Duration.ofMillis(5))
+      .setMaxInterval(Duration.ofMillis(20));
+
+   File dir;
+   File outputs;
+   File queueFile;
+   List<File> recordings = new Vector<File>();
+   
+   @BeforeClass public static void startServers() throws IOException {
+      for (int s = 0; s < 2; s++) stubs.add(new Stub());
+   }
+
+   @AfterClass public static void stopServers() {
+      for (Stub stub : stubs) stub.server.stop(0);
+   }
+
+   @Before public void createRecordings() throws IOException {
+      dir = Files.createTempDirectory("TestTranscriptionQueue-").toFile();
+      outputs = new File(dir, "transcripts");
+      queueFile = new File(dir, "queue.tsv");
+      recordings.clear();
+      for (int r = 0; r < 8; r++) {
+         File recording = new File(dir, "recording" + r + ".wav");
+         Files.write(recording.toPath(), new byte[1000 + r]);
+         recordings.add(recording);
+      }
+      for (Stub stub : stubs) stub.transcribed.set(0);
+   }
+
+   @After public void deleteRecordings() {
+      delete(dir);
+   }
+
+   static void delete(File file) {
+      if (file.isDirectory()) for (File child : file.listFiles()) delete(child);
+      file.delete();
+   }
+
+   /** Creates clients for the given stubs */
+   static List<Elpis> endpoints(Stub... servers) throws IOException {
+      Vector<Elpis> endpoints = new Vector<Elpis>();
+      for (Stub stub : servers) endpoints.add(new Elpis(stub.url).setStatusPoller(poller));
+      return endpoints;
+   }
+
+   /** Ensure all recordings are transcribed, across all servers */
+   @Test public void transcribeAll() throws Exception {
+      try (TranscriptionQueue queue = new TranscriptionQueue(
+              queueFile, outputs, endpoints(stubs.get(0), stubs.get(1)))) {
+         assertEquals(recordings.size(), queue.add(recordings));
+         assertEquals("Not added twice", 0, queue.add(recordings));
+         assertEquals("Nothing left", 0, queue.run());
+         assertEquals(recordings.size(), queue.count(TranscriptionQueue.DONE));
+         int completed = 0;
+         for (TranscriptionQueue.Stats stats : queue.getStats()) {
+            assertTrue("Server used: " + stats, stats.getCompleted() > 0);
+            assertTrue("Throughput measured: " + stats, stats.getThroughputPerHour() > 0);
+            completed += stats.getCompleted();
+         }
+         assertEquals(recordings.size(), completed);
+      }
+      for (File recording : recordings) {
+         String name = recording.getName().replace(".wav", "");
+         assertEquals(recording.getName(), new String(
+                         Files.readAllBytes(new File(outputs, name + ".txt").toPath()),
+                         StandardCharsets.UTF_8));
+         assertTrue(name + ".eaf", new File(outputs, name + ".eaf").exists());
+      }
+   }
+
+   /** Ensure uploads are prepared while the previous recording is transcribed */
+   @Test public void pipeline() throws Exception {
+      for (boolean pipeline : new boolean[] { false, true }) {
+         delete(queueFile);
+         delete(outputs);
+         try (TranscriptionQueue queue = new TranscriptionQueue(
+                 queueFile, outputs, endpoints(stubs.get(0)))) {
+            queue.setPipeline(pipeline);
+            queue.add(recordings);
+            assertEquals(0, queue.run());
+            TranscriptionQueue.Stats stats = queue.getStats().get(0);
+            System.out.println((pipeline?"pipelined ":"sequential ") + stats);
+            assertEquals(recordings.size(), stats.getCompleted());
+            assertEquals("All but the first staged in advance",
+                         pipeline? recordings.size() - 1 : 0, stats.getStaged());
+         }
+         for (File recording : recordings) {
+            String name = recording.getName().replace(".wav", "");
+            assertEquals("Each upload is the right recording", recording.getName(), new String(
+                            Files.readAllBytes(new File(outputs, name + ".txt").toPath()),
+                            StandardCharsets.UTF_8));
+         }
+         // reopening compacts the queue file to the final state of each recording
+         new TranscriptionQueue(queueFile, outputs, endpoints(stubs.get(0))).close();
+         for (String line : Files.readAllLines(queueFile.toPath())) {
+            assertTrue("Hash recorded: " + line, line.matches("done\t.*\t[0-9a-f]{64}"));
+         }
+      } // next mode
+   }
+
+   /** Ensure an interrupted run resumes with the recordings that weren't finished */
+   @Test public void resume() throws Exception {
+      // a previous run finished the first recording, and was part way through the second
+      String previous = TranscriptionQueue.DONE + "\t" + recordings.get(0).getAbsolutePath()
+         + "\n" + TranscriptionQueue.STARTED + "\t" + recordings.get(1).getAbsolutePath()
+         + "\t" + stubs.get(0).url + "\n";
+      Files.write(queueFile.toPath(), previous.getBytes(StandardCharsets.UTF_8));
+      try (TranscriptionQueue queue = new TranscriptionQueue(
+              queueFile, outputs, endpoints(stubs.get(0)))) {
+         assertEquals("Only new recordings added",
+                      recordings.size() - 2, queue.add(recordings));
+         assertEquals(0, queue.run());
+      }
+      assertEquals("Finished recording not transcribed again",
+                   recordings.size() - 1, stubs.get(0).transcribed.get());
+      assertFalse(new File(outputs, "recording0.txt").exists());
+      assertTrue(new File(outputs, "recording1.txt").exists());
+
+      // nothing more to do
+      try (TranscriptionQueue queue = new TranscriptionQueue(
+              queueFile, outputs, endpoints(stubs.get(0)))) {
+         assertEquals(recordings.size(), queue.count(TranscriptionQueue.DONE));
+         assertEquals(0, queue.run());
+      }
+      assertEquals("Queue file compacted: one line per recording",
+                   recordings.size(), Files.readAllLines(queueFile.toPath()).size());
+   }
+
+   /** Ensure recordings are passed to other servers if one can't be reached */
+   @Test public void serverDown() throws Exception {
+      int port;
+      try (ServerSocket closed = new ServerSocket(0)) { // find a port nothing listens on
+         port = closed.getLocalPort();
+      }
+      String downUrl = "http://127.0.0.1:" + port + "/";
+      List<Elpis> endpoints = endpoints(stubs.get(0));
+      endpoints.add(0, new Elpis(downUrl));
+      try (TranscriptionQueue queue = new TranscriptionQueue(queueFile, outputs, endpoints)) {
+         queue.add(recordings);
+         assertEquals(0, queue.run());
+         assertNotNull("Error recorded", queue.getStats().get(0).getLastError());
+         assertEquals(0, queue.getStats().get(0).getCompleted());
+         assertEquals(recordings.size(), queue.getStats().get(1).getCompleted());
+      }
+   }
+
+   /** Ensure recordings that can't be read fail, without dropping the server */
+   @Test public void unreadableRecording() throws Exception {
+      File unreadable = new File(dir, "unreadable.wav");
+      unreadable.mkdir(); // exists, but can't be hashed or uploaded
+      recordings.add(1, unreadable);
+      try (TranscriptionQueue queue = new TranscriptionQueue(
+              queueFile, outputs, endpoints(stubs.get(0)))) {
+         queue.add(recordings);
+         assertEquals(0, queue.run());
+         assertEquals(1, queue.count(TranscriptionQueue.FAILED));
+         assertEquals(recordings.size() - 1, queue.count(TranscriptionQueue.DONE));
+         TranscriptionQueue.Stats stats = queue.getStats().get(0);
+         assertNull("Server still used: " + stats, stats.getLastError());
+         assertEquals(1, stats.getFailed());
+      }
+   }
+
+   /** Ensure transcripts that can't be saved fail, without dropping the server */
+   @Test public void unwritableTranscripts() throws Exception {
+      Files.write(outputs.toPath(), new byte[0]); // a file, not a directory
+      try (TranscriptionQueue queue = new TranscriptionQueue(
+              queueFile, outputs, endpoints(stubs.get(0)))) {
+         queue.add(recordings);
+         assertEquals("Not requeued", 0, queue.run());
+         assertEquals(recordings.size(), queue.count(TranscriptionQueue.FAILED));
+         TranscriptionQueue.Stats stats = queue.getStats().get(0);
+         assertNull("Server still used: " + stats, stats.getLastError());
+         assertEquals(recordings.size(), stats.getFailed());
+      }
+   }
+
+   /** Ensure recordings whose transcripts would have the same name are rejected */
+   @Test public void duplicateNames() throws Exception {
+      File other = new File(dir, "other");
+      other.mkdir();
+      File duplicate = new File(other, "recording0.mp3");
+      Files.write(duplicate.toPath(), new byte[1000]);
+      try (TranscriptionQueue queue = new TranscriptionQueue(
+              queueFile, outputs, endpoints(stubs.get(0)))) {
+         try {
+            queue.add(List.of(recordings.get(1), duplicate, recordings.get(0)));
+            fail("Duplicate names in one batch rejected");
+         } catch(IllegalArgumentException exception) {
+         }
+         assertEquals("Nothing added", 0, queue.count(TranscriptionQueue.QUEUED));
+         assertEquals(recordings.size(), queue.add(recordings));
+         try {
+            queue.add(List.of(duplicate));
+            fail("Duplicate of queued recording rejected");
+         } catch(IllegalArgumentException exception) {
+         }
+      }
+      // names are checked against recordings loaded from the queue file too
+      try (TranscriptionQueue queue = new TranscriptionQueue(
+              queueFile, outputs, endpoints(stubs.get(0)))) {
+         try {
+            queue.add(List.of(duplicate));
+            fail("Duplicate of loaded recording rejected");
+         } catch(IllegalArgumentException exception) {
+         }
+         assertEquals("Same recording is not a duplicate", 0, queue.add(recordings));
+      }
+   }
+
+   /** Ensure recordings requeued after other servers ran out of work are transcribed */
+   @Test public void requeuedLate() throws Exception {
+      // a server that transcribes slowly, and then drops the connection
+      Stub broken = new Stub();
+      broken.server.removeContext("/api/transcription/text");
+      broken.server.createContext("/api/transcription/text", exchange -> {
+            TestTransport.read(exchange);
+            try { Thread.sleep(200); } catch(InterruptedException x) {}
+            exchange.close();
+         });
+      try {
+         List<Elpis> endpoints = endpoints(broken, stubs.get(0));
+         try (TranscriptionQueue queue = new TranscriptionQueue(
+                 queueFile, outputs, endpoints)) {
+            queue.setPipeline(false);
+            queue.add(recordings.subList(0, 2));
+            assertEquals("Nothing left", 0, queue.run());
+            assertEquals(2, queue.count(TranscriptionQueue.DONE));
+            assertNotNull("Broken server dropped", queue.getStats().get(0).getLastError());
+            assertEquals(2, queue.getStats().get(1).getCompleted());
+         }
+      } finally {
+         broken.server.stop(0);
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elpis.test.TestTranscriptionQueue");
+   }
+}
@@ -0,0 +1,517 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import nzilbb.elpis.*;
+import nzilbb.elpis.http.*;
+
+/**
+ * Tests the request transports, using a local stub server that returns canned responses
+ * immediately.
+ * <p> Unlike {@link TestElpis}, these tests don't need a running Elpis server.
+ */
+public class TestTransport {
+
+   static HttpServer server;
+   static String elpisUrl;
+   /** The last lexicon received by the stub server */
+   static volatile String savedLexicon;
+   /** The Content-Length of the last lexicon received by the stub server */
+   static volatile String savedLexiconLength;
+   /** Large transcript, with Windows line endings that should be preserved */
+   static String eaf;
+
+   @BeforeClass public static void startServer() throws IOException {
+      StringBuilder annotations = new StringBuilder("<ANNOTATION_DOCUMENT>\r\n");
+      for (int a = 0; a < 20000; a++) {
+         annotations.append("<ANNOTATION_VALUE>ŋā ").append(a).append("</ANNOTATION_VALUE>\r\n");
+      }
+      eaf = annotations.append("</ANNOTATION_DOCUMENT>\r\n").toString();
+      server = server();
+      server.createContext("/api/model/status", exchange -> {
+            respond(exchange, "{\"status\":200,\"data\":{\"status\":\"trained\"}}");
+         });
+      server.createContext("/api/dataset/new", exchange -> {
+            String body = read(exchange);
+            if (body.contains("\"name\":\"ds\"")) {
+               respond(exchange, "{\"status\":200,\"data\":{\"config\":{\"name\":\"ds\"}}}");
+            } else {
+               respond(exchange, "{\"status\":500,\"data\":\"unexpected body: " + body + "\"}");
+            }
+         });
+      server.createContext("/api/dataset/files", exchange -> {
+            String body = read(exchange);
+            Matcher filenames = Pattern.compile("filename=\"([^\"]+)\"").matcher(body);
+            StringBuilder files = new StringBuilder();
+            while (filenames.find()) {
+               if (files.length() > 0) files.append(",");
+               files.append("\"").append(filenames.group(1)).append("\"");
+            }
+            respond(exchange, "{\"status\":200,\"data\":{\"files\":[" + files + "]}}");
+         });
+      server.createContext("/api/dataset/prepare", exchange -> {
+            respond(exchange, "{\"status\":200,\"data\":{\"wordlist\":"
+                    +"\"{\\\"kia\\\": 2, \\\"ora\\\": 1}\"}}");
+         });
+      server.createContext("/api/pron-dict/generate-lexicon", exchange -> {
+            respond(exchange, "{\"status\":200,\"data\":{\"lexicon\":"
+                    +"\"kia k i a\\nora o r a\\n\\nbad\\n\"}}");
+         });
+      server.createContext("/api/pron-dict/save-lexicon", exchange -> {
+            savedLexiconLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            savedLexicon = Json.createReader(new StringReader(read(exchange)))
+               .readObject().getString("lexicon");
+            respond(exchange, "{\"status\":200,\"data\":{}}");
+         });
+      server.createContext("/api/transcription/elan", exchange -> {
+            byte[] content = eaf.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/x-eaf+xml");
+            exchange.sendResponseHeaders(200, content.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(content);
+            out.close();
+         });
+      server.createContext("/api/transcription/text", exchange -> {
+            byte[] content = "No transcription".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(404, content.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(content);
+            out.close();
+         });
+      server.createContext("/api/upload/check", exchange -> {
+            // report how the body was framed, and a digest of the file part's content
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            String encoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            exchange.getRequestBody().transferTo(content);
+            byte[] body = content.toByteArray();
+            String latin1 = new String(body, StandardCharsets.ISO_8859_1);
+            int start = latin1.indexOf("\r\n\r\n", latin1.indexOf("filename=")) + 4;
+            int end = latin1.lastIndexOf("\r\n--"); // closing boundary
+            String md5 = "";
+            try {
+               MessageDigest digest = MessageDigest.getInstance("MD5");
+               digest.update(body, start, end - start);
+               md5 = new BigInteger(1, digest.digest()).toString(16);
+            } catch(Exception exception) {}
+            respond(exchange, "{\"status\":200,\"data\":{"
+                    +"\"received\":" + body.length
+                    +",\"contentLength\":\"" + contentLength + "\""
+                    +",\"encoding\":\"" + encoding + "\""
+                    +",\"md5\":\"" + md5 + "\""
+                    +",\"utf8\":" + new String(body, StandardCharsets.UTF_8).contains("ŋā.wav")
+                    +"}}");
+         });
+      server.start();
+      elpisUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+   }
+
+   @AfterClass public static void stopServer() {
+      server.stop(0);
+   }
+
+   /**
+    * Creates a stub server on the loopback interface, for tests that need responses
+    * that {@link nzilbb.elpis.util.ElpisStub} doesn't give. The server still has to be
+    * started. Nagle's algorithm is disabled for its connections, otherwise small
+    * responses are delayed ~40ms.
+    */
+   static HttpServer server() throws IOException {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.setExecutor(Executors.newCachedThreadPool());
+      return server;
+   }
+
+   static String read(HttpExchange exchange) throws IOException {
+      InputStream in = exchange.getRequestBody();
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) >= 0) content.write(buffer, 0, read);
+      return content.toString("UTF-8");
+   }
+
+   static void respond(HttpExchange exchange, String json) throws IOException {
+      byte[] content = json.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, content.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(content);
+      out.close();
+   }
+
+   /** Formats strings as a JSON array */
+   static String strings(Collection<String> strings) {
+      return "[" + strings.stream()
+         .map(s -> "\"" + s + "\"").collect(Collectors.joining(",")) + "]";
+   }
+
+   /** Formats names as a list of objects */
+   static String names(Collection<String> names) {
+      return "{\"list\":[" + names.stream()
+         .map(n -> "{\"name\":\"" + n + "\"}").collect(Collectors.joining(",")) + "]}";
+   }
+
+   /** Extracts a parameter value from a JSON request body */
+   static String parameter(String body, String name) {
+      try (JsonReader reader = Json.createReader(new StringReader(body))) {
+         JsonValue value = reader.readObject().get(name);
+         return value instanceof JsonString? ((JsonString)value).getString() : value.toString();
+      }
+   }
+
+   @Test public void httpClientTransport() throws Exception {
+      roundTrips(new Elpis(elpisUrl).setTransport(new HttpClientTransport()));
+   }
+
+   @Test public void urlConnectionTransport() throws Exception {
+      roundTrips(new Elpis(elpisUrl).setTransport(new UrlConnectionTransport()));
+   }
+
+   /** Ensure GET, JSON POST, and multipart POST requests all work */
+   void roundTrips(Elpis elpis) throws Exception {
+      assertEquals("GET", "trained", elpis.modelStatus());
+      elpis.datasetNew("ds");
+
+      File wav = File.createTempFile("TestTransport-", ".wav");
+      File eaf = File.createTempFile("TestTransport-", ".eaf");
+      try {
+         PrintWriter writer = new PrintWriter(eaf, "UTF-8");
+         writer.println("<ANNOTATION_DOCUMENT/>");
+         writer.close();
+         Vector<File> files = new Vector<File>();
+         files.add(wav);
+         files.add(eaf);
+         List<String> uploaded = elpis.datasetFiles(files);
+         assertEquals("multipart POST: " + uploaded, 2, uploaded.size());
+         assertTrue("wav uploaded: " + uploaded, uploaded.contains(wav.getName()));
+         assertTrue("eaf uploaded: " + uploaded, uploaded.contains(eaf.getName()));
+      } finally {
+         wav.delete();
+         eaf.delete();
+      }
+   }
+
+   /** Ensure multipart uploads are sent with a fixed length, intact */
+   @Test public void multipartUpload() throws Exception {
+      // bigger than MultipartBody.CHUNK_SIZE, so several chunks are transferred/mapped
+      byte[] audio = new byte[9 * 1024 * 1024 + 17];
+      new Random(7).nextBytes(audio);
+      File dir = Files.createTempDirectory("TestTransport-").toFile();
+      File wav = new File(dir, "audio.wav");
+      Files.write(wav.toPath(), audio);
+      String md5 = new BigInteger(1, MessageDigest.getInstance("MD5").digest(audio))
+         .toString(16);
+      try {
+         for (Transport transport : new Transport[] {
+               new HttpClientTransport(), new UrlConnectionTransport() }) {
+            HttpRequestPostMultipart request = new HttpRequestPostMultipart(
+               new URL(elpisUrl + "api/upload/check"))
+               .setParameter("name", "value")
+               .setParameter("file", wav);
+            long length = request.getBody().getContentLength();
+            assertTrue("length known", length > audio.length);
+            Response response = new Response(transport.send(request), false, true);
+            response.checkForErrors();
+            assertEquals(transport + " all sent", length, response.getData().getInt("received"));
+            assertEquals(transport + " Content-Length",
+                         ""+length, response.getData().getString("contentLength"));
+            assertEquals(transport + " content intact", md5, response.getData().getString("md5"));
+            
+            // streams have unknown length, so are chunked
+            request = new HttpRequestPostMultipart(new URL(elpisUrl + "api/upload/check"))
+               .setParameter("file", "ŋā.wav", new ByteArrayInputStream(audio));
+            assertEquals("length unknown", -1, request.getBody().getContentLength());
+            response = new Response(transport.send(request), false, true);
+            response.checkForErrors();
+            assertEquals(transport + " chunked",
+                         "chunked", response.getData().getString("encoding").toLowerCase());
+            assertEquals(transport + " stream intact", md5, response.getData().getString("md5"));
+            assertTrue(transport + " UTF-8 filename", response.getData().getBoolean("utf8"));
+
+            // staged requests are read into memory first, whether or not the length is known
+            request = new HttpRequestPostMultipart(new URL(elpisUrl + "api/upload/check"))
+               .setParameter("name", "value")
+               .setParameter("file", wav);
+            StagedRequest staged = new StagedRequest(request);
+            assertEquals("staged length", request.getBody().getContentLength(),
+                         staged.getBody().getContentLength());
+            response = new Response(transport.send(staged), false, true);
+            response.checkForErrors();
+            assertEquals(transport + " staged intact", md5, response.getData().getString("md5"));
+            staged = new StagedRequest(
+               new HttpRequestPostMultipart(new URL(elpisUrl + "api/upload/check"))
+               .setParameter("file", "ŋā.wav", new ByteArrayInputStream(audio)));
+            assertTrue("staged stream length known", staged.getBody().getContentLength() > 0);
+            response = new Response(transport.send(staged), false, true);
+            response.checkForErrors();
+            assertEquals(transport + " staged stream intact",
+                         md5, response.getData().getString("md5"));
+         } // next transport
+      } finally {
+         wav.delete();
+         dir.delete();
+      }
+   }
+
+   /** Ensure a file that changes after the body is created fails the upload */
+   @Test public void multipartFileChanged() throws Exception {
+      File dir = Files.createTempDirectory("TestTransport-").toFile();
+      File wav = new File(dir, "audio.wav");
+      try {
+         Files.write(wav.toPath(), new byte[100000]);
+         RequestBody body = new HttpRequestPostMultipart(new URL(elpisUrl + "api/upload/check"))
+            .setParameter("file", wav).getBody();
+         Files.write(wav.toPath(), new byte[1000]); // truncate
+         try (InputStream in = body.openStream()) {
+            in.readAllBytes();
+            fail("stream should fail");
+         } catch(IOException exception) {
+            assertTrue(exception.getMessage(), exception.getMessage().contains("changed"));
+         }
+         CompletableFuture<Void> published = new CompletableFuture<Void>();
+         body.publisher().subscribe(new Flow.Subscriber<ByteBuffer>() {
+               public void onSubscribe(Flow.Subscription s) {
+                  s.request(Long.MAX_VALUE);
+               }
+               public void onNext(ByteBuffer buffer) {}
+               public void onError(Throwable t) { published.completeExceptionally(t); }
+               public void onComplete() { published.complete(null); }
+            });
+         try {
+            published.get(30, TimeUnit.SECONDS);
+            fail("publisher should fail");
+         } catch(ExecutionException exception) {
+            assertTrue(exception.getCause().toString(),
+                       exception.getCause() instanceof IOException);
+         }
+      } finally {
+         wav.delete();
+         dir.delete();
+      }
+   }
+
+   /** Ensure large nested values are parsed from streamed responses */
+   @Test public void streamedParsing() throws Exception {
+      Elpis elpis = new Elpis(elpisUrl);
+      Map<String,Integer> wordlist = elpis.datasetPrepare();
+      assertEquals("wordlist: " + wordlist, 2, wordlist.size());
+      assertEquals(Integer.valueOf(2), wordlist.get("kia"));
+      assertEquals(Integer.valueOf(1), wordlist.get("ora"));
+      assertNull("raw not kept", elpis.getResponse().getRaw());
+      WordFrequencies frequencies = elpis.datasetPrepareCompact();
+      assertEquals(2, frequencies.get("kia"));
+      assertEquals(1, frequencies.get("ora"));
+      Map<String,String> lexicon = elpis.pronDictGenerateLexicon();
+      assertEquals("lexicon: " + lexicon, 2, lexicon.size());
+      assertEquals("k i a", lexicon.get("kia"));
+      assertEquals("o r a", lexicon.get("ora"));
+      Lexicon compact = elpis.pronDictGenerateLexiconCompact();
+      assertEquals("k i a", compact.get("kia"));
+      assertEquals("o r a", compact.get("ora"));
+      elpis.setKeepRaw(true).datasetPrepare();
+      assertNotNull("raw kept", elpis.getResponse().getRaw());
+   }
+
+   /** Ensure lexicons are streamed to the server, escaped the same as a JSON object */
+   @Test public void streamedLexicon() throws Exception {
+      LinkedHashMap<String,String> map = new LinkedHashMap<String,String>();
+      map.put("\"quoted\"", "k w \\ t");
+      map.put("tab\tand\u0001control", "t a b");
+      map.put("māori", "m aː o ɾ i");
+      map.put("emoji\ud83d\ude00", "e m");
+      for (int w = 0; w < 50000; w++) map.put("w" + w, "w ə " + (w % 40));
+      StringBuilder expected = new StringBuilder();
+      for (Map.Entry<String,String> entry : map.entrySet()) {
+         expected.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+      }
+      String expectedJson = Json.createObjectBuilder()
+         .add("lexicon", expected.toString()).build().toString();
+      assertEquals("same bytes as JSON-P",
+                   expectedJson, new String(readBody(JsonStringBody.entries(
+                                                        "lexicon", map.entrySet())),
+                                            StandardCharsets.UTF_8));
+
+      // files end with a newline, unless they already end with a blank line
+      Path file = Files.createTempFile("TestTransport-", ".txt");
+      try {
+         for (Transport transport : new Transport[] {
+               new HttpClientTransport(), new UrlConnectionTransport() }) {
+            Elpis elpis = new Elpis(elpisUrl).setTransport(transport);
+            elpis.pronDictSaveLexicon(map);
+            assertEquals(transport + " map", expected.toString(), savedLexicon);
+            assertNull(transport + " chunked, so the map is iterated only once",
+                       savedLexiconLength);
+
+            Files.write(file, "kia k i a\r\nora o r a".getBytes(StandardCharsets.UTF_8));
+            elpis.pronDictSaveLexicon(file.toFile());
+            assertEquals(transport + " file", "kia k i a\nora o r a\n", savedLexicon);
+            Files.write(file, "kia k i a\n\n".getBytes(StandardCharsets.UTF_8));
+            elpis.pronDictSaveLexicon(file.toFile());
+            assertEquals(transport + " blank line", "kia k i a\n", savedLexicon);
+         }
+      } finally {
+         Files.delete(file);
+      }
+   }
+
+   /** Ensure an unchanged lexicon isn't saved again */
+   @Test public void lexiconSnapshot() throws Exception {
+      File cache = Files.createTempDirectory("TestTransport-").toFile();
+      try {
+         Elpis elpis = new Elpis(elpisUrl);
+         LexiconSnapshot snapshot = new LexiconSnapshot(cache, elpisUrl, "pd");
+         Map<String,String> lexicon = elpis.pronDictGenerateLexicon();
+         snapshot.update(lexicon);
+         savedLexicon = null;
+         Result<LexiconSnapshot.Diff> result = elpis.pronDictSaveLexiconResult(lexicon, snapshot);
+         assertTrue(result.getData().isEmpty());
+         assertNull("no request sent", result.getResponse());
+         assertNull("nothing saved", savedLexicon);
+
+         lexicon.put("kia", "k ia");
+         result = elpis.pronDictSaveLexiconResult(lexicon, snapshot);
+         assertEquals("1 changed", "0 added, 1 changed, 0 removed", result.getData().toString());
+         assertNotNull(result.getResponse());
+         assertEquals("whole lexicon saved", "kia k ia\nora o r a\n", savedLexicon);
+         assertTrue("snapshot updated", snapshot.diff(lexicon).isEmpty());
+
+         savedLexicon = null;
+         assertTrue(elpis.pronDictSaveLexicon(lexicon, snapshot).isEmpty());
+         assertNull("not saved again", savedLexicon);
+
+         // generating the lexicon replaces the edited one on the server
+         assertEquals("k i a", elpis.pronDictGenerateLexicon(snapshot).get("kia"));
+         assertTrue("snapshot matches generated lexicon",
+                    snapshot.diff(elpis.pronDictGenerateLexicon()).isEmpty());
+         assertEquals("edit saved again", 1, elpis.pronDictSaveLexicon(lexicon, snapshot).size());
+         assertEquals("kia k ia\nora o r a\n", savedLexicon);
+      } finally {
+         for (File f : cache.listFiles()) f.delete();
+         cache.delete();
+      }
+   }
+
+   /** Reads a request body one byte at a time, to exercise buffer boundaries */
+   static byte[] readBody(RequestBody body) throws IOException {
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      try (InputStream in = body.openStream()) {
+         for (int b = in.read(); b >= 0; b = in.read()) content.write(b);
+      }
+      if (body.getContentLength() >= 0) {
+         assertEquals("content length", body.getContentLength(), content.size());
+      }
+      return content.toByteArray();
+   }
+
+   /** Ensure transcripts are streamed to their destination unchanged */
+   @Test public void streamedTranscripts() throws Exception {
+      byte[] expected = eaf.getBytes(StandardCharsets.UTF_8);
+      for (Transport transport : new Transport[] {
+            new HttpClientTransport(), new UrlConnectionTransport() }) {
+         Elpis elpis = new Elpis(elpisUrl).setTransport(transport);
+         
+         ByteArrayOutputStream stream = new ByteArrayOutputStream();
+         assertEquals(transport + " stream", expected.length, elpis.transcriptionElan(stream));
+         assertArrayEquals(transport + " stream", expected, stream.toByteArray());
+         
+         Path path = Files.createTempFile("TestTransport-", ".eaf");
+         try {
+            Files.write(path, new byte[expected.length * 2]); // ensure it's truncated
+            assertEquals(transport + " path", expected.length, elpis.transcriptionElan(path));
+            assertArrayEquals(transport + " path", expected, Files.readAllBytes(path));
+         } finally {
+            Files.delete(path);
+         }
+         
+         File file = elpis.transcriptionElan();
+         try {
+            assertArrayEquals(transport + " file", expected, Files.readAllBytes(file.toPath()));
+         } finally {
+            file.delete();
+         }
+         
+         file = elpis.async().transcriptionElan().get(30, TimeUnit.SECONDS);
+         try {
+            assertArrayEquals(transport + " async", expected, Files.readAllBytes(file.toPath()));
+         } finally {
+            file.delete();
+         }
+         
+         stream = new ByteArrayOutputStream();
+         try {
+            elpis.transcriptionText(stream);
+            fail(transport + " error should throw");
+         } catch(ElpisException exception) {
+            assertEquals(404, elpis.getResponse().getHttpStatus());
+            assertEquals("error not written", 0, stream.size());
+            assertEquals("No transcription", elpis.getResponse().getRaw());
+         }
+      } // next transport
+   }
+
+   /** Ensure many concurrent asynchronous requests all complete */
+   @Test public void asyncConcurrentRequests() throws Exception {
+      AsyncElpis elpis = new Elpis(elpisUrl).setTransport(new HttpClientTransport()).async();
+      List<CompletableFuture<String>> statuses = new Vector<CompletableFuture<String>>();
+      for (int r = 0; r < 500; r++) statuses.add(elpis.modelStatus());
+      for (CompletableFuture<String> status : statuses) {
+         assertEquals("trained", status.get(30, TimeUnit.SECONDS));
+      }
+      elpis.datasetNew("ds").get(30, TimeUnit.SECONDS);
+      try {
+         elpis.datasetNew("not ds").get(30, TimeUnit.SECONDS);
+         fail("Server error should complete the future exceptionally");
+      } catch(ExecutionException exception) {
+         assertTrue("ElpisException: " + exception.getCause(),
+                    exception.getCause() instanceof ElpisException);
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elpis.test.TestTransport");
+   }
+}
@@ -0,0 +1,96 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.test;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import nzilbb.elpis.*;
+
+/**
+ * Tests the word frequency table.
+ */
+public class TestWordFrequencies {
+
+   /** Parses a JSON wordlist */
+   static WordFrequencies parse(String json) {
+      JsonParser parser = Json.createParser(new StringReader(json));
+      try {
+         parser.next(); // START_OBJECT
+         return WordFrequencies.parse(parser);
+      } finally {
+         parser.close();
+      }
+   }
+
+   /** Ensure a wordlist is parsed, and can be accessed by word, index, and frequency */
+   @Test public void parseAndAccess() throws Exception {
+      WordFrequencies frequencies = parse(
+         "{\"kia\":3,\"ora\":5,\"te\":7,\"reo\":3,\"m\\u0101ori\":1}");
+      assertEquals(5, frequencies.size());
+      assertEquals(19, frequencies.getTotalTokens());
+      assertEquals(7, frequencies.get("te"));
+      assertEquals("escaped characters decoded", 1, frequencies.get("māori"));
+      assertEquals("absent word", 0, frequencies.get("haere"));
+      assertFalse(frequencies.contains("haere"));
+      assertEquals("insertion order", "kia", frequencies.word(0));
+      assertEquals(5, frequencies.count(1));
+      assertEquals("top k, ties in insertion order",
+                   Arrays.asList("te", "ora", "kia"), frequencies.top(3));
+      assertEquals("k larger than vocabulary", 5, frequencies.top(100).size());
+      Vector<String> byFrequency = new Vector<String>();
+      frequencies.forEachByFrequency((word, count) -> byFrequency.add(word + "=" + count));
+      assertEquals("[te=7, ora=5, kia=3, reo=3, māori=1]", byFrequency.toString());
+   }
+
+   /** Ensure adding to an existing word accumulates its count */
+   @Test public void accumulate() throws Exception {
+      WordFrequencies frequencies = new WordFrequencies(1);
+      frequencies.add("kia", 1);
+      frequencies.add("ora", 2);
+      frequencies.add("kia", 4);
+      assertEquals(2, frequencies.size());
+      assertEquals(5, frequencies.get("kia"));
+      assertEquals(7, frequencies.getTotalTokens());
+   }
+
+   /** Ensure a large vocabulary is stored correctly, and the Map view agrees */
+   @Test public void largeVocabulary() throws Exception {
+      int vocabulary = 200000;
+      WordFrequencies frequencies = new WordFrequencies();
+      LinkedHashMap<String,Integer> expected = new LinkedHashMap<String,Integer>();
+      for (int w = 0; w < vocabulary; w++) {
+         String word = "w" + Integer.toString(w, 36);
+         int count = (w * 7919) % 1000 + 1;
+         frequencies.add(word, count);
+         expected.put(word, count);
+      }
+      assertEquals(vocabulary, frequencies.size());
+      Map<String,Integer> map = frequencies.asMap();
+      assertEquals("map view matches", expected, map);
+      assertEquals("map view in insertion order",
+                   new Vector<String>(expected.keySet()), new Vector<String>(map.keySet()));
+      assertNull(map.get("absent"));
+
+      // top 10 agrees with a full sort
+      int[] sorted = frequencies.indicesByFrequency();
+      Vector<String> firstTen = new Vector<String>();
+      for (int i = 0; i < 10; i++) firstTen.add(frequencies.word(sorted[i]));
+      assertEquals(firstTen, frequencies.top(10));
+      assertEquals(1000, frequencies.count(sorted[0]));
+      for (int i = 1; i < sorted.length; i++) {
+         assertTrue("sorted by frequency",
+                    frequencies.count(sorted[i - 1]) >= frequencies.count(sorted[i]));
+      }
+   }
+}
@@ -7,8 +7,10 @@ package nzilbb.elpis.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Vector;
 import nzilbb.elpis.*;
 
@@ -29,6 +31,19 @@ import nzilbb.elpis.*;
  * }</pre>
  * <p> You can use the <tt>-v</tt> switch to produce verbose output, e.g.
  * <p><tt>java -jar nzilbb.elpis.jar -v http://0.0.0.0:5000 <b>datasetList</b></tt>
+ * <p> Bulk work can be done concurrently using the <tt>-c=<i>n</i></tt> switch, which
+ * allows up to <i>n</i> requests at once. These run on virtual threads if the JVM supports
+ * them (Java 21 or later), or platform threads if the <tt>-p</tt> switch is also used. With
+ * this switch, the files passed to <b>datasetFiles</b> are split into shards of similar
+ * size, keeping <tt>.eaf</tt>/<tt>.wav</tt> pairs together, and uploaded by concurrent
+ * requests, e.g.
+ * <p><tt>java -jar nzilbb.elpis.jar -c=8 http://0.0.0.0:5000 <b>datasetFiles</b>
+ * transcribed/*.wav transcribed/*.eaf</tt>
+ * <p> The elpis-url can also be a comma-separated list of servers, in which case the
+ * function is invoked on all of them, concurrently if <tt>-c</tt> is used, and each
+ * server's response is printed, e.g.
+ * <p><tt>java -jar nzilbb.elpis.jar -c=16 http://elpis1:5000,http://elpis2:5000
+ * <b>transcriptionStatus</b></tt>
  * <p> <em> NB </em> For the command line program to work, <tt>javax.json.jar</tt> must be
  * on the class-path or in the same directory as <i>nzilbb.elpis.jar</i>. This can be downloaded from 
  * <a href="https://github.com/nzilbb/elpis-java/blob/master/lib/javax.json.jar?raw=true">here</a>.
@@ -96,9 +111,29 @@ public class CommandLine {
    /** Command-line entrypoint. */
    public static void main(String argv[]) {
       boolean verbose = false;
-      if (argv.length > 0 && argv[0].equals("-v")) {
-         verbose = true;
+      int concurrency = 0;
+      boolean platformThreads = false;
+      while (argv.length > 0 && argv[0].startsWith("-")) {
+         if (argv[0].equals("-v")) {
+            verbose = true;
+         } else if (argv[0].equals("-p")) {
+            platformThreads = true;
+         } else if (argv[0].startsWith("-c=")) {
+            try {
+               concurrency = Integer.parseInt(argv[0].substring(3));
+            } catch(NumberFormatException exception) {
+               System.err.println("Invalid concurrency: " + argv[0]);
+               printUsage(null);
+               return;
+            }
+         } else {
+            System.err.println("Invalid switch: " + argv[0]);
+            printUsage(null);
+            return;
+         }
          argv = Arrays.copyOfRange(argv, 1, argv.length);
+      } // next switch
+      if (verbose) {
          System.out.println("New args:");
          for (String a : argv) System.out.println(a);
       }
@@ -120,94 +155,38 @@ public class CommandLine {
                }
             } // found the function definition
          } // next function
+         BulkExecutor bulk = null;
          try {
-            Elpis elpis = new Elpis(argv[0])
-               .setVerbose(verbose);
-            // elpis.setVerbose(true);
-            if (argv[1].equalsIgnoreCase("datasetList")){
-               elpis.datasetList();
-            } else if (argv[1].equalsIgnoreCase("datasetNew")){
-               elpis.datasetNew(argv[2]);
-            } else if (argv[1].equalsIgnoreCase("datasetLoad")){
-               elpis.datasetLoad(argv[2]);
-            } else if (argv[1].equalsIgnoreCase("datasetSettings")){
-               elpis.datasetSettings(argv[2]);
-            } else if (argv[1].equalsIgnoreCase("datasetFiles")){
-               // collect up the file arguments and validate them
-               Vector<File> files = new Vector<File>();
-               for (int f = 2; f < argv.length; f++) {
-                  File file = new File(argv[f]);
-                  if (file.exists()) {
-                     files.add(file);
-                  } else {
-                     throw new Exception("File doesn't exist: " + argv[f]);
-                  }
-               } // next argument
-               elpis.datasetFiles(files);
-            } else if (argv[1].equalsIgnoreCase("datasetPrepare")){
-               elpis.datasetPrepare();
-            } else if (argv[1].equalsIgnoreCase("pronDictList")){
-               elpis.pronDictList();
-            } else if (argv[1].equalsIgnoreCase("pronDictNew")){
-               elpis.pronDictNew(argv[2], argv[3]);
-            } else if (argv[1].equalsIgnoreCase("pronDictLoad")){
-               elpis.pronDictLoad(argv[2]);
-            } else if (argv[1].equalsIgnoreCase("pronDictL2S")){
-               // validate file
-               File file = new File(argv[2]);
-               if (!file.exists()) {
-                  throw new Exception("File doesn't exist: " + argv[2]);
-               }
-               elpis.pronDictL2S(file);
-            } else if (argv[1].equalsIgnoreCase("pronDictGenerateLexicon")){
-               elpis.pronDictGenerateLexicon();
-            } else if (argv[1].equalsIgnoreCase("pronDictSaveLexicon")){
-               // validate file
-               File file = new File(argv[2]);
-               if (!file.exists()) {
-                  throw new Exception("File doesn't exist: " + argv[2]);
-               }
-               elpis.pronDictSaveLexicon(file);
-            } else if (argv[1].equalsIgnoreCase("modelList")){
-               elpis.modelList();
-            } else if (argv[1].equalsIgnoreCase("modelNew")){
-               elpis.modelNew(argv[2], argv[3]);
-            } else if (argv[1].equalsIgnoreCase("modelLoad")){
-               elpis.modelLoad(argv[2]);
-            } else if (argv[1].equalsIgnoreCase("modelSettings")){
-               int ngram = Integer.parseInt(argv[2]);
-               elpis.modelSettings(ngram);
-            } else if (argv[1].equalsIgnoreCase("modelTrain")){
-               elpis.modelTrain();
-            } else if (argv[1].equalsIgnoreCase("modelStatus")){
-               elpis.modelStatus();
-            } else if (argv[1].equalsIgnoreCase("modelResults")){
-               elpis.modelResults();
-            } else if (argv[1].equalsIgnoreCase("transcriptionNew")){
-               // validate file
-               File file = new File(argv[2]);
-               if (!file.exists()) {
-                  throw new Exception("File doesn't exist: " + argv[2]);
-               }
-               elpis.transcriptionNew(file);
-            } else if (argv[1].equalsIgnoreCase("transcriptionTranscribe")){
-               elpis.transcriptionTranscribe();
-            } else if (argv[1].equalsIgnoreCase("transcriptionStatus")){
-               elpis.transcriptionStatus();
-            } else if (argv[1].equalsIgnoreCase("transcriptionText")){
-               elpis.transcriptionText();
-            } else if (argv[1].equalsIgnoreCase("transcriptionElan")){
-               File eaf = elpis.transcriptionElan();
-               if (verbose) System.err.println("ELAN file: " + eaf.getPath());
-               eaf.delete();
-            } else if (argv[1].equalsIgnoreCase("configReset")){
-               elpis.configReset();
+            if (concurrency > 0) {
+               bulk = platformThreads? BulkExecutor.platformThreads(concurrency)
+                  : BulkExecutor.virtualThreads(concurrency);
+               if (verbose) System.out.println("Bulk executor: " + bulk);
+            }
+            Vector<Elpis> servers = new Vector<Elpis>();
+            for (String url : argv[0].split(",")) {
+               servers.add(new Elpis(url.trim())
+                           .setVerbose(verbose)
+                           .setKeepRaw(true) // print the response as received
+                           .setBulkExecutor(bulk));
+            } // next URL
+            final String[] arguments = argv;
+            final boolean v = verbose;
+            if (servers.size() == 1) {
+               Elpis elpis = servers.get(0);
+               Result<?> result = invoke(elpis, arguments, v, System.out);
+               if (result != null) System.out.println(describe(result));
+               System.out.flush();
             } else {
-               System.err.println("Invalid function: " + argv[1]);
-               printUsage(null);
-               return;
+               BulkExecutor.Task<Elpis,String> task = elpis -> {
+                  return elpis.getBaseUrl() + "\t" + describe(invoke(elpis, arguments, v, null));
+               };
+               List<String> responses = bulk == null? new Vector<String>()
+                  : bulk.map(servers, task);
+               if (bulk == null) {
+                  for (Elpis elpis : servers) responses.add(task.apply(elpis));
+               }
+               for (String response : responses) System.out.println(response);
             }
-            System.out.println(""+elpis.getResponse());
          } catch(MalformedURLException exception) {
             System.err.println("Invalid URL: " + argv[0]);
          } catch(ElpisException exception) {
@@ -216,19 +195,147 @@ public class CommandLine {
             System.err.println("Communications Error: " + exception);
          } catch(NumberFormatException exception) {
             System.err.println(argv[1] + ": Could not parse number - " + exception.getMessage());
+         } catch(IllegalArgumentException exception) {
+            System.err.println(exception.getMessage());
+            printUsage(null);
          } catch(Exception exception) {
             System.err.println(argv[1] + ": " + exception.getMessage());
             if (!exception.getClass().equals(Exception.class))
             exception.printStackTrace(System.err);
+         } finally {
+            if (bulk != null) bulk.close();
          }
       }
    }
 
+   /**
+    * Invokes the function specified by the command-line arguments.
+    * @param elpis The server to invoke the function on.
+    * @param argv The command-line arguments, the first being the URL and the second the
+    * function name.
+    * @param verbose Whether to print verbose output.
+    * @param out Where to stream transcripts to, or null to load them into the response.
+    * @return The result of the call, whose response should be printed, or null if the
+    * result has already been written to <var>out</var>.
+    * @throws IOException If a file doesn't exist or a communication error occurs.
+    * @throws ElpisException If the server returns an error.
+    * @throws IllegalArgumentException If the function is invalid.
+    */
+   private static Result<?> invoke(
+      Elpis elpis, String argv[], boolean verbose, OutputStream out)
+      throws IOException, ElpisException {
+      if (argv[1].equalsIgnoreCase("datasetList")){
+         return elpis.datasetListResult();
+      } else if (argv[1].equalsIgnoreCase("datasetNew")){
+         return elpis.datasetNewResult(argv[2]);
+      } else if (argv[1].equalsIgnoreCase("datasetLoad")){
+         return elpis.datasetLoadResult(argv[2]);
+      } else if (argv[1].equalsIgnoreCase("datasetSettings")){
+         return elpis.datasetSettingsResult(argv[2]);
+      } else if (argv[1].equalsIgnoreCase("datasetFiles")){
+         // collect up the file arguments and validate them
+         Vector<File> files = new Vector<File>();
+         for (int f = 2; f < argv.length; f++) {
+            File file = new File(argv[f]);
+            if (file.exists()) {
+               files.add(file);
+            } else {
+               throw new IOException("File doesn't exist: " + argv[f]);
+            }
+         } // next argument
+         return elpis.datasetFilesResult(files);
+      } else if (argv[1].equalsIgnoreCase("datasetPrepare")){
+         return elpis.datasetPrepareResult();
+      } else if (argv[1].equalsIgnoreCase("pronDictList")){
+         return elpis.pronDictListResult();
+      } else if (argv[1].equalsIgnoreCase("pronDictNew")){
+         return elpis.pronDictNewResult(argv[2], argv[3]);
+      } else if (argv[1].equalsIgnoreCase("pronDictLoad")){
+         return elpis.pronDictLoadResult(argv[2]);
+      } else if (argv[1].equalsIgnoreCase("pronDictL2S")){
+         // validate file
+         File file = new File(argv[2]);
+         if (!file.exists()) {
+            throw new IOException("File doesn't exist: " + argv[2]);
+         }
+         return elpis.pronDictL2SResult(file);
+      } else if (argv[1].equalsIgnoreCase("pronDictGenerateLexicon")){
+         return elpis.pronDictGenerateLexiconResult();
+      } else if (argv[1].equalsIgnoreCase("pronDictSaveLexicon")){
+         // validate file
+         File file = new File(argv[2]);
+         if (!file.exists()) {
+            throw new IOException("File doesn't exist: " + argv[2]);
+         }
+         return elpis.pronDictSaveLexiconResult(file);
+      } else if (argv[1].equalsIgnoreCase("modelList")){
+         return elpis.modelListResult();
+      } else if (argv[1].equalsIgnoreCase("modelNew")){
+         return elpis.modelNewResult(argv[2], argv[3]);
+      } else if (argv[1].equalsIgnoreCase("modelLoad")){
+         return elpis.modelLoadResult(argv[2]);
+      } else if (argv[1].equalsIgnoreCase("modelSettings")){
+         int ngram = Integer.parseInt(argv[2]);
+         return elpis.modelSettingsResult(ngram);
+      } else if (argv[1].equalsIgnoreCase("modelTrain")){
+         return elpis.modelTrainResult();
+      } else if (argv[1].equalsIgnoreCase("modelStatus")){
+         return elpis.modelStatusResult();
+      } else if (argv[1].equalsIgnoreCase("modelResults")){
+         return elpis.modelResultsResult();
+      } else if (argv[1].equalsIgnoreCase("transcriptionNew")){
+         // validate file
+         File file = new File(argv[2]);
+         if (!file.exists()) {
+            throw new IOException("File doesn't exist: " + argv[2]);
+         }
+         return elpis.transcriptionNewResult(file);
+      } else if (argv[1].equalsIgnoreCase("transcriptionTranscribe")){
+         return elpis.transcriptionTranscribeResult();
+      } else if (argv[1].equalsIgnoreCase("transcriptionStatus")){
+         return elpis.transcriptionStatusResult();
+      } else if (argv[1].equalsIgnoreCase("transcriptionText")){
+         if (out != null) {
+            elpis.transcriptionText(out);
+            return null;
+         }
+         return elpis.transcriptionTextResult();
+      } else if (argv[1].equalsIgnoreCase("transcriptionElan")){
+         if (out != null) {
+            long size = elpis.transcriptionElan(out);
+            if (verbose) System.err.println("ELAN file: " + size + " bytes");
+            return null;
+         }
+         Result<File> result = elpis.transcriptionElanResult();
+         if (verbose) System.err.println("ELAN file: " + result.getData().getPath());
+         result.getData().delete();
+         return result;
+      } else if (argv[1].equalsIgnoreCase("configReset")){
+         return elpis.configResetResult();
+      } else {
+         throw new IllegalArgumentException("Invalid function: " + argv[1]);
+      }
+   } // end of invoke()
+
+   /**
+    * Describes the result of a call for printing.
+    * @param result The result of the call.
+    * @return The response as received, or the data if no request was sent - e.g. because
+    * the upload manifest showed that all files had already been uploaded.
+    */
+   private static String describe(Result<?> result) {
+      Response response = result.getResponse();
+      return response != null? response.toString() : String.valueOf(result.getData());
+   } // end of describe()
+
    private static void printUsage(String function) {
       System.err.println("Usage:");
       if (function == null) {
-         System.err.println("java -jar nzilbb.elpis.jar [-v] elpis-url function [args...]");
+         System.err.println(
+            "java -jar nzilbb.elpis.jar [-v] [-c=n [-p]] elpis-url[,elpis-url...] function [args...]");
          System.err.println(" -v : verbose output");
+         System.err.println(" -c=n : allow up to n concurrent requests, on virtual threads if possible");
+         System.err.println(" -p : use platform threads, not virtual threads, for -c");
          System.err.println("functions:");
          for (int f = 0; f < functions.length; f++) {
             // is this the function?
@@ -0,0 +1,911 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+package nzilbb.elpis.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * An in-process stand-in for an Elpis server, for testing and benchmarking clients
+ * without a real server, which would train real Kaldi models.
+ * <p> The stub implements the <tt>dataset/*</tt>, <tt>pron-dict/*</tt>, <tt>model/*</tt>,
+ * <tt>transcription/*</tt>, and <tt>config/reset</tt> endpoints, keeping track of the
+ * datasets, pronunciation dictionaries, and models created, and which of each is
+ * currently loaded. Training and transcription are simulated by status state machines:
+ * a model is <q>training</q> for {@link #getTrainingTime()} after training starts, and
+ * then <q>trained</q>; and a recording is <q>transcribing</q> for
+ * {@link #getTranscriptionTime()} and then <q>transcribed</q>.
+ * <p> The size of the generated word list, lexicon, and transcripts, the latency of
+ * each endpoint, and the rate of injected failures are all configurable, and the number
+ * of requests to each endpoint is counted, so client overhead, throughput, and
+ * concurrency can be measured on any machine, with no network access.
+ * <p> Uploaded files are counted and their names recorded, but their content is
+ * discarded as it's read, so large uploads don't use memory.
+ * <p> e.g.
+ * <pre>
+ * try (ElpisStub stub = new ElpisStub()
+ *         .setLatency(Duration.ofMillis(5))
+ *         .setTrainingTime(Duration.ofMillis(100))
+ *         .start()) {
+ *    Elpis elpis = new Elpis(stub.getUrl());
+ *    elpis.datasetNew("ds");
+ *    ...
+ *    System.out.println(stub.getRequestCount("model/status") + " status checks");
+ * }
+ * </pre>
+ * <p> The stub can also be run from the command line, e.g.
+ * <p><tt>java -cp nzilbb.elpis.jar:javax.json.jar nzilbb.elpis.util.ElpisStub 5000</tt>
+ * <p> The JDK's HTTP server leaves Nagle's algorithm on by default, which delays small
+ * responses by ~40ms. The stub doesn't change that itself, as it's a JVM-wide setting,
+ * so tests and benchmarks should run with <tt>-Dsun.net.httpserver.nodelay=true</tt>
+ * (or set the property before the first server is started). {@link #main(String[])}
+ * sets it.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ElpisStub implements AutoCloseable {
+
+   /** Model status before training */
+   public static final String UNTRAINED = "untrained";
+   /** Model status during training */
+   public static final String TRAINING = "training";
+   /** Model status after training */
+   public static final String TRAINED = "trained";
+   /** Transcription status after a recording is uploaded */
+   public static final String READY = "ready";
+   /** Transcription status during transcription */
+   public static final String TRANSCRIBING = "transcribing";
+   /** Transcription status after transcription */
+   public static final String TRANSCRIBED = "transcribed";
+
+   /** Matches the file names of multipart request parts */
+   static final Pattern FILENAME = Pattern.compile("filename=\"([^\"]*)\"");
+
+   /** A dataset */
+   class Dataset {
+      String name;
+      String tier;
+      Vector<String> files = new Vector<String>();
+      boolean prepared;
+   }
+
+   /** A pronunciation dictionary */
+   class PronDict {
+      String name;
+      String datasetName;
+      String l2s;
+      String lexicon;
+   }
+
+   /** A model */
+   class Model {
+      String name;
+      String pronDictName;
+      int ngram = 1;
+      String status = UNTRAINED;
+      long trainedAt;
+   }
+
+   // Attributes:
+
+   /**
+    * The port to listen on, or 0 (the default) to use any free port.
+    * @see #getPort()
+    * @see #setPort(int)
+    */
+   protected int port = 0;
+   /**
+    * Getter for {@link #port}: The port to listen on, or 0 to use any free port. Once
+    * the stub has started, this is the port it's actually listening on.
+    * @return The port to listen on.
+    */
+   public int getPort() { return port; }
+   /**
+    * Setter for {@link #port}: The port to listen on, or 0 to use any free port.
+    * @param newPort The port to listen on.
+    */
+   public ElpisStub setPort(int newPort) { port = newPort; return this; }
+
+   /**
+    * How long each request takes to respond, by default.
+    * @see #getLatency()
+    * @see #setLatency(Duration)
+    */
+   protected Duration latency = Duration.ZERO;
+   /**
+    * Getter for {@link #latency}: How long each request takes to respond, by default.
+    * @return How long each request takes to respond.
+    */
+   public Duration getLatency() { return latency; }
+   /**
+    * Setter for {@link #latency}: How long each request takes to respond, by default.
+    * @param newLatency How long each request takes to respond.
+    */
+   public ElpisStub setLatency(Duration newLatency) { latency = newLatency; return this; }
+
+   /**
+    * How long a model takes to train.
+    * @see #getTrainingTime()
+    * @see #setTrainingTime(Duration)
+    */
+   protected Duration trainingTime = Duration.ZERO;
+   /**
+    * Getter for {@link #trainingTime}: How long a model takes to train.
+    * @return How long a model takes to train.
+    */
+   public Duration getTrainingTime() { return trainingTime; }
+   /**
+    * Setter for {@link #trainingTime}: How long a model takes to train.
+    * @param newTrainingTime How long a model takes to train.
+    */
+   public ElpisStub setTrainingTime(Duration newTrainingTime) { trainingTime = newTrainingTime; return this; }
+
+   /**
+    * How long a recording takes to transcribe.
+    * @see #getTranscriptionTime()
+    * @see #setTranscriptionTime(Duration)
+    */
+   protected Duration transcriptionTime = Duration.ZERO;
+   /**
+    * Getter for {@link #transcriptionTime}: How long a recording takes to transcribe.
+    * @return How long a recording takes to transcribe.
+    */
+   public Duration getTranscriptionTime() { return transcriptionTime; }
+   /**
+    * Setter for {@link #transcriptionTime}: How long a recording takes to transcribe.
+    * @param newTranscriptionTime How long a recording takes to transcribe.
+    */
+   public ElpisStub setTranscriptionTime(Duration newTranscriptionTime) { transcriptionTime = newTranscriptionTime; return this; }
+
+   /**
+    * The number of words in the word list and lexicon generated for a dataset.
+    * @see #getVocabularySize()
+    * @see #setVocabularySize(int)
+    */
+   protected int vocabularySize = 100;
+   /**
+    * Getter for {@link #vocabularySize}: The number of words in the word list and lexicon
+    * generated for a dataset.
+    * @return The number of words in the word list and lexicon.
+    */
+   public int getVocabularySize() { return vocabularySize; }
+   /**
+    * Setter for {@link #vocabularySize}: The number of words in the word list and lexicon
+    * generated for a dataset.
+    * @param newVocabularySize The number of words in the word list and lexicon.
+    */
+   public synchronized ElpisStub setVocabularySize(int newVocabularySize) { vocabularySize = newVocabularySize; wordlist = null; lexicon = null; return this; }
+
+   /**
+    * The number of words in each transcript.
+    * @see #getTranscriptSize()
+    * @see #setTranscriptSize(int)
+    */
+   protected int transcriptSize = 20;
+   /**
+    * Getter for {@link #transcriptSize}: The number of words in each transcript.
+    * @return The number of words in each transcript.
+    */
+   public int getTranscriptSize() { return transcriptSize; }
+   /**
+    * Setter for {@link #transcriptSize}: The number of words in each transcript.
+    * @param newTranscriptSize The number of words in each transcript.
+    */
+   public ElpisStub setTranscriptSize(int newTranscriptSize) { transcriptSize = newTranscriptSize; return this; }
+
+   /**
+    * The word error rate reported in model results.
+    * @see #getWer()
+    * @see #setWer(double)
+    */
+   protected double wer = 12.5;
+   /**
+    * Getter for {@link #wer}: The word error rate reported in model results.
+    * @return The word error rate reported in model results.
+    */
+   public double getWer() { return wer; }
+   /**
+    * Setter for {@link #wer}: The word error rate reported in model results.
+    * @param newWer The word error rate reported in model results.
+    */
+   public ElpisStub setWer(double newWer) { wer = newWer; return this; }
+
+   /**
+    * The proportion of requests, from 0.0 to 1.0, that fail with a 500 status.
+    * @see #getFailureRate()
+    * @see #setFailureRate(double)
+    */
+   protected double failureRate = 0.0;
+   /**
+    * Getter for {@link #failureRate}: The proportion of requests that fail.
+    * @return The proportion of requests, from 0.0 to 1.0, that fail.
+    */
+   public double getFailureRate() { return failureRate; }
+   /**
+    * Setter for {@link #failureRate}: The proportion of requests that fail.
+    * @param newFailureRate The proportion of requests, from 0.0 to 1.0, that fail.
+    */
+   public ElpisStub setFailureRate(double newFailureRate) { failureRate = newFailureRate; return this; }
+
+   /** Latencies of particular endpoints, which override {@link #latency} */
+   private ConcurrentHashMap<String,Duration> latencies = new ConcurrentHashMap<String,Duration>();
+
+   /** The number of upcoming requests to each endpoint that will fail */
+   private ConcurrentHashMap<String,Integer> failures = new ConcurrentHashMap<String,Integer>();
+
+   /** The number of requests to each endpoint */
+   private ConcurrentHashMap<String,AtomicLong> requestCounts = new ConcurrentHashMap<String,AtomicLong>();
+
+   /** The total number of request body bytes received */
+   private AtomicLong bytesReceived = new AtomicLong();
+
+   /** Chooses which requests fail, if {@link #failureRate} is set */
+   private Random random = new Random(0);
+
+   /** The server, once started */
+   private HttpServer server;
+
+   /** Runs requests */
+   private ExecutorService executor;
+
+   private LinkedHashMap<String,Dataset> datasets = new LinkedHashMap<String,Dataset>();
+   private LinkedHashMap<String,PronDict> pronDicts = new LinkedHashMap<String,PronDict>();
+   private LinkedHashMap<String,Model> models = new LinkedHashMap<String,Model>();
+   private Dataset dataset;
+   private PronDict pronDict;
+   private Model model;
+   private String recording;
+   private String transcriptionStatus;
+   private long transcribedAt;
+
+   /** The generated word list, as a JSON object, cached */
+   private String wordlist;
+
+   /** The generated lexicon, cached */
+   private String lexicon;
+
+   // Methods:
+
+   /**
+    * Default constructor.
+    */
+   public ElpisStub() {
+   } // end of constructor
+
+   /**
+    * Starts listening for requests on the loopback address.
+    * @return A reference to this object.
+    * @throws IOException If the server can't be started.
+    */
+   public ElpisStub start() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+      server.createContext("/api/", exchange -> handle(exchange));
+      executor = Executors.newCachedThreadPool();
+      server.setExecutor(executor);
+      server.start();
+      port = server.getAddress().getPort();
+      return this;
+   } // end of start()
+
+   /**
+    * Stops the server.
+    */
+   public void stop() {
+      if (server != null) {
+         server.stop(0);
+         executor.shutdownNow();
+         server = null;
+      }
+   } // end of stop()
+
+   /**
+    * Stops the server.
+    */
+   public void close() {
+      stop();
+   } // end of close()
+
+   /**
+    * The base URL of the stub, for passing to the Elpis constructor.
+    * @return The base URL of the stub.
+    */
+   public String getUrl() {
+      return "http://127.0.0.1:" + port + "/";
+   } // end of getUrl()
+
+   /**
+    * Sets the latency of a particular endpoint, overriding {@link #getLatency()}.
+    * @param endpoint The endpoint, e.g. "model/status".
+    * @param endpointLatency How long requests to the endpoint take to respond.
+    * @return A reference to this object.
+    */
+   public ElpisStub setLatency(String endpoint, Duration endpointLatency) {
+      latencies.put(endpoint, endpointLatency);
+      return this;
+   } // end of setLatency()
+
+   /**
+    * Makes the next requests to the given endpoint fail with a 500 status.
+    * @param endpoint The endpoint, e.g. "model/train".
+    * @param count The number of requests that will fail.
+    * @return A reference to this object.
+    */
+   public ElpisStub failNext(String endpoint, int count) {
+      failures.put(endpoint, count);
+      return this;
+   } // end of failNext()
+
+   /**
+    * The number of requests received by the given endpoint.
+    * @param endpoint The endpoint, e.g. "model/status".
+    * @return The number of requests, including failed ones.
+    */
+   public long getRequestCount(String endpoint) {
+      AtomicLong count = requestCounts.get(endpoint);
+      return count == null? 0 : count.get();
+   } // end of getRequestCount()
+
+   /**
+    * The total number of requests received.
+    * @return The number of requests to all endpoints, including failed ones.
+    */
+   public long getRequestCount() {
+      return requestCounts.values().stream().mapToLong(AtomicLong::get).sum();
+   } // end of getRequestCount()
+
+   /**
+    * The total size of the request bodies received.
+    * @return The number of bytes received.
+    */
+   public long getBytesReceived() {
+      return bytesReceived.get();
+   } // end of getBytesReceived()
+
+   /**
+    * Resets the request counts.
+    */
+   public void resetCounts() {
+      requestCounts.clear();
+      bytesReceived.set(0);
+   } // end of resetCounts()
+
+   /**
+    * The names of the files uploaded to the given dataset.
+    * @param name The name of the dataset.
+    * @return The file names, or null if there's no such dataset.
+    */
+   public synchronized List<String> getDatasetFiles(String name) {
+      Dataset d = datasets.get(name);
+      return d == null? null : new Vector<String>(d.files);
+   } // end of getDatasetFiles()
+
+   /**
+    * The lexicon last saved to the given pronunciation dictionary.
+    * @param name The name of the pronunciation dictionary.
+    * @return The lexicon, or null if none has been saved.
+    */
+   public synchronized String getSavedLexicon(String name) {
+      PronDict p = pronDicts.get(name);
+      return p == null? null : p.lexicon;
+   } // end of getSavedLexicon()
+
+   /**
+    * The n-gram setting of the given model.
+    * @param name The name of the model.
+    * @return The n-gram setting, or 0 if there's no such model.
+    */
+   public synchronized int getNgram(String name) {
+      Model m = models.get(name);
+      return m == null? 0 : m.ngram;
+   } // end of getNgram()
+
+   /**
+    * Handles a request.
+    * @param exchange The request and response.
+    * @throws IOException If communication fails.
+    */
+   void handle(HttpExchange exchange) throws IOException {
+      try {
+         String endpoint = exchange.getRequestURI().getPath().substring("/api/".length());
+         requestCounts.computeIfAbsent(endpoint, e -> new AtomicLong()).incrementAndGet();
+         String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+         JsonObject parameters = JsonValue.EMPTY_JSON_OBJECT;
+         List<String> filenames = new Vector<String>();
+         if (contentType != null && contentType.startsWith("multipart/")) {
+            filenames = readFilenames(exchange.getRequestBody());
+         } else {
+            String body = new String(readBody(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            if (contentType != null && contentType.startsWith("application/json")
+                && body.length() > 0) {
+               parameters = Json.createReader(new StringReader(body)).readObject();
+            }
+         }
+
+         Duration delay = latencies.getOrDefault(endpoint, latency);
+         if (!delay.isZero()) Thread.sleep(delay.toMillis(), delay.getNano() % 1000000);
+
+         if (shouldFail(endpoint)) {
+            send(exchange, error(500, "Injected failure: " + endpoint));
+            return;
+         }
+         send(exchange, respond(endpoint, parameters, filenames));
+      } catch (InterruptedException exception) {
+         send(exchange, error(503, "Interrupted"));
+      } catch (RuntimeException exception) {
+         send(exchange, error(500, exception.toString()));
+      } finally {
+         exchange.close();
+      }
+   } // end of handle()
+
+   /**
+    * Determines whether a request to the given endpoint should fail.
+    * @param endpoint The endpoint.
+    * @return true if the request should fail.
+    */
+   private boolean shouldFail(String endpoint) {
+      boolean[] fail = { false };
+      failures.computeIfPresent(endpoint, (e, count) -> {
+            fail[0] = true;
+            return count > 1? count - 1 : null;
+         });
+      if (fail[0]) return true;
+      if (failureRate > 0.0) {
+         synchronized (random) {
+            return random.nextDouble() < failureRate;
+         }
+      }
+      return false;
+   } // end of shouldFail()
+
+   /**
+    * Produces the response for the given endpoint, updating the state of the stub.
+    * The response is only composed here, and sent by the caller once the lock is released,
+    * so a slow client doesn't hold up requests on other connections.
+    * @param endpoint The endpoint.
+    * @param parameters JSON parameters of the request.
+    * @param filenames Names of files uploaded by a multipart request.
+    * @return The response to send.
+    */
+   private synchronized Reply respond(String endpoint, JsonObject parameters,
+                                      List<String> filenames) {
+      JsonObjectBuilder data = Json.createObjectBuilder();
+      switch (endpoint) {
+         case "config/reset":
+            datasets.clear();
+            pronDicts.clear();
+            models.clear();
+            dataset = null;
+            pronDict = null;
+            model = null;
+            recording = null;
+            transcriptionStatus = null;
+            break;
+
+         case "dataset/new": {
+            dataset = new Dataset();
+            dataset.name = parameters.getString("name", "");
+            datasets.put(dataset.name, dataset);
+            data.add("config", Json.createObjectBuilder().add("name", dataset.name));
+            break;
+         }
+         case "dataset/list": {
+            JsonArrayBuilder list = Json.createArrayBuilder();
+            for (String name : datasets.keySet()) list.add(name);
+            data.add("list", list);
+            break;
+         }
+         case "dataset/load": {
+            dataset = datasets.get(parameters.getString("name", ""));
+            if (dataset == null) {
+               return error(500, "No such dataset");
+            }
+            JsonArrayBuilder files = Json.createArrayBuilder();
+            for (String name : dataset.files) files.add(name);
+            data.add("config", Json.createObjectBuilder()
+                     .add("name", dataset.name).add("files", files));
+            data.add("wordlist", dataset.prepared? wordlist() : "");
+            break;
+         }
+         case "dataset/settings":
+            if (dataset == null) {
+               return error(500, "No dataset loaded");
+            }
+            dataset.tier = parameters.getString("tier", null);
+            break;
+         case "dataset/files": {
+            if (dataset == null) {
+               return error(500, "No dataset loaded");
+            }
+            for (String name : filenames) {
+               if (!dataset.files.contains(name)) dataset.files.add(name);
+            }
+            if (filenames.size() > 0) dataset.prepared = false;
+            JsonArrayBuilder files = Json.createArrayBuilder();
+            for (String name : dataset.files) files.add(name);
+            data.add("files", files);
+            break;
+         }
+         case "dataset/prepare":
+            if (dataset == null) {
+               return error(500, "No dataset loaded");
+            }
+            dataset.prepared = true;
+            data.add("wordlist", wordlist());
+            break;
+
+         case "pron-dict/new": {
+            pronDict = new PronDict();
+            pronDict.name = parameters.getString("name", "");
+            pronDict.datasetName = parameters.getString("dataset_name", "");
+            pronDicts.put(pronDict.name, pronDict);
+            data.add("config", Json.createObjectBuilder()
+                     .add("name", pronDict.name)
+                     .add("dataset_name", pronDict.datasetName));
+            break;
+         }
+         case "pron-dict/list": {
+            JsonArrayBuilder list = Json.createArrayBuilder();
+            for (PronDict p : pronDicts.values()) {
+               list.add(Json.createObjectBuilder()
+                        .add("name", p.name)
+                        .add("dataset_name", p.datasetName));
+            }
+            data.add("list", list);
+            break;
+         }
+         case "pron-dict/load":
+            pronDict = pronDicts.get(parameters.getString("name", ""));
+            if (pronDict == null) {
+               return error(500, "No such pronunciation dictionary");
+            }
+            data.add("config", Json.createObjectBuilder()
+                     .add("name", pronDict.name)
+                     .add("dataset_name", pronDict.datasetName));
+            data.add("l2s", pronDict.l2s == null? "" : pronDict.l2s);
+            data.add("lexicon", pronDict.lexicon == null? "" : pronDict.lexicon);
+            break;
+         case "pron-dict/l2s":
+            if (pronDict == null) {
+               return error(500, "No pronunciation dictionary loaded");
+            }
+            pronDict.l2s = String.join("\n", filenames); // content isn't kept
+            break;
+         case "pron-dict/generate-lexicon":
+            if (pronDict == null) {
+               return error(500, "No pronunciation dictionary loaded");
+            }
+            pronDict.lexicon = lexicon();
+            data.add("lexicon", pronDict.lexicon);
+            break;
+         case "pron-dict/save-lexicon":
+            if (pronDict == null) {
+               return error(500, "No pronunciation dictionary loaded");
+            }
+            pronDict.lexicon = parameters.getString("lexicon", "");
+            break;
+
+         case "model/new": {
+            model = new Model();
+            model.name = parameters.getString("name", "");
+            model.pronDictName = parameters.getString("pron_dict_name", "");
+            models.put(model.name, model);
+            data.add("config", modelConfig(model));
+            break;
+         }
+         case "model/list": {
+            JsonArrayBuilder list = Json.createArrayBuilder();
+            for (Model m : models.values()) list.add(modelConfig(m));
+            data.add("list", list);
+            break;
+         }
+         case "model/load":
+            model = models.get(parameters.getString("name", ""));
+            if (model == null) {
+               return error(500, "No such model");
+            }
+            break;
+         case "model/settings":
+            if (model == null) {
+               return error(500, "No model loaded");
+            }
+            model.ngram = Integer.parseInt(parameters.getString("ngram", "1"));
+            break;
+         case "model/train":
+            if (model == null) {
+               return error(500, "No model loaded");
+            }
+            model.status = TRAINING;
+            model.trainedAt = System.nanoTime() + trainingTime.toNanos();
+            data.add("status", model.status);
+            break;
+         case "model/status":
+            if (model == null) {
+               return error(500, "No model loaded");
+            }
+            data.add("status", modelStatus(model));
+            break;
+         case "model/results":
+            if (model == null || !TRAINED.equals(modelStatus(model))) {
+               return error(500, "Model not trained");
+            }
+            data.add("results", Json.createObjectBuilder()
+                     .add("wer", "" + wer)
+                     .add("ins_val", "1")
+                     .add("del_val", "2")
+                     .add("sub_val", "3")
+                     .add("count_val", "" + vocabularySize));
+            break;
+
+         case "transcription/new":
+            recording = filenames.isEmpty()? "" : filenames.get(0);
+            transcriptionStatus = READY;
+            data.add("status", transcriptionStatus);
+            break;
+         case "transcription/transcribe":
+            if (recording == null) {
+               return error(500, "No recording uploaded");
+            }
+            transcriptionStatus = TRANSCRIBING;
+            transcribedAt = System.nanoTime() + transcriptionTime.toNanos();
+            data.add("status", transcriptionStatus);
+            break;
+         case "transcription/status":
+            data.add("status", transcriptionStatus());
+            break;
+         case "transcription/text":
+            if (!TRANSCRIBED.equals(transcriptionStatus())) {
+               return new Reply(404, "text/plain", "No transcription");
+            }
+            return new Reply(200, "text/plain", transcript("", ""));
+         case "transcription/elan":
+            if (!TRANSCRIBED.equals(transcriptionStatus())) {
+               return new Reply(404, "text/plain", "No transcription");
+            }
+            return new Reply(200, "text/x-eaf+xml", "<ANNOTATION_DOCUMENT>\n"
+                             + transcript("<ANNOTATION_VALUE>", "</ANNOTATION_VALUE>")
+                             + "</ANNOTATION_DOCUMENT>\n");
+
+         default:
+            return error(404, "Unknown endpoint: " + endpoint);
+      } // switch
+      return json(Json.createObjectBuilder()
+                  .add("status", 200).add("data", data).build().toString());
+   } // end of respond()
+
+   /**
+    * Describes a model, as listed by <tt>model/list</tt>.
+    * @param m The model.
+    * @return The model configuration.
+    */
+   private JsonObjectBuilder modelConfig(Model m) {
+      PronDict p = pronDicts.get(m.pronDictName);
+      return Json.createObjectBuilder()
+         .add("name", m.name)
+         .add("pron_dict_name", m.pronDictName)
+         .add("dataset_name", p == null? "" : p.datasetName);
+   } // end of modelConfig()
+
+   /**
+    * Gets the status of the given model, finishing training if its time has come.
+    * @param m The model.
+    * @return The model's status.
+    */
+   private String modelStatus(Model m) {
+      if (TRAINING.equals(m.status) && System.nanoTime() - m.trainedAt >= 0) {
+         m.status = TRAINED;
+      }
+      return m.status;
+   } // end of modelStatus()
+
+   /**
+    * Gets the status of transcription, finishing it if its time has come.
+    * @return The transcription status, which is null if nothing has been uploaded.
+    */
+   private String transcriptionStatus() {
+      if (TRANSCRIBING.equals(transcriptionStatus)
+          && System.nanoTime() - transcribedAt >= 0) {
+         transcriptionStatus = TRANSCRIBED;
+      }
+      return transcriptionStatus;
+   } // end of transcriptionStatus()
+
+   /**
+    * Gets the <var>w</var>th word of the generated vocabulary.
+    * @param w The index of the word.
+    * @return The word.
+    */
+   static String word(int w) {
+      return "w" + Integer.toString(w, 36);
+   } // end of word()
+
+   /**
+    * Gets the generated word list, a JSON object of {@link #vocabularySize} words and
+    * their frequencies.
+    * @return The word list.
+    */
+   private String wordlist() {
+      if (wordlist == null) {
+         JsonObjectBuilder words = Json.createObjectBuilder();
+         for (int w = 0; w < vocabularySize; w++) {
+            words.add(word(w), vocabularySize - w);
+         }
+         wordlist = words.build().toString();
+      }
+      return wordlist;
+   } // end of wordlist()
+
+   /**
+    * Gets the generated lexicon, {@link #vocabularySize} lines of words and
+    * pronunciations.
+    * @return The lexicon.
+    */
+   private String lexicon() {
+      if (lexicon == null) {
+         StringBuilder lines = new StringBuilder();
+         for (int w = 0; w < vocabularySize; w++) {
+            String word = word(w);
+            lines.append(word);
+            for (int c = 0; c < word.length(); c++) lines.append(' ').append(word.charAt(c));
+            lines.append('\n');
+         }
+         lexicon = lines.toString();
+      }
+      return lexicon;
+   } // end of lexicon()
+
+   /**
+    * Generates a transcript of {@link #transcriptSize} words.
+    * @param linePrefix Text to start each line with.
+    * @param lineSuffix Text to end each line with.
+    * @return The transcript.
+    */
+   private String transcript(String linePrefix, String lineSuffix) {
+      StringBuilder transcript = new StringBuilder();
+      int vocabulary = Math.max(vocabularySize, 1);
+      for (int w = 0; w < transcriptSize; w++) {
+         if (w % 10 == 0) {
+            if (w > 0) transcript.append(lineSuffix).append('\n');
+            transcript.append(linePrefix);
+         } else {
+            transcript.append(' ');
+         }
+         transcript.append(word(w % vocabulary));
+      }
+      return transcript.append(lineSuffix).append('\n').toString();
+   } // end of transcript()
+
+   /**
+    * Reads a request body.
+    * @param body The request body.
+    * @return The content.
+    * @throws IOException If the body can't be read.
+    */
+   private byte[] readBody(InputStream body) throws IOException {
+      byte[] content = body.readAllBytes();
+      bytesReceived.addAndGet(content.length);
+      return content;
+   } // end of readBody()
+
+   /**
+    * Reads a multipart request body, keeping only the names of the files, so that large
+    * uploads don't use memory.
+    * @param body The request body.
+    * @return The names of the files uploaded.
+    * @throws IOException If the body can't be read.
+    */
+   private List<String> readFilenames(InputStream body) throws IOException {
+      Vector<String> filenames = new Vector<String>();
+      byte[] buffer = new byte[65536];
+      String carry = "";
+      for (int n = body.read(buffer); n >= 0; n = body.read(buffer)) {
+         bytesReceived.addAndGet(n);
+         // ISO-8859-1 maps each byte to one char, so part headers can be found anywhere
+         String text = carry + new String(buffer, 0, n, StandardCharsets.ISO_8859_1);
+         Matcher matcher = FILENAME.matcher(text);
+         int end = 0;
+         while (matcher.find()) {
+            filenames.add(new String(matcher.group(1).getBytes(StandardCharsets.ISO_8859_1),
+                                     StandardCharsets.UTF_8));
+            end = matcher.end();
+         }
+         // keep enough of the end to complete a header split across reads
+         carry = text.substring(Math.max(end, text.length() - 1024));
+      } // next buffer
+      return filenames;
+   } // end of readFilenames()
+
+   /**
+    * A response composed by {@link #respond(String,JsonObject,List)}, to be sent once
+    * the state lock has been released.
+    */
+   private static class Reply {
+      final int httpStatus;
+      final String contentType;
+      final String text;
+      Reply(int httpStatus, String contentType, String text) {
+         this.httpStatus = httpStatus;
+         this.contentType = contentType;
+         this.text = text;
+      }
+   } // end of class Reply
+
+   /**
+    * Composes a JSON error response.
+    * @param status The status to report.
+    * @param message The error message.
+    * @return The response.
+    */
+   private static Reply error(int status, String message) {
+      return json(Json.createObjectBuilder()
+                  .add("status", status).add("data", message).build().toString());
+   } // end of error()
+
+   /**
+    * Composes a JSON response.
+    * @param json The response content.
+    * @return The response.
+    */
+   private static Reply json(String json) {
+      return new Reply(200, "application/json", json);
+   } // end of json()
+
+   /**
+    * Sends a response.
+    * @param exchange The request and response.
+    * @param reply The response.
+    * @throws IOException If communication fails.
+    */
+   private void send(HttpExchange exchange, Reply reply) throws IOException {
+      byte[] content = reply.text.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", reply.contentType + ";charset=utf-8");
+      exchange.sendResponseHeaders(reply.httpStatus, content.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+         out.write(content);
+      }
+   } // end of send()
+
+   /**
+    * Runs the stub from the command line, until it's killed.
+    * @param args The port to listen on, and optionally the latency in milliseconds and
+    * the training/transcription time in milliseconds.
+    * @throws Exception If the stub can't be started.
+    */
+   public static void main(String[] args) throws Exception {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+      ElpisStub stub = new ElpisStub();
+      if (args.length > 0) stub.setPort(Integer.parseInt(args[0]));
+      if (args.length > 1) stub.setLatency(Duration.ofMillis(Long.parseLong(args[1])));
+      if (args.length > 2) {
+         Duration time = Duration.ofMillis(Long.parseLong(args[2]));
+         stub.setTrainingTime(time).setTranscriptionTime(time);
+      }
+      stub.start();
+      System.out.println("Elpis stub listening on " + stub.getUrl());
+   } // end of main()
+
+} // end of class ElpisStub
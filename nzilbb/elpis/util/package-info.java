@@ -14,5 +14,7 @@
  *   }, 
  *   "status": 200
  * }</pre>
+ * <p>{@link ElpisStub} is an in-process stand-in for an Elpis server, for testing and
+ * benchmarking clients without a real server.
  */
 package nzilbb.elpis.util;